@@ -0,0 +1,102 @@
+BEGIN;
+
+-- catalog of the entity types and the attributes per type with the number of entities having them.
+-- the /types and /attributes queries and the stats used to aggregate over jsonb_each of the whole
+-- entity table on every call. the catalog is maintained per statement from the transition tables of
+-- the entity table, an update which does not change the type or the attributes of an entity does not
+-- touch the catalog.
+
+CREATE TABLE IF NOT EXISTS entitytypecatalog (
+  type TEXT NOT NULL,
+  entitycount BIGINT NOT NULL,
+  PRIMARY KEY (type))
+;
+
+-- attributetype is the type of the first instance of the attribute ('' if it has none)
+CREATE TABLE IF NOT EXISTS entityattributecatalog (
+  type TEXT NOT NULL,
+  attribute TEXT NOT NULL,
+  attributetype TEXT NOT NULL,
+  entitycount BIGINT NOT NULL,
+  PRIMARY KEY (type, attribute, attributetype))
+;
+
+CREATE INDEX IF NOT EXISTS i_entityattributecatalog_attribute ON entityattributecatalog (attribute);
+
+CREATE TYPE entitycatalogchange AS (type TEXT, data JSONB, delta INTEGER);
+
+-- applies the changes (+1 for a new row, -1 for an old row) of a statement to the catalog
+CREATE OR REPLACE FUNCTION entity_catalog_apply(changes entitycatalogchange[]) RETURNS void AS $_$
+    DECLARE
+        emptied TEXT[];
+    BEGIN
+        -- ordered upserts so that concurrent statements lock the catalog rows in the same order.
+        -- types and attributes without entities left are removed afterwards.
+        WITH changed AS (
+            INSERT INTO entitytypecatalog AS c (type, entitycount)
+                SELECT ch.type, sum(ch.delta) FROM unnest(changes) ch
+                    WHERE ch.type IS NOT NULL
+                    GROUP BY ch.type HAVING sum(ch.delta) <> 0
+                    ORDER BY ch.type
+                ON CONFLICT (type) DO UPDATE SET entitycount = c.entitycount + EXCLUDED.entitycount
+                RETURNING c.type, c.entitycount)
+        SELECT array_agg(type) INTO emptied FROM changed WHERE entitycount <= 0;
+        IF emptied IS NOT NULL THEN
+            DELETE FROM entitytypecatalog WHERE type = ANY(emptied) AND entitycount <= 0;
+        END IF;
+
+        WITH changed AS (
+            INSERT INTO entityattributecatalog AS c (type, attribute, attributetype, entitycount)
+                SELECT ch.type, a.key, coalesce(a.value#>>'{0,@type,0}', ''), sum(ch.delta)
+                    FROM unnest(changes) ch, jsonb_each(ch.data - '@id' - '@type') a
+                    WHERE ch.type IS NOT NULL
+                    GROUP BY 1, 2, 3 HAVING sum(ch.delta) <> 0
+                    ORDER BY 1, 2, 3
+                ON CONFLICT (type, attribute, attributetype) DO UPDATE SET entitycount = c.entitycount + EXCLUDED.entitycount
+                RETURNING c.type, c.entitycount)
+        SELECT array_agg(DISTINCT type) INTO emptied FROM changed WHERE entitycount <= 0;
+        IF emptied IS NOT NULL THEN
+            DELETE FROM entityattributecatalog WHERE type = ANY(emptied) AND entitycount <= 0;
+        END IF;
+    END;
+$_$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION entity_catalog_update_set() RETURNS trigger AS $_$
+    BEGIN
+        IF TG_OP = 'INSERT' THEN
+            PERFORM entity_catalog_apply(ARRAY(SELECT (type, data_without_sysattrs, 1)::entitycatalogchange FROM new_rows));
+        ELSIF TG_OP = 'DELETE' THEN
+            PERFORM entity_catalog_apply(ARRAY(SELECT (type, data_without_sysattrs, -1)::entitycatalogchange FROM old_rows));
+        ELSE
+            PERFORM entity_catalog_apply(ARRAY(
+                SELECT (type, data_without_sysattrs, 1)::entitycatalogchange FROM new_rows
+                UNION ALL
+                SELECT (type, data_without_sysattrs, -1)::entitycatalogchange FROM old_rows));
+        END IF;
+        RETURN NULL;
+    END;
+$_$ LANGUAGE plpgsql;
+
+CREATE TRIGGER entity_catalog_insert AFTER INSERT ON entity
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE entity_catalog_update_set();
+
+CREATE TRIGGER entity_catalog_update AFTER UPDATE ON entity
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE entity_catalog_update_set();
+
+CREATE TRIGGER entity_catalog_delete AFTER DELETE ON entity
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE entity_catalog_update_set();
+
+-- fills the catalog from the existing entities once
+INSERT INTO entitytypecatalog (type, entitycount)
+    SELECT type, count(1) FROM entity WHERE type IS NOT NULL GROUP BY type;
+
+INSERT INTO entityattributecatalog (type, attribute, attributetype, entitycount)
+    SELECT e.type, a.key, coalesce(a.value#>>'{0,@type,0}', ''), count(1)
+        FROM entity e, jsonb_each(e.data_without_sysattrs - '@id' - '@type') a
+        WHERE e.type IS NOT NULL
+        GROUP BY 1, 2, 3;
+
+COMMIT;
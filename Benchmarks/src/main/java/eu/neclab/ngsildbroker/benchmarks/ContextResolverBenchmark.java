@@ -0,0 +1,66 @@
+package eu.neclab.ngsildbroker.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.neclab.ngsildbroker.commons.constants.AppConstants;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.ldcontext.CompactedJson;
+import eu.neclab.ngsildbroker.commons.ldcontext.ContextResolverBasic;
+import eu.neclab.ngsildbroker.commons.ldcontext.EntityCompactor;
+
+/**
+ * JSON-LD expansion of incoming entities and compaction of outgoing ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContextResolverBenchmark {
+
+	private ContextResolverBasic resolver;
+	private String payload;
+	private String expanded;
+	private List<Object> contextLinks;
+	private EntityCompactor compactor;
+
+	@Setup
+	public void setup() throws ResponseException {
+		resolver = Fixtures.resolver();
+		payload = Fixtures.vehicle();
+		expanded = Fixtures.expandedVehicle();
+		contextLinks = Fixtures.vehicleContextLinks();
+		compactor = resolver.getEntityCompactor(contextLinks);
+	}
+
+	@Benchmark
+	public String expandEntity() throws ResponseException {
+		return resolver.expand(payload, null, true, AppConstants.ENTITIES_URL_ID);
+	}
+
+	@Benchmark
+	public CompactedJson compactEntity() throws ResponseException {
+		// compact adds to the given list
+		return resolver.compact(expanded, new ArrayList<Object>(contextLinks));
+	}
+
+	@Benchmark
+	public Map<String, Object> compactEntityWithCompactor() throws ResponseException {
+		return compactor.compact(expanded, true);
+	}
+}
@@ -0,0 +1,161 @@
+package eu.neclab.ngsildbroker.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.neclab.ngsildbroker.commons.constants.AppConstants;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.ldcontext.ContextResolverBasic;
+import eu.neclab.ngsildbroker.commons.ngsiqueries.ParamsResolver;
+
+/**
+ * Payload fixtures and a context resolver which works without network access.
+ * The core context and the vehicle context are served from the classpath by a
+ * local http server, so neither uri.etsi.org nor an AtContextServer has to be
+ * reachable.
+ */
+public final class Fixtures {
+
+	public static final String VEHICLE_NS = "http://example.org/vehicle/";
+
+	private static HttpServer SERVER;
+	private static String BASE_URL;
+	private static ContextResolverBasic RESOLVER;
+
+	private Fixtures() {
+	}
+
+	public static String load(String name) {
+		try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+			if (in == null) {
+				throw new IllegalStateException("fixture " + name + " not found");
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new IllegalStateException("failed to read fixture " + name, e);
+		}
+	}
+
+	public static String coreContextUrl() {
+		startServer();
+		return BASE_URL + "ngsi-ld-core-context.jsonld";
+	}
+
+	public static String vehicleContextUrl() {
+		startServer();
+		return BASE_URL + "vehicle-context.jsonld";
+	}
+
+	public static List<Object> vehicleContextLinks() {
+		ArrayList<Object> result = new ArrayList<Object>();
+		result.add(vehicleContextUrl());
+		return result;
+	}
+
+	/**
+	 * The compacted vehicle entity as it is sent by a client.
+	 */
+	public static String vehicle() {
+		return load("vehicle.jsonld");
+	}
+
+	/**
+	 * The vehicle entity with the given id as it is sent by a client.
+	 */
+	public static String vehicle(String id) {
+		return vehicle().replace("urn:ngsi-ld:Vehicle:A4567", id);
+	}
+
+	public static String expandedVehicle() throws ResponseException {
+		return resolver().expand(vehicle(), null, true, AppConstants.ENTITIES_URL_ID);
+	}
+
+	/**
+	 * A context resolver set up like the spring managed one, but with the core
+	 * context taken from the fixtures.
+	 */
+	public static synchronized ContextResolverBasic resolver() {
+		if (RESOLVER != null) {
+			return RESOLVER;
+		}
+		String coreContextUrl = coreContextUrl();
+		ContextResolverBasic resolver = new ContextResolverBasic(BASE_URL);
+		try {
+			setField(resolver, "CORE_CONTEXT_URL_STR", coreContextUrl);
+			setField(resolver, "SELF_HOST_CORE_CONTEXT_URL", coreContextUrl);
+			Method setup = ContextResolverBasic.class.getDeclaredMethod("setup");
+			setup.setAccessible(true);
+			setup.invoke(resolver);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("failed to set up the context resolver", e);
+		}
+		RESOLVER = resolver;
+		return RESOLVER;
+	}
+
+	/**
+	 * Expands attribute names with the vehicle namespace instead of looking them
+	 * up in a context.
+	 */
+	public static ParamsResolver paramsResolver() {
+		return new ParamsResolver() {
+			@Override
+			public String expandAttribute(String attribute, List<Object> context) throws ResponseException {
+				return VEHICLE_NS + attribute;
+			}
+		};
+	}
+
+	private static void setField(Object target, String name, Object value) throws ReflectiveOperationException {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private static synchronized void startServer() {
+		if (SERVER != null) {
+			return;
+		}
+		try {
+			SERVER = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		} catch (IOException e) {
+			throw new IllegalStateException("failed to start the fixture server", e);
+		}
+		BASE_URL = "http://127.0.0.1:" + SERVER.getAddress().getPort() + "/";
+		SERVER.createContext("/", exchange -> {
+			String name = exchange.getRequestURI().getPath().substring(1);
+			byte[] body;
+			try {
+				body = load(name).replace("${coreContext}", BASE_URL + "ngsi-ld-core-context.jsonld")
+						.getBytes(StandardCharsets.UTF_8);
+			} catch (IllegalStateException e) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			exchange.getResponseHeaders().add("Content-Type", AppConstants.NGB_APPLICATION_JSONLD);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		SERVER.start();
+	}
+}
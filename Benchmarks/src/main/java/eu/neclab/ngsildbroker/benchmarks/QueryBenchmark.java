@@ -0,0 +1,65 @@
+package eu.neclab.ngsildbroker.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.neclab.ngsildbroker.commons.datatypes.BaseProperty;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryTerm;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.ngsiqueries.ParamsResolver;
+import eu.neclab.ngsildbroker.commons.ngsiqueries.QueryParser;
+import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
+
+/**
+ * Parsing of NGSI-LD q filters and their evaluation against an entity, as
+ * done for every subscription on every entity event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+	@Param({ "speed>50", "speed>50;brandName==\"Mercedes\"", "(speed>50|fuelLevel<0.2);brandName!=\"BMW\"",
+			"speed==70..90;fuelLevel>=0.5" })
+	public String q;
+
+	private QueryParser parser;
+	private ParamsResolver paramsResolver;
+	private QueryTerm term;
+	private List<BaseProperty> properties;
+
+	@Setup
+	public void setup() throws ResponseException {
+		parser = new QueryParser();
+		paramsResolver = Fixtures.paramsResolver();
+		term = parseQuery();
+		properties = DataSerializer.getEntity(Fixtures.expandedVehicle()).getAllBaseProperties();
+	}
+
+	@Benchmark
+	public QueryTerm parseQuery() throws ResponseException {
+		QueryTerm result = parser.parseQuery(q, null);
+		result.setParamsResolver(paramsResolver);
+		return result;
+	}
+
+	@Benchmark
+	public boolean calculate() throws ResponseException {
+		return term.calculate(properties);
+	}
+}
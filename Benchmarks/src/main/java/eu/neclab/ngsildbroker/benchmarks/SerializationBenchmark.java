@@ -0,0 +1,75 @@
+package eu.neclab.ngsildbroker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.datatypes.CreateEntityRequest;
+import eu.neclab.ngsildbroker.commons.datatypes.Entity;
+import eu.neclab.ngsildbroker.commons.datatypes.EntityRequest;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
+
+/**
+ * The Gson adapters of {@link DataSerializer} and the entity requests which are
+ * passed between the managers over kafka.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	private String expanded;
+	private Entity entity;
+	private ArrayListMultimap<String, String> headers;
+	private String serializedRequest;
+
+	@Setup
+	public void setup() throws ResponseException {
+		expanded = Fixtures.expandedVehicle();
+		entity = DataSerializer.getEntity(expanded);
+		headers = ArrayListMultimap.create();
+		headers.put(NGSIConstants.TENANT_HEADER, "benchmark");
+		serializedRequest = DataSerializer.toJson(new CreateEntityRequest(expanded, headers));
+	}
+
+	@Benchmark
+	public Entity deserializeEntity() {
+		return DataSerializer.getEntity(expanded);
+	}
+
+	@Benchmark
+	public String serializeEntity() {
+		return DataSerializer.toJson(entity);
+	}
+
+	@Benchmark
+	public EntityRequest createEntityRequest() throws ResponseException {
+		return new CreateEntityRequest(expanded, headers);
+	}
+
+	@Benchmark
+	public String serializeEntityRequest() throws ResponseException {
+		return DataSerializer.toJson(new CreateEntityRequest(expanded, headers));
+	}
+
+	@Benchmark
+	public EntityRequest deserializeEntityRequest() {
+		return DataSerializer.getEntityRequest(serializedRequest);
+	}
+}
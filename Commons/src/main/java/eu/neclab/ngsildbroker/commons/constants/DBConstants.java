@@ -11,6 +11,8 @@ public class DBConstants {
 	public final static String DBTABLE_CSOURCE_INFO = "csourceinformation";
 	public final static String DBTABLE_TEMPORALENTITY = "temporalentity";
 	public final static String DBTABLE_TEMPORALENTITY_ATTRIBUTEINSTANCE= "temporalentityattrinstance";	
+	public final static String DBTABLE_ENTITY_TYPE_CATALOG = "entitytypecatalog";
+	public final static String DBTABLE_ENTITY_ATTRIBUTE_CATALOG = "entityattributecatalog";
 	
 	public final static String DBCOLUMN_DATA = "data";
 	public final static String DBCOLUMN_KVDATA = "kvdata";
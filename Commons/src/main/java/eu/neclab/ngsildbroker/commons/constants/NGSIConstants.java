@@ -170,6 +170,7 @@ public interface NGSIConstants {
 	public final static String QUERY_PARAMETER_OFFSET = "offset";
 	public final static String QUERY_PARAMETER_LIMIT = "limit";
 	public final static String QUERY_PARAMETER_QTOKEN = "qtoken";
+	public final static String QUERY_PARAMETER_CURSOR = "cursor";
 	public final static String QUERY_PARAMETER_TIME = "time";
 	public final static String QUERY_PARAMETER_ENDTIME = "endTime";
 	public final static String QUERY_PARAMETER_DETAILS = "details";
@@ -236,6 +237,8 @@ public interface NGSIConstants {
 	public static final String[] VALID_MQTT_VERSION = { "mqtt5.0", "mqtt3.1.1" };
 	public static final Integer[] VALID_QOS = { 0, 1, 2 };
 	public static final String COUNT_HEADER_RESULT = "count";
+	// value of the Warning header of a federated query result with missing context sources
+	public static final String PARTIAL_RESULT_WARNING = "199 - \"Partial result, not all context sources answered\"";
 	public static final String REGEX_NGSI_LD_ATTR_TYPES = new String(
 			NGSI_LD_PROPERTY + "|" + NGSI_LD_RELATIONSHIP + "|" + NGSI_LD_GEOPROPERTY);
 	public static final String TENANT_HEADER = "ngsild-tenant";
@@ -33,9 +33,9 @@ public class AppendEntityRequest extends EntityRequest {
 		try {
 			updateNode = objectMapper.readTree(update);
 			this.appendResult = appendFields(old, updateNode, overwriteOption);
-			this.entityWithoutSysAttrs = appendResult.getJsonWithoutSysAttrs();
-			this.withSysAttrs = appendResult.getJson();
-			this.keyValue = objectMapper.writeValueAsString(getKeyValueEntity(appendResult.getFinalNode()));
+			setPayloadVersions(appendResult.getFinalNode());
+			appendResult.setJson(withSysAttrs);
+			appendResult.setJsonWithoutSysAttrs(entityWithoutSysAttrs);
 			this.operationValue = objectMapper.writeValueAsString(appendResult.getJsonToAppend());
 		} catch (Exception e) {
 			throw new ResponseException(ErrorType.UnprocessableEntity, e.getMessage());
@@ -94,10 +94,6 @@ public class AppendEntityRequest extends EntityRequest {
 			}
 		}
 		setTemporalProperties(node, "", now, true); // root only, modifiedAt only
-		appendResult.setJson(node.toString());
-
-		removeTemporalProperties(node);
-		appendResult.setJsonWithoutSysAttrs(node.toString());
 		appendResult.setFinalNode(node);
 		logger.trace("appendFields() :: completed");
 		return appendResult;
@@ -1,7 +1,8 @@
 package eu.neclab.ngsildbroker.commons.datatypes;
 
+import java.io.IOException;
 import java.time.Instant;
-import com.fasterxml.jackson.core.JsonProcessingException;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ArrayListMultimap;
 
@@ -41,28 +42,12 @@ public class CreateEntityRequest extends EntityRequest {
 		String now = SerializationTools.formatter.format(Instant.now());
 		setTemporalProperties(json, now, now, false);
 		try {
-			this.withSysAttrs = objectMapper.writeValueAsString(json);
-		} catch (JsonProcessingException e) {
+			setPayloadVersions(json);
+		} catch (IOException e) {
 			// should never happen error checks are done before hand
 			logger.error(e);
 			throw new ResponseException(ErrorType.UnprocessableEntity, "Failed to parse entity");
 		}
-		removeTemporalProperties(json); // remove createdAt/modifiedAt fields informed by the user
-		try {
-			this.entityWithoutSysAttrs = objectMapper.writeValueAsString(json);
-		} catch (JsonProcessingException e) {
-			// should never happen error checks are done before hand
-			logger.error(e);
-			throw new ResponseException(ErrorType.UnprocessableEntity, "Failed to parse entity");
-		}
-		if (this.operationType == AppConstants.OPERATION_CREATE_ENTITY) {
-			try {
-				this.keyValue = objectMapper.writeValueAsString(getKeyValueEntity(json));
-			} catch (JsonProcessingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
 	}
 
 	
@@ -27,10 +27,7 @@ public class DeleteAttributeRequest extends EntityRequest {
 			String deleteAll) throws ResponseException {
 		try {
 			JsonNode finalJson = deleteFields(entityBody, attrId, datasetId, deleteAll);
-			this.withSysAttrs = objectMapper.writeValueAsString(finalJson);
-			removeTemporalProperties(finalJson);
-			this.entityWithoutSysAttrs = objectMapper.writeValueAsString(finalJson);
-			this.keyValue = objectMapper.writeValueAsString(getKeyValueEntity(finalJson));
+			setPayloadVersions(finalJson);
 		} catch (Exception e) {
 			throw new ResponseException(ErrorType.NotFound, e.getMessage());
 		}
@@ -1,11 +1,10 @@
 package eu.neclab.ngsildbroker.commons.datatypes;
 
+import java.io.IOException;
 import java.util.Iterator;
-import java.util.Map;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ArrayListMultimap;
 
@@ -15,7 +14,7 @@ public class EntityRequest extends BaseRequest {
 
 	protected int operationType;
 	protected String id;
-	protected ObjectMapper objectMapper = new ObjectMapper();
+	protected ObjectMapper objectMapper = EntityVariants.OBJECT_MAPPER;
 	protected String withSysAttrs;
 	protected String entityWithoutSysAttrs;
 	protected String keyValue;
@@ -88,67 +87,18 @@ public class EntityRequest extends BaseRequest {
 	}
 
 
-	protected JsonNode getKeyValueEntity(JsonNode json) {
-		ObjectNode kvJsonObject = objectMapper.createObjectNode();
-		Iterator<Map.Entry<String, JsonNode>> iter = json.fields();
-		while (iter.hasNext()) {
-			Map.Entry<String, JsonNode> entry = iter.next();
-			if (entry.getKey().equals(NGSIConstants.JSON_LD_ID) || entry.getKey().equals(NGSIConstants.JSON_LD_TYPE)) {
-				kvJsonObject.set(entry.getKey(), entry.getValue());
-			} else if (entry.getValue().isArray()) {
-				ArrayNode values = objectMapper.createArrayNode();
-				Iterator<JsonNode> it = entry.getValue().elements();
-				while (it.hasNext()) {
-					ObjectNode attrObj = (ObjectNode) it.next();
-					if (attrObj.has(NGSIConstants.JSON_LD_VALUE)) { // common members like createdAt do not have
-						// hasValue/hasObject
-						values.add(entry.getValue());
-					} else if (attrObj.has(NGSIConstants.NGSI_LD_HAS_VALUE)) {
-						values.add(attrObj.get(NGSIConstants.NGSI_LD_HAS_VALUE));
-					} else if (attrObj.has(NGSIConstants.NGSI_LD_HAS_OBJECT)
-							&& attrObj.get(NGSIConstants.NGSI_LD_HAS_OBJECT).isArray()
-							&& attrObj.get(NGSIConstants.NGSI_LD_HAS_OBJECT).get(0).has(NGSIConstants.JSON_LD_ID)) {
-						values.add(attrObj.get(NGSIConstants.NGSI_LD_HAS_OBJECT).get(0).get(NGSIConstants.JSON_LD_ID));
-					}
-				}
-				if (values.size() == 1) {
-					kvJsonObject.set(entry.getKey(), values.get(0));
-				} else {
-					kvJsonObject.set(entry.getKey(), values);
-				}
-
-			}
-		}
-		return kvJsonObject;
-	}
-
-	protected void removeTemporalProperties(JsonNode jsonNode) {
-		if (!jsonNode.isObject()) {
-			return;
-		}
-		ObjectNode objectNode = (ObjectNode) jsonNode;
-		objectNode.remove(NGSIConstants.NGSI_LD_CREATED_AT);
-		objectNode.remove(NGSIConstants.NGSI_LD_MODIFIED_AT);
-
-		String regexNgsildAttributeTypes = new String(NGSIConstants.NGSI_LD_PROPERTY + "|"
-				+ NGSIConstants.NGSI_LD_RELATIONSHIP + "|" + NGSIConstants.NGSI_LD_GEOPROPERTY);
-		Iterator<Map.Entry<String, JsonNode>> iter = objectNode.fields();
-		while (iter.hasNext()) {
-			Map.Entry<String, JsonNode> entry = iter.next();
-			if (entry.getValue().isArray() && entry.getValue().has(0) && entry.getValue().get(0).isObject()) {
-				// ObjectNode attrObj = (ObjectNode) entry.getValue().get(0);
-				// add createdAt/modifiedAt only to properties, geoproperties and relationships
-				Iterator<JsonNode> valueIterator = ((ArrayNode) entry.getValue()).iterator();
-				while (valueIterator.hasNext()) {
-					ObjectNode attrObj = (ObjectNode) valueIterator.next();
-					if (attrObj.has(NGSIConstants.JSON_LD_TYPE) && attrObj.get(NGSIConstants.JSON_LD_TYPE).isArray()
-							&& attrObj.get(NGSIConstants.JSON_LD_TYPE).has(0) && attrObj.get(NGSIConstants.JSON_LD_TYPE)
-									.get(0).asText().matches(regexNgsildAttributeTypes)) {
-						removeTemporalProperties(attrObj);
-					}
-				}
-			}
-		}
+	/**
+	 * Method used for setting withSysAttrs, entityWithoutSysAttrs and keyValue
+	 * from the final entity.
+	 *
+	 * @param entity
+	 * @throws IOException
+	 */
+	protected void setPayloadVersions(JsonNode entity) throws IOException {
+		EntityVariants variants = EntityVariants.render(entity, true);
+		this.withSysAttrs = variants.getWithSysAttrs();
+		this.entityWithoutSysAttrs = variants.getWithoutSysAttrs();
+		this.keyValue = variants.getKeyValues();
 	}
 
 	/**
@@ -0,0 +1,236 @@
+package eu.neclab.ngsildbroker.commons.datatypes;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+
+/**
+ * The stored variants of an entity: with system attributes, without system
+ * attributes (createdAt and modifiedAt of the entity and of its attributes
+ * removed) and key values. All variants are written in one traversal of the
+ * parsed entity, which is neither modified nor copied.
+ */
+public class EntityVariants {
+
+	/**
+	 * shared by the request classes, ObjectMapper is thread safe once
+	 * configured
+	 */
+	public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private static final Set<String> ATTRIBUTE_TYPES = new HashSet<String>(Arrays.asList(
+			NGSIConstants.NGSI_LD_PROPERTY, NGSIConstants.NGSI_LD_RELATIONSHIP, NGSIConstants.NGSI_LD_GEOPROPERTY));
+
+	private final String withSysAttrs;
+	private final String withoutSysAttrs;
+	private final String keyValues;
+
+	private EntityVariants(String withSysAttrs, String withoutSysAttrs, String keyValues) {
+		this.withSysAttrs = withSysAttrs;
+		this.withoutSysAttrs = withoutSysAttrs;
+		this.keyValues = keyValues;
+	}
+
+	/**
+	 * Method used for rendering the variants of an entity.
+	 *
+	 * @param entity         the expanded entity
+	 * @param withKeyValues  false to skip the key values variant
+	 * @return EntityVariants
+	 * @throws IOException
+	 */
+	public static EntityVariants render(JsonNode entity, boolean withKeyValues) throws IOException {
+		StringWriter sysWriter = new StringWriter();
+		StringWriter plainWriter = new StringWriter();
+		StringWriter kvWriter = withKeyValues ? new StringWriter() : null;
+		try (JsonGenerator sys = OBJECT_MAPPER.getFactory().createGenerator(sysWriter);
+				JsonGenerator plain = OBJECT_MAPPER.getFactory().createGenerator(plainWriter);
+				JsonGenerator kv = withKeyValues ? OBJECT_MAPPER.getFactory().createGenerator(kvWriter) : null) {
+			if (entity.isObject()) {
+				writeEntity(entity, sys, plain, kv);
+			} else {
+				sys.writeTree(entity);
+				plain.writeTree(entity);
+				if (kv != null) {
+					kv.writeTree(entity);
+				}
+			}
+		}
+		return new EntityVariants(sysWriter.toString(), plainWriter.toString(),
+				withKeyValues ? kvWriter.toString() : null);
+	}
+
+	private static void writeEntity(JsonNode entity, JsonGenerator sys, JsonGenerator plain, JsonGenerator kv)
+			throws IOException {
+		sys.writeStartObject();
+		plain.writeStartObject();
+		if (kv != null) {
+			kv.writeStartObject();
+		}
+		Iterator<Map.Entry<String, JsonNode>> iter = entity.fields();
+		while (iter.hasNext()) {
+			Map.Entry<String, JsonNode> entry = iter.next();
+			String key = entry.getKey();
+			JsonNode value = entry.getValue();
+			if (isSysAttr(key)) {
+				sys.writeFieldName(key);
+				sys.writeTree(value);
+				continue;
+			}
+			sys.writeFieldName(key);
+			plain.writeFieldName(key);
+			writeAttributeValue(value, sys, plain);
+			if (kv != null) {
+				writeKeyValue(key, value, kv);
+			}
+		}
+		sys.writeEndObject();
+		plain.writeEndObject();
+		if (kv != null) {
+			kv.writeEndObject();
+		}
+	}
+
+	/**
+	 * writes an attribute object, sub attributes included, without its system
+	 * attributes to plain
+	 */
+	private static void writeAttribute(JsonNode attribute, JsonGenerator sys, JsonGenerator plain)
+			throws IOException {
+		sys.writeStartObject();
+		plain.writeStartObject();
+		Iterator<Map.Entry<String, JsonNode>> iter = attribute.fields();
+		while (iter.hasNext()) {
+			Map.Entry<String, JsonNode> entry = iter.next();
+			sys.writeFieldName(entry.getKey());
+			if (isSysAttr(entry.getKey())) {
+				sys.writeTree(entry.getValue());
+				continue;
+			}
+			plain.writeFieldName(entry.getKey());
+			writeAttributeValue(entry.getValue(), sys, plain);
+		}
+		sys.writeEndObject();
+		plain.writeEndObject();
+	}
+
+	private static void writeAttributeValue(JsonNode value, JsonGenerator sys, JsonGenerator plain)
+			throws IOException {
+		if (!value.isArray() || !value.has(0) || !value.get(0).isObject()) {
+			copy(value, sys, plain);
+			return;
+		}
+		sys.writeStartArray();
+		plain.writeStartArray();
+		for (JsonNode element : value) {
+			if (isAttribute(element)) {
+				writeAttribute(element, sys, plain);
+			} else {
+				copy(element, sys, plain);
+			}
+		}
+		sys.writeEndArray();
+		plain.writeEndArray();
+	}
+
+	private static void copy(JsonNode node, JsonGenerator sys, JsonGenerator plain) throws IOException {
+		if (node.isObject()) {
+			sys.writeStartObject();
+			plain.writeStartObject();
+			Iterator<Map.Entry<String, JsonNode>> iter = node.fields();
+			while (iter.hasNext()) {
+				Map.Entry<String, JsonNode> entry = iter.next();
+				sys.writeFieldName(entry.getKey());
+				plain.writeFieldName(entry.getKey());
+				copy(entry.getValue(), sys, plain);
+			}
+			sys.writeEndObject();
+			plain.writeEndObject();
+		} else if (node.isArray()) {
+			sys.writeStartArray();
+			plain.writeStartArray();
+			for (JsonNode element : node) {
+				copy(element, sys, plain);
+			}
+			sys.writeEndArray();
+			plain.writeEndArray();
+		} else {
+			sys.writeTree(node);
+			plain.writeTree(node);
+		}
+	}
+
+	/**
+	 * key value representation of a top level member: id and type as they are,
+	 * attributes by their values or objects
+	 */
+	private static void writeKeyValue(String key, JsonNode value, JsonGenerator kv) throws IOException {
+		if (key.equals(NGSIConstants.JSON_LD_ID) || key.equals(NGSIConstants.JSON_LD_TYPE)) {
+			kv.writeFieldName(key);
+			kv.writeTree(value);
+			return;
+		}
+		if (!value.isArray()) {
+			return;
+		}
+		List<JsonNode> values = new ArrayList<JsonNode>();
+		for (JsonNode attrObj : value) {
+			if (attrObj.has(NGSIConstants.JSON_LD_VALUE)) { // common members like createdAt do not have
+				// hasValue/hasObject
+				values.add(value);
+			} else if (attrObj.has(NGSIConstants.NGSI_LD_HAS_VALUE)) {
+				values.add(attrObj.get(NGSIConstants.NGSI_LD_HAS_VALUE));
+			} else if (attrObj.has(NGSIConstants.NGSI_LD_HAS_OBJECT)
+					&& attrObj.get(NGSIConstants.NGSI_LD_HAS_OBJECT).isArray()
+					&& attrObj.get(NGSIConstants.NGSI_LD_HAS_OBJECT).get(0).has(NGSIConstants.JSON_LD_ID)) {
+				values.add(attrObj.get(NGSIConstants.NGSI_LD_HAS_OBJECT).get(0).get(NGSIConstants.JSON_LD_ID));
+			}
+		}
+		kv.writeFieldName(key);
+		if (values.size() == 1) {
+			kv.writeTree(values.get(0));
+		} else {
+			kv.writeStartArray();
+			for (JsonNode element : values) {
+				kv.writeTree(element);
+			}
+			kv.writeEndArray();
+		}
+	}
+
+	private static boolean isSysAttr(String key) {
+		return key.equals(NGSIConstants.NGSI_LD_CREATED_AT) || key.equals(NGSIConstants.NGSI_LD_MODIFIED_AT);
+	}
+
+	private static boolean isAttribute(JsonNode node) {
+		if (!node.isObject()) {
+			return false;
+		}
+		JsonNode type = node.get(NGSIConstants.JSON_LD_TYPE);
+		return type != null && type.isArray() && type.has(0) && ATTRIBUTE_TYPES.contains(type.get(0).asText());
+	}
+
+	public String getWithSysAttrs() {
+		return withSysAttrs;
+	}
+
+	public String getWithoutSysAttrs() {
+		return withoutSysAttrs;
+	}
+
+	public String getKeyValues() {
+		return keyValues;
+	}
+}
@@ -64,6 +64,9 @@ public class QueryParams {
 	@SerializedName("offSet")
 	@Expose
 	private int offSet = -1;
+	@SerializedName("cursor")
+	@Expose
+	private String cursor;
 	private String check;
 
 	public String getCheck() {
@@ -74,6 +77,14 @@ public class QueryParams {
 		this.check = check;
 	}
 
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
 	public String getAttrs() {
 		return attrs;
 	}
@@ -303,7 +314,7 @@ public class QueryParams {
 				+ coordinates + ", geoproperty=" + geoproperty + ", timerel=" + timerel + ", time=" + time
 				+ ", endTime=" + endTime + ", timeproperty=" + timeproperty + ", includeSysAttrs=" + includeSysAttrs
 				+ ", keyValues=" + keyValues + ", temporalValues=" + temporalValues + ", limit=" + limit
-				+ ", countResult=" + countResult + ", offSet=" + offSet + ", check=" + check + "]";
+				+ ", countResult=" + countResult + ", offSet=" + offSet + ", cursor=" + cursor + ", check=" + check + "]";
 	}
 
 }
\ No newline at end of file
@@ -25,6 +25,8 @@ public class QueryResult extends BaseResult {
 	private List<String> dataString;
 	private List<String> actualDataString;
 	private Integer count;
+	private String nextCursor;
+	private boolean partial = false;
 	
 	public Integer getResultsLeftBefore() {
 		return resultsLeftBefore;
@@ -91,6 +93,26 @@ public class QueryResult extends BaseResult {
 		this.count = count;
 	}
 
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * @return true if entities of context sources which failed or did not answer
+	 *         in time are missing
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	public void setPartial(boolean partial) {
+		this.partial = partial;
+	}
+
 	public void finalize() throws Throwable {
 
 	}
@@ -3,15 +3,10 @@ package eu.neclab.ngsildbroker.commons.datatypes;
 import java.time.Instant;
 import java.util.Iterator;
 
-import org.codehaus.jackson.map.ObjectMapper;
-
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 import eu.neclab.ngsildbroker.commons.constants.AppConstants;
 import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
@@ -35,22 +30,17 @@ public class UpdateEntityRequest extends EntityRequest {
 		try {
 			updateNode = objectMapper.readTree(update);
 			this.updateResult = updateFields(old, updateNode, attrName);
-			this.entityWithoutSysAttrs = updateResult.getJsonWithoutSysAttrs();
+			setPayloadVersions(updateResult.getFinalNode());
+			updateResult.setJson(withSysAttrs);
+			updateResult.setJsonWithoutSysAttrs(entityWithoutSysAttrs);
 
 			if (attrName != null) {
-				JsonElement jsonElement = new JsonParser().parse(entityWithoutSysAttrs);
-				JsonObject top = jsonElement.getAsJsonObject();
-				JsonElement jsonElement1 = top.get(attrName);
-				JsonObject jsonObject = new JsonObject();
-				jsonObject.add(attrName, jsonElement1);
-				this.operationValue = jsonObject.toString();
-
-			} else if (attrName == null) {
+				ObjectNode attribute = objectMapper.createObjectNode();
+				attribute.set(attrName, updateResult.getFinalNode().get(attrName));
+				this.operationValue = EntityVariants.render(attribute, false).getWithoutSysAttrs();
+			} else {
 				this.operationValue = objectMapper.writeValueAsString(updateResult.getJsonToAppend());
 			}
-
-			this.withSysAttrs = updateResult.getJson();
-			this.keyValue = objectMapper.writeValueAsString(getKeyValueEntity(updateResult.getFinalNode()));
 		} catch (Exception e) {
 			throw new ResponseException(ErrorType.NotFound, e.getMessage());
 		}
@@ -165,10 +155,7 @@ public class UpdateEntityRequest extends EntityRequest {
 			}
 		}
 		setTemporalProperties(node, "", now, true); // root only, modifiedAt only
-		updateResult.setJson(node.toString());
 		updateResult.setFinalNode(node);
-		removeTemporalProperties(node);
-		updateResult.setJsonWithoutSysAttrs(node.toString());
 		logger.trace("updateFields() :: completed");
 		return updateResult;
 	}
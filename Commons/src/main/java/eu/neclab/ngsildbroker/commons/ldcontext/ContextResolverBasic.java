@@ -28,6 +28,7 @@ import com.github.jsonldjava.core.JsonLdProcessor;
 import com.github.jsonldjava.core.RDFDataset;
 import com.github.jsonldjava.core.RDFDatasetUtils;
 import com.github.jsonldjava.utils.JsonUtils;
+
 import eu.neclab.ngsildbroker.commons.constants.AppConstants;
 import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
 import eu.neclab.ngsildbroker.commons.datatypes.EndPoint;
@@ -42,8 +43,10 @@ import eu.neclab.ngsildbroker.commons.enums.Geometry;
 import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
 import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
 import eu.neclab.ngsildbroker.commons.tools.HttpUtils;
 import eu.neclab.ngsildbroker.commons.tools.SerializationTools;
+import io.micrometer.core.instrument.Timer;
 
 @Component
 @SuppressWarnings({ "unchecked", "rawtypes" }) // Map<String, Object>/List<Object> is always returned here. Json LD lib
@@ -64,6 +67,13 @@ public class ContextResolverBasic {
 	AtContextProducerChannel producerChannel;
 
 	private JsonLdOptions defaultOptions = new JsonLdOptions();
+	private JsonLdOptions expandOptions = new JsonLdOptions("");
+
+	@Value("${context.cache.maxsize:1000}")
+	private int contextCacheMaxSize = RemoteContextCache.DEFAULT_MAX_SIZE;
+	@Value("${context.cache.defaultttl:3600000}")
+	private long contextCacheDefaultTtl = RemoteContextCache.DEFAULT_TTL_MS;
+	private RemoteContextCache contextCache;
 
 	@Value("${atcontext.baseurl:http://localhost:9090/ngsi-ld/contextes/}")
 	private String AT_CONTEXT_BASE_URL;
@@ -79,6 +89,9 @@ public class ContextResolverBasic {
 
 	@PostConstruct
 	private void setup() {
+		contextCache = RemoteContextCache.getInstance(contextCacheMaxSize, contextCacheDefaultTtl);
+		defaultOptions.setDocumentLoader(contextCache);
+		expandOptions.setDocumentLoader(contextCache);
 		try {
 			CORE_CONTEXT_URL = new URI(CORE_CONTEXT_URL_STR);
 			String json = httpUtils.doGet(CORE_CONTEXT_URL);
@@ -202,7 +215,7 @@ public class ContextResolverBasic {
 		json.put(NGSIConstants.JSON_LD_CONTEXT, usedContext);
 
 		Map<Integer, List<Object>> result = new HashMap<Integer, List<Object>>();
-		result.put(1, JsonLdProcessor.expand(json));
+		result.put(1, JsonLdProcessor.expand(json, expandOptions));
 		result.put(2, usedContext);
 		return result;
 
@@ -210,6 +223,7 @@ public class ContextResolverBasic {
 
 	public String expand(Map<String, Object> json, List<Object> contextLinks, boolean check, int endPoint)
 			throws ResponseException {
+		Timer.Sample sample = BrokerMetrics.start();
 		try {
 			// if(!
 			Map<Integer, List<Object>> expanded = expand(json, contextLinks);
@@ -229,6 +243,8 @@ public class ContextResolverBasic {
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new ResponseException(ErrorType.InvalidRequest, e.getLocalizedMessage());
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.CONTEXT_EXPAND);
 		}
 
 	}
@@ -1078,6 +1094,7 @@ public class ContextResolverBasic {
 	private CompactedJson compact(Object json, Map<String, Object> context, List<Object> rawContext)
 			throws ResponseException {
 		// validateAndCleanContext(context);
+		Timer.Sample sample = BrokerMetrics.start();
 		CompactedJson result = new CompactedJson();
 		int hash = json.hashCode();
 		if (context.containsKey(IS_FULL_VALID)) {
@@ -1113,10 +1130,55 @@ public class ContextResolverBasic {
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new ResponseException(ErrorType.InvalidRequest, e.getMessage());
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.CONTEXT_COMPACT);
 		}
 		return result;
 	}
 
+	/**
+	 * Method used for compacting a stream of entities with the same context. The
+	 * context is resolved once, afterwards entities can be compacted one by one
+	 * without holding the full result.
+	 * 
+	 * @param contextLinks
+	 * @return EntityCompactor
+	 * @throws ResponseException
+	 */
+	public EntityCompactor getEntityCompactor(List<Object> contextLinks) throws ResponseException {
+		Map<String, Object> context = new HashMap<String, Object>();
+		for (Object url : contextLinks) {
+			context.putAll(getRemoteContext((String) url));
+		}
+		List<Object> rawContext = new ArrayList<Object>(contextLinks);
+		String contextUrl;
+		if (context.containsKey(IS_FULL_VALID)) {
+			contextUrl = (String) rawContext.get(0);
+		} else {
+			rawContext.add(CORE_CONTEXT_URL_STR);
+			contextUrl = generateAtContextServing(rawContext, rawContext.hashCode());
+		}
+		return new EntityCompactor(this, rawContext, contextUrl);
+	}
+
+	/**
+	 * Method used for compacting a single entity of a streamed reply. The
+	 * compaction of a whole reply is timed in
+	 * {@link #compact(Object, Map, List)}, single entities are not timed.
+	 */
+	Map<String, Object> compactEntity(String body, List<Object> rawContext) throws ResponseException {
+		try {
+			Object json = JsonUtils.fromString(body);
+			cleanExpandedJson(json);
+			Map<String, Object> result = JsonLdProcessor.compact(json, rawContext, defaultOptions);
+			unprotectGeoProps(result);
+			return result;
+		} catch (IOException e) {
+			logger.error("Failed to compact entity", e);
+			throw new ResponseException(ErrorType.InvalidRequest, e.getMessage());
+		}
+	}
+
 	private void cleanExpandedJson(Object json) {
 		if (json instanceof List) {
 			List tempList = (List) json;
@@ -1211,20 +1273,26 @@ public class ContextResolverBasic {
 	private Map<String, Object> getRemoteContext(String url) throws ResponseException {
 		try {
 
-			String body = httpUtils.doGet(new URI(url));
-			Map<String, Object> remoteContext = (Map<String, Object>) JsonUtils.fromString(body);
-			Object temp = remoteContext.get(NGSIConstants.JSON_LD_CONTEXT);
+			Object remoteContext = contextCache.getDocument(url);
+			if (!(remoteContext instanceof Map)) {
+				throw new ResponseException(ErrorType.BadRequestData, "Failed to get remote @context from " + url);
+			}
+			Object temp = ((Map<String, Object>) remoteContext).get(NGSIConstants.JSON_LD_CONTEXT);
 			if (temp == null) {
 				throw new ResponseException(ErrorType.BadRequestData, "Failed to get remote @context from " + url);
 			}
 			return getFullContext(temp);
 
-		} catch (IOException | URISyntaxException e) {
+		} catch (IOException e) {
 			throw new ResponseException(ErrorType.BadRequestData, "Failed to get remote @context from " + url);
 		}
 
 	}
 
+	public RemoteContextCache getContextCache() {
+		return contextCache;
+	}
+
 //Check not used anymore
 	/*
 	 * private void validateAndCleanContext(Map<String, Object> contextToMerge)
@@ -0,0 +1,48 @@
+package eu.neclab.ngsildbroker.commons.ldcontext;
+
+import java.util.List;
+import java.util.Map;
+
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+/**
+ * Compacts single expanded entities against a context which has been resolved
+ * once by {@link ContextResolverBasic#getEntityCompactor(List)}.
+ */
+public class EntityCompactor {
+
+	private final ContextResolverBasic contextResolver;
+	private final List<Object> rawContext;
+	private final String contextUrl;
+
+	EntityCompactor(ContextResolverBasic contextResolver, List<Object> rawContext, String contextUrl) {
+		this.contextResolver = contextResolver;
+		this.rawContext = rawContext;
+		this.contextUrl = contextUrl;
+	}
+
+	/**
+	 * @param expandedEntity
+	 * @param withContext    if true the @context is added to the entity
+	 * @return the compacted entity
+	 * @throws ResponseException
+	 */
+	public Map<String, Object> compact(String expandedEntity, boolean withContext) throws ResponseException {
+		Map<String, Object> result = contextResolver.compactEntity(expandedEntity, rawContext);
+		if (withContext) {
+			result.put(NGSIConstants.JSON_LD_CONTEXT, rawContext);
+		} else {
+			result.remove(NGSIConstants.JSON_LD_CONTEXT);
+		}
+		return result;
+	}
+
+	public String getRDF(String expandedEntity) throws ResponseException {
+		return contextResolver.getRDF(expandedEntity);
+	}
+
+	public String getContextUrl() {
+		return contextUrl;
+	}
+}
@@ -0,0 +1,248 @@
+package eu.neclab.ngsildbroker.commons.ldcontext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.github.jsonldjava.core.DocumentLoader;
+import com.github.jsonldjava.core.JsonLdError;
+import com.github.jsonldjava.core.RemoteDocument;
+import com.github.jsonldjava.utils.JsonUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import eu.neclab.ngsildbroker.commons.tools.ErrorAwareResponseHandler;
+import eu.neclab.ngsildbroker.commons.tools.HttpUtils;
+
+/**
+ * Shared, size bounded cache for remote JSON-LD documents (mostly @context
+ * documents). Entries expire according to the Cache-Control/Expires headers of
+ * the response, or after a default ttl if the server provides none. Concurrent
+ * requests for the same url are coalesced into a single fetch. If a refresh
+ * fails the stale entry is served for another default ttl instead of failing
+ * the request.
+ *
+ * The cache is also a jsonld-java {@link DocumentLoader} so expansion and
+ * compaction resolve remote contexts through it as well.
+ */
+public class RemoteContextCache extends DocumentLoader {
+
+	private final static Logger logger = LogManager.getLogger(RemoteContextCache.class);
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+	public static final long DEFAULT_TTL_MS = 3600000;
+
+	private static RemoteContextCache SINGLETON;
+
+	private final Cache<String, CachedDocument> cache;
+	private final long defaultTtl;
+	private final HttpUtils httpUtils;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+	private final LongAdder staleServed = new LongAdder();
+
+	RemoteContextCache(int maxSize, long defaultTtl, HttpUtils httpUtils) {
+		this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+		this.defaultTtl = defaultTtl;
+		this.httpUtils = httpUtils;
+	}
+
+	/**
+	 * Returns the shared instance of this class. The sizing of the first call
+	 * wins.
+	 *
+	 * @param maxSize    maximum number of cached documents
+	 * @param defaultTtl ttl in ms used when the server sends no cache headers
+	 * @return a RemoteContextCache instance
+	 */
+	public static synchronized RemoteContextCache getInstance(int maxSize, long defaultTtl) {
+		if (SINGLETON == null) {
+			SINGLETON = new RemoteContextCache(maxSize, defaultTtl, HttpUtils.getInstance(null));
+		}
+		return SINGLETON;
+	}
+
+	public static RemoteContextCache getInstance() {
+		return getInstance(DEFAULT_MAX_SIZE, DEFAULT_TTL_MS);
+	}
+
+	/**
+	 * Returns the parsed document behind the url. The returned object is shared
+	 * and must not be modified.
+	 *
+	 * @param url
+	 * @return the parsed json document
+	 * @throws IOException if the document could not be fetched or parsed
+	 */
+	public Object getDocument(String url) throws IOException {
+		long now = System.currentTimeMillis();
+		CachedDocument cached = cache.getIfPresent(url);
+		if (cached != null && cached.expiresAt > now) {
+			hits.increment();
+			return cached.document;
+		}
+		if (cached != null) {
+			// only the first caller evicts, everyone else joins the load below
+			cache.asMap().remove(url, cached);
+		}
+		try {
+			return cache.get(url, () -> {
+				misses.increment();
+				return fetch(url, cached);
+			}).document;
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			loadFailures.increment();
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Failed to load " + url, cause);
+		}
+	}
+
+	@Override
+	public RemoteDocument loadDocument(String url) throws JsonLdError {
+		try {
+			return new RemoteDocument(url, getDocument(url));
+		} catch (IOException e) {
+			throw new JsonLdError(JsonLdError.Error.LOADING_REMOTE_CONTEXT_FAILED, url);
+		}
+	}
+
+	public void invalidate(String url) {
+		cache.invalidate(url);
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailures.sum();
+	}
+
+	public long getStaleServedCount() {
+		return staleServed.sum();
+	}
+
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total == 0 ? 1.0 : (double) hitCount / total;
+	}
+
+	private CachedDocument fetch(String url, CachedDocument stale) throws IOException {
+		long start = System.currentTimeMillis();
+		CacheHeaderHandler handler = new CacheHeaderHandler();
+		try {
+			String body = httpUtils.doGet(new URI(url), handler);
+			Object document = JsonUtils.fromString(body);
+			long ttl = handler.getTtl(start);
+			logger.debug("fetched remote context " + url + " in " + (System.currentTimeMillis() - start)
+					+ " ms, cached for " + ttl + " ms");
+			return new CachedDocument(document, start + ttl);
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid url " + url, e);
+		} catch (IOException e) {
+			if (stale == null) {
+				throw e;
+			}
+			staleServed.increment();
+			logger.warn("Failed to refresh remote context " + url + ". Serving stale copy. " + e.getMessage());
+			return new CachedDocument(stale.document, start + defaultTtl);
+		}
+	}
+
+	private class CacheHeaderHandler extends ErrorAwareResponseHandler {
+		private String cacheControl;
+		private String expires;
+		private String date;
+
+		@Override
+		public String handleResponse(HttpResponse response) throws IOException {
+			cacheControl = getHeader(response, "Cache-Control");
+			expires = getHeader(response, "Expires");
+			date = getHeader(response, "Date");
+			return super.handleResponse(response);
+		}
+
+		private String getHeader(HttpResponse response, String name) {
+			Header header = response.getFirstHeader(name);
+			return header == null ? null : header.getValue();
+		}
+
+		long getTtl(long now) {
+			if (cacheControl != null) {
+				long maxAge = -1;
+				for (String directive : cacheControl.toLowerCase().split(",")) {
+					directive = directive.trim();
+					if (directive.equals("no-store") || directive.equals("no-cache")) {
+						return 0;
+					}
+					if (directive.startsWith("max-age=") && maxAge < 0) {
+						maxAge = parseSeconds(directive.substring(8));
+					} else if (directive.startsWith("s-maxage=")) {
+						maxAge = parseSeconds(directive.substring(9));
+					}
+				}
+				if (maxAge >= 0) {
+					return TimeUnit.SECONDS.toMillis(maxAge);
+				}
+			}
+			if (expires != null) {
+				Date expiresDate = DateUtils.parseDate(expires);
+				if (expiresDate == null) {
+					// invalid dates mean already expired
+					return 0;
+				}
+				Date dateDate = date == null ? null : DateUtils.parseDate(date);
+				long base = dateDate == null ? now : dateDate.getTime();
+				return Math.max(0, expiresDate.getTime() - base);
+			}
+			return defaultTtl;
+		}
+
+		private long parseSeconds(String value) {
+			try {
+				return Long.parseLong(value.replace("\"", "").trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+	}
+
+	private static class CachedDocument {
+		private final Object document;
+		private final long expiresAt;
+
+		CachedDocument(Object document, long expiresAt) {
+			this.document = document;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package eu.neclab.ngsildbroker.commons.serialization;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+/**
+ * Binary framing of the query results the storage manager replies to the
+ * query manager. A reply starts with the format version and a status byte,
+ * followed by the number of results and every result as its length and its
+ * UTF-8 bytes, or by the error type and message if the query failed. Results
+ * are neither limited in size nor split, unlike with writeUTF.
+ */
+public class QueryResultCodec {
+
+	private static final byte VERSION = 1;
+	private static final byte STATUS_OK = 0;
+	private static final byte STATUS_ERROR = 1;
+
+	private QueryResultCodec() {
+	}
+
+	/**
+	 * Method used for encoding the results of a query.
+	 *
+	 * @param results
+	 * @return the reply with all results
+	 */
+	public static byte[] encode(List<String> results) {
+		int size = results == null ? 0 : results.size();
+		byte[][] encoded = new byte[size][];
+		int length = 2 + 4;
+		for (int i = 0; i < size; i++) {
+			encoded[i] = results.get(i).getBytes(StandardCharsets.UTF_8);
+			length += 4 + encoded[i].length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.put(VERSION).put(STATUS_OK).putInt(size);
+		for (byte[] result : encoded) {
+			buffer.putInt(result.length).put(result);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Method used for encoding a failed query.
+	 *
+	 * @param error
+	 * @param message
+	 * @return the reply with the error
+	 */
+	public static byte[] encodeError(ErrorType error, String message) {
+		byte[] type = error.name().getBytes(StandardCharsets.UTF_8);
+		byte[] text = (message == null ? "" : message).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(2 + 4 + type.length + 4 + text.length);
+		buffer.put(VERSION).put(STATUS_ERROR);
+		buffer.putInt(type.length).put(type);
+		buffer.putInt(text.length).put(text);
+		return buffer.array();
+	}
+
+	/**
+	 * Method used for decoding a reply.
+	 *
+	 * @param reply
+	 * @return the results of the query
+	 * @throws ResponseException if the query failed in the storage manager
+	 * @throws IOException       if the reply is malformed
+	 */
+	public static List<String> decode(byte[] reply) throws ResponseException, IOException {
+		if (reply == null || reply.length < 2 || reply[0] != VERSION) {
+			throw new IOException("Unsupported query reply format");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(reply);
+		buffer.position(1);
+		try {
+			if (buffer.get() == STATUS_ERROR) {
+				String type = readString(buffer);
+				String message = readString(buffer);
+				ErrorType error;
+				try {
+					error = ErrorType.valueOf(type);
+				} catch (IllegalArgumentException e) {
+					error = ErrorType.InternalError;
+				}
+				throw new ResponseException(error, message);
+			}
+			int size = buffer.getInt();
+			if (size < 0 || size > buffer.remaining() / 4) {
+				throw new IOException("Invalid number of query results " + size);
+			}
+			List<String> results = new ArrayList<String>(size);
+			for (int i = 0; i < size; i++) {
+				results.add(readString(buffer));
+			}
+			return results;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated query reply", e);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IOException("Invalid length " + length + " in query reply");
+		}
+		String result = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return result;
+	}
+}
@@ -0,0 +1,190 @@
+package eu.neclab.ngsildbroker.commons.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import eu.neclab.ngsildbroker.commons.constants.AppConstants;
+import eu.neclab.ngsildbroker.commons.constants.DBConstants;
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+/**
+ * Maintains GIST expression indexes on the geometry of GeoProperties which
+ * have no column of their own (location, observationSpace and operationSpace
+ * have one). The index is built on the same expression and condition the
+ * query translation uses for such properties, so PostgreSQL uses it for the
+ * georel filters once it exists. Indexes are created concurrently in the
+ * background for declared properties on their first query and for all other
+ * properties once they have been queried threshold times in a tenant. The
+ * indexes are created with the connections of the queries, if the database
+ * does not allow them to create indexes (read only replica or user without
+ * the privilege) the indexer disables itself on the first attempt.
+ */
+public class GeoPropertyIndexer {
+
+	private final static Logger logger = LogManager.getLogger(GeoPropertyIndexer.class);
+
+	// the property ends up in a json path and in a string literal
+	private static final Pattern VALID_PROPERTY = Pattern.compile("[^'\"{},\\\\\\s]+");
+
+	// bounds the counters kept for properties queried in the tenants
+	private static final int MAX_COUNTED = 10000;
+
+	// insufficient_privilege and read_only_sql_transaction
+	private static final Set<String> NO_DDL_STATES = new HashSet<String>(Arrays.asList("42501", "25006"));
+
+	public interface TemplateProvider {
+		JdbcTemplate getTemplate(String tenant) throws ResponseException;
+	}
+
+	private final Set<String> declared;
+	private final long threshold;
+	private final TemplateProvider templates;
+	private final ConcurrentHashMap<String, AtomicLong> usage = new ConcurrentHashMap<String, AtomicLong>();
+	private final Set<String> requested = ConcurrentHashMap.newKeySet();
+	private ExecutorService executor;
+	private volatile boolean disabled = false;
+
+	/**
+	 * @param declared  expanded names of the properties which are always indexed
+	 * @param threshold number of queries after which a property is indexed, 0
+	 *                  to index only the declared properties
+	 * @param templates
+	 */
+	public GeoPropertyIndexer(Set<String> declared, long threshold, TemplateProvider templates) {
+		this.declared = declared;
+		this.threshold = threshold;
+		this.templates = templates;
+	}
+
+	/**
+	 * @param geoproperty expanded name of the property
+	 * @return the geometry of the first value of the property
+	 */
+	public static String geometryExpression(String geoproperty) {
+		return "ST_SetSRID(ST_GeomFromGeoJSON( " + "data#>>'{" + geoproperty + ",0,"
+				+ NGSIConstants.NGSI_LD_HAS_VALUE + ",0," + NGSIConstants.JSON_LD_VALUE + "}'), 4326)";
+	}
+
+	/**
+	 * @param geoproperty expanded name of the property
+	 * @return the condition that the entity has the property as GeoProperty
+	 */
+	public static String geoPropertyCondition(String geoproperty) {
+		return "data @> '{\"" + geoproperty + "\": [{\"" + NGSIConstants.JSON_LD_TYPE + "\":[\""
+				+ NGSIConstants.NGSI_LD_GEOPROPERTY + "\"]}]}'";
+	}
+
+	public static String indexName(String geoproperty) {
+		return "i_entity_geo_" + UUID.nameUUIDFromBytes(geoproperty.getBytes(StandardCharsets.UTF_8)).toString()
+				.replace("-", "");
+	}
+
+	/**
+	 * Method used for counting a geo query on a property of a tenant. Starts
+	 * the creation of the index if the property is declared or has been queried
+	 * often enough.
+	 *
+	 * @param tenant      tenant of the query, null for the default tenant
+	 * @param geoproperty expanded name of the property
+	 */
+	public void used(String tenant, String geoproperty) {
+		if (disabled || geoproperty == null || DBConstants.NGSILD_TO_SQL_RESERVED_PROPERTIES_MAPPING_GEO.containsKey(geoproperty)
+				|| (threshold <= 0 && !declared.contains(geoproperty))) {
+			return;
+		}
+		String key = (tenant == null ? AppConstants.INTERNAL_NULL_KEY : tenant) + "\n" + geoproperty;
+		if (requested.contains(key) || !VALID_PROPERTY.matcher(geoproperty).matches()) {
+			return;
+		}
+		if (!declared.contains(geoproperty)) {
+			AtomicLong count = usage.get(key);
+			if (count == null) {
+				if (usage.size() >= MAX_COUNTED) {
+					return;
+				}
+				count = usage.computeIfAbsent(key, k -> new AtomicLong());
+			}
+			if (count.incrementAndGet() < threshold) {
+				return;
+			}
+		}
+		if (requested.add(key)) {
+			usage.remove(key);
+			getExecutor().execute(() -> createIndex(tenant, geoproperty));
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "geo-property-indexer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	private void createIndex(String tenant, String geoproperty) {
+		if (disabled) {
+			return;
+		}
+		String name = indexName(geoproperty);
+		JdbcTemplate template;
+		try {
+			template = templates.getTemplate(tenant);
+		} catch (ResponseException e) {
+			logger.warn("No index for " + geoproperty + " in tenant " + tenant + ": " + e.getMessage());
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			// CONCURRENTLY does not block writes, it can not run in a transaction
+			template.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + DBConstants.DBTABLE_ENTITY
+					+ " USING GIST ((" + geometryExpression(geoproperty) + ")) WHERE "
+					+ geoPropertyCondition(geoproperty));
+			logger.info("Created geo index " + name + " for " + geoproperty + " in tenant " + tenant + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (DataAccessException e) {
+			Throwable cause = e.getMostSpecificCause();
+			if (cause instanceof SQLException && NO_DDL_STATES.contains(((SQLException) cause).getSQLState())) {
+				disabled = true;
+				logger.warn("Geo property indexes are disabled, the database does not allow to create indexes: "
+						+ cause.getMessage());
+				return;
+			}
+			logger.error("Failed to create geo index for " + geoproperty + " in tenant " + tenant, e);
+			// a failed concurrent build leaves an invalid index behind
+			try {
+				template.execute("DROP INDEX CONCURRENTLY IF EXISTS " + name);
+			} catch (DataAccessException e1) {
+				logger.error("Failed to drop the invalid index " + name, e1);
+			}
+		}
+	}
+
+	public boolean isDisabled() {
+		return disabled;
+	}
+
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
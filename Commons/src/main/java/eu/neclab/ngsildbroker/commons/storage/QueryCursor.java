@@ -0,0 +1,51 @@
+package eu.neclab.ngsildbroker.commons.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+/**
+ * Opaque cursor for keyset pagination of entity queries. A cursor holds the
+ * id of the last entity of a page, the next page continues with the entities
+ * ordered after it. {@link #START} requests the first page.
+ */
+public final class QueryCursor {
+
+	public static final String START = "*";
+
+	private static final String PREFIX = "id:";
+
+	private QueryCursor() {
+	}
+
+	public static String encode(String lastId) {
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString((PREFIX + lastId).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Method used for decoding a cursor provided by a client.
+	 *
+	 * @param cursor
+	 * @return the id of the last entity of the previous page or null for the
+	 *         first page
+	 * @throws ResponseException if the cursor is not valid
+	 */
+	public static String decode(String cursor) throws ResponseException {
+		if (cursor == null || cursor.isEmpty() || START.equals(cursor)) {
+			return null;
+		}
+		String decoded;
+		try {
+			decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseException(ErrorType.BadRequestData, "The provided cursor is not valid");
+		}
+		if (!decoded.startsWith(PREFIX) || decoded.length() == PREFIX.length()) {
+			throw new ResponseException(ErrorType.BadRequestData, "The provided cursor is not valid");
+		}
+		return decoded.substring(PREFIX.length());
+	}
+}
@@ -1,21 +1,22 @@
 package eu.neclab.ngsildbroker.commons.storage;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
 import eu.neclab.ngsildbroker.commons.constants.AppConstants;
 import eu.neclab.ngsildbroker.commons.constants.DBConstants;
 import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
@@ -24,14 +25,15 @@ import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
 import eu.neclab.ngsildbroker.commons.datatypes.QueryResult;
 import eu.neclab.ngsildbroker.commons.enums.ErrorType;
 import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
-import eu.neclab.ngsildbroker.commons.tenant.DBUtil;
+import eu.neclab.ngsildbroker.commons.tenant.TenantDataSourceRegistry;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
+import io.micrometer.core.instrument.Timer;
 
 abstract public class StorageReaderDAO {
 
 	private final static Logger logger = LogManager.getLogger(StorageReaderDAO.class);
-	protected Map<Object, DataSource> resolvedDataSources = new HashMap<>();
 
-	private HashMap<String, JdbcTemplate> tenant2Template = new HashMap<String, JdbcTemplate>();
+	private TenantDataSourceRegistry<JdbcTemplate> tenantDataSources;
 
 	@Autowired
 	private JdbcTemplate readerJdbcTemplate;
@@ -41,70 +43,89 @@ abstract public class StorageReaderDAO {
 	@Autowired
 	private HikariConfig hikariConfig;
 
+	@Value("${tenant.pool.maxsize:5}")
+	private int tenantPoolSize = 5;
+
+	@Value("${tenant.pool.maxtotal:100}")
+	private int tenantMaxConnections = 100;
+
+	@Value("${tenant.pool.idletimeout:600000}")
+	private long tenantIdleTimeout = 600000;
+
+	@Value("${query.fetchsize:500}")
+	private int fetchSize = 500;
+
+	@Value("${query.geoindex.properties:}")
+	private String geoIndexProperties = "";
+
+	@Value("${query.geoindex.threshold:0}")
+	private long geoIndexThreshold = 0;
+
+	private GeoPropertyIndexer geoPropertyIndexer;
+
 	public Random random = new Random();
 
 	@PostConstruct
 	public void init() {
 		readerJdbcTemplate.execute("SELECT 1"); // create connection pool and connect to database
+		tenantDataSources = new TenantDataSourceRegistry<JdbcTemplate>(hikariConfig, tenantPoolSize,
+				tenantMaxConnections, tenantIdleTimeout, this::findDataBaseNameByTenantId, null, JdbcTemplate::new);
+		HashSet<String> declaredGeoProperties = new HashSet<String>();
+		for (String geoproperty : geoIndexProperties.split(",")) {
+			if (!geoproperty.trim().isEmpty()) {
+				declaredGeoProperties.add(geoproperty.trim());
+			}
+		}
+		geoPropertyIndexer = new GeoPropertyIndexer(declaredGeoProperties, geoIndexThreshold,
+				tenant -> getJDBCTemplate(getTenant(tenant)));
+	}
+
+	@PreDestroy
+	public void closeTenantDataSources() {
+		geoPropertyIndexer.close();
+		tenantDataSources.close();
 	}
 
 	public String findDataBaseNameByTenantId(String tenantidvalue) {
 		if (tenantidvalue == null)
 			return null;
-		try {
-
-			String databasename = "ngb" + tenantidvalue;
-			List<String> data;
-			data = readerJdbcTemplate.queryForList("SELECT datname FROM pg_database", String.class);
-			if (data.contains(databasename)) {
-				return databasename;
-			} else {
-				return null;
-			}
-		} catch (EmptyResultDataAccessException e) {
-			return null;
-		}
+		String databasename = "ngb" + tenantidvalue;
+		List<String> data = readerJdbcTemplate.queryForList("SELECT datname FROM pg_database WHERE datname = ?",
+				String.class, databasename);
+		return data.isEmpty() ? null : databasename;
 	}
 
 	public DataSource determineTargetDataSource(String tenantidvalue) throws ResponseException {
-		// String tenantidvalue = (String) determineCurrentLookupKey();
 		if (tenantidvalue == null) {
 			return masterDataSource;
 		}
-		DataSource tenantDataSource = resolvedDataSources.get(tenantidvalue);
-		if (tenantDataSource == null) {
-
-			tenantDataSource = createDataSourceForTenantId(tenantidvalue);
-
-			resolvedDataSources.put(tenantidvalue, tenantDataSource);
-		}
-
-		return tenantDataSource;
+		return tenantDataSources.getDataSource(tenantidvalue);
 	}
 
-	private DataSource createDataSourceForTenantId(String tenantidvalue) throws ResponseException {
-		String tenantDatabaseName = findDataBaseNameByTenantId(tenantidvalue);
-		if (tenantDatabaseName == null) {
-			throw new ResponseException(ErrorType.TenantNotFound);
+	public QueryResult query(QueryParams qp) throws ResponseException {
+		Timer.Sample sample = BrokerMetrics.start();
+		try {
+			return doQuery(qp);
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.STORAGE_QUERY, BrokerMetrics.TAG_OPERATION, "query");
 		}
-		HikariConfig tenantHikariConfig = new HikariConfig();
-		hikariConfig.copyStateTo(tenantHikariConfig);
-		String tenantJdbcURL = DBUtil.databaseURLFromPostgresJdbcUrl(hikariConfig.getJdbcUrl(), tenantDatabaseName);
-		tenantHikariConfig.setJdbcUrl(tenantJdbcURL);
-		tenantHikariConfig.setPoolName(tenantDatabaseName + "-db-pool");
-		return new HikariDataSource(tenantHikariConfig);
 	}
 
-	public QueryResult query(QueryParams qp) throws ResponseException {
+	private QueryResult doQuery(QueryParams qp) throws ResponseException {
 		JdbcTemplate template;
 		QueryResult queryResult = new QueryResult(null, null, ErrorType.None, -1, true);
 		try {
 
 			String tenantId = qp.getTenant();
 			template = getJDBCTemplate(tenantId);
+		} catch (ResponseException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new ResponseException(ErrorType.TenantNotFound);
 		}
+		// an invalid cursor is reported to the client instead of returning an
+		// empty page
+		String afterId = qp.getCursor() == null ? null : QueryCursor.decode(qp.getCursor());
 		try {
 			if (qp.getCheck() != null) {
 				String sqlQuery = typesAndAttributeQuery(qp);
@@ -112,6 +133,9 @@ abstract public class StorageReaderDAO {
 				queryResult.setActualDataString(list);
 				return queryResult;
 			}
+			if (qp.getCursor() != null) {
+				return queryWithCursor(template, qp, afterId, queryResult);
+			}
 			if (qp.getCountResult() != null) {
 				if (qp.getLimit() == 0 && qp.getCountResult() == true) {
 					String sqlQueryCount = translateNgsildQueryToCountResult(qp);
@@ -143,22 +167,67 @@ abstract public class StorageReaderDAO {
 
 	}
 
+	/**
+	 * Method used for opening an entity query whose result is streamed. Rows are
+	 * fetched from a database cursor in chunks of query.fetchsize, so the result
+	 * is never held in memory as a whole. The caller has to close the query.
+	 * 
+	 * @param qp
+	 * @return the query with its first row fetched
+	 * @throws ResponseException if the tenant is not found or the query fails
+	 */
+	public StreamedQuery openStreamQuery(QueryParams qp) throws ResponseException {
+		JdbcTemplate template = getTenantTemplate(qp.getTenant());
+		String sqlQuery = translateNgsildQueryToSql(qp);
+		try {
+			return new StreamedQuery(template.getDataSource(), sqlQuery, fetchSize);
+		} catch (DataAccessException e) {
+			logger.error("Failed to query the entities", e);
+			throw new ResponseException(ErrorType.InternalError, "Failed to get data from storage");
+		}
+	}
+
+	private JdbcTemplate getTenantTemplate(String tenantId) throws ResponseException {
+		try {
+			return getJDBCTemplate(tenantId);
+		} catch (ResponseException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ResponseException(ErrorType.TenantNotFound);
+		}
+	}
+
+	private QueryResult queryWithCursor(JdbcTemplate template, QueryParams qp, String afterId,
+			QueryResult queryResult) throws ResponseException {
+		if (qp.getCountResult() != null && qp.getCountResult() == true) {
+			Integer count = template.queryForObject(translateNgsildQueryToCountResult(qp), Integer.class);
+			queryResult.setCount(count);
+			if (qp.getLimit() == 0) {
+				return queryResult;
+			}
+		}
+		String sqlQuery = translateNgsildQueryToCursorSql(qp, afterId != null);
+		Object[] args = afterId == null ? new Object[0] : new Object[] { afterId };
+		List<String[]> rows = template.query(sqlQuery, args,
+				(rs, rowNum) -> new String[] { rs.getString(1), rs.getString(2) });
+		List<String> list = new ArrayList<String>(rows.size());
+		int limit = qp.getLimit();
+		int pageSize = limit > 0 ? Math.min(limit, rows.size()) : rows.size();
+		for (int i = 0; i < pageSize; i++) {
+			list.add(rows.get(i)[1]);
+		}
+		if (rows.size() > pageSize) {
+			queryResult.setNextCursor(QueryCursor.encode(rows.get(pageSize - 1)[0]));
+		}
+		queryResult.setActualDataString(list);
+		return queryResult;
+	}
+
 	protected JdbcTemplate getJDBCTemplate(String tenantId) throws ResponseException {
-		JdbcTemplate result;
 		if (tenantId == null) {
-			result = readerJdbcTemplate;
-		} else {
-			result = tenant2Template.get(tenantId);
-			if (result == null) {
-				DataSource finaldatasource = determineTargetDataSource(tenantId);
-				if (finaldatasource == null) {
-					throw new ResponseException(ErrorType.TenantNotFound);
-				}
-				result = new JdbcTemplate(finaldatasource);
-				tenant2Template.put(tenantId, result);
-			}
+			return readerJdbcTemplate;
 		}
-		return result;
+		return tenantDataSources.get(tenantId);
 	}
 
 	/*
@@ -177,7 +246,7 @@ abstract public class StorageReaderDAO {
 	public List<String> getLocalTypes() {
 		ArrayList<String> result = new ArrayList<String>();
 		List<Map<String, Object>> list = readerJdbcTemplate
-				.queryForList("SELECT distinct type as type FROM entity WHERE type IS NOT NULL;");
+				.queryForList("SELECT type FROM " + DBConstants.DBTABLE_ENTITY_TYPE_CATALOG + ";");
 		if (list == null || list.isEmpty()) {
 			return null;
 		}
@@ -190,7 +259,8 @@ abstract public class StorageReaderDAO {
 	public List<String> getAllTypes() {
 		ArrayList<String> result = new ArrayList<String>();
 		List<Map<String, Object>> list = readerJdbcTemplate.queryForList(
-				"SELECT distinct type as type FROM entity WHERE type IS NOT NULL UNION SELECT distinct entity_type as type FROM csourceinformation WHERE entity_type IS NOT NULL;");
+				"SELECT type FROM " + DBConstants.DBTABLE_ENTITY_TYPE_CATALOG
+						+ " UNION SELECT distinct entity_type as type FROM csourceinformation WHERE entity_type IS NOT NULL;");
 		if (list == null || list.isEmpty()) {
 			return null;
 		}
@@ -200,46 +270,47 @@ abstract public class StorageReaderDAO {
 		return result;
 	}
 
-	/*
-	 * TODO: optimize sql queries for types and Attributes by using prepared
-	 * statements (if possible)
+	/**
+	 * Method used for building the queries of the types and attributes
+	 * endpoints. They read the entity type and attribute catalogs which are
+	 * maintained by triggers on the entity table, so they do not aggregate over
+	 * all entities.
 	 */
 	protected String typesAndAttributeQuery(QueryParams qp) throws ResponseException {
 		String query = "";
+		String attributeTypeId = "jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "', nullif(attributetype, ''))";
 		if (qp.getCheck() == "NonDeatilsType" && qp.getAttrs() == null) {
 			int number = random.nextInt(999999);
 			query = "select jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "','urn:ngsi-ld:EntityTypeList:" + number
 					+ "','" + NGSIConstants.JSON_LD_TYPE + "', jsonb_build_array('" + NGSIConstants.NGSI_LD_ENTITY_LIST
-					+ "'), '" + NGSIConstants.NGSI_LD_TYPE_LIST + "',json_agg(distinct jsonb_build_object('"
-					+ NGSIConstants.JSON_LD_ID + "', type)::jsonb)) from entity;";
+					+ "'), '" + NGSIConstants.NGSI_LD_TYPE_LIST + "',json_agg(jsonb_build_object('"
+					+ NGSIConstants.JSON_LD_ID + "', type)::jsonb)) from " + DBConstants.DBTABLE_ENTITY_TYPE_CATALOG
+					+ ";";
 			return query;
 		} else if (qp.getCheck() == "deatilsType" && qp.getAttrs() == null) {
-			query = "select distinct jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "',type,'"
-					+ NGSIConstants.JSON_LD_TYPE + "', jsonb_build_array('" + NGSIConstants.NGSI_LD_ENTITY_TYPE
-					+ "'), '" + NGSIConstants.NGSI_LD_TYPE_NAME + "', jsonb_build_array(jsonb_build_object('"
+			query = "select jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "',type,'" + NGSIConstants.JSON_LD_TYPE
+					+ "', jsonb_build_array('" + NGSIConstants.NGSI_LD_ENTITY_TYPE + "'), '"
+					+ NGSIConstants.NGSI_LD_TYPE_NAME + "', jsonb_build_array(jsonb_build_object('"
 					+ NGSIConstants.JSON_LD_ID + "', type)), '" + NGSIConstants.NGSI_LD_ATTRIBUTE_NAMES
-					+ "', jsonb_agg(jsonb_build_object('" + NGSIConstants.JSON_LD_ID
-					+ "', attribute.key))) from entity, jsonb_each(data_without_sysattrs - '" + NGSIConstants.JSON_LD_ID
-					+ "' - '" + NGSIConstants.JSON_LD_TYPE + "') attribute group by id;";
+					+ "', jsonb_agg(distinct jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "', attribute))) from "
+					+ DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG + " group by type;";
 			return query;
 		} else if (qp.getCheck() == "type" && qp.getAttrs() != null) {
 			String type = qp.getAttrs();
-			query = "with r as (select distinct attribute.key as mykey, jsonb_agg(distinct jsonb_build_object('"
-					+ NGSIConstants.JSON_LD_ID
-					+ "', attribute.value#>>'{0,@type,0}')) as mytype from entity, jsonb_each(data_without_sysattrs - '"
-					+ NGSIConstants.JSON_LD_ID + "' - '" + NGSIConstants.JSON_LD_TYPE + "') attribute where type='"
-					+ type + "'" + " group by attribute.key)select jsonb_build_object('" + NGSIConstants.JSON_LD_ID
-					+ "',type,'" + NGSIConstants.JSON_LD_TYPE + "', jsonb_build_array('"
-					+ NGSIConstants.NGSI_LD_ENTITY_TYPE_INFO + "'), '" + NGSIConstants.NGSI_LD_TYPE_NAME
-					+ "', jsonb_build_array(jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "', type)),'"
-					+ NGSIConstants.NGSI_LD_ENTITY_COUNT + "', jsonb_build_array(jsonb_build_object('"
-					+ NGSIConstants.JSON_LD_VALUE + "', count(Distinct id))), '"
+			query = "with r as (select attribute as mykey, jsonb_agg(distinct " + attributeTypeId
+					+ ") as mytype from " + DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG + " where type='" + type
+					+ "' group by attribute) select jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "',type,'"
+					+ NGSIConstants.JSON_LD_TYPE + "', jsonb_build_array('" + NGSIConstants.NGSI_LD_ENTITY_TYPE_INFO
+					+ "'), '" + NGSIConstants.NGSI_LD_TYPE_NAME + "', jsonb_build_array(jsonb_build_object('"
+					+ NGSIConstants.JSON_LD_ID + "', type)),'" + NGSIConstants.NGSI_LD_ENTITY_COUNT
+					+ "', jsonb_build_array(jsonb_build_object('" + NGSIConstants.JSON_LD_VALUE + "', entitycount)), '"
 					+ NGSIConstants.NGSI_LD_ATTRIBUTE_DETAILS + "', jsonb_agg(distinct jsonb_build_object('"
 					+ NGSIConstants.NGSI_LD_ATTRIBUTE_NAME + "',jsonb_build_array(jsonb_build_object('"
 					+ NGSIConstants.JSON_LD_ID + "', mykey)), '" + NGSIConstants.NGSI_LD_ATTRIBUTE_TYPES
 					+ "', mytype, '" + NGSIConstants.JSON_LD_ID + "', mykey, '" + NGSIConstants.JSON_LD_TYPE
-					+ "',jsonb_build_array('" + NGSIConstants.NGSI_LD_ATTRIBUTE
-					+ "')))) from entity, r attribute where type='" + type + "' group by type;";
+					+ "',jsonb_build_array('" + NGSIConstants.NGSI_LD_ATTRIBUTE + "')))) from "
+					+ DBConstants.DBTABLE_ENTITY_TYPE_CATALOG + ", r where type='" + type
+					+ "' group by type, entitycount;";
 			return query;
 		} else if (qp.getCheck() == "NonDeatilsAttributes" && qp.getAttrs() == null) {
 			int number = random.nextInt(999999);
@@ -247,35 +318,30 @@ abstract public class StorageReaderDAO {
 					+ "','" + NGSIConstants.JSON_LD_TYPE + "', jsonb_build_array('"
 					+ NGSIConstants.NGSI_LD_ATTRIBUTE_LIST_1 + "'), '" + NGSIConstants.NGSI_LD_ATTRIBUTE_LIST_2
 					+ "',json_agg(distinct jsonb_build_object('" + NGSIConstants.JSON_LD_ID
-					+ "', attribute.key)::jsonb)) from entity,jsonb_each(data_without_sysattrs-'"
-					+ NGSIConstants.JSON_LD_ID + "'-'" + NGSIConstants.JSON_LD_TYPE + "') attribute;";
+					+ "', attribute)::jsonb)) from " + DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG + ";";
 			return query;
 
 		} else if (qp.getCheck() == "deatilsAttributes" && qp.getAttrs() == null) {
-			query = "select jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "', attribute.key,'"
+			query = "select jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "', attribute,'"
 					+ NGSIConstants.JSON_LD_TYPE + "','" + NGSIConstants.NGSI_LD_ATTRIBUTE + "','"
 					+ NGSIConstants.NGSI_LD_ATTRIBUTE_NAME + "',jsonb_build_object('" + NGSIConstants.JSON_LD_ID
-					+ "', attribute.key),'" + NGSIConstants.NGSI_LD_TYPE_NAMES
-					+ "',jsonb_agg(distinct jsonb_build_object('" + NGSIConstants.JSON_LD_ID
-					+ "', type))) from entity,jsonb_each(data_without_sysattrs-'" + NGSIConstants.JSON_LD_ID + "'-'"
-					+ NGSIConstants.JSON_LD_TYPE + "') attribute group by attribute.key;";
+					+ "', attribute),'" + NGSIConstants.NGSI_LD_TYPE_NAMES + "',jsonb_agg(distinct jsonb_build_object('"
+					+ NGSIConstants.JSON_LD_ID + "', type))) from " + DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG
+					+ " group by attribute;";
 			return query;
 
 		} else if (qp.getCheck() == "Attribute" && qp.getAttrs() != null) {
 			String type = qp.getAttrs();
-			query = "with r as(select count(data_without_sysattrs->'" + type
-					+ "') as mycount  from entity), y as(select  jsonb_agg(distinct jsonb_build_object('"
-					+ NGSIConstants.JSON_LD_ID + "',type)) as mytype,jsonb_build_array(jsonb_build_object('"
-					+ NGSIConstants.JSON_LD_VALUE + "',mycount)) as finalcount, jsonb_agg(distinct jsonb_build_object('"
-					+ NGSIConstants.JSON_LD_ID
-					+ "',attribute.value#>>'{0,@type,0}')) as mydata from r,entity,jsonb_each(data_without_sysattrs-'"
-					+ NGSIConstants.JSON_LD_ID + "'-'" + NGSIConstants.JSON_LD_TYPE
-					+ "') attribute where attribute.key='" + type + "' group by mycount) select jsonb_build_object('"
-					+ NGSIConstants.JSON_LD_ID + "','" + type + "','" + NGSIConstants.JSON_LD_TYPE + "','"
-					+ NGSIConstants.NGSI_LD_ATTRIBUTE + "','" + NGSIConstants.NGSI_LD_ATTRIBUTE_NAME
-					+ "',jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "','" + type + "'),'"
-					+ NGSIConstants.NGSI_LD_TYPE_NAMES + "',mytype,'" + NGSIConstants.NGSI_LD_ATTRIBUTE_COUNT
-					+ "',finalcount,'" + NGSIConstants.NGSI_LD_ATTRIBUTE_TYPES + "',mydata) from y,r;";
+			// an entity has one row per attribute, the type of its first instance
+			query = "select jsonb_build_object('" + NGSIConstants.JSON_LD_ID + "', attribute,'"
+					+ NGSIConstants.JSON_LD_TYPE + "','" + NGSIConstants.NGSI_LD_ATTRIBUTE + "','"
+					+ NGSIConstants.NGSI_LD_ATTRIBUTE_NAME + "',jsonb_build_object('" + NGSIConstants.JSON_LD_ID
+					+ "', attribute),'" + NGSIConstants.NGSI_LD_TYPE_NAMES + "',jsonb_agg(distinct jsonb_build_object('"
+					+ NGSIConstants.JSON_LD_ID + "', type)),'" + NGSIConstants.NGSI_LD_ATTRIBUTE_COUNT
+					+ "',jsonb_build_array(jsonb_build_object('" + NGSIConstants.JSON_LD_VALUE
+					+ "', sum(entitycount))),'" + NGSIConstants.NGSI_LD_ATTRIBUTE_TYPES + "',jsonb_agg(distinct "
+					+ attributeTypeId + ")) from " + DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG
+					+ " where attribute='" + type + "' group by attribute;";
 			return query;
 
 		}
@@ -287,6 +353,53 @@ abstract public class StorageReaderDAO {
 	 */
 	protected String translateNgsildQueryToSql(QueryParams qp) throws ResponseException {
 		StringBuilder fullSqlWhereProperty = commonTranslateSql(qp);
+		String sqlQuery = "SELECT DISTINCT " + getDataColumn(qp) + " as data FROM " + DBConstants.DBTABLE_ENTITY + " ";
+		if (fullSqlWhereProperty.length() > 0) {
+			sqlQuery += "WHERE " + fullSqlWhereProperty.toString() + " ";
+		}
+		int limit = qp.getLimit();
+		int offSet = qp.getOffSet();
+
+		if (limit > 0) {
+			sqlQuery += "LIMIT " + limit + " ";
+		}
+		if (offSet > 0) {
+			sqlQuery += "OFFSET " + offSet + " ";
+		}
+		// order by ?
+
+		return sqlQuery;
+	}
+
+	/**
+	 * Keyset pagination variant of {@link #translateNgsildQueryToSql(QueryParams)}.
+	 * Entities are ordered by id and the page starts after the id bound to the
+	 * single statement parameter (if afterId is true). One row more than the limit
+	 * is selected to find out if there is a next page.
+	 */
+	protected String translateNgsildQueryToCursorSql(QueryParams qp, boolean afterId) throws ResponseException {
+		StringBuilder fullSqlWhereProperty = commonTranslateSql(qp);
+		String sqlQuery = "SELECT " + DBConstants.DBCOLUMN_ID + ", " + getDataColumn(qp) + " as data FROM "
+				+ DBConstants.DBTABLE_ENTITY + " ";
+		if (fullSqlWhereProperty.length() > 0) {
+			sqlQuery += "WHERE (" + fullSqlWhereProperty.toString() + ") ";
+			if (afterId) {
+				sqlQuery += "AND ";
+			}
+		} else if (afterId) {
+			sqlQuery += "WHERE ";
+		}
+		if (afterId) {
+			sqlQuery += DBConstants.DBCOLUMN_ID + " > ? ";
+		}
+		sqlQuery += "ORDER BY " + DBConstants.DBCOLUMN_ID + " ";
+		if (qp.getLimit() > 0) {
+			sqlQuery += "LIMIT " + (qp.getLimit() + 1) + " ";
+		}
+		return sqlQuery;
+	}
+
+	private String getDataColumn(QueryParams qp) {
 		String tableDataColumn;
 		if (qp.getKeyValues()) {
 			if (qp.getIncludeSysAttrs()) {
@@ -314,22 +427,7 @@ abstract public class StorageReaderDAO {
 			dataColumn = "(SELECT jsonb_object_agg(key, value) FROM jsonb_each(" + tableDataColumn + ") WHERE key IN ( "
 					+ expandedAttributeList + "))";
 		}
-		String sqlQuery = "SELECT DISTINCT " + dataColumn + " as data FROM " + DBConstants.DBTABLE_ENTITY + " ";
-		if (fullSqlWhereProperty.length() > 0) {
-			sqlQuery += "WHERE " + fullSqlWhereProperty.toString() + " ";
-		}
-		int limit = qp.getLimit();
-		int offSet = qp.getOffSet();
-
-		if (limit > 0) {
-			sqlQuery += "LIMIT " + limit + " ";
-		}
-		if (offSet > 0) {
-			sqlQuery += "OFFSET " + offSet + " ";
-		}
-		// order by ?
-
-		return sqlQuery;
+		return dataColumn;
 	}
 
 	// TODO: SQL input sanitization
@@ -346,10 +444,9 @@ abstract public class StorageReaderDAO {
 		if (dbColumn == null) {
 			dbColumn = DBConstants.NGSILD_TO_SQL_RESERVED_PROPERTIES_MAPPING_GEO.get(geoproperty);
 			if (dbColumn == null) {
-				sqlWhere.append("data @> '{\"" + geoproperty + "\": [{\"" + NGSIConstants.JSON_LD_TYPE + "\":[\""
-						+ NGSIConstants.NGSI_LD_GEOPROPERTY + "\"]}]}' AND ");
-				dbColumn = "ST_SetSRID(ST_GeomFromGeoJSON( " + "data#>>'{" + geoproperty + ",0,"
-						+ NGSIConstants.NGSI_LD_HAS_VALUE + ",0," + NGSIConstants.JSON_LD_VALUE + "}'), 4326)";
+				// the expression and condition of the indexes of the GeoPropertyIndexer
+				sqlWhere.append(GeoPropertyIndexer.geoPropertyCondition(geoproperty) + " AND ");
+				dbColumn = GeoPropertyIndexer.geometryExpression(geoproperty);
 			}
 		}
 
@@ -511,6 +608,9 @@ abstract public class StorageReaderDAO {
 		if (qp.getGeorel() != null) {
 			GeoqueryRel gqr = qp.getGeorel();
 			logger.trace("Georel value " + gqr.getGeorelOp());
+			if (geoPropertyIndexer != null) {
+				geoPropertyIndexer.used(qp.getTenant(), qp.getGeoproperty());
+			}
 			try {
 				sqlWhereProperty = translateNgsildGeoqueryToPostgisQuery(gqr, qp.getGeometry(), qp.getCoordinates(),
 						qp.getGeoproperty());
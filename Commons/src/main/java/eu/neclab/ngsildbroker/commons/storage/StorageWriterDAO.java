@@ -1,21 +1,28 @@
 package eu.neclab.ngsildbroker.commons.storage;
 
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.SQLTransientConnectionException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.flywaydb.core.Flyway;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.stereotype.Repository;
@@ -25,7 +32,6 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
 
 import eu.neclab.ngsildbroker.commons.constants.DBConstants;
 import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
@@ -35,9 +41,10 @@ import eu.neclab.ngsildbroker.commons.datatypes.DeleteHistoryEntityRequest;
 import eu.neclab.ngsildbroker.commons.datatypes.EntityRequest;
 import eu.neclab.ngsildbroker.commons.datatypes.HistoryAttribInstance;
 import eu.neclab.ngsildbroker.commons.datatypes.HistoryEntityRequest;
-import eu.neclab.ngsildbroker.commons.enums.ErrorType;
 import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
-import eu.neclab.ngsildbroker.commons.tenant.DBUtil;
+import eu.neclab.ngsildbroker.commons.tenant.TenantDataSourceRegistry;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
+import io.micrometer.core.instrument.Timer;
 
 @Repository
 @ConditionalOnProperty(value = "writer.enabled", havingValue = "true", matchIfMissing = false)
@@ -55,13 +62,24 @@ public class StorageWriterDAO {
 	@Autowired
 	private HikariConfig hikariConfig;
 
-	private Map<Object, DataSource> resolvedDataSources = new HashMap<>();
+	@Value("${tenant.pool.maxsize:5}")
+	private int tenantPoolSize = 5;
+
+	@Value("${tenant.pool.maxtotal:100}")
+	private int tenantMaxConnections = 100;
+
+	@Value("${tenant.pool.idletimeout:600000}")
+	private long tenantIdleTimeout = 600000;
+
+	private TenantDataSourceRegistry<DBWriteTemplates> tenantDataSources;
+
+	// table and tenant of the tenant rows which have been written
+	private final Set<String> storedTenants = ConcurrentHashMap.newKeySet();
 
 	private TransactionTemplate writerTransactionTemplate;
 	private JdbcTemplate writerJdbcTemplateWithTransaction;
 
 	private DBWriteTemplates defaultTemplates;
-	private HashMap<String, DBWriteTemplates> tenant2Templates = new HashMap<String, DBWriteTemplates>();
 
 	@PostConstruct
 	public void init() {
@@ -73,6 +91,24 @@ public class StorageWriterDAO {
 		writerTransactionTemplate = new TransactionTemplate(transactionManager);
 		this.defaultTemplates = new DBWriteTemplates(writerJdbcTemplateWithTransaction, writerTransactionTemplate,
 				writerJdbcTemplate);
+		this.tenantDataSources = new TenantDataSourceRegistry<DBWriteTemplates>(hikariConfig, tenantPoolSize,
+				tenantMaxConnections, tenantIdleTimeout, this::findDataBaseNameByTenantId, (tenant, dataSource) -> {
+					// the tenant is not used with an old schema, it is migrated
+					// again on its next use
+					if (!flywayMigrate(dataSource)) {
+						throw new IllegalStateException("Failed to migrate the database of tenant " + tenant);
+					}
+				}, dataSource -> {
+					DataSourceTransactionManager tenantTransactionManager = new DataSourceTransactionManager(
+							dataSource);
+					return new DBWriteTemplates(new JdbcTemplate(tenantTransactionManager.getDataSource()),
+							new TransactionTemplate(tenantTransactionManager), new JdbcTemplate(dataSource));
+				});
+	}
+
+	@PreDestroy
+	public void closeTenantDataSources() {
+		tenantDataSources.close();
 	}
 
 	public boolean storeTenantdata(String tableName, String columnName, String tenantidvalue, String databasename)
@@ -82,11 +118,15 @@ public class StorageWriterDAO {
 			String sql;
 			int n = 0;
 			if (!tenantidvalue.equals(null)) {
+				if (storedTenants.contains(tableName + "/" + tenantidvalue)) {
+					return true;
+				}
 				sql = "INSERT INTO " + tableName
 						+ " (tenant_id, database_name) VALUES (?, ?) ON CONFLICT(tenant_id) DO UPDATE SET tenant_id = EXCLUDED.tenant_id";
 				synchronized (writerJdbcTemplate) {
 					n = writerJdbcTemplate.update(sql, tenantidvalue, databasename);
 				}
+				storedTenants.add(tableName + "/" + tenantidvalue);
 			} else {
 				sql = "DELETE FROM " + tableName + " WHERE id = ?";
 				synchronized (writerJdbcTemplate) {
@@ -104,6 +144,17 @@ public class StorageWriterDAO {
 
 	public boolean store(String tableName, String columnName, String key, String value, String tenantvalue)
 			throws SQLException {
+		Timer.Sample sample = BrokerMetrics.start();
+		boolean success = false;
+		try {
+			success = doStore(tableName, columnName, key, value, tenantvalue);
+			return success;
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.STORAGE_WRITE, success, BrokerMetrics.TAG_OPERATION, tableName);
+		}
+	}
+
+	private boolean doStore(String tableName, String columnName, String key, String value, String tenantvalue) {
 		try {
 			String sql;
 			int n = 0;
@@ -130,6 +181,18 @@ public class StorageWriterDAO {
 	}
 
 	public boolean storeTemporalEntity(HistoryEntityRequest request) throws SQLException {
+		Timer.Sample sample = BrokerMetrics.start();
+		boolean success = false;
+		try {
+			success = doStoreTemporalEntity(request);
+			return success;
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.STORAGE_WRITE, success, BrokerMetrics.TAG_OPERATION,
+					DBConstants.DBTABLE_TEMPORALENTITY);
+		}
+	}
+
+	private boolean doStoreTemporalEntity(HistoryEntityRequest request) {
 		boolean result = true;
 		DBWriteTemplates templates = getJDBCTemplates(request);
 		// TemporalEntityStorageKey tesk =
@@ -154,6 +217,189 @@ public class StorageWriterDAO {
 		return result;
 	}
 
+	/**
+	 * Method used for storing a batch of temporal entity requests. All attribute
+	 * instances of the requests of one tenant are written with jdbc batch
+	 * statements in a single transaction. If the batch fails because of data
+	 * inconsistency (e.g. an append for a temporal entity which does not exist
+	 * yet) the requests are stored one by one with the recovery of
+	 * {@link #storeTemporalEntity(HistoryEntityRequest)}.
+	 *
+	 * @param requests in the order they have been received
+	 * @return false if one of the requests could not be stored
+	 */
+	public boolean storeTemporalEntities(List<HistoryEntityRequest> requests) {
+		Timer.Sample sample = BrokerMetrics.start();
+		boolean success = true;
+		try {
+			LinkedHashMap<String, List<HistoryEntityRequest>> tenant2Requests = new LinkedHashMap<String, List<HistoryEntityRequest>>();
+			for (HistoryEntityRequest request : requests) {
+				tenant2Requests.computeIfAbsent(getTenantHeader(request), k -> new ArrayList<HistoryEntityRequest>())
+						.add(request);
+			}
+			for (List<HistoryEntityRequest> tenantRequests : tenant2Requests.values()) {
+				DBWriteTemplates templates = getJDBCTemplates(tenantRequests.get(0));
+				try {
+					templates.getWriterTransactionTemplate().execute(new TransactionCallback<Void>() {
+						@Override
+						public Void doInTransaction(TransactionStatus status) {
+							TemporalBatch batch = new TemporalBatch(templates.getWriterJdbcTemplateWithTransaction());
+							for (HistoryEntityRequest request : tenantRequests) {
+								batch.add(request);
+							}
+							batch.flush();
+							return null;
+						}
+					});
+				} catch (DataAccessException e) {
+					// e.g. a missing temporal entity or the same instance twice in the batch
+					logger.info("Failed to store temporal batch because of data inconsistency");
+					logger.info("Storing the " + tenantRequests.size() + " requests one by one");
+					for (HistoryEntityRequest request : tenantRequests) {
+						success = doStoreTemporalEntity(request) && success;
+					}
+				} catch (Exception e) {
+					logger.error("Exception ::", e);
+					success = false;
+				}
+			}
+			return success;
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.STORAGE_WRITE, success, BrokerMetrics.TAG_OPERATION,
+					DBConstants.DBTABLE_TEMPORALENTITY + "_batch");
+		}
+	}
+
+	/**
+	 * Collects the statements of temporal entity requests for jdbc batches. The
+	 * statements are the same as in doTemporalSqlAttrInsert, except that all
+	 * attribute instances are inserted with one statement. Entities are upserted
+	 * before their attribute instances are written and modifiedat is set once per
+	 * entity to the last value in the batch. When an overwrite hits an attribute
+	 * which already has instances pending in the batch, or a delete is received,
+	 * the pending statements are flushed first so the outcome is the same as
+	 * storing the requests one by one.
+	 */
+	private static class TemporalBatch {
+		private static final String UPSERT_ENTITY = "INSERT INTO " + DBConstants.DBTABLE_TEMPORALENTITY
+				+ " (id, type, createdat, modifiedat) VALUES (?, ?, ?::timestamp, ?::timestamp) ON CONFLICT(id) DO UPDATE SET type = EXCLUDED.type, createdat = EXCLUDED.createdat, modifiedat = EXCLUDED.modifiedat";
+		private static final String DELETE_ATTRIBUTE = "DELETE FROM "
+				+ DBConstants.DBTABLE_TEMPORALENTITY_ATTRIBUTEINSTANCE
+				+ " WHERE temporalentity_id = ? AND attributeid = ?";
+		// one statement for all instances, so the static flag is maintained once per
+		// flush by the statement trigger on temporalentityattrinstance
+		private static final String INSERT_INSTANCES = "INSERT INTO "
+				+ DBConstants.DBTABLE_TEMPORALENTITY_ATTRIBUTEINSTANCE
+				+ " (temporalentity_id, attributeid, data) SELECT i.entityid, i.attributeid, i.data::jsonb FROM unnest(?::text[], ?::text[], ?::text[]) AS i(entityid, attributeid, data) ON CONFLICT(temporalentity_id, attributeid, instanceid) DO UPDATE SET data = EXCLUDED.data";
+		private static final String UPDATE_MODIFIEDAT = "UPDATE " + DBConstants.DBTABLE_TEMPORALENTITY
+				+ " SET modifiedat = ?::timestamp WHERE id = ?";
+
+		private final JdbcTemplate template;
+		private final LinkedHashMap<String, Object[]> entityUpserts = new LinkedHashMap<String, Object[]>();
+		private final ArrayList<Object[]> attributeDeletes = new ArrayList<Object[]>();
+		private final ArrayList<Object[]> instanceInserts = new ArrayList<Object[]>();
+		private final LinkedHashMap<String, Object[]> modifiedAtUpdates = new LinkedHashMap<String, Object[]>();
+		private final HashSet<String> pendingAttributes = new HashSet<String>();
+
+		TemporalBatch(JdbcTemplate template) {
+			this.template = template;
+		}
+
+		void add(HistoryEntityRequest request) {
+			if (request instanceof DeleteHistoryEntityRequest) {
+				flush();
+				// same as storeTemporalEntity, the attribute id is not passed on
+				delete(request.getId(), null, request.getInstanceId());
+				return;
+			}
+			for (HistoryAttribInstance entry : request.getAttribs()) {
+				add(entry, request.getInstanceId());
+			}
+		}
+
+		private void add(HistoryAttribInstance entry, String instanceId) {
+			String entityId = entry.getEntityId();
+			String attributeId = entry.getAttributeId();
+			if ("null".equals(entry.getElementValue())) {
+				flush();
+				delete(entityId, attributeId, instanceId);
+				return;
+			}
+			if (entityId != null && entry.getEntityType() != null && entry.getEntityCreatedAt() != null
+					&& entry.getEntityModifiedAt() != null) {
+				entityUpserts.put(entityId, new Object[] { entityId, entry.getEntityType(),
+						entry.getEntityCreatedAt(), entry.getEntityModifiedAt() });
+			}
+			if (entityId == null || attributeId == null) {
+				return;
+			}
+			String attributeKey = entityId + "|" + attributeId;
+			if (entry.getOverwriteOp() != null && entry.getOverwriteOp()) {
+				if (pendingAttributes.contains(attributeKey)) {
+					flush();
+				}
+				attributeDeletes.add(new Object[] { entityId, attributeId });
+			}
+			pendingAttributes.add(attributeKey);
+			instanceInserts.add(new Object[] { entityId, attributeId, entry.getElementValue() });
+			modifiedAtUpdates.remove(entityId);
+			modifiedAtUpdates.put(entityId, new Object[] { entry.getEntityModifiedAt(), entityId });
+		}
+
+		private void delete(String entityId, String attributeId, String instanceId) {
+			if (entityId != null && attributeId != null && instanceId != null) {
+				template.update("DELETE FROM " + DBConstants.DBTABLE_TEMPORALENTITY_ATTRIBUTEINSTANCE
+						+ " WHERE temporalentity_id = ? AND attributeid = ? AND instanceid = ?", entityId,
+						attributeId, instanceId);
+			} else if (entityId != null && attributeId != null) {
+				template.update(DELETE_ATTRIBUTE, entityId, attributeId);
+			} else if (entityId != null) {
+				template.update("DELETE FROM " + DBConstants.DBTABLE_TEMPORALENTITY + " WHERE id = ?", entityId);
+			}
+		}
+
+		private void insertInstances() {
+			int size = instanceInserts.size();
+			String[] entityIds = new String[size];
+			String[] attributeIds = new String[size];
+			String[] values = new String[size];
+			for (int i = 0; i < size; i++) {
+				Object[] row = instanceInserts.get(i);
+				entityIds[i] = (String) row[0];
+				attributeIds[i] = (String) row[1];
+				values[i] = (String) row[2];
+			}
+			template.update(connection -> {
+				PreparedStatement statement = connection.prepareStatement(INSERT_INSTANCES);
+				statement.setArray(1, connection.createArrayOf("text", entityIds));
+				statement.setArray(2, connection.createArrayOf("text", attributeIds));
+				statement.setArray(3, connection.createArrayOf("text", values));
+				return statement;
+			});
+		}
+
+		void flush() {
+			if (!entityUpserts.isEmpty()) {
+				template.batchUpdate(UPSERT_ENTITY, new ArrayList<Object[]>(entityUpserts.values()));
+			}
+			if (!attributeDeletes.isEmpty()) {
+				template.batchUpdate(DELETE_ATTRIBUTE, attributeDeletes);
+			}
+			if (!instanceInserts.isEmpty()) {
+				insertInstances();
+			}
+			if (!modifiedAtUpdates.isEmpty()) {
+				template.batchUpdate(UPDATE_MODIFIEDAT, new ArrayList<Object[]>(modifiedAtUpdates.values()));
+			}
+			logger.debug("Temporal batch flushed: " + instanceInserts.size() + " attribute instances");
+			entityUpserts.clear();
+			attributeDeletes.clear();
+			instanceInserts.clear();
+			modifiedAtUpdates.clear();
+			pendingAttributes.clear();
+		}
+	}
+
 	private boolean doTemporalSqlAttrInsert(DBWriteTemplates templates, String value, String entityId,
 			String entityType, String attributeId, String entityCreatedAt, String entityModifiedAt, String instanceId,
 			Boolean overwriteOp) {
@@ -264,6 +510,18 @@ public class StorageWriterDAO {
 	}
 
 	public boolean storeEntity(EntityRequest request) throws SQLTransientConnectionException {
+		Timer.Sample sample = BrokerMetrics.start();
+		boolean success = false;
+		try {
+			success = doStoreEntity(request);
+			return success;
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.STORAGE_WRITE, success, BrokerMetrics.TAG_OPERATION,
+					DBConstants.DBTABLE_ENTITY);
+		}
+	}
+
+	private boolean doStoreEntity(EntityRequest request) {
 
 		String sql;
 		String key = request.getId();
@@ -306,28 +564,26 @@ public class StorageWriterDAO {
 	}
 
 	private DBWriteTemplates getJDBCTemplates(String tenant) {
-		DBWriteTemplates result;
 		if (tenant == null) {
-			result = defaultTemplates;
-		} else {
-			if (tenant2Templates.containsKey(tenant)) {
-				result = tenant2Templates.get(tenant);
-			} else {
-				DataSource finalDataSource = determineTargetDataSource(tenant);
-				DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(finalDataSource);
-				result = new DBWriteTemplates(new JdbcTemplate(transactionManager.getDataSource()),
-						new TransactionTemplate(transactionManager), new JdbcTemplate(finalDataSource));
-				tenant2Templates.put(tenant, result);
-			}
+			return defaultTemplates;
+		}
+		try {
+			return tenantDataSources.get(tenant);
+		} catch (ResponseException e) {
+			throw new IllegalStateException("No database for tenant " + tenant + ": " + e.getMessage(), e);
+		}
+	}
 
+	private String getTenantHeader(BaseRequest request) {
+		if (request.getHeaders().containsKey(NGSIConstants.TENANT_HEADER)) {
+			return request.getHeaders().get(NGSIConstants.TENANT_HEADER).get(0);
 		}
-		return result;
+		return null;
 	}
 
 	private String getTenant(BaseRequest request) {
-		String tenant;
-		if (request.getHeaders().containsKey(NGSIConstants.TENANT_HEADER)) {
-			tenant = request.getHeaders().get(NGSIConstants.TENANT_HEADER).get(0);
+		String tenant = getTenantHeader(request);
+		if (tenant != null) {
 			String databasename = "ngb" + tenant;
 			try {
 				storeTenantdata(DBConstants.DBTABLE_CSOURCE_TENANT, DBConstants.DBCOLUMN_DATA_TENANT, tenant,
@@ -336,8 +592,6 @@ public class StorageWriterDAO {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-		} else {
-			tenant = null;
 		}
 		return tenant;
 
@@ -346,55 +600,57 @@ public class StorageWriterDAO {
 	public String findDataBaseNameByTenantId(String tenantidvalue) {
 		if (tenantidvalue == null)
 			return null;
+		String databasename = "ngb" + tenantidvalue;
+		if (databaseExists(databasename)) {
+			return databasename;
+		}
 		try {
-			String databasename = "ngb" + tenantidvalue;
-			List<String> data;
-			data = writerJdbcTemplate.queryForList("SELECT datname FROM pg_database", String.class);
-			if (data.contains(databasename)) {
-				return databasename;
-			} else {
-				String modifydatabasename = " \"" + databasename + "\"";
-				String sql = "create database " + modifydatabasename + "";
-				writerJdbcTemplate.execute(sql);
-				return databasename;
+			writerJdbcTemplate.execute("create database \"" + databasename + "\"");
+		} catch (DataAccessException e) {
+			// another instance might have created it in the meantime
+			if (!databaseExists(databasename)) {
+				logger.error("Failed to create the database of tenant " + tenantidvalue, e);
+				return null;
 			}
-		} catch (EmptyResultDataAccessException e) {
-			return null;
 		}
+		return databasename;
 	}
 
-	public DataSource determineTargetDataSource(String tenantidvalue) {
+	private boolean databaseExists(String databasename) {
+		return !writerJdbcTemplate
+				.queryForList("SELECT datname FROM pg_database WHERE datname = ?", String.class, databasename)
+				.isEmpty();
+	}
 
+	public DataSource determineTargetDataSource(String tenantidvalue) throws ResponseException {
 		if (tenantidvalue == null)
 			return writerDataSource;
+		return tenantDataSources.getDataSource(tenantidvalue);
+	}
 
-		DataSource tenantDataSource = resolvedDataSources.get(tenantidvalue);
-		if (tenantDataSource == null) {
+	/**
+	 * Method used for migrating the databases of all known tenants to the latest
+	 * schema. Tenant databases are otherwise only migrated when they are first
+	 * used.
+	 *
+	 * @return the tenants which could not be migrated
+	 */
+	public List<String> migrateTenants() {
+		ArrayList<String> failed = new ArrayList<String>();
+		List<String> tenants = writerJdbcTemplate.queryForList("SELECT " + DBConstants.DBCOLUMN_DATA_TENANT
+				+ " FROM " + DBConstants.DBTABLE_CSOURCE_TENANT, String.class);
+		for (String tenant : tenants) {
+			if (tenantDataSources.isInitialized(tenant)) {
+				continue;
+			}
 			try {
-				tenantDataSource = createDataSourceForTenantId(tenantidvalue);
-			} catch (ResponseException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				tenantDataSources.get(tenant);
+			} catch (ResponseException | IllegalStateException e) {
+				failed.add(tenant);
 			}
-			flywayMigrate(tenantDataSource);
-			resolvedDataSources.put(tenantidvalue, tenantDataSource);
 		}
-
-		return tenantDataSource;
-	}
-
-	private DataSource createDataSourceForTenantId(String tenantidvalue) throws ResponseException {
-		String tenantDatabaseName = findDataBaseNameByTenantId(tenantidvalue);
-		if (tenantDatabaseName == null)
-			throw new ResponseException(ErrorType.TenantNotFound);
-		// throw new IllegalArgumentException("Given tenant id is not valid : " +
-		// tenantidvalue);
-		HikariConfig tenantHikariConfig = new HikariConfig();
-		hikariConfig.copyStateTo(tenantHikariConfig);
-		String tenantJdbcURL = DBUtil.databaseURLFromPostgresJdbcUrl(hikariConfig.getJdbcUrl(), tenantDatabaseName);
-		tenantHikariConfig.setJdbcUrl(tenantJdbcURL);
-		tenantHikariConfig.setPoolName(tenantDatabaseName + "-db-pool");
-		return new HikariDataSource(tenantHikariConfig);
+		logger.info("Migrated " + (tenants.size() - failed.size()) + " of " + tenants.size() + " tenant databases");
+		return failed;
 	}
 
 	public Boolean flywayMigrate(DataSource tenantDataSource) {
@@ -404,6 +660,7 @@ public class StorageWriterDAO {
 			flyway.repair();
 			flyway.migrate();
 		} catch (Exception e) {
+			logger.error("Flyway migration failed", e);
 			return false;
 		}
 
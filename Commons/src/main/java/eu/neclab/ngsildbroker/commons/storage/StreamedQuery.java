@@ -0,0 +1,104 @@
+package eu.neclab.ngsildbroker.commons.storage;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Consumer;
+
+import javax.sql.DataSource;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Entity query read from a database cursor. The query runs and its first row
+ * is fetched when it is opened, so a failing query can still be reported to
+ * the client before a response is sent. The other rows are fetched in chunks
+ * of the fetch size while they are handed to the consumer. The connection is
+ * held until the query is closed.
+ */
+public class StreamedQuery implements AutoCloseable {
+
+	private final static Logger logger = LogManager.getLogger(StreamedQuery.class);
+
+	private final DataSource dataSource;
+	private final Connection connection;
+	private final boolean autoCommit;
+	private final Timer.Sample sample;
+	private Statement statement;
+	private ResultSet resultSet;
+	private boolean hasRow;
+	private boolean success = false;
+	private boolean closed = false;
+
+	StreamedQuery(DataSource dataSource, String sqlQuery, int fetchSize) throws ResponseException {
+		this.dataSource = dataSource;
+		this.connection = DataSourceUtils.getConnection(dataSource);
+		this.sample = BrokerMetrics.start();
+		boolean previousAutoCommit = true;
+		try {
+			previousAutoCommit = connection.getAutoCommit();
+			// postgres only uses a cursor inside of a transaction
+			connection.setAutoCommit(false);
+			statement = connection.createStatement();
+			statement.setFetchSize(fetchSize);
+			resultSet = statement.executeQuery(sqlQuery);
+			hasRow = resultSet.next();
+		} catch (SQLException e) {
+			this.autoCommit = previousAutoCommit;
+			logger.error("Failed to query the entities", e);
+			close();
+			throw new ResponseException(ErrorType.InternalError, "Failed to get data from storage");
+		}
+		this.autoCommit = previousAutoCommit;
+	}
+
+	/**
+	 * Method used for passing all rows to the consumer.
+	 *
+	 * @param consumer receives the entities in the same format as
+	 *                 {@link StorageReaderDAO#query(eu.neclab.ngsildbroker.commons.datatypes.QueryParams)}
+	 *                 returns them
+	 * @throws SQLException
+	 */
+	public void forEach(Consumer<String> consumer) throws SQLException {
+		while (hasRow) {
+			consumer.accept(resultSet.getString(1));
+			hasRow = resultSet.next();
+		}
+		connection.commit();
+		success = true;
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+			if (statement != null) {
+				statement.close();
+			}
+			if (!success) {
+				connection.rollback();
+			}
+			connection.setAutoCommit(autoCommit);
+		} catch (SQLException e) {
+			logger.warn("Failed to close the entity query", e);
+		} finally {
+			DataSourceUtils.releaseConnection(connection, dataSource);
+			BrokerMetrics.stop(sample, BrokerMetrics.STORAGE_QUERY, success, BrokerMetrics.TAG_OPERATION, "stream");
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package eu.neclab.ngsildbroker.commons.stream.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local materialized key-value view of a single Kafka topic. A long-lived
+ * consumer reads the topic once from the beginning and afterwards only
+ * follows new records, keeping the latest value per key (tombstones remove the
+ * key). Lookups are answered from memory instead of replaying the log.
+ *
+ * Reads can be synchronized with the current end of the topic via
+ * {@link #sync(long)} which costs a single offset request instead of a full
+ * topic scan. The partitions of the topic are checked again periodically, so
+ * partitions added later are consumed as well. If the consumer fails the store
+ * is not alive anymore and has to be replaced.
+ */
+public class KafkaKeyValueStore {
+
+	private final static Logger logger = LoggerFactory.getLogger(KafkaKeyValueStore.class);
+
+	private final String topic;
+	private final Supplier<Consumer<byte[], byte[]>> consumerFactory;
+	private final long pollDurationMillis;
+	private final long partitionRefreshMillis;
+
+	private final ConcurrentHashMap<String, byte[]> store = new ConcurrentHashMap<String, byte[]>();
+	// next offset to read per partition, only written by the poll thread
+	private final ConcurrentHashMap<TopicPartition, Long> positions = new ConcurrentHashMap<TopicPartition, Long>();
+	private final Object progressLock = new Object();
+
+	private Consumer<byte[], byte[]> offsetConsumer;
+	private Consumer<byte[], byte[]> consumer;
+	private Thread pollThread;
+	private volatile boolean running = false;
+	private volatile boolean assigned = false;
+	private volatile boolean failed = false;
+
+	public KafkaKeyValueStore(String topic, Supplier<Consumer<byte[], byte[]>> consumerFactory,
+			long pollDurationMillis) {
+		this(topic, consumerFactory, pollDurationMillis, 30000);
+	}
+
+	public KafkaKeyValueStore(String topic, Supplier<Consumer<byte[], byte[]>> consumerFactory,
+			long pollDurationMillis, long partitionRefreshMillis) {
+		this.topic = topic;
+		this.consumerFactory = consumerFactory;
+		this.pollDurationMillis = pollDurationMillis;
+		this.partitionRefreshMillis = partitionRefreshMillis;
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		consumer = consumerFactory.get();
+		offsetConsumer = consumerFactory.get();
+		pollThread = new Thread(this::pollLoop, "kv-store-" + topic);
+		pollThread.setDaemon(true);
+		pollThread.start();
+	}
+
+	public synchronized void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		if (!failed) {
+			consumer.wakeup();
+		}
+		try {
+			pollThread.join(pollDurationMillis * 10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (offsetConsumer) {
+			offsetConsumer.close();
+		}
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return false if the store was closed or its consumer failed, the view is
+	 *         not updated anymore then
+	 */
+	public boolean isAlive() {
+		return running && !failed;
+	}
+
+	public byte[] get(String key) {
+		return store.get(key);
+	}
+
+	public boolean containsKey(String key) {
+		return store.containsKey(key);
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	/**
+	 * Returns a point in time copy of the view.
+	 *
+	 * @return Map<String, byte[]>
+	 */
+	public Map<String, byte[]> snapshot() {
+		return new HashMap<String, byte[]>(store);
+	}
+
+	/**
+	 * Waits until the view has consumed every record that was in the topic when
+	 * this method was called. This gives the same read-your-writes semantics as a
+	 * full scan of the topic.
+	 *
+	 * @param timeoutMillis
+	 * @return true if the view caught up within the timeout, false if not, if
+	 *         the consumer failed or if the store was closed
+	 */
+	public boolean sync(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		if (!awaitAssignment(deadline)) {
+			return false;
+		}
+		Map<TopicPartition, Long> endOffsets;
+		List<TopicPartition> partitions = new ArrayList<TopicPartition>(positions.keySet());
+		if (partitions.isEmpty()) {
+			return true;
+		}
+		synchronized (offsetConsumer) {
+			// close() clears running before it closes the offset consumer
+			if (!running) {
+				return false;
+			}
+			endOffsets = offsetConsumer.endOffsets(partitions);
+		}
+		synchronized (progressLock) {
+			while (!reached(endOffsets)) {
+				if (!isAlive()) {
+					return false;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					logger.warn("KV store for topic " + topic + " did not catch up within " + timeoutMillis + " ms");
+					return false;
+				}
+				try {
+					progressLock.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean awaitAssignment(long deadline) {
+		synchronized (progressLock) {
+			while (!assigned) {
+				if (!isAlive()) {
+					return false;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				try {
+					progressLock.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean reached(Map<TopicPartition, Long> endOffsets) {
+		for (Entry<TopicPartition, Long> entry : endOffsets.entrySet()) {
+			Long position = positions.get(entry.getKey());
+			if (position == null || position < entry.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void pollLoop() {
+		long nextPartitionCheck = 0;
+		try {
+			while (running) {
+				if (positions.isEmpty() || System.currentTimeMillis() >= nextPartitionCheck) {
+					assignPartitions();
+					nextPartitionCheck = System.currentTimeMillis() + partitionRefreshMillis;
+					if (positions.isEmpty()) {
+						// topic does not exist yet
+						Thread.sleep(pollDurationMillis);
+						continue;
+					}
+				}
+				ConsumerRecords<byte[], byte[]> records = consumer.poll(Duration.ofMillis(pollDurationMillis));
+				for (ConsumerRecord<byte[], byte[]> record : records) {
+					apply(record);
+				}
+				for (TopicPartition partition : consumer.assignment()) {
+					positions.put(partition, consumer.position(partition));
+				}
+				synchronized (progressLock) {
+					progressLock.notifyAll();
+				}
+			}
+		} catch (WakeupException | InterruptedException e) {
+			// shutdown requested
+		} catch (Exception e) {
+			logger.error("KV store for topic " + topic + " stopped", e);
+			failed = true;
+		} finally {
+			consumer.close();
+			// wake up the readers waiting for a consumer which is gone
+			synchronized (progressLock) {
+				progressLock.notifyAll();
+			}
+		}
+	}
+
+	private void assignPartitions() {
+		List<PartitionInfo> infos = consumer.partitionsFor(topic);
+		List<TopicPartition> added = new ArrayList<TopicPartition>();
+		if (infos != null) {
+			for (PartitionInfo info : infos) {
+				TopicPartition partition = new TopicPartition(topic, info.partition());
+				if (!positions.containsKey(partition)) {
+					added.add(partition);
+				}
+			}
+		}
+		if (!added.isEmpty()) {
+			// the positions of the partitions already assigned are kept
+			List<TopicPartition> partitions = new ArrayList<TopicPartition>(positions.keySet());
+			partitions.addAll(added);
+			consumer.assign(partitions);
+			consumer.seekToBeginning(added);
+			for (TopicPartition partition : added) {
+				positions.put(partition, consumer.position(partition));
+			}
+		}
+		synchronized (progressLock) {
+			assigned = true;
+			progressLock.notifyAll();
+		}
+	}
+
+	private void apply(ConsumerRecord<byte[], byte[]> record) {
+		if (record.key() == null) {
+			return;
+		}
+		String key = new String(record.key());
+		if (record.value() == null) {
+			store.remove(key);
+		} else {
+			store.put(key, record.value());
+		}
+	}
+}
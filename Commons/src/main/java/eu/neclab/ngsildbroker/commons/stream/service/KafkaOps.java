@@ -1,25 +1,36 @@
 package eu.neclab.ngsildbroker.commons.stream.service;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
 import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.admin.DeleteTopicsResult;
 import org.apache.kafka.clients.admin.ListTopicsResult;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.common.KafkaFuture;
+import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
@@ -60,7 +71,15 @@ public class KafkaOps {
 	long brokerPollDurationMillis = 200;
 	long brokerHeartbeatPollDurationinMillis = 0;
 
-	// private final static Logger logger = LoggerFactory.getLogger(KafkaOps.class);
+	@Value("${kafka.store.synctimeout:5000}")
+	long storeSyncTimeout = 5000;
+
+	@Value("${kafka.store.partitionrefresh:30000}")
+	long storePartitionRefresh = 30000;
+
+	private ConcurrentHashMap<String, KafkaKeyValueStore> topic2Store = new ConcurrentHashMap<String, KafkaKeyValueStore>();
+
+	private final static Logger logger = LoggerFactory.getLogger(KafkaOps.class);
 
 	public boolean pushToKafka(MessageChannel messageChannel, byte[] key, byte[] payload) throws ResponseException {
 		try {
@@ -113,43 +132,30 @@ public class KafkaOps {
 	}
 
 	public boolean isMessageExists(String key, String topicname) {
-		Map<String, byte[]> entityMap = pullFromKafka(topicname);
-		return entityMap.containsKey(key);
+		KafkaKeyValueStore store = getSyncedStore(topicname);
+		if (store == null) {
+			return readTopic(topicname).containsKey(key);
+		}
+		return store.containsKey(key);
 	}
 
 	public String generateUUIDKey() {
 		return UUID.randomUUID().toString();
 	}
 
-	@SuppressWarnings("deprecation")
-	// TODO replace poll method... needs subscription listener when replaced
+	/**
+	 * Method used to read the latest value of every key of a topic. The result is
+	 * served from the local key-value view of the topic.
+	 * 
+	 * @param topicname
+	 * @return Map<String, byte[]>
+	 */
 	public Map<String, byte[]> pullFromKafka(String topicname) {
-		KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<byte[], byte[]>(this.getProperties());
-		try {
-			Map<String, byte[]> entityMap = new HashMap<String, byte[]>(2000);
-			boolean stop = false;
-			consumer.subscribe(new ArrayList<String>(Collections.singletonList(topicname)));
-			consumer.poll(brokerHeartbeatPollDurationinMillis);
-			// Reading topic offset from beginning
-			consumer.seekToBeginning(consumer.assignment());
-			while (!stop) {
-				// Request unread messages from the topic.
-				ConsumerRecords<byte[], byte[]> consumerRecords = consumer.poll(brokerPollDurationMillis);
-				Iterator<ConsumerRecord<byte[], byte[]>> iterator = consumerRecords.iterator();
-				if (iterator.hasNext()) {
-					while (iterator.hasNext()) {
-						ConsumerRecord<byte[], byte[]> record = iterator.next();
-						entityMap.put(new String(record.key()), record.value());
-					}
-				} else {
-					stop = true;
-				}
-			}
-			return entityMap;
-		} finally {
-			consumer.unsubscribe();
-			consumer.close();
+		KafkaKeyValueStore store = getSyncedStore(topicname);
+		if (store == null) {
+			return readTopic(topicname);
 		}
+		return store.snapshot();
 	}
 
 	@SuppressWarnings("deprecation")
@@ -202,38 +208,13 @@ public class KafkaOps {
 		return entityMap.get(key);
 	}
 
-	@SuppressWarnings("deprecation")
-	// TODO replace poll method... needs subscription listener when replaced
 	public Map<String, byte[]> pullFromKafka(String topicname, String key) {
-		KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<byte[], byte[]>(this.getProperties());
-		try {
-			Map<String, byte[]> entityMap = new HashMap<String, byte[]>(2000);
-			boolean stop = false;
-			consumer.subscribe(new ArrayList<String>(Collections.singletonList(topicname)));
-			consumer.poll(brokerHeartbeatPollDurationinMillis);
-			// Reading topic offset from beginning
-			consumer.seekToBeginning(consumer.assignment());
-
-			while (!stop) {
-				// Request unread messages from the topic.
-				ConsumerRecords<byte[], byte[]> consumerRecords = consumer.poll(brokerPollDurationMillis);
-				Iterator<ConsumerRecord<byte[], byte[]>> iterator = consumerRecords.iterator();
-				if (iterator.hasNext()) {
-					while (iterator.hasNext()) {
-						ConsumerRecord<byte[], byte[]> record = iterator.next();
-						if (key.equals(new String(record.key()))) {
-							entityMap.put(new String(record.key()), record.value());
-						}
-					}
-				} else {
-					stop = true;
-				}
-			}
-			return entityMap;
-		} finally {
-			consumer.unsubscribe();
-			consumer.close();
+		Map<String, byte[]> entityMap = new HashMap<String, byte[]>(1);
+		byte[] value = getMessageDetails(topicname, key);
+		if (value != null) {
+			entityMap.put(key, value);
 		}
+		return entityMap;
 	}
 
 	/**
@@ -290,39 +271,139 @@ public class KafkaOps {
 		}
 	}
 
-	@SuppressWarnings("deprecation")
-	// TODO replace poll method... needs subscription listener when replaced
 	public byte[] getMessageDetails(String topicName, String key) {
-		KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<byte[], byte[]>(this.getProperties());
+		KafkaKeyValueStore store = getSyncedStore(topicName);
+		if (store == null) {
+			return readTopic(topicName).get(key);
+		}
+		return store.get(key);
+	}
+
+	/**
+	 * Method used to get the key-value view of a topic. The view is created on
+	 * first access and then kept up to date by a long-lived consumer. A view
+	 * whose consumer failed is replaced. The replaced view is closed after it was
+	 * swapped out, readers still holding it fall back to reading the topic.
+	 * 
+	 * @param topicname
+	 * @return KafkaKeyValueStore
+	 */
+	public KafkaKeyValueStore getStore(String topicname) {
+		KafkaKeyValueStore current = topic2Store.get(topicname);
+		if (current != null && current.isAlive()) {
+			return current;
+		}
+		KafkaKeyValueStore[] replaced = new KafkaKeyValueStore[1];
+		KafkaKeyValueStore result = topic2Store.compute(topicname, (topic, store) -> {
+			if (store != null) {
+				if (store.isAlive()) {
+					return store;
+				}
+				logger.warn("Restarting the KV store for topic " + topic);
+				replaced[0] = store;
+			}
+			store = new KafkaKeyValueStore(topic, this::createStoreConsumer, brokerPollDurationMillis,
+					storePartitionRefresh);
+			store.start();
+			return store;
+		});
+		// closing blocks until the poll thread is gone, so it is not done while
+		// the map entry is locked
+		if (replaced[0] != null) {
+			replaced[0].close();
+		}
+		return result;
+	}
+
+	/**
+	 * @param topicname
+	 * @return the view of the topic, null if it did not catch up with the topic
+	 *         and the topic has to be read directly
+	 */
+	private KafkaKeyValueStore getSyncedStore(String topicname) {
+		KafkaKeyValueStore store = getStore(topicname);
+		if (store.sync(storeSyncTimeout)) {
+			return store;
+		}
+		logger.warn("KV store for topic " + topicname + " is behind, reading the topic directly");
+		return null;
+	}
+
+	/**
+	 * Method used to read the latest value of every key of a topic with a new
+	 * consumer, from the beginning to the current end of the topic. This is only
+	 * the fallback when the view of the topic is not up to date.
+	 * 
+	 * @param topicname
+	 * @return Map<String, byte[]>
+	 */
+	Map<String, byte[]> readTopic(String topicname) {
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		Consumer<byte[], byte[]> consumer = createStoreConsumer();
 		try {
-			boolean stop = false;
-			Map<String, byte[]> entityMap = new HashMap<String, byte[]>(2000);
-			consumer.subscribe(new ArrayList<String>(Collections.singletonList(topicName)));
-			consumer.poll(brokerHeartbeatPollDurationinMillis);
-			// Reading topic offset from beginning
-			consumer.seekToBeginning(consumer.assignment());
-			while (!stop) {
-				// Request unread messages from the topic.
-				ConsumerRecords<byte[], byte[]> consumerRecords = consumer.poll(brokerPollDurationMillis);
-				Iterator<ConsumerRecord<byte[], byte[]>> iterator = consumerRecords.iterator();
-				if (iterator.hasNext()) {
-					while (iterator.hasNext()) {
-						ConsumerRecord<byte[], byte[]> record = iterator.next();
-						if (key.equals(new String(record.key()))) {
-							entityMap.put(key, record.value());
-						}
+			List<TopicPartition> partitions = new ArrayList<TopicPartition>();
+			List<PartitionInfo> infos = consumer.partitionsFor(topicname);
+			if (infos != null) {
+				for (PartitionInfo info : infos) {
+					partitions.add(new TopicPartition(topicname, info.partition()));
+				}
+			}
+			if (partitions.isEmpty()) {
+				return result;
+			}
+			consumer.assign(partitions);
+			consumer.seekToBeginning(partitions);
+			Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+			long deadline = System.currentTimeMillis() + storeSyncTimeout;
+			while (!reached(consumer, endOffsets)) {
+				if (System.currentTimeMillis() > deadline) {
+					logger.error("Could not read topic " + topicname + " within " + storeSyncTimeout + " ms");
+					break;
+				}
+				ConsumerRecords<byte[], byte[]> records = consumer.poll(Duration.ofMillis(brokerPollDurationMillis));
+				for (ConsumerRecord<byte[], byte[]> record : records) {
+					if (record.key() == null) {
+						continue;
+					}
+					if (record.value() == null) {
+						result.remove(new String(record.key()));
+					} else {
+						result.put(new String(record.key()), record.value());
 					}
-				} else {
-					stop = true;
 				}
 			}
-			return entityMap.get(key);
+			return result;
 		} finally {
-			consumer.unsubscribe();
 			consumer.close();
 		}
 	}
 
+	private boolean reached(Consumer<byte[], byte[]> consumer, Map<TopicPartition, Long> endOffsets) {
+		for (Entry<TopicPartition, Long> entry : endOffsets.entrySet()) {
+			if (consumer.position(entry.getKey()) < entry.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	Consumer<byte[], byte[]> createStoreConsumer() {
+		Map<String, Object> props = getProperties();
+		props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 10000);
+		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+		props.remove(ConsumerConfig.GROUP_ID_CONFIG);
+		props.remove(ConsumerConfig.FETCH_MAX_BYTES_CONFIG);
+		return new KafkaConsumer<byte[], byte[]>(props);
+	}
+
+	@PreDestroy
+	private void closeStores() {
+		for (KafkaKeyValueStore store : topic2Store.values()) {
+			store.close();
+		}
+		topic2Store.clear();
+	}
+
 	public static String getMessageKey(Message<?> message) {
 		Object key = message.getHeaders().get(KafkaHeaders.RECEIVED_MESSAGE_KEY);
 		return (String) key;
@@ -0,0 +1,390 @@
+package eu.neclab.ngsildbroker.commons.tenant;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+/**
+ * Connection pools of the tenant databases. The database of a tenant is
+ * resolved and initialized (e.g. migrated) once, afterwards lookups are lock
+ * free. Resolving, initializing and opening a pool only lock the tenant, so a
+ * slow migration of one tenant does not hold up the others. The number of pools is limited so that all pools together have at
+ * most maxTotalConnections connections; pools which have not been used for
+ * idleTimeout ms are closed and opened again on the next use of the tenant.
+ * The DataSource handed out for a tenant outlives its pools, every connection
+ * is borrowed from the current pool of the tenant and the borrow is retried
+ * with a new pool if the pool was closed in the meantime. An evicted pool is
+ * only closed when none of its connections is in use.
+ *
+ * @param <T> what is built once per tenant from its DataSource, e.g. a
+ *            JdbcTemplate
+ */
+public class TenantDataSourceRegistry<T> {
+
+	private final static Logger logger = LogManager.getLogger(TenantDataSourceRegistry.class);
+
+	public interface DatabaseResolver {
+		/**
+		 * @param tenant
+		 * @return name of the database of the tenant or null if there is none
+		 */
+		String resolveDatabase(String tenant);
+	}
+
+	public interface TenantInitializer {
+		void initialize(String tenant, DataSource dataSource);
+	}
+
+	private final HikariConfig template;
+	private final int poolSize;
+	private final int maxPools;
+	private final long idleNanos;
+	private final DatabaseResolver resolver;
+	private final TenantInitializer initializer;
+	private final Function<DataSource, T> resourceFactory;
+
+	private final ConcurrentHashMap<String, TenantPool> tenant2Pool = new ConcurrentHashMap<String, TenantPool>();
+	private final ConcurrentHashMap<String, TenantDataSource> tenant2DataSource = new ConcurrentHashMap<String, TenantDataSource>();
+	// tenants which have been resolved and initialized
+	private final ConcurrentHashMap<String, String> tenant2Database = new ConcurrentHashMap<String, String>();
+	// evicted pools, closed with the next sweep so that running lookups can finish
+	private final List<HikariDataSource> closing = new ArrayList<HikariDataSource>();
+	// guards the pool count, the evictions and the closing list
+	private final Object lock = new Object();
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * @param template             config of the default database, copied for the
+	 *                             tenant pools
+	 * @param poolSize             max. connections per tenant pool
+	 * @param maxTotalConnections  max. connections of all tenant pools together
+	 * @param idleTimeoutMs        time after which unused pools are closed, 0 to
+	 *                             keep them
+	 * @param resolver             finds (or creates) the database of a tenant
+	 * @param initializer          called once for every tenant before its first
+	 *                             use, can be null. If it throws the tenant is
+	 *                             initialized again on its next use
+	 * @param resourceFactory      builds what {@link #get(String)} returns
+	 */
+	public TenantDataSourceRegistry(HikariConfig template, int poolSize, int maxTotalConnections,
+			long idleTimeoutMs, DatabaseResolver resolver, TenantInitializer initializer,
+			Function<DataSource, T> resourceFactory) {
+		this.template = template;
+		this.poolSize = Math.max(1, Math.min(poolSize, template.getMaximumPoolSize()));
+		this.maxPools = Math.max(1, maxTotalConnections / this.poolSize);
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+		this.resolver = resolver;
+		this.initializer = initializer;
+		this.resourceFactory = resourceFactory;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "tenant-pool-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long sweepMs = idleTimeoutMs > 0 ? Math.max(1000, Math.min(idleTimeoutMs / 2, 60000)) : 60000;
+		sweeper.scheduleWithFixedDelay(this::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method used for getting the resource of a tenant, the tenant is resolved
+	 * and initialized on its first use.
+	 *
+	 * @param tenant
+	 * @return T built from the DataSource of the tenant
+	 * @throws ResponseException TenantNotFound if the tenant has no database,
+	 *                           InternalError if all pools are in use
+	 */
+	public T get(String tenant) throws ResponseException {
+		return getTenantDataSource(tenant).resource;
+	}
+
+	public DataSource getDataSource(String tenant) throws ResponseException {
+		return getTenantDataSource(tenant);
+	}
+
+	private TenantDataSource getTenantDataSource(String tenant) throws ResponseException {
+		TenantDataSource dataSource = tenant2DataSource.get(tenant);
+		if (dataSource == null) {
+			// resolves and initializes the tenant
+			acquire(tenant);
+			dataSource = tenant2DataSource.computeIfAbsent(tenant, TenantDataSource::new);
+		}
+		return dataSource;
+	}
+
+	private TenantPool acquire(String tenant) throws ResponseException {
+		while (true) {
+			TenantPool pool = tenant2Pool.computeIfAbsent(tenant, TenantPool::new);
+			if ((!pool.closed && pool.dataSource != null) || open(pool)) {
+				pool.lastUsed = System.nanoTime();
+				return pool;
+			}
+			// the pool has been evicted in the meantime
+		}
+	}
+
+	/**
+	 * @param tenant
+	 * @return true if the tenant has been resolved and initialized
+	 */
+	public boolean isInitialized(String tenant) {
+		return tenant2Database.containsKey(tenant);
+	}
+
+	public Set<String> getInitializedTenants() {
+		return tenant2Database.keySet();
+	}
+
+	/**
+	 * @return false if the pool has been evicted
+	 */
+	private boolean open(TenantPool pool) throws ResponseException {
+		// only one pool of a tenant is opened at a time, evicted pools are
+		// replaced and not opened again
+		synchronized (pool) {
+			if (pool.closed) {
+				return false;
+			}
+			if (pool.dataSource != null) {
+				return true;
+			}
+			String database = tenant2Database.get(pool.tenant);
+			if (database == null) {
+				database = resolver.resolveDatabase(pool.tenant);
+				if (database == null) {
+					discard(pool);
+					throw new ResponseException(ErrorType.TenantNotFound);
+				}
+			}
+			synchronized (lock) {
+				makeRoom();
+				// counted until the pool is open
+				pool.opening = true;
+			}
+			HikariDataSource dataSource = null;
+			try {
+				dataSource = createDataSource(database);
+				if (!tenant2Database.containsKey(pool.tenant)) {
+					if (initializer != null) {
+						initializer.initialize(pool.tenant, dataSource);
+					}
+					tenant2Database.put(pool.tenant, database);
+				}
+			} catch (RuntimeException e) {
+				if (dataSource != null) {
+					dataSource.close();
+				}
+				discard(pool);
+				throw e;
+			}
+			synchronized (lock) {
+				pool.dataSource = dataSource;
+				pool.opening = false;
+			}
+			return true;
+		}
+	}
+
+	private void discard(TenantPool pool) {
+		synchronized (lock) {
+			pool.opening = false;
+			pool.closed = true;
+			tenant2Pool.remove(pool.tenant, pool);
+		}
+	}
+
+	private HikariDataSource createDataSource(String database) {
+		HikariConfig tenantHikariConfig = new HikariConfig();
+		template.copyStateTo(tenantHikariConfig);
+		tenantHikariConfig.setJdbcUrl(DBUtil.databaseURLFromPostgresJdbcUrl(template.getJdbcUrl(), database));
+		tenantHikariConfig.setPoolName(database + "-db-pool");
+		tenantHikariConfig.setMaximumPoolSize(poolSize);
+		tenantHikariConfig.setMinimumIdle(Math.min(template.getMinimumIdle(), poolSize));
+		return new HikariDataSource(tenantHikariConfig);
+	}
+
+	/**
+	 * evicts the least recently used idle pool if there are too many pools,
+	 * pools which are being opened count as well
+	 */
+	private void makeRoom() throws ResponseException {
+		List<TenantPool> open = new ArrayList<TenantPool>();
+		int opening = 0;
+		for (TenantPool pool : tenant2Pool.values()) {
+			if (pool.dataSource != null) {
+				open.add(pool);
+			} else if (pool.opening) {
+				opening++;
+			}
+		}
+		if (open.size() + opening < maxPools) {
+			return;
+		}
+		TenantPool lru = null;
+		for (TenantPool pool : open) {
+			if (isIdle(pool) && (lru == null || pool.lastUsed - lru.lastUsed < 0)) {
+				lru = pool;
+			}
+		}
+		if (lru == null) {
+			logger.error("All " + (open.size() + opening) + " tenant connection pools are in use");
+			throw new ResponseException(ErrorType.InternalError, "Too many tenants in use at the same time");
+		}
+		logger.info("Closing connection pool of tenant " + lru.tenant + " to open another one");
+		evict(lru);
+	}
+
+	private boolean isIdle(TenantPool pool) {
+		return isIdle(pool.dataSource);
+	}
+
+	private boolean isIdle(HikariDataSource dataSource) {
+		HikariPoolMXBean mxBean = dataSource.getHikariPoolMXBean();
+		return mxBean == null || mxBean.getActiveConnections() == 0;
+	}
+
+	/**
+	 * @param tenant
+	 * @return true if the tenant has an open pool
+	 */
+	boolean isOpen(String tenant) {
+		TenantPool pool = tenant2Pool.get(tenant);
+		return pool != null && !pool.closed && pool.dataSource != null;
+	}
+
+	private void evict(TenantPool pool) {
+		pool.closed = true;
+		tenant2Pool.remove(pool.tenant, pool);
+		closing.add(pool.dataSource);
+	}
+
+	/**
+	 * Method used for closing the evicted pools which are not in use anymore and
+	 * evicting the pools which have been idle for idleTimeout ms.
+	 */
+	void sweep() {
+		try {
+			List<HikariDataSource> toClose = new ArrayList<HikariDataSource>();
+			synchronized (lock) {
+				// a borrow which got an evicted pool just before the eviction
+				// can still use it, such pools are closed with a later sweep
+				Iterator<HikariDataSource> closingIt = closing.iterator();
+				while (closingIt.hasNext()) {
+					HikariDataSource dataSource = closingIt.next();
+					if (isIdle(dataSource)) {
+						toClose.add(dataSource);
+						closingIt.remove();
+					}
+				}
+				if (idleNanos > 0) {
+					long now = System.nanoTime();
+					Iterator<TenantPool> it = tenant2Pool.values().iterator();
+					while (it.hasNext()) {
+						TenantPool pool = it.next();
+						if (pool.dataSource != null && now - pool.lastUsed > idleNanos && isIdle(pool)) {
+							logger.debug("Closing idle connection pool of tenant " + pool.tenant);
+							evict(pool);
+						}
+					}
+				}
+			}
+			for (HikariDataSource dataSource : toClose) {
+				dataSource.close();
+			}
+		} catch (RuntimeException e) {
+			logger.error("Failed to close tenant connection pools", e);
+		}
+	}
+
+	/**
+	 * Method used for closing all tenant pools.
+	 */
+	public void close() {
+		sweeper.shutdownNow();
+		synchronized (lock) {
+			for (TenantPool pool : new ArrayList<TenantPool>(tenant2Pool.values())) {
+				if (pool.dataSource != null) {
+					evict(pool);
+				}
+			}
+			for (HikariDataSource dataSource : closing) {
+				dataSource.close();
+			}
+			closing.clear();
+		}
+	}
+
+	private class TenantPool {
+		private final String tenant;
+		private volatile HikariDataSource dataSource;
+		private volatile boolean closed = false;
+		// guarded by lock
+		private boolean opening = false;
+		private volatile long lastUsed = System.nanoTime();
+
+		TenantPool(String tenant) {
+			this.tenant = tenant;
+		}
+	}
+
+	/**
+	 * The DataSource of a tenant, it borrows the connections from the current
+	 * pool of the tenant.
+	 */
+	private class TenantDataSource extends AbstractDataSource {
+		private final String tenant;
+		private final T resource;
+
+		TenantDataSource(String tenant) {
+			this.tenant = tenant;
+			this.resource = resourceFactory.apply(this);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			while (true) {
+				TenantPool pool;
+				try {
+					pool = acquire(tenant);
+				} catch (ResponseException e) {
+					throw new SQLException(e.getMessage(), e);
+				}
+				try {
+					return pool.dataSource.getConnection();
+				} catch (SQLException e) {
+					if (!pool.closed) {
+						throw e;
+					}
+					// the pool has been evicted and closed after it was acquired
+				}
+			}
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			throw new SQLFeatureNotSupportedException("The tenant pools use the credentials of the default database");
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package eu.neclab.ngsildbroker.commons.tools;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Names and helpers for the meters of the broker. Meters are registered in
+ * the micrometer global registry which spring boot connects to the registry
+ * of the service (management.metrics.use-global-registry), so classes which
+ * are not spring managed can record as well. The actuator exposes them under
+ * /actuator/metrics and, with the prometheus registry on the classpath, under
+ * /actuator/prometheus.
+ */
+public final class BrokerMetrics {
+
+	public static final String CONTEXT_EXPAND = "ngsild.context.expand";
+	public static final String CONTEXT_COMPACT = "ngsild.context.compact";
+	public static final String KAFKA_REQUEST_REPLY = "ngsild.kafka.requestreply";
+	public static final String STORAGE_QUERY = "ngsild.storage.query";
+	public static final String STORAGE_WRITE = "ngsild.storage.write";
+	public static final String SUBSCRIPTION_MATCH = "ngsild.subscription.match";
+	public static final String NOTIFICATION_DELIVERY = "ngsild.notification.delivery";
+	public static final String NOTIFICATION_QUEUE_DEPTH = "ngsild.notification.queue.depth";
+	public static final String NOTIFICATION_DROPPED = "ngsild.notification.dropped";
+	public static final String NOTIFICATION_BATCH_SIZE = "ngsild.notification.batch.size";
+	public static final String FEDERATION_REQUEST = "ngsild.federation.request";
+	public static final String SCHEDULER_LAG = "ngsild.scheduler.lag";
+	public static final String SCHEDULER_PENDING = "ngsild.scheduler.pending";
+
+	public static final String TAG_OPERATION = "operation";
+	public static final String TAG_TOPIC = "topic";
+	public static final String TAG_PROTOCOL = "protocol";
+	public static final String TAG_OUTCOME = "outcome";
+	public static final String TAG_ENDPOINT = "endpoint";
+	public static final String TAG_SCHEDULER = "scheduler";
+
+	public static final String OUTCOME_SUCCESS = "success";
+	public static final String OUTCOME_ERROR = "error";
+
+	private BrokerMetrics() {
+	}
+
+	public static Timer.Sample start() {
+		return Timer.start(Metrics.globalRegistry);
+	}
+
+	/**
+	 * Method used for stopping a sample and recording it with the timer of the
+	 * given name and tags.
+	 *
+	 * @param sample
+	 * @param name
+	 * @param tags   key value pairs
+	 */
+	public static void stop(Timer.Sample sample, String name, String... tags) {
+		sample.stop(Metrics.timer(name, tags));
+	}
+
+	public static void stop(Timer.Sample sample, String name, boolean success, String... tags) {
+		String[] allTags = new String[tags.length + 2];
+		System.arraycopy(tags, 0, allTags, 0, tags.length);
+		allTags[tags.length] = TAG_OUTCOME;
+		allTags[tags.length + 1] = success ? OUTCOME_SUCCESS : OUTCOME_ERROR;
+		stop(sample, name, allTags);
+	}
+}
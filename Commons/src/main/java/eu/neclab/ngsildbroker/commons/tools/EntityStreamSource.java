@@ -0,0 +1,38 @@
+package eu.neclab.ngsildbroker.commons.tools;
+
+import java.util.function.Consumer;
+
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+/**
+ * Source of expanded entities which are handed over one by one instead of
+ * being collected in a list first.
+ */
+public interface EntityStreamSource {
+
+	/**
+	 * Method used for starting the source before the response status is sent.
+	 * A source should run its query and fetch the first entity here, failures
+	 * are still reported to the client as error response.
+	 *
+	 * @throws ResponseException
+	 */
+	void open() throws ResponseException;
+
+	/**
+	 * Method used for passing every entity of the result to the consumer. The
+	 * source is closed afterwards, also if it fails.
+	 *
+	 * @param consumer
+	 * @throws Exception
+	 */
+	void stream(Consumer<String> consumer) throws Exception;
+
+	/**
+	 * Method used for checking after {@link #open()} whether entities are
+	 * missing from the result, e.g. because a context source did not answer.
+	 *
+	 * @return true if the result is partial
+	 */
+	boolean isPartial();
+}
@@ -0,0 +1,38 @@
+package eu.neclab.ngsildbroker.commons.tools;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Applies the http.client.* properties to the shared {@link PooledHttpClient}
+ * and exposes it as a bean.
+ */
+@Configuration
+public class HttpClientConfig {
+
+	@Value("${http.client.maxtotal:200}")
+	int maxTotal;
+
+	@Value("${http.client.maxperroute:20}")
+	int maxPerRoute;
+
+	@Value("${http.client.connecttimeout:10000}")
+	int connectTimeout;
+
+	@Value("${http.client.sockettimeout:10000}")
+	int socketTimeout;
+
+	@Value("${http.client.connectionrequesttimeout:10000}")
+	int connectionRequestTimeout;
+
+	@Value("${http.client.keepalive:30000}")
+	long keepAlive;
+
+	@Bean(destroyMethod = "")
+	public PooledHttpClient pooledHttpClient() {
+		PooledHttpClient client = PooledHttpClient.getInstance();
+		client.configure(maxTotal, maxPerRoute, connectTimeout, socketTimeout, connectionRequestTimeout, keepAlive);
+		return client;
+	}
+}
@@ -1,33 +1,36 @@
 package eu.neclab.ngsildbroker.commons.tools;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import javax.net.ssl.SSLContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -39,29 +42,19 @@ import org.apache.http.StatusLine;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.params.ConnRouteParams;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.params.HttpParams;
-import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,7 +62,9 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.ResponseEntity.BodyBuilder;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.github.jsonldjava.utils.JsonUtils;
 import com.google.common.collect.ArrayListMultimap;
 
 import eu.neclab.ngsildbroker.commons.constants.AppConstants;
@@ -80,6 +75,7 @@ import eu.neclab.ngsildbroker.commons.exceptions.HttpErrorResponseException;
 import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
 import eu.neclab.ngsildbroker.commons.ldcontext.CompactedJson;
 import eu.neclab.ngsildbroker.commons.ldcontext.ContextResolverBasic;
+import eu.neclab.ngsildbroker.commons.ldcontext.EntityCompactor;
 
 /**
  * A utility class to handle HTTP Requests and Responses.
@@ -90,12 +86,10 @@ import eu.neclab.ngsildbroker.commons.ldcontext.ContextResolverBasic;
 @SuppressWarnings("deprecation")
 public final class HttpUtils {
 
-	/** Timeout for all requests to respond. */
-	private static final Integer REQ_TIMEOUT_MS = 10000;
-
 	private static HttpUtils SINGLETON;
 
 	private static final int BUFFER_SIZE = 1024;
+	private static final int STREAM_BUFFER_SIZE = 8192;
 
 	private static final Logger LOG = LoggerFactory.getLogger(HttpUtils.class);
 
@@ -237,97 +231,22 @@ public final class HttpUtils {
 	private String doHTTPRequest(URI uri, HTTPMethod method, Object body, Map<String, String> additionalHeaders,
 			AuthScope authScope, UsernamePasswordCredentials credentials) throws IOException {
 		ErrorAwareResponseHandler handler = new ErrorAwareResponseHandler();
-		return doHTTPRequest2(uri, method, body, additionalHeaders, authScope, credentials, handler);
-	}
-
-	private String doHTTPRequest(URI uri, HTTPMethod method, Object body, Map<String, String> additionalHeaders,
-			AuthScope authScope, UsernamePasswordCredentials credentials, ResponseHandler<String> handler)
-			throws IOException {
-		DefaultHttpClient httpClient = new DefaultHttpClient();
-		HttpParams params = httpClient.getParams();
-		params.setParameter("http.socket.timeout", REQ_TIMEOUT_MS);
-		params.setParameter("http.connection.timeout", REQ_TIMEOUT_MS);
-		params.setParameter("http.connection-manager.timeout", REQ_TIMEOUT_MS.longValue());
-		params.setParameter("http.protocol.head-body-timeout", REQ_TIMEOUT_MS);
-
-		if (httpProxy != null) {
-			params.setParameter(ConnRouteParams.DEFAULT_PROXY, httpProxy);
-		}
-		if (credentials != null) {
-			httpClient.getCredentialsProvider().setCredentials(authScope, credentials);
-		}
-		HttpRequestBase request;
-
-		switch (method) {
-		case GET:
-			request = new HttpGet(uri);
-			break;
-		case POST:
-			HttpPost postRequest = new HttpPost(uri);
-			if (body instanceof String) {
-				addBody((String) body, postRequest);
-			} else if (body instanceof File) {
-				addBody((File) body, postRequest);
-			} else if (body instanceof byte[]) {
-				addBody((byte[]) body, postRequest);
-			}
-
-			request = postRequest;
-			break;
-		case PUT:
-			HttpPut putRequest = new HttpPut(uri);
-			if (body instanceof String) {
-				addBody((String) body, putRequest);
-			} else if (body instanceof File) {
-				addBody((File) body, putRequest);
-			}
-
-			request = putRequest;
-			break;
-		case DELETE:
-			request = new HttpDelete(uri);
-			break;
-		case HEAD:
-			request = new HttpHead(uri);
-			break;
-		default:
-			httpClient.close();
-			throw new AssertionError("Unknown method: " + method);
-		}
-		if (additionalHeaders != null && !additionalHeaders.isEmpty()) {
-			addHeaders(additionalHeaders, request);
-		}
-		try {
-			return httpClient.execute(request, handler);
-		} finally {
-			httpClient.getConnectionManager().shutdown();
-			httpClient.close();
-
-		}
+		return doHTTPRequest(uri, method, body, additionalHeaders, authScope, credentials, handler);
 	}
 
 	/**
-	 * Perform an HTTP request using a disposable HTTP client.
+	 * Perform an HTTP request using the shared, pooled HTTP client.
 	 * 
-	 * @param httpClient the HTTP client
 	 * @return the body of the message
 	 * @throws IOException                if an error occurs during the request
 	 * @throws HttpErrorResponseException if a non 2xx response code is returned
 	 *                                    (this is an unchecked exception!)
 	 */
-
-	private String doHTTPRequest2(URI uri, HTTPMethod method, Object body, Map<String, String> additionalHeaders,
+	private String doHTTPRequest(URI uri, HTTPMethod method, Object body, Map<String, String> additionalHeaders,
 			AuthScope authScope, UsernamePasswordCredentials credentials, ResponseHandler<String> handler)
 			throws IOException {
-
-		CloseableHttpClient httpClient;
-		try {
-			httpClient = getClient(authScope, credentials);
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
 		HttpRequestBase request;
+
 		switch (method) {
 		case GET:
 			request = new HttpGet(uri);
@@ -361,39 +280,26 @@ public final class HttpUtils {
 			request = new HttpHead(uri);
 			break;
 		default:
-			httpClient.close();
 			throw new AssertionError("Unknown method: " + method);
 		}
 		if (additionalHeaders != null && !additionalHeaders.isEmpty()) {
 			addHeaders(additionalHeaders, request);
 		}
-		try {
-			return httpClient.execute(request, handler);
-		} finally {
-			httpClient.close();
-
+		PooledHttpClient httpClient = PooledHttpClient.getInstance();
+		if (httpProxy != null) {
+			request.setConfig(RequestConfig.copy(httpClient.getRequestConfig()).setProxy(httpProxy).build());
 		}
+		return httpClient.execute(request, getClientContext(authScope, credentials), handler);
 	}
 
-	private CloseableHttpClient getClient(AuthScope authScope, UsernamePasswordCredentials credentials)
-			throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException {
-		SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, (x509CertChain, authType) -> true)
-				.build();
-		HttpClientBuilder temp = HttpClientBuilder.create().setSSLContext(sslContext)
-				.setConnectionManager(new PoolingHttpClientConnectionManager(RegistryBuilder
-						.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.INSTANCE)
-						.register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE))
-						.build()));
+	private HttpClientContext getClientContext(AuthScope authScope, UsernamePasswordCredentials credentials) {
+		HttpClientContext context = HttpClientContext.create();
 		if (credentials != null) {
 			BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
 			credentialsProvider.setCredentials(authScope, credentials);
-			temp.setDefaultCredentialsProvider(credentialsProvider);
-		}
-		if (httpProxy != null) {
-			temp.setProxy(httpProxy);
+			context.setCredentialsProvider(credentialsProvider);
 		}
-
-		return temp.build();
+		return context;
 	}
 
 	private void addBody(File body, HttpEntityEnclosingRequest req) {
@@ -795,46 +701,31 @@ public final class HttpUtils {
 
 	public void downloadFile(URI uri, File target, AuthScope authScope, UsernamePasswordCredentials credentials)
 			throws IOException {
-		DefaultHttpClient httpClient = new DefaultHttpClient();
+		PooledHttpClient httpClient = PooledHttpClient.getInstance();
+		HttpGet request = new HttpGet(uri);
 		if (httpProxy != null) {
-			httpClient.getParams().setParameter(ConnRouteParams.DEFAULT_PROXY, httpProxy);
-		}
-		if (credentials != null) {
-			httpClient.getCredentialsProvider().setCredentials(authScope, credentials);
+			request.setConfig(RequestConfig.copy(httpClient.getRequestConfig()).setProxy(httpProxy).build());
 		}
-
-		HttpResponse response;
-		response = httpClient.execute(new HttpGet(uri));
-		StatusLine status = response.getStatusLine();
-		httpClient.close();
-		if (status.getStatusCode() != HttpServletResponse.SC_OK) {
-			throw new HttpErrorResponseException(status.getStatusCode(), status.getReasonPhrase());
-		}
-		InputStream input = null;
-		OutputStream output = null;
-		byte[] buffer = new byte[BUFFER_SIZE];
-
-		try {
-			input = response.getEntity().getContent();
-			output = new FileOutputStream(target);
-
-			while (true) {
-				int length = input.read(buffer);
-				if (length > 0) {
-					output.write(buffer, 0, length);
-				} else {
-					input.close();
-					break;
-				}
+		httpClient.execute(request, getClientContext(authScope, credentials), response -> {
+			StatusLine status = response.getStatusLine();
+			if (status.getStatusCode() != HttpServletResponse.SC_OK) {
+				EntityUtils.consume(response.getEntity());
+				throw new HttpErrorResponseException(status.getStatusCode(), status.getReasonPhrase());
 			}
-		} finally {
-			if (output != null) {
-				output.close();
-			}
-			if (input != null) {
-				input.close();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			try (InputStream input = response.getEntity().getContent();
+					OutputStream output = new FileOutputStream(target)) {
+				while (true) {
+					int length = input.read(buffer);
+					if (length > 0) {
+						output.write(buffer, 0, length);
+					} else {
+						break;
+					}
+				}
 			}
-		}
+			return null;
+		});
 	}
 
 	public static List<Object> getAtContext(HttpServletRequest req) {
@@ -970,7 +861,41 @@ public final class HttpUtils {
 		if (additionalContext != null) {
 			requestAtContext.addAll(additionalContext);
 		}
+		boolean compress = false;
+		String options = request.getParameter(NGSIConstants.QUERY_PARAMETER_OPTIONS);
+		if (options != null && options.contains(NGSIConstants.QUERY_PARAMETER_OPTIONS_COMPRESS)) {
+			compress = true;
+		}
+		return generateReply(request.getHeaders(HttpHeaders.ACCEPT), requestAtContext, reply, additionalHeaders,
+				forceArrayResult, compress);
+	}
+
+	/**
+	 * Method used for generating a reply which is not an answer to a request,
+	 * e.g. a notification, in the format of the accept header of the receiver.
+	 *
+	 * @param acceptHeader
+	 * @param reply             expanded body
+	 * @param additionalContext context to compact with
+	 * @return ResponseEntity
+	 * @throws ResponseException
+	 */
+	public ResponseEntity<byte[]> generateReplyForAccept(String acceptHeader, String reply,
+			List<Object> additionalContext) throws ResponseException {
+		List<Object> atContext = new ArrayList<Object>();
+		if (additionalContext != null) {
+			atContext.addAll(additionalContext);
+		}
+		if (acceptHeader == null) {
+			acceptHeader = AppConstants.NGB_APPLICATION_JSON;
+		}
+		return generateReply(Collections.enumeration(Collections.singletonList(acceptHeader)), atContext, reply, null,
+				false, false);
+	}
 
+	private ResponseEntity<byte[]> generateReply(Enumeration<String> acceptHeaders, List<Object> requestAtContext,
+			String reply, HashMap<String, List<String>> additionalHeaders, boolean forceArrayResult, boolean compress)
+			throws ResponseException {
 		String replyBody;
 
 		CompactedJson compacted = contextResolver.compact(reply, requestAtContext);
@@ -978,7 +903,7 @@ public final class HttpUtils {
 		if (additionalHeaders == null) {
 			additionalHeaders = new HashMap<String, List<String>>();
 		}
-		int sendingContentType = parseAcceptHeader(request.getHeaders(HttpHeaders.ACCEPT));
+		int sendingContentType = parseAcceptHeader(acceptHeaders);
 		switch (sendingContentType) {
 		case 1:
 			temp.add(AppConstants.NGB_APPLICATION_JSON);
@@ -1017,12 +942,152 @@ public final class HttpUtils {
 				replyBody = "[" + replyBody + "]";
 			}
 		}
-		boolean compress = false;
+		return generateReply(replyBody, additionalHeaders, compress);
+	}
+
+	/**
+	 * Streaming variant of generateReply for entity lists. The entities are
+	 * compacted and written to the response one by one, so the full result is
+	 * never held in memory. The body is zipped if requested with the compress
+	 * option, otherwise gzip encoded if the client accepts it. The source is
+	 * opened before the reply is returned, so a failing query is reported as
+	 * error response like in the non streaming reply. A failure while the body is
+	 * written aborts the response.
+	 * 
+	 * @param request
+	 * @param source            provides the expanded entities
+	 * @param additionalHeaders
+	 * @return ResponseEntity with a body writing the stream
+	 * @throws ResponseException
+	 */
+	public ResponseEntity<StreamingResponseBody> generateStreamingReply(HttpServletRequest request,
+			EntityStreamSource source, HashMap<String, List<String>> additionalHeaders) throws ResponseException {
+		return generateStreamingReply(request, contextResolver.getEntityCompactor(getAtContext(request)), source,
+				additionalHeaders);
+	}
+
+	ResponseEntity<StreamingResponseBody> generateStreamingReply(HttpServletRequest request,
+			EntityCompactor compactor, EntityStreamSource source, HashMap<String, List<String>> additionalHeaders)
+			throws ResponseException {
+		if (additionalHeaders == null) {
+			additionalHeaders = new HashMap<String, List<String>>();
+		}
+		int sendingContentType = parseAcceptHeader(request.getHeaders(HttpHeaders.ACCEPT));
+		String contentType;
+		switch (sendingContentType) {
+		case 1:
+			contentType = AppConstants.NGB_APPLICATION_JSON;
+			List<String> links = additionalHeaders.get(HttpHeaders.LINK);
+			if (links == null) {
+				links = new ArrayList<String>();
+				additionalHeaders.put(HttpHeaders.LINK, links);
+			}
+			links.add("<" + compactor.getContextUrl()
+					+ ">; rel=\"http://www.w3.org/ns/json-ld#context\"; type=\"application/ld+json\"");
+			break;
+		case 2:
+			contentType = AppConstants.NGB_APPLICATION_JSONLD;
+			break;
+		case 3:
+			contentType = AppConstants.NGB_APPLICATION_NQUADS;
+			break;
+		case -1:
+		default:
+			throw new ResponseException(ErrorType.InvalidRequest, "Provided accept types are not supported");
+		}
 		String options = request.getParameter(NGSIConstants.QUERY_PARAMETER_OPTIONS);
-		if (options != null && options.contains(NGSIConstants.QUERY_PARAMETER_OPTIONS_COMPRESS)) {
-			compress = true;
+		boolean zip = options != null && options.contains(NGSIConstants.QUERY_PARAMETER_OPTIONS_COMPRESS);
+		String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		boolean gzip = !zip && acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+
+		source.open();
+		BodyBuilder builder = ResponseEntity.status(HttpStatus.OK);
+		if (source.isPartial()) {
+			builder.header(HttpHeaders.WARNING, NGSIConstants.PARTIAL_RESULT_WARNING);
+		}
+		for (Entry<String, List<String>> entry : additionalHeaders.entrySet()) {
+			for (String value : entry.getValue()) {
+				builder.header(entry.getKey(), value);
+			}
+		}
+		if (zip) {
+			builder.header(HttpHeaders.CONTENT_TYPE, "application/zip");
+		} else {
+			builder.header(HttpHeaders.CONTENT_TYPE, contentType);
+			if (gzip) {
+				builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+			}
+		}
+		return builder.body(outputStream -> {
+			OutputStream target = outputStream;
+			if (zip) {
+				ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+				zipOutputStream.putNextEntry(new ZipEntry("index.json"));
+				target = zipOutputStream;
+			} else if (gzip) {
+				target = new GZIPOutputStream(outputStream, STREAM_BUFFER_SIZE);
+			}
+			Writer writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8),
+					STREAM_BUFFER_SIZE);
+			EntityStreamWriter entityWriter = new EntityStreamWriter(writer, compactor, sendingContentType);
+			entityWriter.start();
+			try {
+				source.stream(entityWriter);
+			} catch (Exception e) {
+				// too late to report anything, abort the response
+				throw new IOException("Failed to stream result", e);
+			}
+			entityWriter.end();
+			writer.flush();
+			if (target instanceof ZipOutputStream) {
+				((ZipOutputStream) target).closeEntry();
+				((ZipOutputStream) target).finish();
+			} else if (target instanceof GZIPOutputStream) {
+				((GZIPOutputStream) target).finish();
+			}
+		});
+	}
+
+	private static class EntityStreamWriter implements Consumer<String> {
+		private final Writer writer;
+		private final EntityCompactor compactor;
+		private final int contentType;
+		private int count = 0;
+
+		EntityStreamWriter(Writer writer, EntityCompactor compactor, int contentType) {
+			this.writer = writer;
+			this.compactor = compactor;
+			this.contentType = contentType;
+		}
+
+		void start() throws IOException {
+			if (contentType != 3) {
+				writer.write('[');
+			}
+		}
+
+		void end() throws IOException {
+			if (contentType != 3) {
+				writer.write(']');
+			}
+		}
+
+		@Override
+		public void accept(String entity) {
+			try {
+				if (contentType == 3) {
+					writer.write(compactor.getRDF(entity));
+				} else {
+					if (count > 0) {
+						writer.write(',');
+					}
+					writer.write(JsonUtils.toPrettyString(compactor.compact(entity, contentType == 2)));
+				}
+				count++;
+			} catch (IOException | ResponseException e) {
+				throw new RuntimeException(e);
+			}
 		}
-		return generateReply(replyBody, additionalHeaders, compress);
 	}
 
 	public ResponseEntity<byte[]> generateReply(String replyBody, HashMap<String, List<String>> additionalHeaders,
@@ -1097,6 +1162,9 @@ public final class HttpUtils {
 	}
 
 	public static String generateNextLink(HttpServletRequest request, QueryResult qResult) {
+		if (qResult.getNextCursor() != null) {
+			return generateCursorLinkHeader(request, qResult.getNextCursor());
+		}
 		if (qResult.getResultsLeftAfter() == null || qResult.getResultsLeftAfter() <= 0) {
 			return null;
 		}
@@ -1134,6 +1202,22 @@ public final class HttpUtils {
 		return builder.toString();
 	}
 
+	private static String generateCursorLinkHeader(HttpServletRequest request, String cursor) {
+		StringBuilder builder = new StringBuilder("</");
+		builder.append("?");
+		for (Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
+			String key = entry.getKey();
+			if (key.equals(NGSIConstants.QUERY_PARAMETER_CURSOR)) {
+				continue;
+			}
+			for (String value : entry.getValue()) {
+				builder.append(key + "=" + value + "&");
+			}
+		}
+		builder.append(NGSIConstants.QUERY_PARAMETER_CURSOR + "=" + cursor + ">;rel=\"next\"");
+		return builder.toString();
+	}
+
 	public static String generatePrevLink(HttpServletRequest request, QueryResult qResult) {
 		if (qResult.getResultsLeftBefore() == null || qResult.getResultsLeftBefore() <= 0) {
 			return null;
@@ -0,0 +1,231 @@
+package eu.neclab.ngsildbroker.commons.tools;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived HTTP client shared by all outbound traffic of the broker
+ * (notifications, csource federation, remote context fetches). Connections
+ * are pooled per route and kept alive between requests. Per host request
+ * counters and pool statistics are recorded.
+ *
+ * @author the scorpio team
+ *
+ */
+public final class PooledHttpClient {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PooledHttpClient.class);
+
+	public static final int DEFAULT_MAX_TOTAL = 200;
+	public static final int DEFAULT_MAX_PER_ROUTE = 20;
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_SOCKET_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS = 10000;
+	public static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+	private static final long IDLE_EVICTION_MS = 60000;
+	private static final String START_ATTRIBUTE = "ngb.request.start";
+
+	private static PooledHttpClient SINGLETON;
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient client;
+	private volatile RequestConfig requestConfig;
+	private volatile long keepAliveMs = DEFAULT_KEEP_ALIVE_MS;
+	private final ConcurrentHashMap<String, HostStats> host2Stats = new ConcurrentHashMap<String, HostStats>();
+
+	private PooledHttpClient() {
+		SSLContext sslContext;
+		try {
+			sslContext = new SSLContextBuilder().loadTrustMaterial(null, (x509CertChain, authType) -> true).build();
+		} catch (Exception e) {
+			throw new AssertionError("Failed to create ssl context", e);
+		}
+		connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.INSTANCE)
+				.register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE)).build());
+		connectionManager.setMaxTotal(DEFAULT_MAX_TOTAL);
+		connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+		requestConfig = RequestConfig.custom().setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MS)
+				.setSocketTimeout(DEFAULT_SOCKET_TIMEOUT_MS)
+				.setConnectionRequestTimeout(DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS).build();
+		ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+			long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,
+					context);
+			if (serverKeepAlive > 0 && serverKeepAlive < keepAliveMs) {
+				return serverKeepAlive;
+			}
+			return keepAliveMs;
+		};
+		HttpRequestInterceptor startRecorder = (request, context) -> context.setAttribute(START_ATTRIBUTE,
+				System.nanoTime());
+		HttpResponseInterceptor responseRecorder = (response, context) -> {
+			Object start = context.getAttribute(START_ATTRIBUTE);
+			HttpHost host = HttpCoreContext.adapt(context).getTargetHost();
+			if (start != null && host != null) {
+				getStats(host).record(System.nanoTime() - (Long) start, response.getStatusLine().getStatusCode());
+			}
+		};
+		client = HttpClientBuilder.create().setSSLContext(sslContext).setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.setDefaultRequestConfig(requestConfig).addInterceptorLast(startRecorder)
+				.addInterceptorFirst(responseRecorder).evictExpiredConnections()
+				.evictIdleConnections(IDLE_EVICTION_MS, TimeUnit.MILLISECONDS).build();
+	}
+
+	/**
+	 * Returns the singleton instance of this class.
+	 *
+	 * @return a PooledHttpClient instance
+	 */
+	public static synchronized PooledHttpClient getInstance() {
+		if (SINGLETON == null) {
+			SINGLETON = new PooledHttpClient();
+		}
+		return SINGLETON;
+	}
+
+	/**
+	 * Applies pool sizes, timeouts and keep-alive duration. Can be called at any
+	 * time, requests started afterwards use the new settings.
+	 */
+	public void configure(int maxTotal, int maxPerRoute, int connectTimeoutMs, int socketTimeoutMs,
+			int connectionRequestTimeoutMs, long keepAliveMs) {
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		this.requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeoutMs)
+				.setSocketTimeout(socketTimeoutMs).setConnectionRequestTimeout(connectionRequestTimeoutMs).build();
+		this.keepAliveMs = keepAliveMs;
+		LOG.info("http client pool configured: maxTotal=" + maxTotal + " maxPerRoute=" + maxPerRoute
+				+ " connectTimeout=" + connectTimeoutMs + " socketTimeout=" + socketTimeoutMs + " keepAlive="
+				+ keepAliveMs);
+	}
+
+	/**
+	 * The underlying client. Can be handed to other http abstractions (e.g.
+	 * RestTemplate) so they share the connection pool. Do not close it.
+	 *
+	 * @return CloseableHttpClient
+	 */
+	public CloseableHttpClient getClient() {
+		return client;
+	}
+
+	public RequestConfig getRequestConfig() {
+		return requestConfig;
+	}
+
+	public <T> T execute(HttpRequestBase request, HttpClientContext context, ResponseHandler<T> handler)
+			throws IOException {
+		if (request.getConfig() == null) {
+			request.setConfig(requestConfig);
+		}
+		try {
+			return client.execute(request, handler, context);
+		} catch (IOException e) {
+			HttpHost host = new HttpHost(request.getURI().getHost(), request.getURI().getPort(),
+					request.getURI().getScheme());
+			getStats(host).recordFailure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Connection pool statistics per target host.
+	 *
+	 * @return Map<String, PoolStats> host to pool statistics
+	 */
+	public Map<String, PoolStats> getPoolStats() {
+		Map<String, PoolStats> result = new HashMap<String, PoolStats>();
+		for (HttpRoute route : connectionManager.getRoutes()) {
+			result.put(route.getTargetHost().toHostString(), connectionManager.getStats(route));
+		}
+		return result;
+	}
+
+	public PoolStats getTotalPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * Request statistics per target host.
+	 *
+	 * @return Map<String, HostStats>
+	 */
+	public Map<String, HostStats> getHostStats() {
+		return host2Stats;
+	}
+
+	private HostStats getStats(HttpHost host) {
+		return host2Stats.computeIfAbsent(host.toHostString(), key -> new HostStats());
+	}
+
+	public static class HostStats {
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder errorResponses = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder totalLatencyNanos = new LongAdder();
+
+		void record(long latencyNanos, int statusCode) {
+			requests.increment();
+			totalLatencyNanos.add(latencyNanos);
+			if (statusCode >= 500) {
+				errorResponses.increment();
+			}
+		}
+
+		void recordFailure() {
+			failures.increment();
+		}
+
+		public long getRequests() {
+			return requests.sum();
+		}
+
+		public long getErrorResponses() {
+			return errorResponses.sum();
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		public long getTotalLatencyNanos() {
+			return totalLatencyNanos.sum();
+		}
+
+		public double getAverageLatencyMillis() {
+			long count = requests.sum();
+			return count == 0 ? 0 : totalLatencyNanos.sum() / 1000000.0 / count;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package eu.neclab.ngsildbroker.commons.tools;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Hierarchical timing wheel for a large number of deadlines, e.g. the expiry
+ * of subscriptions and registrations or the interval notifications. Every
+ * level has the same number of buckets, a bucket of a level spans a whole
+ * rotation of the level below. Scheduling and cancelling only queue the
+ * change, the tick thread applies it, so both are O(1) for the caller, and
+ * the tick thread moves a timeout one level down when its bucket comes up
+ * until it expires in the lowest level. Expired tasks run in a pool of worker
+ * threads, so a slow task does not delay the others. The delay between the
+ * deadline and the start of a task is recorded as scheduling lag.
+ */
+public class TimingWheelScheduler {
+
+	private final static Logger logger = LogManager.getLogger(TimingWheelScheduler.class);
+
+	private static final int INIT = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private static TimingWheelScheduler SINGLETON;
+
+	private final String name;
+	private final long tickNanos;
+	private final int bits;
+	private final int mask;
+	private final Bucket[][] wheels;
+	private final long startTime;
+	private long currentTick = 0;
+	private final ConcurrentLinkedQueue<Entry> scheduled = new ConcurrentLinkedQueue<Entry>();
+	private final ConcurrentLinkedQueue<Entry> cancelled = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicLong pending = new AtomicLong();
+	private final ExecutorService workers;
+	private final Thread ticker;
+	private final Timer lag;
+	private volatile boolean running = true;
+
+	/**
+	 * @param name      prefix of the thread names and tag of the metrics
+	 * @param tick      duration of a tick in ms, the precision of the deadlines
+	 * @param wheelBits log2 of the number of buckets of a level
+	 * @param levels    number of levels, together with the tick and the buckets
+	 *                  the range covered without a round trip through the top
+	 *                  level
+	 * @param workers   number of threads running the expired tasks
+	 */
+	public TimingWheelScheduler(String name, long tick, int wheelBits, int levels, int workers) {
+		if (tick <= 0 || wheelBits <= 0 || levels <= 0 || wheelBits * levels > 62 || workers <= 0) {
+			throw new IllegalArgumentException("Invalid timing wheel configuration");
+		}
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.bits = wheelBits;
+		this.mask = (1 << wheelBits) - 1;
+		this.wheels = new Bucket[levels][1 << wheelBits];
+		for (Bucket[] wheel : wheels) {
+			for (int i = 0; i < wheel.length; i++) {
+				wheel[i] = new Bucket();
+			}
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread thread = new Thread(r, name + "-worker-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.lag = Timer.builder(BrokerMetrics.SCHEDULER_LAG).tag(BrokerMetrics.TAG_SCHEDULER, name)
+				.description("Delay between the deadline of a task and its start").register(Metrics.globalRegistry);
+		Gauge.builder(BrokerMetrics.SCHEDULER_PENDING, pending, AtomicLong::get)
+				.tag(BrokerMetrics.TAG_SCHEDULER, name).register(Metrics.globalRegistry);
+		this.startTime = System.nanoTime();
+		this.ticker = new Thread(this::run, name + "-ticker");
+		this.ticker.setDaemon(true);
+		this.ticker.start();
+	}
+
+	/**
+	 * Method used for getting the scheduler shared by all services of the JVM.
+	 * It has 10 ms ticks, 4 levels of 256 buckets, which covers about 500 days,
+	 * and a worker per processor.
+	 *
+	 * @return the shared scheduler
+	 */
+	public static synchronized TimingWheelScheduler getInstance() {
+		if (SINGLETON == null) {
+			SINGLETON = new TimingWheelScheduler("scheduler", 10, 8, 4,
+					Math.max(2, Runtime.getRuntime().availableProcessors()));
+		}
+		return SINGLETON;
+	}
+
+	/**
+	 * Method used for running a task once after a delay.
+	 *
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return the handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return add(new Entry(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)), 0));
+	}
+
+	/**
+	 * Method used for running a task repeatedly, the next run is scheduled
+	 * period after the end of the last one like with
+	 * {@link java.util.Timer#schedule(java.util.TimerTask, long, long)}.
+	 *
+	 * @param task
+	 * @param initialDelay
+	 * @param period
+	 * @param unit
+	 * @return the handle to cancel all further runs
+	 */
+	public Timeout scheduleWithFixedDelay(Runnable task, long initialDelay, long period, TimeUnit unit) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period has to be positive");
+		}
+		return add(new Entry(task, System.nanoTime() + unit.toNanos(Math.max(0, initialDelay)), unit.toNanos(period)));
+	}
+
+	private Timeout add(Entry entry) {
+		if (!running) {
+			throw new IllegalStateException("Scheduler " + name + " is shut down");
+		}
+		pending.incrementAndGet();
+		scheduled.add(entry);
+		return entry;
+	}
+
+	/**
+	 * @return the number of scheduled tasks which have neither run nor been
+	 *         cancelled
+	 */
+	public long getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Method used for stopping the scheduler, scheduled tasks are dropped.
+	 */
+	public void shutdown() {
+		running = false;
+		ticker.interrupt();
+		workers.shutdown();
+	}
+
+	private void run() {
+		long deadline = tickNanos;
+		while (running) {
+			long sleep = startTime + deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					break;
+				}
+				continue;
+			}
+			try {
+				tick();
+			} catch (RuntimeException e) {
+				logger.error("Timing wheel " + name + " failed in tick " + currentTick, e);
+			}
+			deadline += tickNanos;
+		}
+	}
+
+	private void tick() {
+		currentTick++;
+		Entry entry;
+		while ((entry = cancelled.poll()) != null) {
+			if (entry.bucket != null) {
+				entry.bucket.remove(entry);
+			}
+		}
+		while ((entry = scheduled.poll()) != null) {
+			if (entry.state.get() == INIT) {
+				entry.deadlineTick = (entry.deadline - startTime + tickNanos - 1) / tickNanos;
+				place(entry);
+			}
+		}
+		for (int level = wheels.length - 1; level > 0; level--) {
+			if ((currentTick & ((1L << (bits * level)) - 1)) == 0) {
+				Entry cascaded = wheels[level][(int) ((currentTick >>> (bits * level)) & mask)].clear();
+				while (cascaded != null) {
+					Entry next = cascaded.next;
+					cascaded.next = null;
+					place(cascaded);
+					cascaded = next;
+				}
+			}
+		}
+		Entry expired = wheels[0][(int) (currentTick & mask)].clear();
+		while (expired != null) {
+			Entry next = expired.next;
+			expired.next = null;
+			expire(expired);
+			expired = next;
+		}
+	}
+
+	private void place(Entry entry) {
+		long delta = entry.deadlineTick - currentTick;
+		long slot = entry.deadlineTick;
+		if (delta <= 0) {
+			slot = currentTick;
+			delta = 0;
+		}
+		int level = 0;
+		while (level < wheels.length - 1 && delta >= (1L << (bits * (level + 1)))) {
+			level++;
+		}
+		if (delta >= (1L << (bits * wheels.length))) {
+			// beyond the range of the wheel, the entry is placed again when the
+			// last bucket of the top level comes up
+			slot = currentTick + (1L << (bits * wheels.length)) - 1;
+		}
+		wheels[level][(int) ((slot >>> (bits * level)) & mask)].add(entry);
+	}
+
+	private void expire(Entry entry) {
+		if (!entry.state.compareAndSet(INIT, EXPIRED)) {
+			return;
+		}
+		try {
+			workers.execute(() -> runTask(entry));
+		} catch (RuntimeException e) {
+			pending.decrementAndGet();
+			logger.error("Failed to run a task of " + name, e);
+		}
+	}
+
+	private void runTask(Entry entry) {
+		lag.record(Math.max(0, System.nanoTime() - entry.deadline), TimeUnit.NANOSECONDS);
+		try {
+			entry.task.run();
+		} catch (Throwable e) {
+			logger.error("Task of " + name + " failed", e);
+		}
+		if (entry.period > 0 && running && entry.state.compareAndSet(EXPIRED, INIT)) {
+			entry.deadline = System.nanoTime() + entry.period;
+			scheduled.add(entry);
+		} else {
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public interface Timeout {
+
+		/**
+		 * Method used for cancelling the task, a running task is not
+		 * interrupted but not scheduled again.
+		 *
+		 * @return false if the task was already cancelled or has run
+		 */
+		boolean cancel();
+
+		boolean isCancelled();
+	}
+
+	private class Entry implements Timeout {
+		private final Runnable task;
+		private final long period;
+		private final AtomicInteger state = new AtomicInteger(INIT);
+		private volatile long deadline;
+		// only used by the tick thread
+		private long deadlineTick;
+		private Bucket bucket;
+		private Entry prev;
+		private Entry next;
+
+		private Entry(Runnable task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		@Override
+		public boolean cancel() {
+			if (state.compareAndSet(INIT, CANCELLED)) {
+				pending.decrementAndGet();
+				cancelled.add(this);
+				return true;
+			}
+			// a periodic task in progress is not scheduled again
+			return period > 0 && state.compareAndSet(EXPIRED, CANCELLED);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+	}
+
+	/**
+	 * Doubly linked list of the entries of a bucket, unlinking a cancelled
+	 * entry does not need to search it.
+	 */
+	private static class Bucket {
+		private Entry head;
+		private Entry tail;
+
+		private void add(Entry entry) {
+			entry.bucket = this;
+			entry.prev = tail;
+			entry.next = null;
+			if (tail == null) {
+				head = entry;
+			} else {
+				tail.next = entry;
+			}
+			tail = entry;
+		}
+
+		private void remove(Entry entry) {
+			if (entry.bucket != this) {
+				return;
+			}
+			if (entry.prev == null) {
+				head = entry.next;
+			} else {
+				entry.prev.next = entry.next;
+			}
+			if (entry.next == null) {
+				tail = entry.prev;
+			} else {
+				entry.next.prev = entry.prev;
+			}
+			entry.bucket = null;
+			entry.prev = null;
+			entry.next = null;
+		}
+
+		/**
+		 * @return the first entry of the detached list
+		 */
+		private Entry clear() {
+			Entry first = head;
+			for (Entry entry = first; entry != null; entry = entry.next) {
+				entry.bucket = null;
+				entry.prev = null;
+			}
+			head = null;
+			tail = null;
+			return first;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package eu.neclab.ngsildbroker.commons.datatypes;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class EntityVariantsTest {
+
+	private static final String CREATED = "\"https://uri.etsi.org/ngsi-ld/createdAt\":[{\"@type\":\"https://uri.etsi.org/ngsi-ld/DateTime\",\"@value\":\"2020-01-01T00:00:00Z\"}]";
+	private static final String MODIFIED = "\"https://uri.etsi.org/ngsi-ld/modifiedAt\":[{\"@type\":\"https://uri.etsi.org/ngsi-ld/DateTime\",\"@value\":\"2020-01-02T00:00:00Z\"}]";
+
+	private static String entity(boolean sysAttrs) {
+		String sys = sysAttrs ? CREATED + "," + MODIFIED + "," : "";
+		return "{\"@id\":\"urn:car:1\",\"@type\":[\"http://example.org/Vehicle\"]," + sys
+				+ "\"http://example.org/speed\":[{\"@type\":[\"https://uri.etsi.org/ngsi-ld/Property\"]," + sys
+				+ "\"https://uri.etsi.org/ngsi-ld/hasValue\":[{\"@value\":80}],"
+				+ "\"http://example.org/accuracy\":[{\"@type\":[\"https://uri.etsi.org/ngsi-ld/Property\"]," + sys
+				+ "\"https://uri.etsi.org/ngsi-ld/hasValue\":[{\"@value\":1}]}]}],"
+				+ "\"http://example.org/owner\":[{\"@type\":[\"https://uri.etsi.org/ngsi-ld/Relationship\"]," + sys
+				+ "\"https://uri.etsi.org/ngsi-ld/hasObject\":[{\"@id\":\"urn:person:1\"}]}]}";
+	}
+
+	@Test
+	public void renderTest() throws Exception {
+		JsonNode json = EntityVariants.OBJECT_MAPPER.readTree(entity(true));
+		EntityVariants variants = EntityVariants.render(json, true);
+		assertEquals(entity(true), variants.getWithSysAttrs());
+		assertEquals(entity(false), variants.getWithoutSysAttrs());
+		assertEquals("{\"@id\":\"urn:car:1\",\"@type\":[\"http://example.org/Vehicle\"],"
+				+ "\"http://example.org/speed\":[{\"@value\":80}],\"http://example.org/owner\":\"urn:person:1\"}",
+				variants.getKeyValues());
+		// the parsed entity is not modified
+		assertEquals(entity(true), json.toString());
+	}
+}
@@ -0,0 +1,108 @@
+package eu.neclab.ngsildbroker.commons.ldcontext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.neclab.ngsildbroker.commons.tools.HttpUtils;
+
+public class RemoteContextCacheTest {
+
+	private static final byte[] CONTEXT = "{\"@context\": {\"name\": \"http://example.org/name\"}}".getBytes();
+
+	private HttpServer server;
+	private String baseUrl;
+	private AtomicInteger requests = new AtomicInteger();
+	private volatile String cacheControl = null;
+	private volatile int status = 200;
+	private volatile long delay = 0;
+	private RemoteContextCache cache;
+
+	@Before
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			requests.incrementAndGet();
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (cacheControl != null) {
+				exchange.getResponseHeaders().add("Cache-Control", cacheControl);
+			}
+			exchange.sendResponseHeaders(status, CONTEXT.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(CONTEXT);
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+		baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/context.jsonld";
+		cache = new RemoteContextCache(10, 60000, HttpUtils.getInstance(null));
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testSecondLookupIsServedFromCache() throws Exception {
+		Object first = cache.getDocument(baseUrl);
+		Object second = cache.getDocument(baseUrl);
+		assertSame(first, second);
+		assertEquals(1, requests.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testNoCacheHeaderForcesRefetch() throws Exception {
+		cacheControl = "no-cache";
+		cache.getDocument(baseUrl);
+		cache.getDocument(baseUrl);
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void testExpiredEntryIsServedWhenRefreshFails() throws Exception {
+		cacheControl = "max-age=0";
+		Object first = cache.getDocument(baseUrl);
+		status = 500;
+		Object second = cache.getDocument(baseUrl);
+		assertSame(first, second);
+		assertEquals(1, cache.getStaleServedCount());
+	}
+
+	@Test
+	public void testConcurrentLookupsAreCoalesced() throws Exception {
+		delay = 200;
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Callable<Object>> calls = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < 8; i++) {
+			calls.add(() -> cache.getDocument(baseUrl));
+		}
+		for (Future<Object> future : executor.invokeAll(calls)) {
+			future.get();
+		}
+		executor.shutdown();
+		assertEquals(1, requests.get());
+	}
+}
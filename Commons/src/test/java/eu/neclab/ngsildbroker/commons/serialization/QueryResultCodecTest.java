@@ -0,0 +1,47 @@
+package eu.neclab.ngsildbroker.commons.serialization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+public class QueryResultCodecTest {
+
+	@Test
+	public void roundTripTest() throws Exception {
+		StringBuilder large = new StringBuilder("{\"name\":\"");
+		while (large.length() < 100000) {
+			large.append("Straße ");
+		}
+		large.append("\"}");
+		List<String> results = Arrays.asList("{\"@id\":\"urn:a\"}", "", large.toString());
+		assertEquals(results, QueryResultCodec.decode(QueryResultCodec.encode(results)));
+		assertEquals(new ArrayList<String>(), QueryResultCodec.decode(QueryResultCodec.encode(null)));
+	}
+
+	@Test
+	public void errorTest() throws Exception {
+		try {
+			QueryResultCodec.decode(QueryResultCodec.encodeError(ErrorType.TenantNotFound, "no tenant1"));
+			throw new AssertionError("error expected");
+		} catch (ResponseException e) {
+			assertTrue(e.getError() == ErrorType.TenantNotFound);
+			assertEquals("no tenant1", e.getMessage());
+		}
+		byte[] truncated = Arrays.copyOf(QueryResultCodec.encode(Arrays.asList("{}", "{}")), 10);
+		try {
+			QueryResultCodec.decode(truncated);
+			throw new AssertionError("malformed reply expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package eu.neclab.ngsildbroker.commons.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class GeoPropertyIndexerTest {
+
+	private static final String DECLARED = "http://example.org/parking/area";
+	private static final String QUERIED = "http://example.org/vehicle/route";
+
+	private GeoPropertyIndexer indexer;
+
+	@After
+	public void tearDown() {
+		indexer.close();
+	}
+
+	private static class RecordingTemplate extends JdbcTemplate {
+		final List<String> statements = new CopyOnWriteArrayList<String>();
+
+		@Override
+		public void execute(String sql) {
+			statements.add(sql);
+		}
+	}
+
+	private static void await(List<String> statements, int count) throws InterruptedException {
+		for (int i = 0; i < 500 && statements.size() < count; i++) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void indexCreationTest() throws Exception {
+		RecordingTemplate template = new RecordingTemplate();
+		indexer = new GeoPropertyIndexer(new HashSet<String>(Arrays.asList(DECLARED)), 3, tenant -> template);
+
+		indexer.used(null, "https://uri.etsi.org/ngsi-ld/location");
+		indexer.used(null, DECLARED);
+		indexer.used(null, DECLARED);
+		indexer.used(null, QUERIED);
+		indexer.used(null, QUERIED);
+		for (int i = 0; i < 3; i++) {
+			indexer.used(null, "http://example.org/'; DROP TABLE entity; --");
+		}
+		await(template.statements, 1);
+		Thread.sleep(50);
+		assertEquals(1, template.statements.size());
+		String statement = template.statements.get(0);
+		assertTrue(statement.startsWith("CREATE INDEX CONCURRENTLY IF NOT EXISTS "
+				+ GeoPropertyIndexer.indexName(DECLARED) + " ON entity USING GIST (("));
+		assertTrue(statement.contains(GeoPropertyIndexer.geometryExpression(DECLARED)));
+		assertTrue(statement.endsWith("WHERE " + GeoPropertyIndexer.geoPropertyCondition(DECLARED)));
+
+		indexer.used(null, QUERIED);
+		indexer.used("tenant1", QUERIED);
+		await(template.statements, 2);
+		Thread.sleep(50);
+		assertEquals(2, template.statements.size());
+		assertTrue(template.statements.get(1).contains(GeoPropertyIndexer.indexName(QUERIED)));
+	}
+
+	@Test
+	public void readOnlyDatabaseTest() throws Exception {
+		RecordingTemplate template = new RecordingTemplate() {
+			@Override
+			public void execute(String sql) {
+				super.execute(sql);
+				throw new UncategorizedSQLException("create index", sql,
+						new SQLException("cannot execute CREATE INDEX in a read-only transaction", "25006"));
+			}
+		};
+		indexer = new GeoPropertyIndexer(new HashSet<String>(Arrays.asList(DECLARED, QUERIED)), 0, tenant -> template);
+		assertFalse(indexer.isDisabled());
+		indexer.used(null, DECLARED);
+		await(template.statements, 1);
+		for (int i = 0; i < 500 && !indexer.isDisabled(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(indexer.isDisabled());
+		// neither the invalid index is dropped nor other indexes are tried
+		indexer.used(null, QUERIED);
+		indexer.used("tenant1", DECLARED);
+		Thread.sleep(50);
+		assertEquals(1, template.statements.size());
+	}
+}
@@ -0,0 +1,111 @@
+package eu.neclab.ngsildbroker.commons.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryResult;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+public class QueryCursorTest {
+
+	private static final List<String> IDS = Arrays.asList("urn:a:1", "urn:a:2", "urn:a:3", "urn:a:4", "urn:a:5");
+
+	/**
+	 * Answers the keyset queries from the sorted ids like the database would.
+	 */
+	private static class EntityTableTemplate extends JdbcTemplate {
+		final List<String> statements = new ArrayList<String>();
+
+		@Override
+		public <T> List<T> query(String sql, Object[] args, RowMapper<T> rowMapper) {
+			statements.add(sql);
+			Matcher limit = Pattern.compile("LIMIT (\\d+)").matcher(sql);
+			int max = limit.find() ? Integer.parseInt(limit.group(1)) : Integer.MAX_VALUE;
+			List<T> result = new ArrayList<T>();
+			try {
+				for (String id : IDS) {
+					if (result.size() == max || (args.length > 0 && id.compareTo((String) args[0]) <= 0)) {
+						continue;
+					}
+					ResultSet row = mock(ResultSet.class);
+					when(row.getString(1)).thenReturn(id);
+					when(row.getString(2)).thenReturn("{\"@id\":\"" + id + "\"}");
+					result.add(rowMapper.mapRow(row, result.size()));
+				}
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+			return result;
+		}
+	}
+
+	private final EntityTableTemplate template = new EntityTableTemplate();
+
+	private final StorageReaderDAO dao = new StorageReaderDAO() {
+		@Override
+		protected JdbcTemplate getJDBCTemplate(String tenantId) {
+			return template;
+		}
+	};
+
+	private QueryResult page(String cursor, int limit) throws ResponseException {
+		QueryParams qp = new QueryParams();
+		qp.setCursor(cursor);
+		qp.setLimit(limit);
+		return dao.query(qp);
+	}
+
+	@Test
+	public void pagingTest() throws Exception {
+		QueryResult first = page(QueryCursor.START, 2);
+		assertEquals(Arrays.asList("{\"@id\":\"urn:a:1\"}", "{\"@id\":\"urn:a:2\"}"), first.getActualDataString());
+		assertNotNull(first.getNextCursor());
+		assertTrue(template.statements.get(0).contains("LIMIT 3"));
+
+		// continues after the last entity of the previous page
+		QueryResult second = page(first.getNextCursor(), 2);
+		assertEquals("urn:a:2", QueryCursor.decode(first.getNextCursor()));
+		assertTrue(template.statements.get(1).contains("id > ?"));
+		assertEquals(Arrays.asList("{\"@id\":\"urn:a:3\"}", "{\"@id\":\"urn:a:4\"}"), second.getActualDataString());
+
+		// the last page has no next cursor
+		QueryResult last = page(second.getNextCursor(), 2);
+		assertEquals(Arrays.asList("{\"@id\":\"urn:a:5\"}"), last.getActualDataString());
+		assertNull(last.getNextCursor());
+
+		// a page which ends exactly with the last entity has no next cursor either
+		assertNull(page(QueryCursor.START, IDS.size()).getNextCursor());
+	}
+
+	@Test
+	public void invalidCursorTest() throws Exception {
+		for (String cursor : new String[] { "not a cursor!", QueryCursor.encode(""), "Zm9vOmJhcg" }) {
+			try {
+				page(cursor, 2);
+				fail("the cursor " + cursor + " is not valid");
+			} catch (ResponseException e) {
+				assertEquals(ErrorType.BadRequestData, e.getError());
+			}
+		}
+		assertTrue(template.statements.isEmpty());
+	}
+}
@@ -0,0 +1,87 @@
+package eu.neclab.ngsildbroker.commons.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import eu.neclab.ngsildbroker.commons.constants.DBConstants;
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
+
+public class TypesAndAttributesQueryTest {
+
+	private static final String VEHICLE = "https://uri.etsi.org/ngsi-ld/default-context/Vehicle";
+	private static final String SPEED = "https://uri.etsi.org/ngsi-ld/default-context/speed";
+
+	private static final Pattern ENTITY_TABLE = Pattern
+			.compile("\\bfrom\\s+" + DBConstants.DBTABLE_ENTITY + "\\b", Pattern.CASE_INSENSITIVE);
+
+	private final StorageReaderDAO dao = new StorageReaderDAO() {
+	};
+
+	private String query(String check, String attrs) throws Exception {
+		QueryParams qp = new QueryParams();
+		qp.setCheck(check);
+		qp.setAttrs(attrs);
+		return dao.typesAndAttributeQuery(qp);
+	}
+
+	/**
+	 * the catalog has to answer with the same members the aggregation over the
+	 * entity table used to build
+	 */
+	private static void assertShape(String sql, String table, String... members) {
+		assertTrue(sql, sql.contains(" from " + table));
+		assertFalse(sql, ENTITY_TABLE.matcher(sql).find());
+		assertFalse(sql, sql.contains("jsonb_each"));
+		for (String key : members) {
+			assertTrue(key + " missing in " + sql, sql.contains("'" + key + "'"));
+		}
+	}
+
+	@Test
+	public void typesTest() throws Exception {
+		assertShape(query("NonDeatilsType", null), DBConstants.DBTABLE_ENTITY_TYPE_CATALOG, NGSIConstants.JSON_LD_ID,
+				NGSIConstants.JSON_LD_TYPE, NGSIConstants.NGSI_LD_ENTITY_LIST, NGSIConstants.NGSI_LD_TYPE_LIST);
+		assertShape(query("deatilsType", null), DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG,
+				NGSIConstants.JSON_LD_ID, NGSIConstants.JSON_LD_TYPE, NGSIConstants.NGSI_LD_ENTITY_TYPE,
+				NGSIConstants.NGSI_LD_TYPE_NAME, NGSIConstants.NGSI_LD_ATTRIBUTE_NAMES);
+		String sql = query("type", VEHICLE);
+		assertShape(sql, DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG, NGSIConstants.JSON_LD_ID,
+				NGSIConstants.JSON_LD_TYPE, NGSIConstants.NGSI_LD_ENTITY_TYPE_INFO, NGSIConstants.NGSI_LD_TYPE_NAME,
+				NGSIConstants.NGSI_LD_ENTITY_COUNT, NGSIConstants.NGSI_LD_ATTRIBUTE_DETAILS,
+				NGSIConstants.NGSI_LD_ATTRIBUTE_NAME, NGSIConstants.NGSI_LD_ATTRIBUTE_TYPES,
+				NGSIConstants.NGSI_LD_ATTRIBUTE);
+		// the entity count is kept per type
+		assertTrue(sql, sql.contains(DBConstants.DBTABLE_ENTITY_TYPE_CATALOG + ", r where type='" + VEHICLE + "'"));
+	}
+
+	@Test
+	public void attributesTest() throws Exception {
+		assertShape(query("NonDeatilsAttributes", null), DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG,
+				NGSIConstants.JSON_LD_ID, NGSIConstants.JSON_LD_TYPE, NGSIConstants.NGSI_LD_ATTRIBUTE_LIST_1,
+				NGSIConstants.NGSI_LD_ATTRIBUTE_LIST_2);
+		assertShape(query("deatilsAttributes", null), DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG,
+				NGSIConstants.JSON_LD_ID, NGSIConstants.JSON_LD_TYPE, NGSIConstants.NGSI_LD_ATTRIBUTE,
+				NGSIConstants.NGSI_LD_ATTRIBUTE_NAME, NGSIConstants.NGSI_LD_TYPE_NAMES);
+		String sql = query("Attribute", SPEED);
+		assertShape(sql, DBConstants.DBTABLE_ENTITY_ATTRIBUTE_CATALOG, NGSIConstants.JSON_LD_ID,
+				NGSIConstants.JSON_LD_TYPE, NGSIConstants.NGSI_LD_ATTRIBUTE, NGSIConstants.NGSI_LD_ATTRIBUTE_NAME,
+				NGSIConstants.NGSI_LD_TYPE_NAMES, NGSIConstants.NGSI_LD_ATTRIBUTE_COUNT,
+				NGSIConstants.NGSI_LD_ATTRIBUTE_TYPES);
+		// an attribute is counted once per entity, attributes without a type have
+		// no type like before
+		assertTrue(sql, sql.contains("sum(entitycount)"));
+		assertTrue(sql, sql.contains("nullif(attributetype, '')"));
+		assertTrue(sql, sql.contains("where attribute='" + SPEED + "'"));
+	}
+
+	@Test
+	public void unknownCheckTest() throws Exception {
+		assertNull(query("other", null));
+	}
+}
@@ -0,0 +1,152 @@
+package eu.neclab.ngsildbroker.commons.stream.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KafkaKeyValueStoreTest {
+
+	private static final String TOPIC = "TEST";
+	private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+	private MockConsumer<byte[], byte[]> consumer;
+	private MockConsumer<byte[], byte[]> offsetConsumer;
+	private KafkaKeyValueStore store;
+
+	@Before
+	public void setup() {
+		consumer = new MockConsumer<byte[], byte[]>(OffsetResetStrategy.EARLIEST);
+		consumer.updatePartitions(TOPIC,
+				Collections.singletonList(new PartitionInfo(TOPIC, 0, null, null, null)));
+		consumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+		offsetConsumer = new MockConsumer<byte[], byte[]>(OffsetResetStrategy.EARLIEST);
+		Iterator<MockConsumer<byte[], byte[]>> consumers = Arrays.asList(consumer, offsetConsumer).iterator();
+		store = new KafkaKeyValueStore(TOPIC, consumers::next, 10, 10);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+	}
+
+	@Test
+	public void testKeepsLatestValuePerKey() {
+		consumer.schedulePollTask(() -> {
+			consumer.addRecord(record(0, "a", "1"));
+			consumer.addRecord(record(1, "b", "2"));
+			consumer.addRecord(record(2, "a", "3"));
+		});
+		offsetConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 3L));
+		store.start();
+
+		assertTrue(store.sync(5000));
+		assertArrayEquals("3".getBytes(), store.get("a"));
+		assertArrayEquals("2".getBytes(), store.get("b"));
+		Map<String, byte[]> snapshot = store.snapshot();
+		assertEquals(2, snapshot.size());
+	}
+
+	@Test
+	public void testTombstoneRemovesKey() {
+		consumer.schedulePollTask(() -> {
+			consumer.addRecord(record(0, "a", "1"));
+			consumer.addRecord(record(1, "a", null));
+		});
+		offsetConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 2L));
+		store.start();
+
+		assertTrue(store.sync(5000));
+		assertFalse(store.containsKey("a"));
+		assertNull(store.get("a"));
+	}
+
+	@Test
+	public void testSyncTimesOutWhenBehind() {
+		offsetConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 5L));
+		store.start();
+
+		assertFalse(store.sync(100));
+	}
+
+	@Test
+	public void testConsumesAddedPartitions() throws Exception {
+		TopicPartition added = new TopicPartition(TOPIC, 1);
+		offsetConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 0L));
+		store.start();
+		assertTrue(store.sync(5000));
+
+		consumer.updateBeginningOffsets(Collections.singletonMap(added, 0L));
+		consumer.updatePartitions(TOPIC, Arrays.asList(new PartitionInfo(TOPIC, 0, null, null, null),
+				new PartitionInfo(TOPIC, 1, null, null, null)));
+		for (int i = 0; i < 500 && !consumer.assignment().contains(added); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(consumer.assignment().contains(added));
+		consumer.schedulePollTask(() -> consumer.addRecord(record(1, 0, "c", "4")));
+		Map<TopicPartition, Long> endOffsets = new HashMap<TopicPartition, Long>();
+		endOffsets.put(PARTITION, 0L);
+		endOffsets.put(added, 1L);
+		offsetConsumer.updateEndOffsets(endOffsets);
+
+		// the partition is assigned before its position is known to sync
+		for (int i = 0; i < 500 && store.get("c") == null; i++) {
+			assertTrue(store.sync(5000));
+			Thread.sleep(10);
+		}
+		assertArrayEquals("4".getBytes(), store.get("c"));
+	}
+
+	@Test
+	public void testSyncFailsWhenConsumerFailed() {
+		consumer.schedulePollTask(() -> {
+			throw new KafkaException("broken");
+		});
+		offsetConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 1L));
+		store.start();
+
+		long start = System.currentTimeMillis();
+		assertFalse(store.sync(5000));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertFalse(store.isAlive());
+	}
+
+	@Test
+	public void testSyncFailsWhenStoreClosed() {
+		consumer.schedulePollTask(() -> consumer.addRecord(record(0, "a", "1")));
+		offsetConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 1L));
+		store.start();
+		assertTrue(store.sync(5000));
+
+		// a reader still holding a store which was replaced and closed
+		store.close();
+		assertFalse(store.sync(5000));
+		assertArrayEquals("1".getBytes(), store.get("a"));
+	}
+
+	private ConsumerRecord<byte[], byte[]> record(long offset, String key, String value) {
+		return record(0, offset, key, value);
+	}
+
+	private ConsumerRecord<byte[], byte[]> record(int partition, long offset, String key, String value) {
+		return new ConsumerRecord<byte[], byte[]>(TOPIC, partition, offset, key.getBytes(),
+				value == null ? null : value.getBytes());
+	}
+}
@@ -0,0 +1,245 @@
+package eu.neclab.ngsildbroker.commons.tenant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.tenant.TenantDataSourceRegistry.TenantInitializer;
+
+public class TenantDataSourceRegistryTest {
+
+	private HikariConfig template;
+	private TenantDataSourceRegistry<DataSource> registry;
+
+	@Before
+	public void setup() throws SQLException {
+		// the pools get their connections from a fake database instead of the
+		// jdbc url
+		DataSource database = mock(DataSource.class);
+		when(database.getConnection()).thenAnswer(invocation -> {
+			Connection connection = mock(Connection.class);
+			when(connection.isValid(anyInt())).thenReturn(true);
+			return connection;
+		});
+		template = new HikariConfig();
+		template.setJdbcUrl("jdbc:postgresql://localhost:5432/ngb");
+		template.setDataSource(database);
+		template.setMaximumPoolSize(2);
+		template.setMinimumIdle(0);
+		template.setConnectionTimeout(1000);
+	}
+
+	@After
+	public void tearDown() {
+		if (registry != null) {
+			registry.close();
+		}
+	}
+
+	private TenantDataSourceRegistry<DataSource> registry(int maxPools, long idleTimeoutMs,
+			TenantInitializer initializer) {
+		return new TenantDataSourceRegistry<DataSource>(template, 1, maxPools, idleTimeoutMs,
+				tenant -> tenant.startsWith("unknown") ? null : "db_" + tenant, initializer, dataSource -> dataSource);
+	}
+
+	private void use(String tenant) throws Exception {
+		registry.getDataSource(tenant).getConnection().close();
+	}
+
+	@Test
+	public void lruEvictionTest() throws Exception {
+		registry = registry(2, 0, null);
+		use("a");
+		use("b");
+		use("a");
+		use("c");
+		assertTrue(registry.isOpen("a"));
+		assertFalse(registry.isOpen("b"));
+		assertTrue(registry.isOpen("c"));
+
+		// the evicted tenant gets a new pool on its next use
+		registry.sweep();
+		DataSource dataSource = registry.getDataSource("b");
+		use("b");
+		assertTrue(registry.isOpen("b"));
+		assertFalse(registry.isOpen("a"));
+		assertSame(dataSource, registry.getDataSource("b"));
+		assertSame(dataSource, registry.get("b"));
+	}
+
+	@Test
+	public void allPoolsInUseTest() throws Exception {
+		registry = registry(1, 0, null);
+		try (Connection connection = registry.getDataSource("a").getConnection()) {
+			try {
+				use("b");
+				fail("the pool of a is in use");
+			} catch (ResponseException e) {
+				assertEquals(ErrorType.InternalError, e.getError());
+				assertTrue(registry.isOpen("a"));
+			}
+		}
+		use("b");
+		assertFalse(registry.isOpen("a"));
+	}
+
+	@Test
+	public void idleSweepTest() throws Exception {
+		registry = registry(10, 1, null);
+		use("a");
+		Connection connection = registry.getDataSource("b").getConnection();
+		Thread.sleep(10);
+		registry.sweep();
+		assertFalse(registry.isOpen("a"));
+		// pools with connections in use are kept
+		assertTrue(registry.isOpen("b"));
+		connection.close();
+		Thread.sleep(10);
+		registry.sweep();
+		assertFalse(registry.isOpen("b"));
+		assertTrue(registry.isInitialized("a"));
+		use("a");
+		assertTrue(registry.isOpen("a"));
+	}
+
+	@Test
+	public void concurrentAcquireDuringEvictionTest() throws Exception {
+		// every sweep evicts the idle pools and closes the evicted ones, the
+		// borrows racing with it have to get a connection from a new pool
+		registry = registry(3, 1, null);
+		int threads = 8;
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicInteger borrowed = new AtomicInteger();
+		List<Throwable> errors = new ArrayList<Throwable>();
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			String tenant = "t" + (i % 3);
+			new Thread(() -> {
+				try {
+					for (int j = 0; j < 200; j++) {
+						use(tenant);
+						borrowed.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		Thread sweeper = new Thread(() -> {
+			while (running.get()) {
+				registry.sweep();
+			}
+		});
+		sweeper.start();
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		running.set(false);
+		sweeper.join();
+		assertEquals(new ArrayList<Throwable>(), errors);
+		assertEquals(threads * 200, borrowed.get());
+	}
+
+	@Test
+	public void initializerFailureTest() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		registry = registry(10, 0, (tenant, dataSource) -> {
+			if (calls.incrementAndGet() == 1) {
+				throw new IllegalStateException("migration failed");
+			}
+		});
+		try {
+			registry.get("a");
+			fail("the initializer failed");
+		} catch (IllegalStateException e) {
+			assertFalse(registry.isInitialized("a"));
+			assertFalse(registry.isOpen("a"));
+		}
+		// initialized again on the next use
+		use("a");
+		assertEquals(2, calls.get());
+		assertTrue(registry.isInitialized("a"));
+		use("a");
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void slowInitializerTest() throws Exception {
+		CountDownLatch migrating = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		registry = registry(2, 0, (tenant, dataSource) -> {
+			if (tenant.equals("slow")) {
+				migrating.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		List<Throwable> errors = new ArrayList<Throwable>();
+		Thread slow = new Thread(() -> {
+			try {
+				use("slow");
+			} catch (Throwable e) {
+				errors.add(e);
+			}
+		});
+		slow.start();
+		assertTrue(migrating.await(10, TimeUnit.SECONDS));
+		// other tenants are not blocked by the migration, the pool being opened
+		// counts against the limit
+		use("a");
+		assertTrue(registry.isOpen("a"));
+		try (Connection connection = registry.getDataSource("a").getConnection()) {
+			try {
+				use("b");
+				fail("the pool of a is in use and the pool of slow is being opened");
+			} catch (ResponseException e) {
+				assertEquals(ErrorType.InternalError, e.getError());
+			}
+		}
+		release.countDown();
+		slow.join(10000);
+		assertEquals(new ArrayList<Throwable>(), errors);
+		assertTrue(registry.isOpen("slow"));
+	}
+
+	@Test
+	public void unknownTenantTest() throws Exception {
+		registry = registry(10, 0, null);
+		try {
+			registry.get("unknown");
+			fail("the tenant has no database");
+		} catch (ResponseException e) {
+			assertEquals(ErrorType.TenantNotFound, e.getError());
+		}
+		assertFalse(registry.isOpen("unknown"));
+	}
+}
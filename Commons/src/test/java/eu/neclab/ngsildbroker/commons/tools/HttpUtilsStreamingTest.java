@@ -0,0 +1,153 @@
+package eu.neclab.ngsildbroker.commons.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.github.jsonldjava.utils.JsonUtils;
+
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.ldcontext.EntityCompactor;
+
+public class HttpUtilsStreamingTest {
+
+	private HttpServletRequest request;
+	private EntityCompactor compactor;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+		request = mock(HttpServletRequest.class);
+		when(request.getHeaders(HttpHeaders.ACCEPT))
+				.thenAnswer(invocation -> Collections.enumeration(Collections.singletonList("application/ld+json")));
+		compactor = mock(EntityCompactor.class);
+		when(compactor.compact(anyString(), eq(true)))
+				.thenAnswer(invocation -> (Map<String, Object>) JsonUtils.fromString(invocation.getArgument(0)));
+	}
+
+	private interface Stream {
+		void stream(Consumer<String> consumer) throws Exception;
+	}
+
+	private static class Source implements EntityStreamSource {
+		private final ResponseException openFailure;
+		private final Stream stream;
+		private boolean opened = false;
+		private boolean partial = false;
+
+		Source(ResponseException openFailure, Stream stream) {
+			this.openFailure = openFailure;
+			this.stream = stream;
+		}
+
+		@Override
+		public void open() throws ResponseException {
+			if (openFailure != null) {
+				throw openFailure;
+			}
+			opened = true;
+		}
+
+		@Override
+		public void stream(Consumer<String> consumer) throws Exception {
+			assertTrue(opened);
+			stream.stream(consumer);
+		}
+
+		@Override
+		public boolean isPartial() {
+			assertTrue(opened);
+			return partial;
+		}
+	}
+
+	private String write(Stream stream) throws Exception {
+		return write(new Source(null, stream));
+	}
+
+	private String write(EntityStreamSource source) throws Exception {
+		ResponseEntity<StreamingResponseBody> reply = HttpUtils.getInstance(null).generateStreamingReply(request,
+				compactor, source, null);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		reply.getBody().writeTo(body);
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void streamTest() throws Exception {
+		String json = write(consumer -> {
+			for (int i = 1; i <= 3; i++) {
+				consumer.accept("{\"id\":\"urn:a:" + i + "\"}");
+			}
+		});
+		List<Object> entities = (List<Object>) JsonUtils.fromString(json);
+		assertEquals(3, entities.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals("urn:a:" + (i + 1), ((Map<?, ?>) entities.get(i)).get("id"));
+		}
+	}
+
+	@Test
+	public void emptyStreamTest() throws Exception {
+		assertEquals("[]", write(consumer -> {
+		}));
+	}
+
+	@Test
+	public void partialTest() throws Exception {
+		Source source = new Source(null, consumer -> consumer.accept("{\"id\":\"urn:a:1\"}"));
+		ResponseEntity<StreamingResponseBody> reply = HttpUtils.getInstance(null).generateStreamingReply(request,
+				compactor, source, null);
+		assertNull(reply.getHeaders().getFirst(HttpHeaders.WARNING));
+		source.partial = true;
+		reply = HttpUtils.getInstance(null).generateStreamingReply(request, compactor, source, null);
+		assertEquals(NGSIConstants.PARTIAL_RESULT_WARNING, reply.getHeaders().getFirst(HttpHeaders.WARNING));
+	}
+
+	@Test
+	public void failureTest() throws Exception {
+		// a query failing when the source is opened is reported before the
+		// response is sent
+		try {
+			write(new Source(new ResponseException(ErrorType.InternalError, "query failed"), consumer -> {
+			}));
+			fail("the source failed");
+		} catch (ResponseException e) {
+			assertEquals(ErrorType.InternalError, e.getError());
+		}
+		// later failures abort the response
+		try {
+			write(consumer -> {
+				consumer.accept("{\"id\":\"urn:a:1\"}");
+				throw new IllegalStateException("connection lost");
+			});
+			fail("the source failed");
+		} catch (IOException e) {
+			assertEquals("connection lost", e.getCause().getMessage());
+		}
+	}
+}
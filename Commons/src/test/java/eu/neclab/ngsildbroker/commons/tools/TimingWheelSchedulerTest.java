@@ -0,0 +1,76 @@
+package eu.neclab.ngsildbroker.commons.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler.Timeout;
+
+public class TimingWheelSchedulerTest {
+
+	private TimingWheelScheduler scheduler;
+
+	@Before
+	public void setup() {
+		// 1 ms ticks and 4 buckets per level, so that the deadlines cascade
+		// through all levels
+		scheduler = new TimingWheelScheduler("test", 1, 2, 3, 2);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void scheduleTest() throws Exception {
+		int count = 1000;
+		CountDownLatch latch = new CountDownLatch(count);
+		AtomicInteger early = new AtomicInteger();
+		for (int i = 0; i < count; i++) {
+			long delay = i % 200;
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+			scheduler.schedule(() -> {
+				if (System.nanoTime() < deadline) {
+					early.incrementAndGet();
+				}
+				latch.countDown();
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertEquals(0, early.get());
+		assertNoPending();
+	}
+
+	@Test
+	public void cancelTest() throws Exception {
+		AtomicInteger runs = new AtomicInteger();
+		Timeout once = scheduler.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+		assertTrue(once.cancel());
+		assertFalse(once.cancel());
+		CountDownLatch periodic = new CountDownLatch(3);
+		Timeout repeated = scheduler.scheduleWithFixedDelay(periodic::countDown, 0, 5, TimeUnit.MILLISECONDS);
+		assertTrue(periodic.await(5, TimeUnit.SECONDS));
+		repeated.cancel();
+		assertTrue(repeated.isCancelled());
+		Thread.sleep(200);
+		assertEquals(0, runs.get());
+		assertNoPending();
+	}
+
+	private void assertNoPending() throws InterruptedException {
+		// a task is done after it returned to the worker
+		for (int i = 0; i < 100 && scheduler.getPending() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, scheduler.getPending());
+	}
+}
@@ -15,10 +15,11 @@ import eu.neclab.ngsildbroker.commons.securityConfig.SecurityConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.swaggerConfig.SwaggerConfigDetails;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
 
 
 @SpringBootApplication(exclude = {DataSourceAutoConfiguration.class })
-@Import({KafkaConfig.class, SwaggerConfigDetails.class})
+@Import({KafkaConfig.class, SwaggerConfigDetails.class, HttpClientConfig.class})
 @EnableBinding({AtContextProducerChannel.class})
 public class AtContextServer {// implements QueryHandlerInterface{
 
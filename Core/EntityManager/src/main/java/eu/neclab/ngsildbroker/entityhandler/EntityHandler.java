@@ -18,6 +18,7 @@ import eu.neclab.ngsildbroker.commons.storage.StorageWriterDAO;
 import eu.neclab.ngsildbroker.commons.stream.service.CommonKafkaConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.swaggerConfig.SwaggerConfigDetails;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
 import eu.neclab.ngsildbroker.entityhandler.config.EntityProducerChannel;
 import eu.neclab.ngsildbroker.entityhandler.config.EntityTopicMap;
 import eu.neclab.ngsildbroker.entityhandler.config.EntityJdbcConfig;
@@ -28,7 +29,7 @@ import eu.neclab.ngsildbroker.entityhandler.config.EntityJdbcConfig;
 //@Component(immediate=true)
 @SpringBootApplication
 @EnableBinding({ EntityProducerChannel.class, AtContextProducerChannel.class }) // enable channel binding with topics
-@Import({CommonKafkaConfig.class, SwaggerConfigDetails.class})
+@Import({CommonKafkaConfig.class, SwaggerConfigDetails.class, HttpClientConfig.class})
 public class EntityHandler {
 	public static void main(String[] args) {
 		SpringApplication.run(EntityHandler.class, args);
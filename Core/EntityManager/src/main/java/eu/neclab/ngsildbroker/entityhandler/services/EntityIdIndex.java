@@ -0,0 +1,222 @@
+package eu.neclab.ngsildbroker.entityhandler.services;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import eu.neclab.ngsildbroker.commons.constants.AppConstants;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+/**
+ * The ids of the stored entities per tenant. Lookups do not lock. The ids are
+ * read page by page in the background, until a tenant is completely loaded
+ * ids which are not in the index yet are looked up in the database. Deletes
+ * during the load leave a marker so that the loader does not add the id again.
+ */
+public class EntityIdIndex {
+
+	private final static Logger logger = LogManager.getLogger(EntityIdIndex.class);
+
+	public interface IdSource {
+		/**
+		 * @return the tenants besides the default one
+		 */
+		List<String> getTenantIds() throws ResponseException;
+
+		/**
+		 * @param tenant
+		 * @param afterId the last id of the previous page, null for the first page
+		 * @param limit
+		 * @return the next ids ordered by id
+		 */
+		List<String> getIdPage(String tenant, String afterId, int limit) throws ResponseException;
+
+		boolean exists(String tenant, String id) throws ResponseException;
+	}
+
+	private final IdSource source;
+	private final int pageSize;
+	private final ConcurrentHashMap<String, TenantIds> tenant2Ids = new ConcurrentHashMap<String, TenantIds>();
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "entity-id-loader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public EntityIdIndex(IdSource source, int pageSize) {
+		this.source = source;
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * Method used for starting the background load of all tenants.
+	 */
+	public void start() {
+		loader.execute(() -> {
+			register(AppConstants.INTERNAL_NULL_KEY);
+			try {
+				for (String tenant : source.getTenantIds()) {
+					register(tenant);
+				}
+			} catch (ResponseException e) {
+				logger.error("Failed to read the tenants, they are loaded with their first use", e);
+			}
+		});
+	}
+
+	public void shutdown() {
+		loader.shutdownNow();
+	}
+
+	/**
+	 * @param tenant internal tenant id
+	 * @param id
+	 * @return true if the entity exists
+	 * @throws ResponseException TenantNotFound if the tenant has no database
+	 */
+	public boolean contains(String tenant, String id) throws ResponseException {
+		TenantIds ids = tenant2Ids.get(tenant);
+		if (ids == null) {
+			boolean exists = source.exists(tenant, id);
+			register(tenant);
+			return exists;
+		}
+		Boolean known = ids.id2Exists.get(id);
+		if (known != null) {
+			return known;
+		}
+		if (ids.loaded) {
+			return false;
+		}
+		return source.exists(tenant, id);
+	}
+
+	/**
+	 * Method used for adding the id of a new entity.
+	 *
+	 * @param tenant internal tenant id
+	 * @param id
+	 * @return false if the entity already exists
+	 * @throws ResponseException
+	 */
+	public boolean add(String tenant, String id) throws ResponseException {
+		TenantIds ids = register(tenant);
+		if (!ids.loaded && !ids.id2Exists.containsKey(id) && existsInDatabase(tenant, id)) {
+			ids.id2Exists.putIfAbsent(id, Boolean.TRUE);
+			return false;
+		}
+		Boolean previous = ids.id2Exists.put(id, Boolean.TRUE);
+		return previous == null || !previous;
+	}
+
+	/**
+	 * Method used for removing the id of a deleted entity.
+	 *
+	 * @param tenant internal tenant id
+	 * @param id
+	 * @return false if the entity does not exist
+	 * @throws ResponseException
+	 */
+	public boolean remove(String tenant, String id) throws ResponseException {
+		TenantIds ids = register(tenant);
+		if (ids.loaded) {
+			return Boolean.TRUE.equals(ids.id2Exists.remove(id));
+		}
+		Boolean previous = ids.id2Exists.put(id, Boolean.FALSE);
+		if (previous != null) {
+			return previous;
+		}
+		return existsInDatabase(tenant, id);
+	}
+
+	public boolean isLoaded(String tenant) {
+		TenantIds ids = tenant2Ids.get(tenant);
+		return ids != null && ids.loaded;
+	}
+
+	/**
+	 * a tenant without database has no entities yet, its database is created with
+	 * the first entity
+	 */
+	private boolean existsInDatabase(String tenant, String id) throws ResponseException {
+		try {
+			return source.exists(tenant, id);
+		} catch (ResponseException e) {
+			if (e.getError() == ErrorType.TenantNotFound) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private TenantIds register(String tenant) {
+		TenantIds ids = tenant2Ids.get(tenant);
+		if (ids != null) {
+			return ids;
+		}
+		TenantIds created = new TenantIds();
+		ids = tenant2Ids.putIfAbsent(tenant, created);
+		if (ids != null) {
+			return ids;
+		}
+		try {
+			loader.execute(() -> load(tenant, created));
+		} catch (RuntimeException e) {
+			logger.warn("Entity ids of tenant " + tenant + " are not loaded", e);
+		}
+		return created;
+	}
+
+	private void load(String tenant, TenantIds ids) {
+		long start = System.currentTimeMillis();
+		long count = 0;
+		String afterId = null;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				List<String> page = source.getIdPage(tenant, afterId, pageSize);
+				for (String id : page) {
+					// a marker of a delete or an id added in the meantime wins
+					ids.id2Exists.putIfAbsent(id, Boolean.TRUE);
+				}
+				count += page.size();
+				if (page.size() < pageSize) {
+					break;
+				}
+				afterId = page.get(page.size() - 1);
+			}
+		} catch (ResponseException e) {
+			if (e.getError() != ErrorType.TenantNotFound) {
+				logger.error("Failed to load the entity ids of tenant " + tenant
+						+ ", ids are looked up in the database", e);
+				return;
+			}
+		} catch (RuntimeException e) {
+			logger.error("Failed to load the entity ids of tenant " + tenant + ", ids are looked up in the database",
+					e);
+			return;
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			return;
+		}
+		ids.loaded = true;
+		for (Map.Entry<String, Boolean> entry : ids.id2Exists.entrySet()) {
+			if (!entry.getValue()) {
+				ids.id2Exists.remove(entry.getKey(), Boolean.FALSE);
+			}
+		}
+		logger.info("Loaded " + count + " entity ids of tenant " + tenant + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static class TenantIds {
+		// false marks an id which has been deleted while the tenant is loaded
+		private final ConcurrentHashMap<String, Boolean> id2Exists = new ConcurrentHashMap<String, Boolean>();
+		private volatile boolean loaded = false;
+	}
+}
@@ -4,26 +4,31 @@ import java.util.List;
 
 import org.springframework.stereotype.Repository;
 
-import com.google.common.collect.ArrayListMultimap;
-
-import eu.neclab.ngsildbroker.commons.constants.AppConstants;
 import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
 import eu.neclab.ngsildbroker.commons.storage.StorageReaderDAO;
 
 @Repository
-public class EntityInfoDAO extends StorageReaderDAO {
-
-	public ArrayListMultimap<String, String> getAllIds() throws ResponseException {
-		ArrayListMultimap<String, String> result = ArrayListMultimap.create();
-		result.putAll(AppConstants.INTERNAL_NULL_KEY,
-				getJDBCTemplate(null).queryForList("SELECT DISTINCT id FROM entity", String.class));
-		List<String> tenants = getTenants();
-		for (String tenant : tenants) {
-			result.putAll(tenant,
-					getJDBCTemplate(tenant).queryForList("SELECT DISTINCT id FROM entity", String.class));
+public class EntityInfoDAO extends StorageReaderDAO implements EntityIdIndex.IdSource {
+
+	@Override
+	public List<String> getTenantIds() throws ResponseException {
+		return getTenants();
+	}
+
+	@Override
+	public List<String> getIdPage(String tenant, String afterId, int limit) throws ResponseException {
+		if (afterId == null) {
+			return getJDBCTemplate(getTenant(tenant)).queryForList("SELECT id FROM entity ORDER BY id LIMIT ?",
+					String.class, limit);
 		}
+		return getJDBCTemplate(getTenant(tenant)).queryForList(
+				"SELECT id FROM entity WHERE id > ? ORDER BY id LIMIT ?", String.class, afterId, limit);
+	}
 
-		return result;
+	@Override
+	public boolean exists(String tenant, String id) throws ResponseException {
+		return getJDBCTemplate(getTenant(tenant))
+				.queryForObject("SELECT EXISTS (SELECT 1 FROM entity WHERE id = ?)", Boolean.class, id);
 	}
 
 	public String getEntity(String entityId, String tenantId) throws ResponseException {
@@ -15,6 +15,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.logging.log4j.LogManager;
@@ -101,6 +102,8 @@ public class EntityService {
 	int maxUpsertBatch;
 	@Value("${batchoperations.maxnumber.delete:-1}")
 	int maxDeleteBatch;
+	@Value("${entity.index.pagesize:10000}")
+	int idIndexPageSize;
 
 	boolean directDB = true;
 	@Autowired
@@ -138,7 +141,7 @@ public class EntityService {
 
 	LocalDateTime start;
 	LocalDateTime end;
-	private ArrayListMultimap<String, String> entityIds = ArrayListMultimap.create();
+	private EntityIdIndex entityIds;
 
 	private final static Logger logger = LogManager.getLogger(EntityService.class);
 
@@ -157,16 +160,22 @@ public class EntityService {
 	// construct in-memory
 	@PostConstruct
 	private void loadStoredEntitiesDetails() throws ResponseException {
-		synchronized (this.entityIds) {
-			this.entityIds = entityInfoDAO.getAllIds();
-		}
+		this.entityIds = new EntityIdIndex(entityInfoDAO, idIndexPageSize);
+		this.entityIds.start();
 		/*
 		 * Map<String, EntityDetails> entities =
 		 * this.operations.getAllEntitiesDetails();
 		 * logger.trace("filling in-memory hashmap started:"); for (EntityDetails entity
 		 * : entities.values()) { logger.trace("key :: " + entity.getKey());
 		 * entityTopicMap.put(entity.getKey(), entity); }
-		 */logger.trace("filling in-memory hashmap completed:");
+		 */logger.trace("filling in-memory hashmap started in the background");
+	}
+
+	@PreDestroy
+	private void stopLoadingEntityIds() {
+		if (this.entityIds != null) {
+			this.entityIds.shutdown();
+		}
 	}
 
 	/**
@@ -187,11 +196,8 @@ public class EntityService {
 
 		String tenantId = HttpUtils.getInternalTenant(headers);
 
-		synchronized (this.entityIds) {
-			if (this.entityIds.containsEntry(tenantId, request.getId())) {
-				throw new ResponseException(ErrorType.AlreadyExists);
-			}
-			this.entityIds.put(tenantId, request.getId());
+		if (!this.entityIds.add(tenantId, request.getId())) {
+			throw new ResponseException(ErrorType.AlreadyExists);
 		}
 		pushToDB(request);
 		new Thread() {
@@ -331,12 +337,9 @@ public class EntityService {
 		if (entityId == null) {
 			throw new ResponseException(ErrorType.BadRequestData);
 		}
-		synchronized (this.entityIds) {
-			if (!this.entityIds.containsKey(tenantId)) {
-				throw new ResponseException(ErrorType.TenantNotFound);
-			} if (!this.entityIds.containsValue(entityId)) {
-				throw new ResponseException(ErrorType.NotFound);
-			}
+		// throws TenantNotFound for unknown tenants
+		if (!this.entityIds.contains(tenantId, entityId)) {
+			throw new ResponseException(ErrorType.NotFound);
 		}
 		String entityBody = null;
 		if (directDB) {
@@ -354,13 +357,8 @@ public class EntityService {
 			throw new ResponseException(ErrorType.BadRequestData);
 		}
 		String tenantId = HttpUtils.getInternalTenant(headers);
-		synchronized (this.entityIds) {
-
-			if (!this.entityIds.containsEntry(tenantId, entityId)) {
-				throw new ResponseException(ErrorType.NotFound);
-			}
-			this.entityIds.remove(tenantId, entityId);
-
+		if (!this.entityIds.remove(tenantId, entityId)) {
+			throw new ResponseException(ErrorType.NotFound);
 		}
 		EntityRequest request = new DeleteEntityRequest(entityId, headers);
 		if (directDB) {
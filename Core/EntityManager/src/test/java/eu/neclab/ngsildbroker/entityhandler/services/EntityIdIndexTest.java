@@ -0,0 +1,122 @@
+package eu.neclab.ngsildbroker.entityhandler.services;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import eu.neclab.ngsildbroker.commons.constants.AppConstants;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+public class EntityIdIndexTest {
+
+	private static final String TENANT = AppConstants.INTERNAL_NULL_KEY;
+
+	private EntityIdIndex index;
+
+	@After
+	public void tearDown() {
+		index.shutdown();
+	}
+
+	/**
+	 * ids of the default tenant, the first page is held back until release is
+	 * counted down
+	 */
+	private static class TestSource implements EntityIdIndex.IdSource {
+		final TreeSet<String> ids = new TreeSet<String>();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public List<String> getTenantIds() {
+			return new ArrayList<String>();
+		}
+
+		@Override
+		public List<String> getIdPage(String tenant, String afterId, int limit) throws ResponseException {
+			if (!TENANT.equals(tenant)) {
+				throw new ResponseException(ErrorType.TenantNotFound);
+			}
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			List<String> result = new ArrayList<String>();
+			for (String id : afterId == null ? ids : ids.tailSet(afterId, false)) {
+				if (result.size() == limit) {
+					break;
+				}
+				result.add(id);
+			}
+			return result;
+		}
+
+		@Override
+		public boolean exists(String tenant, String id) throws ResponseException {
+			if (!TENANT.equals(tenant)) {
+				throw new ResponseException(ErrorType.TenantNotFound);
+			}
+			return ids.contains(id);
+		}
+	}
+
+	private static void awaitLoaded(EntityIdIndex index, String tenant) throws InterruptedException {
+		for (int i = 0; i < 500 && !index.isLoaded(tenant); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(index.isLoaded(tenant));
+	}
+
+	@Test
+	public void loadTest() throws Exception {
+		TestSource source = new TestSource();
+		source.ids.addAll(Arrays.asList("urn:a", "urn:b", "urn:c", "urn:d", "urn:e"));
+		index = new EntityIdIndex(source, 2);
+		index.start();
+
+		// answered from the database while the load is held back
+		assertTrue(index.contains(TENANT, "urn:c"));
+		assertFalse(index.add(TENANT, "urn:b"));
+		assertTrue(index.add(TENANT, "urn:f"));
+		assertTrue(index.remove(TENANT, "urn:d"));
+		source.ids.remove("urn:d");
+		assertFalse(index.contains(TENANT, "urn:d"));
+
+		source.release.countDown();
+		awaitLoaded(index, TENANT);
+		source.ids.clear();
+		assertTrue(index.contains(TENANT, "urn:a"));
+		assertTrue(index.contains(TENANT, "urn:e"));
+		assertTrue(index.contains(TENANT, "urn:f"));
+		assertFalse(index.contains(TENANT, "urn:d"));
+		assertTrue(index.remove(TENANT, "urn:a"));
+		assertFalse(index.remove(TENANT, "urn:a"));
+	}
+
+	@Test
+	public void unknownTenantTest() throws Exception {
+		TestSource source = new TestSource();
+		source.release.countDown();
+		index = new EntityIdIndex(source, 10);
+		try {
+			index.contains("tenant1", "urn:a");
+			throw new AssertionError("tenant should not be found");
+		} catch (ResponseException e) {
+			assertTrue(e.getError() == ErrorType.TenantNotFound);
+		}
+		// the first entity creates the tenant
+		assertTrue(index.add("tenant1", "urn:a"));
+		awaitLoaded(index, "tenant1");
+		assertTrue(index.contains("tenant1", "urn:a"));
+		assertFalse(index.add("tenant1", "urn:a"));
+	}
+}
@@ -73,6 +73,8 @@ public class EntityServiceTest {
 	public void setUp() throws Exception {
 		MockitoAnnotations.initMocks(this);
 		ReflectionTestUtils.setField(entityService, "appendOverwriteFlag", "noOverwrite");
+		ReflectionTestUtils.setField(entityService, "entityIds",
+				new EntityIdIndex(Mockito.mock(EntityIdIndex.IdSource.class), 100));
 		ObjectMapper objectMapper=new ObjectMapper();
 		
 		//@formatter:off
@@ -9,10 +9,11 @@ import eu.neclab.ngsildbroker.commons.securityConfig.ResourceConfigDetails;
 import eu.neclab.ngsildbroker.commons.securityConfig.SecurityConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaConfig;
 import eu.neclab.ngsildbroker.commons.swaggerConfig.SwaggerConfigDetails;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
 
 
 @SpringBootApplication
-@Import({KafkaConfig.class, SwaggerConfigDetails.class})
+@Import({KafkaConfig.class, SwaggerConfigDetails.class, HttpClientConfig.class})
 public class InfoServer {// implements QueryHandlerInterface{
 
 	public static void main(String[] args) {
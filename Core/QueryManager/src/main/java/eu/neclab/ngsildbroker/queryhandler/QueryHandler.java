@@ -6,6 +6,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.stream.annotation.EnableBinding;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
 import eu.neclab.ngsildbroker.commons.ldcontext.AtContextProducerChannel;
@@ -17,12 +18,14 @@ import eu.neclab.ngsildbroker.commons.securityConfig.SecurityConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.swaggerConfig.SwaggerConfigDetails;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
+import eu.neclab.ngsildbroker.commons.tools.PooledHttpClient;
 import eu.neclab.ngsildbroker.queryhandler.config.QueryProducerChannel;
 
 
 
 @SpringBootApplication
-@Import({KafkaConfig.class, SwaggerConfigDetails.class})
+@Import({KafkaConfig.class, SwaggerConfigDetails.class, HttpClientConfig.class})
 @EnableBinding({ AtContextProducerChannel.class, QueryProducerChannel.class})
 
 public class QueryHandler {// implements QueryHandlerInterface{
@@ -46,9 +49,16 @@ public class QueryHandler {// implements QueryHandlerInterface{
 	}
 	
 	
+	@Value("${federation.timeout:3000}")
+	int federationTimeout;
+
 	@Bean("qmrestTemp")
-	RestTemplate restTemp() {
-		return new RestTemplate();
+	RestTemplate restTemp(PooledHttpClient pooledHttpClient) {
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(
+				pooledHttpClient.getClient());
+		// a context source query is abandoned after the federation timeout anyway
+		requestFactory.setReadTimeout(federationTimeout);
+		return new RestTemplate(requestFactory);
 	}
 	
 	@Bean("qmsecurityConfig")
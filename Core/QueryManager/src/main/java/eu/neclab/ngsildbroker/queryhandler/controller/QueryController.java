@@ -63,6 +63,9 @@ public class QueryController {// implements QueryHandlerInterface {
 	@Value("${ngb.debugmode}")
 	boolean debug = false;
 
+	@Value("${query.streaming:true}")
+	boolean streamResults = true;
+
 	private HttpUtils httpUtils;
 
 	private final byte[] emptyResult1 = { '{', ' ', '}' };
@@ -90,8 +93,8 @@ public class QueryController {// implements QueryHandlerInterface {
 		String originalQuery = NGSIConstants.QUERY_PARAMETER_ID + "=" + entityId;
 		HashMap<String, String[]> paramMap = new HashMap<String, String[]>();
 		paramMap.put(NGSIConstants.QUERY_PARAMETER_ID, new String[] { entityId });
-		ResponseEntity<byte[]> result = getQueryData(request, originalQuery, paramMap, attrs, null, null, null, options,
-				false, true, false);
+		ResponseEntity<byte[]> result = getQueryData(request, originalQuery, paramMap, attrs, null, null, null, null,
+				options, false, true, false);
 		if (Arrays.equals(emptyResult1, result.getBody()) || Arrays.equals(emptyResult2, result.getBody())) {
 			return ResponseEntity.status(HttpStatus.NOT_FOUND)
 					.body(new RestResponse(ErrorType.NotFound, "Resource not found.").toJsonBytes());
@@ -144,17 +147,21 @@ public class QueryController {// implements QueryHandlerInterface {
 	 * @return ResponseEntity object
 	 */
 	@GetMapping("/entities")
-	public ResponseEntity<byte[]> getAllEntity(HttpServletRequest request,
+	public ResponseEntity<?> getAllEntity(HttpServletRequest request,
 			@RequestParam(value = "attrs", required = false) List<String> attrs,
 			@RequestParam(value = "limit", required = false) Integer limit,
 			@RequestParam(value = "offset", required = false) Integer offset,
 			@RequestParam(value = "qtoken", required = false) String qToken,
+			@RequestParam(value = "cursor", required = false) String cursor,
 			@RequestParam(name = "options", required = false) List<String> options,
 			@RequestParam(name = "services", required = false) Boolean showServices,
 			@RequestParam(value = "count", required = false, defaultValue = "false") boolean count) {
-		
+		if (streamResults && qToken == null && cursor == null && !count && showServices == null
+				&& request.getQueryString() != null) {
+			return streamQueryData(request, attrs, limit, offset, options);
+		}
 		return getQueryData(request, request.getQueryString(), request.getParameterMap(), attrs, limit, offset, qToken,
-				options, showServices, false, count);
+				cursor, options, showServices, false, count);
 	}
 
 	@GetMapping(path = "/types")
@@ -162,7 +169,7 @@ public class QueryController {// implements QueryHandlerInterface {
 			@RequestParam(value = "details", required = false, defaultValue = "false") boolean details) {
 		
 		ResponseEntity<byte[]> result = getQueryData(request, null, request.getParameterMap(), null, null, null, null,
-				null, false, true, false);
+				null, null, false, true, false);
 		if (Arrays.equals(emptyResult1, result.getBody()) || Arrays.equals(emptyResult2, result.getBody())) {
 			return ResponseEntity.status(HttpStatus.NOT_FOUND)
 					.body(new RestResponse(ErrorType.NotFound, "Resource not found.").toJsonBytes());
@@ -176,7 +183,7 @@ public class QueryController {// implements QueryHandlerInterface {
 		ArrayList<String> types = new ArrayList<String>();
 		types.add(type);
 		ResponseEntity<byte[]> result = getQueryData(request, null, request.getParameterMap(), types, null, null, null,
-				null, false, true, false);
+				null, null, false, true, false);
 		if (Arrays.equals(emptyResult1, result.getBody()) || Arrays.equals(emptyResult2, result.getBody())) {
 			return ResponseEntity.status(HttpStatus.NOT_FOUND)
 					.body(new RestResponse(ErrorType.NotFound, "Resource not found.").toJsonBytes());
@@ -189,7 +196,7 @@ public class QueryController {// implements QueryHandlerInterface {
 			@RequestParam(value = "details", required = false, defaultValue = "false") boolean details) {
 		
 		ResponseEntity<byte[]> result = getQueryData(request, null, request.getParameterMap(), null, null, null, null,
-				null, false, true, false);
+				null, null, false, true, false);
 		if (Arrays.equals(emptyResult1, result.getBody()) || Arrays.equals(emptyResult2, result.getBody())) {
 			return ResponseEntity.status(HttpStatus.NOT_FOUND)
 					.body(new RestResponse(ErrorType.NotFound, "Resource not found.").toJsonBytes());
@@ -204,7 +211,7 @@ public class QueryController {// implements QueryHandlerInterface {
 		ArrayList<String> types = new ArrayList<String>();
 		types.add(attributes);
 		ResponseEntity<byte[]> result = getQueryData(request, null, request.getParameterMap(), types, null, null, null,
-				null, false, true, false);
+				null, null, false, true, false);
 		if (Arrays.equals(emptyResult1, result.getBody()) || Arrays.equals(emptyResult2, result.getBody())) {
 			return ResponseEntity.status(HttpStatus.NOT_FOUND)
 					.body(new RestResponse(ErrorType.NotFound, "Resource not found.").toJsonBytes());
@@ -214,7 +221,7 @@ public class QueryController {// implements QueryHandlerInterface {
 
 	private ResponseEntity<byte[]> getQueryData(HttpServletRequest request, String originalQueryParams,
 			Map<String, String[]> paramMap, List<String> attrs, Integer limit, Integer offset, String qToken,
-			List<String> options, Boolean showServices, boolean retrieve, Boolean countResult) {
+			String cursor, List<String> options, Boolean showServices, boolean retrieve, Boolean countResult) {
 		//long start = System.currentTimeMillis();
 		String tenantid = request.getHeader(NGSIConstants.TENANT_HEADER);
 		
@@ -240,27 +247,8 @@ public class QueryController {// implements QueryHandlerInterface {
 					if (originalQueryParams != null) {
 						originalQueryParams = URLDecoder.decode(originalQueryParams, NGSIConstants.ENCODE_FORMAT);
 					}
-					QueryParams qp = paramsResolver.getQueryParamsFromUriQuery(paramMap, linkHeaders);
-					if (qp == null) // invalid query
-						throw new ResponseException(ErrorType.InvalidRequest);
-					qp.setTenant(tenantid);
-					qp.setKeyValues(
-							(options != null && options.contains(NGSIConstants.QUERY_PARAMETER_OPTIONS_KEYVALUES)));
-					qp.setIncludeSysAttrs(
-							(options != null && options.contains(NGSIConstants.QUERY_PARAMETER_OPTIONS_SYSATTRS)));
-					if (attrs != null) {
-						ArrayList<String> expandedAttrs = new ArrayList<String>();
-						for (String attrib : attrs) {
-							try {
-								expandedAttrs.add(paramsResolver.expandAttribute(attrib, linkHeaders));
-							} catch (ResponseException exception) {
-								continue;
-							}
-						}
-						qp.setAttrs(String.join(",", expandedAttrs));
-					}
-
-					checkParamsForValidity(qp);
+					QueryParams qp = getQueryParams(paramMap, linkHeaders, attrs, options, tenantid);
+					qp.setCursor(cursor);
 					//long pregenheades = System.currentTimeMillis();
 					ArrayListMultimap<String, String> headers = HttpUtils.getHeaders(request);
 					//long postgenheaders = System.currentTimeMillis();
@@ -316,6 +304,79 @@ public class QueryController {// implements QueryHandlerInterface {
 		}
 	}
 
+	/**
+	 * Streams the result of an entity query directly into the response instead of
+	 * building the full reply in memory.
+	 */
+	private ResponseEntity<?> streamQueryData(HttpServletRequest request, List<String> attrs, Integer limit,
+			Integer offset, List<String> options) {
+		String tenantid = request.getHeader(NGSIConstants.TENANT_HEADER);
+		if (limit == null) {
+			limit = defaultLimit;
+		}
+		if (offset == null) {
+			offset = 0;
+		}
+		try {
+			if (limit == 0) {
+				return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+			}
+			List<Object> linkHeaders = HttpUtils.parseLinkHeader(request, NGSIConstants.HEADER_REL_LDCONTEXT);
+			Validator.validate(request.getParameterMap(), maxLimit, false);
+			String originalQueryParams = URLDecoder.decode(request.getQueryString(), NGSIConstants.ENCODE_FORMAT);
+			QueryParams qp = getQueryParams(request.getParameterMap(), linkHeaders, attrs, options, tenantid);
+			ArrayListMultimap<String, String> headers = HttpUtils.getHeaders(request);
+			// the same links as the buffered reply, there are no results after the
+			// streamed ones
+			QueryResult page = new QueryResult(null, null, ErrorType.None, -1, true);
+			page.setLimit(limit);
+			page.setOffset(offset);
+			page.setResultsLeftBefore(offset);
+			page.setResultsLeftAfter(0);
+			ArrayList<String> links = new ArrayList<String>();
+			String prevLink = HttpUtils.generatePrevLink(request, page);
+			if (prevLink != null) {
+				links.add(prevLink);
+			}
+			HashMap<String, List<String>> additionalHeaders = new HashMap<String, List<String>>();
+			if (!links.isEmpty()) {
+				additionalHeaders.put(HttpHeaders.LINK, links);
+			}
+			return httpUtils.generateStreamingReply(request,
+					queryService.getDataStream(qp, originalQueryParams, limit, offset, headers), additionalHeaders);
+		} catch (ResponseException exception) {
+			logger.error("Exception ::", exception);
+			return ResponseEntity.status(exception.getHttpStatus()).body(new RestResponse(exception).toJsonBytes());
+		} catch (Exception exception) {
+			logger.error("Exception ::", exception);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+					.body(new RestResponse(ErrorType.InternalError, exception.getLocalizedMessage()).toJsonBytes());
+		}
+	}
+
+	private QueryParams getQueryParams(Map<String, String[]> paramMap, List<Object> linkHeaders, List<String> attrs,
+			List<String> options, String tenantid) throws ResponseException {
+		QueryParams qp = paramsResolver.getQueryParamsFromUriQuery(paramMap, linkHeaders);
+		if (qp == null) // invalid query
+			throw new ResponseException(ErrorType.InvalidRequest);
+		qp.setTenant(tenantid);
+		qp.setKeyValues((options != null && options.contains(NGSIConstants.QUERY_PARAMETER_OPTIONS_KEYVALUES)));
+		qp.setIncludeSysAttrs((options != null && options.contains(NGSIConstants.QUERY_PARAMETER_OPTIONS_SYSATTRS)));
+		if (attrs != null) {
+			ArrayList<String> expandedAttrs = new ArrayList<String>();
+			for (String attrib : attrs) {
+				try {
+					expandedAttrs.add(paramsResolver.expandAttribute(attrib, linkHeaders));
+				} catch (ResponseException exception) {
+					continue;
+				}
+			}
+			qp.setAttrs(String.join(",", expandedAttrs));
+		}
+		checkParamsForValidity(qp);
+		return qp;
+	}
+
 	private void checkParamsForValidity(QueryParams qp) throws ResponseException {
 		if (qp.getGeometry() != null && !qp.getGeometry().isEmpty()) {
 			if (!NGSIConstants.ALLOWED_GEOMETRIES.contains(qp.getGeometry())) {
@@ -352,6 +413,9 @@ public class QueryController {// implements QueryHandlerInterface {
 		if (!additionalLinks.isEmpty()) {
 			additionalHeaders.put(HttpHeaders.LINK, additionalLinks);
 		}
+		if (qResult.isPartial()) {
+			additionalHeaders.put(HttpHeaders.WARNING, Arrays.asList(NGSIConstants.PARTIAL_RESULT_WARNING));
+		}
 		return httpUtils.generateReply(request, "[" + String.join(",", qResult.getDataString()) + "]",
 				additionalHeaders, null, forceArray);
 	}	
@@ -3,12 +3,14 @@ package eu.neclab.ngsildbroker.queryhandler.repository;
 import java.sql.SQLException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Repository;
 
 import eu.neclab.ngsildbroker.commons.constants.DBConstants;
@@ -53,17 +55,37 @@ public class CSourceDAO extends StorageReaderDAO {
 		return Collections.unmodifiableMap(map);
 	}
 
-	private boolean externalCsourcesOnly = false;
+	// the dao is shared by all requests, the flag is per request
+	private final ThreadLocal<Boolean> externalCsourcesOnly = ThreadLocal.withInitial(() -> false);
 
 	@Override
 	public QueryResult query(QueryParams qp) throws ResponseException {
-		this.externalCsourcesOnly = false;
+		this.externalCsourcesOnly.set(false);
 		return super.query(qp);
 	}
 
 	public QueryResult queryExternalCsources(QueryParams qp) throws SQLException, ResponseException {
-		this.externalCsourcesOnly = true;
-		return super.query(qp);
+		this.externalCsourcesOnly.set(true);
+		try {
+			return super.query(qp);
+		} finally {
+			this.externalCsourcesOnly.set(false);
+		}
+	}
+
+	/**
+	 * Method used for reading all external registrations of a tenant.
+	 *
+	 * @param tenant
+	 * @return Map<String, String> registration id to registration
+	 * @throws ResponseException if the tenant is not found
+	 */
+	public Map<String, String> getExternalCsources(String tenant) throws ResponseException {
+		LinkedHashMap<String, String> id2Data = new LinkedHashMap<String, String>();
+		getJDBCTemplate(getTenant(tenant)).query(
+				"SELECT id, data FROM " + DBConstants.DBTABLE_CSOURCE + " WHERE internal = false AND data IS NOT NULL",
+				(RowCallbackHandler) rs -> id2Data.put(rs.getString(1), rs.getString(2)));
+		return id2Data;
 	}
 
 	@Override
@@ -73,7 +95,7 @@ public class CSourceDAO extends StorageReaderDAO {
 		boolean csourceInformationIsNeeded = false;
 		boolean sqlOk = false;
 
-		if (externalCsourcesOnly) {
+		if (externalCsourcesOnly.get()) {
 			fullSqlWhere.append("(c.internal = false) AND ");
 		}
 
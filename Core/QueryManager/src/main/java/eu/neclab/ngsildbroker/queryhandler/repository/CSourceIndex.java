@@ -0,0 +1,615 @@
+package eu.neclab.ngsildbroker.queryhandler.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import eu.neclab.ngsildbroker.commons.constants.AppConstants;
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.datatypes.GeoqueryRel;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
+
+/**
+ * In-memory index of the external context source registrations per tenant,
+ * used to find the registrations a query has to be forwarded to without a
+ * database round trip. It follows the matching of
+ * {@link CSourceDAO#queryExternalCsources(QueryParams)}: the elements of
+ * information are indexed by entity type and attribute, ids and id patterns
+ * are checked on the candidates. The location of a registration is kept as
+ * bounding box and geo queries are matched on the boxes, which gives a
+ * superset of the exact PostGIS relation; the context sources apply the geo
+ * query themselves.
+ */
+public class CSourceIndex {
+
+	private final static Logger logger = LogManager.getLogger(CSourceIndex.class);
+
+	private static final double METERS_PER_DEGREE = 111320;
+
+	private final ConcurrentHashMap<String, TenantIndex> tenant2Index = new ConcurrentHashMap<String, TenantIndex>();
+
+	private static String key(String tenant) {
+		return tenant == null ? AppConstants.INTERNAL_NULL_KEY : tenant;
+	}
+
+	private static String tenant(String key) {
+		return AppConstants.INTERNAL_NULL_KEY.equals(key) ? null : key;
+	}
+
+	public boolean isLoaded(String tenant) {
+		TenantIndex index = tenant2Index.get(key(tenant));
+		return index != null && index.loaded;
+	}
+
+	/**
+	 * @return tenants which have been loaded, null for the default tenant
+	 */
+	public List<String> getLoadedTenants() {
+		List<String> result = new ArrayList<String>();
+		for (Entry<String, TenantIndex> entry : tenant2Index.entrySet()) {
+			if (entry.getValue().loaded) {
+				result.add(tenant(entry.getKey()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Method used for announcing a (re)load of a tenant. Changes which arrive
+	 * from now on are applied and win over the loaded registrations, as the
+	 * database might not contain them yet.
+	 *
+	 * @param tenant
+	 * @return stamp to hand to {@link #load(String, Map, long)}
+	 */
+	public long beginLoad(String tenant) {
+		return tenant2Index.computeIfAbsent(key(tenant), k -> new TenantIndex()).beginLoad();
+	}
+
+	/**
+	 * Method used for replacing the registrations of a tenant.
+	 *
+	 * @param tenant
+	 * @param id2Data registration id to the registration as stored in the
+	 *                database
+	 * @param stamp   from {@link #beginLoad(String)}
+	 */
+	public void load(String tenant, Map<String, String> id2Data, long stamp) {
+		tenant2Index.computeIfAbsent(key(tenant), k -> new TenantIndex()).load(id2Data, stamp);
+	}
+
+	/**
+	 * Method used for adding or replacing a registration. Changes of tenants
+	 * which have not been loaded are ignored, they are read with the load.
+	 *
+	 * @param tenant
+	 * @param id
+	 * @param data   the registration, null if it has been deleted
+	 */
+	public void put(String tenant, String id, String data) {
+		TenantIndex index = tenant2Index.get(key(tenant));
+		if (index != null) {
+			index.put(id, data);
+		}
+	}
+
+	public void remove(String tenant, String id) {
+		put(tenant, id, null);
+	}
+
+	/**
+	 * Method used for applying a registration change as it is published on the
+	 * csource topic.
+	 *
+	 * @param tenant
+	 * @param id
+	 * @param registration the registration, null or JSON null if it has been
+	 *                     deleted
+	 */
+	public void update(String tenant, String id, JsonElement registration) {
+		if (registration == null || registration.isJsonNull()) {
+			remove(tenant, id);
+		} else {
+			put(tenant, id, registration.toString());
+		}
+	}
+
+	/**
+	 * Method used for finding the external registrations of the tenant of the
+	 * query which match the query.
+	 *
+	 * @param qp
+	 * @return List<String> registrations as stored in the database
+	 */
+	public List<String> query(QueryParams qp) {
+		TenantIndex index = tenant2Index.get(key(qp.getTenant()));
+		if (index == null) {
+			return new ArrayList<String>();
+		}
+		return index.query(qp);
+	}
+
+	private static class EntityInfo {
+		private final String id;
+		private final String type;
+		private final String idPattern;
+		private final Pattern compiledIdPattern;
+
+		EntityInfo(String id, String type, String idPattern) {
+			this.id = id;
+			this.type = type;
+			this.idPattern = idPattern;
+			this.compiledIdPattern = compile(idPattern);
+		}
+
+		boolean matches(Set<String> types, List<String> ids, Pattern queryIdPattern) {
+			if (!types.contains(type)) {
+				return false;
+			}
+			if ((ids.isEmpty() && queryIdPattern == null) || (id == null && idPattern == null)) {
+				return true;
+			}
+			if (!ids.isEmpty()) {
+				if (id != null) {
+					return ids.contains(id);
+				}
+				if (compiledIdPattern != null) {
+					for (String queryId : ids) {
+						if (compiledIdPattern.matcher(queryId).find()) {
+							return true;
+						}
+					}
+				}
+				return false;
+			}
+			return (id != null && queryIdPattern.matcher(id).find())
+					|| (idPattern != null && queryIdPattern.matcher(idPattern).find());
+		}
+	}
+
+	private static class Group {
+		private final Registration registration;
+		private final List<EntityInfo> entities = new ArrayList<EntityInfo>();
+		private final Set<String> attrs = new HashSet<String>();
+
+		Group(Registration registration) {
+			this.registration = registration;
+		}
+
+		boolean providesAttrs(Set<String> queryAttrs) {
+			if (queryAttrs.isEmpty() || attrs.isEmpty()) {
+				return true;
+			}
+			for (String attr : queryAttrs) {
+				if (attrs.contains(attr)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Registration {
+		private final String data;
+		private final List<Group> groups = new ArrayList<Group>();
+		// minX, minY, maxX, maxY of the location
+		private double[] bounds;
+
+		Registration(String data) {
+			this.data = data;
+		}
+	}
+
+	private static class TenantIndex {
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final LinkedHashMap<String, Registration> id2Registration = new LinkedHashMap<String, Registration>();
+		private final HashMap<String, Set<Group>> type2Groups = new HashMap<String, Set<Group>>();
+		private final HashMap<String, Set<Group>> attr2Groups = new HashMap<String, Set<Group>>();
+		private final Set<Group> attrsOnlyGroups = new LinkedHashSet<Group>();
+		// sequence number of the last change per registration id
+		private final HashMap<String, Long> id2Change = new HashMap<String, Long>();
+		private long changeCount = 0;
+		private volatile boolean loaded = false;
+
+		long beginLoad() {
+			lock.writeLock().lock();
+			try {
+				return changeCount;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void load(Map<String, String> id2Data, long stamp) {
+			lock.writeLock().lock();
+			try {
+				LinkedHashMap<String, Registration> changed = new LinkedHashMap<String, Registration>();
+				for (Entry<String, Long> entry : id2Change.entrySet()) {
+					if (entry.getValue() > stamp) {
+						changed.put(entry.getKey(), id2Registration.get(entry.getKey()));
+					}
+				}
+				id2Registration.clear();
+				type2Groups.clear();
+				attr2Groups.clear();
+				attrsOnlyGroups.clear();
+				id2Change.keySet().retainAll(changed.keySet());
+				for (Entry<String, String> entry : id2Data.entrySet()) {
+					if (!changed.containsKey(entry.getKey())) {
+						add(entry.getKey(), parse(entry.getKey(), entry.getValue()));
+					}
+				}
+				for (Entry<String, Registration> entry : changed.entrySet()) {
+					add(entry.getKey(), entry.getValue());
+				}
+				loaded = true;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void put(String id, String data) {
+			// parse outside of the lock
+			Registration registration = data == null ? null : parse(id, data);
+			lock.writeLock().lock();
+			try {
+				removeGroups(id2Registration.remove(id));
+				add(id, registration);
+				id2Change.put(id, ++changeCount);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private void add(String id, Registration registration) {
+			if (registration == null) {
+				return;
+			}
+			id2Registration.put(id, registration);
+			for (Group group : registration.groups) {
+				for (EntityInfo entity : group.entities) {
+					type2Groups.computeIfAbsent(entity.type, k -> new LinkedHashSet<Group>()).add(group);
+				}
+				for (String attr : group.attrs) {
+					attr2Groups.computeIfAbsent(attr, k -> new LinkedHashSet<Group>()).add(group);
+				}
+				if (group.entities.isEmpty()) {
+					attrsOnlyGroups.add(group);
+				}
+			}
+		}
+
+		private void removeGroups(Registration registration) {
+			if (registration == null) {
+				return;
+			}
+			for (Group group : registration.groups) {
+				for (EntityInfo entity : group.entities) {
+					removeFrom(type2Groups, entity.type, group);
+				}
+				for (String attr : group.attrs) {
+					removeFrom(attr2Groups, attr, group);
+				}
+				attrsOnlyGroups.remove(group);
+			}
+		}
+
+		private static void removeFrom(HashMap<String, Set<Group>> key2Groups, String key, Group group) {
+			Set<Group> groups = key2Groups.get(key);
+			if (groups != null) {
+				groups.remove(group);
+				if (groups.isEmpty()) {
+					key2Groups.remove(key);
+				}
+			}
+		}
+
+		List<String> query(QueryParams qp) {
+			List<String> result = new ArrayList<String>();
+			if (qp.getQ() != null) {
+				logger.error("'q' filter has not been developed yet in csource discovery!");
+				return result;
+			}
+			List<Map<String, String>> entities = qp.getEntities();
+			boolean hasEntities = entities != null && !entities.isEmpty();
+			Set<String> attrs = new HashSet<String>(split(qp.getAttrs()));
+			GeoFilter geoFilter = null;
+			if (qp.getGeorel() != null) {
+				try {
+					geoFilter = new GeoFilter(qp);
+				} catch (RuntimeException e) {
+					logger.error("georel, geometry and coordinates are empty or invalid!", e);
+					return result;
+				}
+			}
+			if (!hasEntities && attrs.isEmpty() && geoFilter == null) {
+				return result;
+			}
+			LinkedHashSet<Registration> matches = new LinkedHashSet<Registration>();
+			lock.readLock().lock();
+			try {
+				if (hasEntities) {
+					for (Map<String, String> entityInfo : entities) {
+						Set<String> types = new HashSet<String>(split(entityInfo.get(NGSIConstants.JSON_LD_TYPE)));
+						List<String> ids = split(entityInfo.get(NGSIConstants.JSON_LD_ID));
+						// id takes precedence on idPattern
+						Pattern idPattern = ids.isEmpty() ? compile(entityInfo.get(NGSIConstants.NGSI_LD_ID_PATTERN))
+								: null;
+						if (ids.isEmpty() && idPattern == null
+								&& entityInfo.get(NGSIConstants.NGSI_LD_ID_PATTERN) != null) {
+							// invalid pattern
+							continue;
+						}
+						for (String type : types) {
+							for (Group group : type2Groups.getOrDefault(type, Collections.emptySet())) {
+								if (matches.contains(group.registration) || !group.providesAttrs(attrs)) {
+									continue;
+								}
+								for (EntityInfo entity : group.entities) {
+									if (entity.matches(types, ids, idPattern)) {
+										addIfInArea(matches, group.registration, geoFilter);
+										break;
+									}
+								}
+							}
+						}
+					}
+					// registration information about attributes of any entity
+					for (Group group : attrsOnlyGroups) {
+						if (group.providesAttrs(attrs)) {
+							addIfInArea(matches, group.registration, geoFilter);
+						}
+					}
+				} else if (!attrs.isEmpty()) {
+					for (String attr : attrs) {
+						for (Group group : attr2Groups.getOrDefault(attr, Collections.emptySet())) {
+							addIfInArea(matches, group.registration, geoFilter);
+						}
+					}
+				} else {
+					for (Registration registration : id2Registration.values()) {
+						addIfInArea(matches, registration, geoFilter);
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			for (Registration registration : matches) {
+				result.add(registration.data);
+			}
+			return result;
+		}
+
+		private static void addIfInArea(Set<Registration> matches, Registration registration, GeoFilter geoFilter) {
+			if (geoFilter == null || geoFilter.matches(registration)) {
+				matches.add(registration);
+			}
+		}
+	}
+
+	/**
+	 * Geo query on the bounding boxes of the registrations.
+	 */
+	private static class GeoFilter {
+		private final boolean onLocation;
+		// relations which can hold for registrations outside of the query area
+		private final boolean anyLocation;
+		private final double[] bounds;
+
+		GeoFilter(QueryParams qp) {
+			GeoqueryRel georel = qp.getGeorel();
+			if (georel.getGeorelOp() == null || georel.getGeorelOp().isEmpty() || qp.getGeometry() == null
+					|| qp.getCoordinates() == null || qp.getCoordinates().isEmpty()) {
+				throw new IllegalArgumentException("georel, geometry and coordinates are required");
+			}
+			String geoproperty = qp.getGeoproperty();
+			this.onLocation = geoproperty == null || geoproperty.isEmpty()
+					|| NGSIConstants.NGSI_LD_LOCATION.equals(geoproperty);
+			double[] queryBounds = boundingBox(new JsonParser().parse(qp.getCoordinates()));
+			if (queryBounds == null) {
+				throw new IllegalArgumentException("no coordinates in " + qp.getCoordinates());
+			}
+			switch (georel.getGeorelOp()) {
+			case NGSIConstants.GEO_REL_DISJOINT:
+				anyLocation = true;
+				break;
+			case NGSIConstants.GEO_REL_NEAR:
+				if (georel.getDistanceType() == null || georel.getDistanceValue() == null) {
+					throw new IllegalArgumentException("Type and distance are required for near relation");
+				}
+				anyLocation = NGSIConstants.GEO_REL_MIN_DISTANCE.equals(georel.getDistanceType());
+				if (!anyLocation) {
+					queryBounds = expand(queryBounds, Double.parseDouble(georel.getDistanceValue()));
+				}
+				break;
+			default:
+				anyLocation = false;
+			}
+			this.bounds = queryBounds;
+		}
+
+		boolean matches(Registration registration) {
+			if (!onLocation) {
+				// only the location of registrations is indexed
+				return true;
+			}
+			double[] other = registration.bounds;
+			if (other == null) {
+				return false;
+			}
+			return anyLocation || (other[0] <= bounds[2] && bounds[0] <= other[2] && other[1] <= bounds[3]
+					&& bounds[1] <= other[3]);
+		}
+
+		private static double[] expand(double[] bounds, double meters) {
+			double latDelta = meters / METERS_PER_DEGREE;
+			double minY = Math.max(-90, bounds[1] - latDelta);
+			double maxY = Math.min(90, bounds[3] + latDelta);
+			double cos = Math.cos(Math.toRadians(Math.max(Math.abs(minY), Math.abs(maxY))));
+			if (cos < 1e-6) {
+				return new double[] { -180, minY, 180, maxY };
+			}
+			double lonDelta = meters / (METERS_PER_DEGREE * cos);
+			return new double[] { bounds[0] - lonDelta, minY, bounds[2] + lonDelta, maxY };
+		}
+	}
+
+	private static Registration parse(String id, String data) {
+		JsonObject json;
+		try {
+			json = new JsonParser().parse(data).getAsJsonObject();
+		} catch (RuntimeException e) {
+			logger.error("Failed to parse registration " + id, e);
+			return null;
+		}
+		JsonElement internal = firstValue(json, NGSIConstants.NGSI_LD_INTERNAL);
+		if (internal != null && internal.getAsBoolean()) {
+			return null;
+		}
+		Registration registration = new Registration(data);
+		JsonElement information = json.get(NGSIConstants.NGSI_LD_INFORMATION);
+		if (information != null && information.isJsonArray()) {
+			for (JsonElement infoElement : information.getAsJsonArray()) {
+				JsonObject info = infoElement.getAsJsonObject();
+				Group group = new Group(registration);
+				for (JsonElement entity : elements(info, NGSIConstants.NGSI_LD_ENTITIES)) {
+					JsonObject entityObj = entity.getAsJsonObject();
+					String entityId = entityObj.has(NGSIConstants.JSON_LD_ID)
+							? entityObj.get(NGSIConstants.JSON_LD_ID).getAsString()
+							: null;
+					JsonArray types = entityObj.has(NGSIConstants.JSON_LD_TYPE)
+							? entityObj.get(NGSIConstants.JSON_LD_TYPE).getAsJsonArray()
+							: null;
+					if (types == null || types.size() == 0) {
+						continue;
+					}
+					JsonElement idPattern = entityId == null ? firstValue(entityObj, NGSIConstants.NGSI_LD_ID_PATTERN)
+							: null;
+					group.entities.add(new EntityInfo(entityId, types.get(0).getAsString(),
+							idPattern == null ? null : idPattern.getAsString()));
+				}
+				for (JsonElement attr : elements(info, NGSIConstants.NGSI_LD_PROPERTIES)) {
+					group.attrs.add(attr.getAsJsonObject().get(NGSIConstants.JSON_LD_ID).getAsString());
+				}
+				for (JsonElement attr : elements(info, NGSIConstants.NGSI_LD_RELATIONSHIPS)) {
+					group.attrs.add(attr.getAsJsonObject().get(NGSIConstants.JSON_LD_ID).getAsString());
+				}
+				if (!group.entities.isEmpty() || !group.attrs.isEmpty()) {
+					registration.groups.add(group);
+				}
+			}
+		}
+		JsonElement location = firstValue(json, NGSIConstants.NGSI_LD_LOCATION);
+		if (location != null) {
+			try {
+				JsonObject geometry = location.isJsonPrimitive()
+						? new JsonParser().parse(location.getAsString()).getAsJsonObject()
+						: location.getAsJsonObject();
+				registration.bounds = boundingBox(geometry);
+			} catch (RuntimeException e) {
+				logger.warn("Invalid location in registration " + id);
+			}
+		}
+		return registration;
+	}
+
+	private static JsonArray elements(JsonObject json, String key) {
+		JsonElement element = json.get(key);
+		return element != null && element.isJsonArray() ? element.getAsJsonArray() : new JsonArray();
+	}
+
+	private static JsonElement firstValue(JsonObject json, String key) {
+		JsonArray values = elements(json, key);
+		if (values.size() == 0 || !values.get(0).isJsonObject()) {
+			return null;
+		}
+		return values.get(0).getAsJsonObject().get(NGSIConstants.JSON_LD_VALUE);
+	}
+
+	/**
+	 * Method used for calculating the bounding box of a GeoJSON geometry or of
+	 * its coordinates.
+	 *
+	 * @param geometry
+	 * @return double[] minX, minY, maxX, maxY or null if there are no
+	 *         coordinates
+	 */
+	static double[] boundingBox(JsonElement geometry) {
+		double[] bounds = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		addToBounds(geometry, bounds);
+		return bounds[0] > bounds[2] ? null : bounds;
+	}
+
+	private static void addToBounds(JsonElement element, double[] bounds) {
+		if (element.isJsonObject()) {
+			JsonObject geometry = element.getAsJsonObject();
+			if (geometry.has("coordinates")) {
+				addToBounds(geometry.get("coordinates"), bounds);
+			}
+			if (geometry.has("geometries")) {
+				addToBounds(geometry.get("geometries"), bounds);
+			}
+			return;
+		}
+		if (!element.isJsonArray()) {
+			return;
+		}
+		JsonArray array = element.getAsJsonArray();
+		if (array.size() >= 2 && array.get(0).isJsonPrimitive()) {
+			double x = array.get(0).getAsDouble();
+			double y = array.get(1).getAsDouble();
+			bounds[0] = Math.min(bounds[0], x);
+			bounds[1] = Math.min(bounds[1], y);
+			bounds[2] = Math.max(bounds[2], x);
+			bounds[3] = Math.max(bounds[3], y);
+			return;
+		}
+		for (JsonElement child : array) {
+			addToBounds(child, bounds);
+		}
+	}
+
+	private static List<String> split(String value) {
+		List<String> result = new ArrayList<String>();
+		if (value == null) {
+			return result;
+		}
+		for (String part : value.split(",")) {
+			if (!part.isBlank()) {
+				result.add(part.trim());
+			}
+		}
+		return result;
+	}
+
+	private static Pattern compile(String regex) {
+		if (regex == null || regex.isEmpty()) {
+			return null;
+		}
+		try {
+			return Pattern.compile(regex);
+		} catch (PatternSyntaxException e) {
+			logger.warn("Invalid id pattern " + regex);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package eu.neclab.ngsildbroker.queryhandler.services;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import eu.neclab.ngsildbroker.commons.constants.AppConstants;
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryResult;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
+import eu.neclab.ngsildbroker.queryhandler.repository.CSourceDAO;
+import eu.neclab.ngsildbroker.queryhandler.repository.CSourceIndex;
+
+/**
+ * Keeps the {@link CSourceIndex} of the query manager up to date. A tenant is
+ * read from the database on its first query, afterwards the registration
+ * changes are taken from the csource topic. Every instance consumes all
+ * changes (the consumer group is unique per instance). The loaded tenants are
+ * read again every csource.index.refresh ms to repair changes which were
+ * missed while a tenant was loaded.
+ */
+@Service
+public class CSourceIndexService {
+
+	private final static Logger logger = LoggerFactory.getLogger(CSourceIndexService.class);
+
+	@Autowired
+	@Qualifier("qmcsourcedao")
+	CSourceDAO cSourceDAO;
+
+	@Value("${csource.index.refresh:60000}")
+	long refreshInterval;
+
+	private final CSourceIndex index = new CSourceIndex();
+
+	private final Timer refreshTimer = new Timer("csource-index-refresh", true);
+
+	@PostConstruct
+	private void setup() {
+		try {
+			load(null);
+		} catch (Exception e) {
+			logger.warn("Failed to load the registrations, retrying with the first query", e);
+		}
+		if (refreshInterval > 0) {
+			refreshTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					refresh();
+				}
+			}, refreshInterval, refreshInterval);
+		}
+	}
+
+	@PreDestroy
+	private void deconstructor() {
+		refreshTimer.cancel();
+	}
+
+	/**
+	 * Method used for finding the external registrations matching a query.
+	 *
+	 * @param qp
+	 * @return QueryResult with the registrations as data
+	 * @throws ResponseException if the tenant is not found
+	 */
+	public QueryResult queryExternalCsources(QueryParams qp) throws ResponseException {
+		if (!index.isLoaded(qp.getTenant())) {
+			synchronized (this) {
+				if (!index.isLoaded(qp.getTenant())) {
+					load(qp.getTenant());
+				}
+			}
+		}
+		QueryResult result = new QueryResult(null, null, ErrorType.None, -1, true);
+		result.setActualDataString(index.query(qp));
+		return result;
+	}
+
+	@KafkaListener(topics = "${csource.source.topic:CONTEXT_SOURCE}")
+	public void listenCsource(Message<byte[]> message) {
+		String id = KafkaOps.getMessageKey(message);
+		try {
+			JsonObject request = new JsonParser().parse(new String(message.getPayload())).getAsJsonObject();
+			String tenant = null;
+			if (request.has("headers")) {
+				JsonObject headers = request.getAsJsonObject("headers");
+				if (headers.has(NGSIConstants.TENANT_HEADER)) {
+					tenant = headers.get(NGSIConstants.TENANT_HEADER).getAsString();
+				}
+			}
+			// deletes are published with "CSource": null
+			index.update(tenant, id, request.get(AppConstants.REQUEST_CSOURCE));
+		} catch (RuntimeException e) {
+			logger.error("Failed to index registration " + id, e);
+		}
+	}
+
+	private void load(String tenant) throws ResponseException {
+		long stamp = index.beginLoad(tenant);
+		index.load(tenant, cSourceDAO.getExternalCsources(tenant), stamp);
+	}
+
+	private void refresh() {
+		for (String tenant : index.getLoadedTenants()) {
+			try {
+				load(tenant);
+			} catch (Exception e) {
+				logger.warn("Failed to refresh the registrations of tenant " + tenant, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package eu.neclab.ngsildbroker.queryhandler.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.neclab.ngsildbroker.commons.datatypes.QueryResult;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Queries the registered context sources of a federated query in parallel on
+ * one bounded pool shared by all requests. Every context source has to answer
+ * within the timeout, results which are late or failed are left out of the
+ * result (partial result). Each context source has a circuit breaker: after
+ * failureThreshold consecutive failures it is not queried for openMillis,
+ * afterwards a single trial request decides whether it is used again.
+ */
+public class FederationEngine {
+
+	private final static Logger logger = LoggerFactory.getLogger(FederationEngine.class);
+
+	public static final String OUTCOME_TIMEOUT = "timeout";
+	public static final String OUTCOME_OPEN = "open";
+	public static final String OUTCOME_REJECTED = "rejected";
+
+	private final ThreadPoolExecutor executor;
+	private final long timeoutNanos;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final ConcurrentHashMap<String, CircuitBreaker> source2Breaker = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	public FederationEngine(int workerCount, int queueCapacity, long timeoutMs, int failureThreshold,
+			long openMs) {
+		if (workerCount < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("workerCount and queueCapacity have to be at least 1");
+		}
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "federation-worker-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.executor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+	}
+
+	/**
+	 * Method used for running a task on the shared pool. If the pool is
+	 * saturated the task is run in the calling thread.
+	 *
+	 * @param task
+	 * @return Future<T> of the task
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		try {
+			return executor.submit(task);
+		} catch (RejectedExecutionException e) {
+			FutureTask<T> future = new FutureTask<T>(task);
+			future.run();
+			return future;
+		}
+	}
+
+	/**
+	 * Method used for starting the queries to context sources. The queries run
+	 * while the caller does other work, the results are picked up with
+	 * {@link Fanout#collect()}.
+	 *
+	 * @param source2Call endpoint of the context source to the call querying it
+	 * @return Fanout of the started queries
+	 */
+	public Fanout start(Map<String, Callable<QueryResult>> source2Call) {
+		Fanout fanout = new Fanout(System.nanoTime() + timeoutNanos);
+		for (Entry<String, Callable<QueryResult>> entry : source2Call.entrySet()) {
+			String source = entry.getKey();
+			CircuitBreaker breaker = source2Breaker.computeIfAbsent(source, CircuitBreaker::new);
+			Timer.Sample sample = BrokerMetrics.start();
+			if (!breaker.allowRequest()) {
+				logger.debug("Circuit for " + source + " is open, skipping it");
+				fanout.skipped.add(source);
+				BrokerMetrics.stop(sample, BrokerMetrics.FEDERATION_REQUEST, BrokerMetrics.TAG_OUTCOME, OUTCOME_OPEN);
+				continue;
+			}
+			try {
+				fanout.source2Future.put(source, new PendingCall(executor.submit(entry.getValue()), breaker, sample));
+			} catch (RejectedExecutionException e) {
+				logger.warn("Federation pool is saturated, skipping " + source);
+				breaker.release();
+				fanout.skipped.add(source);
+				BrokerMetrics.stop(sample, BrokerMetrics.FEDERATION_REQUEST, BrokerMetrics.TAG_OUTCOME,
+						OUTCOME_REJECTED);
+			}
+		}
+		return fanout;
+	}
+
+	/**
+	 * Method used for querying context sources and waiting for the results.
+	 *
+	 * @param source2Call endpoint of the context source to the call querying it
+	 * @return QueryResult with the entities and counts of all sources which
+	 *         answered in time
+	 */
+	public QueryResult query(Map<String, Callable<QueryResult>> source2Call) {
+		return start(source2Call).collect();
+	}
+
+	/**
+	 * State of the circuit breakers per context source.
+	 *
+	 * @return Map<String, String> endpoint to CLOSED, OPEN or HALF_OPEN
+	 */
+	public Map<String, String> getCircuitStates() {
+		HashMap<String, String> result = new HashMap<String, String>();
+		for (CircuitBreaker breaker : source2Breaker.values()) {
+			result.put(breaker.source, breaker.getState().name());
+		}
+		return result;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static class PendingCall {
+		private final Future<QueryResult> future;
+		private final CircuitBreaker breaker;
+		private final Timer.Sample sample;
+
+		PendingCall(Future<QueryResult> future, CircuitBreaker breaker, Timer.Sample sample) {
+			this.future = future;
+			this.breaker = breaker;
+			this.sample = sample;
+		}
+	}
+
+	/**
+	 * The queries of one federated request.
+	 */
+	public static class Fanout {
+		private final long deadline;
+		private final LinkedHashMap<String, PendingCall> source2Future = new LinkedHashMap<String, PendingCall>();
+		private final List<String> skipped = new ArrayList<String>();
+		private final List<String> failed = new ArrayList<String>();
+
+		Fanout(long deadline) {
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Method used for waiting for the started queries until the timeout is
+		 * reached. Queries which are still running afterwards are cancelled.
+		 *
+		 * @return QueryResult with the entities and counts of all sources which
+		 *         answered in time, marked as partial if a source is missing
+		 */
+		public QueryResult collect() {
+			List<String> entities = new ArrayList<String>();
+			int count = 0;
+			boolean interrupted = false;
+			for (Entry<String, PendingCall> entry : source2Future.entrySet()) {
+				String source = entry.getKey();
+				PendingCall call = entry.getValue();
+				String outcome;
+				try {
+					if (interrupted) {
+						throw new InterruptedException();
+					}
+					QueryResult result = call.future.get(Math.max(0, deadline - System.nanoTime()),
+							TimeUnit.NANOSECONDS);
+					if (result.getDataString() != null) {
+						entities.addAll(result.getDataString());
+					}
+					if (result.getCount() != null) {
+						count += result.getCount();
+					}
+					call.breaker.onSuccess();
+					outcome = BrokerMetrics.OUTCOME_SUCCESS;
+				} catch (TimeoutException e) {
+					logger.warn("Context source " + source + " did not answer in time");
+					call.future.cancel(true);
+					call.breaker.onFailure();
+					failed.add(source);
+					outcome = OUTCOME_TIMEOUT;
+				} catch (ExecutionException e) {
+					logger.warn("Query to context source " + source + " failed", e.getCause());
+					call.breaker.onFailure();
+					failed.add(source);
+					outcome = BrokerMetrics.OUTCOME_ERROR;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					call.future.cancel(true);
+					call.breaker.release();
+					failed.add(source);
+					outcome = BrokerMetrics.OUTCOME_ERROR;
+				}
+				BrokerMetrics.stop(call.sample, BrokerMetrics.FEDERATION_REQUEST, BrokerMetrics.TAG_OUTCOME, outcome);
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (!failed.isEmpty() || !skipped.isEmpty()) {
+				logger.info("Partial federated result, missing context sources: failed " + failed + ", skipped "
+						+ skipped);
+			}
+			QueryResult queryResult = new QueryResult(null, null, ErrorType.None, -1, true);
+			queryResult.setActualDataString(entities);
+			queryResult.setDataString(entities);
+			queryResult.setCount(count);
+			queryResult.setPartial(!failed.isEmpty() || !skipped.isEmpty());
+			return queryResult;
+		}
+
+		/**
+		 * @return context sources which failed or did not answer in time
+		 */
+		public List<String> getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return context sources which were not queried because their circuit is
+		 *         open or the pool was saturated
+		 */
+		public List<String> getSkipped() {
+			return skipped;
+		}
+	}
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private class CircuitBreaker {
+		private final String source;
+		private State state = State.CLOSED;
+		private int failures = 0;
+		private long openUntil;
+		private boolean trialRunning = false;
+
+		CircuitBreaker(String source) {
+			this.source = source;
+		}
+
+		synchronized State getState() {
+			return state;
+		}
+
+		synchronized boolean allowRequest() {
+			switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (System.nanoTime() - openUntil < 0) {
+					return false;
+				}
+				state = State.HALF_OPEN;
+				trialRunning = true;
+				return true;
+			default:
+				// only one trial request at a time
+				if (trialRunning) {
+					return false;
+				}
+				trialRunning = true;
+				return true;
+			}
+		}
+
+		synchronized void onSuccess() {
+			if (state != State.CLOSED) {
+				logger.info("Circuit for " + source + " is closed again");
+			}
+			state = State.CLOSED;
+			failures = 0;
+			trialRunning = false;
+		}
+
+		synchronized void onFailure() {
+			failures++;
+			trialRunning = false;
+			if (state == State.HALF_OPEN || failures >= failureThreshold) {
+				if (state != State.OPEN) {
+					logger.warn("Opening circuit for " + source + " after " + failures + " failures");
+				}
+				state = State.OPEN;
+				openUntil = System.nanoTime() + openNanos;
+			}
+		}
+
+		/**
+		 * the request was not made, the outcome does not count
+		 */
+		synchronized void release() {
+			trialRunning = false;
+		}
+	}
+}
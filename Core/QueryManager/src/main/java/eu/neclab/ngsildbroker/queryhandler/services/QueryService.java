@@ -4,22 +4,24 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.producer.ProducerRecord;
@@ -55,9 +57,15 @@ import eu.neclab.ngsildbroker.commons.enums.ErrorType;
 import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
 import eu.neclab.ngsildbroker.commons.ldcontext.ContextResolverBasic;
 import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
+import eu.neclab.ngsildbroker.commons.serialization.QueryResultCodec;
+import eu.neclab.ngsildbroker.commons.storage.StreamedQuery;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
+import eu.neclab.ngsildbroker.commons.tools.EntityStreamSource;
 import eu.neclab.ngsildbroker.queryhandler.repository.CSourceDAO;
 import eu.neclab.ngsildbroker.queryhandler.repository.QueryDAO;
+import eu.neclab.ngsildbroker.queryhandler.services.FederationEngine.Fanout;
+import io.micrometer.core.instrument.Timer;
 
 @Service
 public class QueryService {
@@ -108,6 +116,12 @@ public class QueryService {
 	@Qualifier("qmcsourcedao")
 	CSourceDAO cSourceDAO;
 
+	@Autowired
+	CSourceIndexService cSourceIndexService;
+
+	@Value("${csource.index.enabled:true}")
+	boolean csourceIndexEnabled;
+
 	@Value("${directDbConnection}")
 	boolean directDbConnection;
 
@@ -123,6 +137,23 @@ public class QueryService {
 	@Qualifier("qmrestTemp")
 	RestTemplate restTemplate;
 
+	@Value("${federation.workers:50}")
+	int federationWorkers;
+
+	@Value("${federation.queuecapacity:500}")
+	int federationQueueCapacity;
+
+	@Value("${federation.timeout:3000}")
+	long federationTimeout;
+
+	@Value("${federation.circuit.failurethreshold:5}")
+	int federationFailureThreshold;
+
+	@Value("${federation.circuit.opentime:30000}")
+	long federationOpenTime;
+
+	FederationEngine federationEngine;
+
 	/*
 	 * private QueryProducerChannel producerChannels;
 	 * 
@@ -134,6 +165,8 @@ public class QueryService {
 	@PostConstruct
 	private void setup() {
 		kafkaTemplate.setReplyTimeout(replyTimeout);
+		federationEngine = new FederationEngine(federationWorkers, federationQueueCapacity, federationTimeout,
+				federationFailureThreshold, federationOpenTime);
 	}
 
 	/**
@@ -256,20 +289,21 @@ public class QueryService {
 		QueryResult queryResult = new QueryResult(null, null, ErrorType.None, -1, true);
 		logger.trace("getFromStorageManager() :: started");
 		ProducerRecord<String, byte[]> record = new ProducerRecord<String, byte[]>(requestTopic,
-				storageManagerQuery.getBytes());
+				storageManagerQuery.getBytes(StandardCharsets.UTF_8));
 		// set reply topic in header
 		record.headers().add(new RecordHeader(KafkaHeaders.REPLY_TOPIC, queryResultTopic.getBytes()));
-		RequestReplyFuture<String, byte[], byte[]> sendAndReceive = kafkaTemplate.sendAndReceive(record);
-		// get consumer record
-		ConsumerRecord<String, byte[]> consumerRecord = sendAndReceive.get();
-		// read from byte array
-		ByteArrayInputStream bais = new ByteArrayInputStream(consumerRecord.value());
-		DataInputStream in = new DataInputStream(bais);
-		List<String> entityList = new ArrayList<String>();
-		while (in.available() > 0) {
-			entityList.add(in.readUTF());
+		Timer.Sample sample = BrokerMetrics.start();
+		boolean success = false;
+		ConsumerRecord<String, byte[]> consumerRecord;
+		try {
+			RequestReplyFuture<String, byte[], byte[]> sendAndReceive = kafkaTemplate.sendAndReceive(record);
+			// get consumer record
+			consumerRecord = sendAndReceive.get();
+			success = true;
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.KAFKA_REQUEST_REPLY, success, BrokerMetrics.TAG_TOPIC, requestTopic);
 		}
-		// return consumer value
+		List<String> entityList = QueryResultCodec.decode(consumerRecord.value());
 		logger.trace("getFromStorageManager() :: completed");
 		queryResult.setActualDataString(entityList);
 		return queryResult;
@@ -293,9 +327,17 @@ public class QueryService {
 		// set reply topic in header
 		record.headers().add(new RecordHeader(KafkaHeaders.REPLY_TOPIC, queryResultTopic.getBytes()))
 				.add(KafkaHeaders.MESSAGE_KEY, "dummy".getBytes());// change with some useful key
-		RequestReplyFuture<String, byte[], byte[]> sendAndReceive = kafkaTemplate.sendAndReceive(record);
-		// get consumer record
-		ConsumerRecord<String, byte[]> consumerRecord = sendAndReceive.get();
+		Timer.Sample sample = BrokerMetrics.start();
+		boolean success = false;
+		ConsumerRecord<String, byte[]> consumerRecord;
+		try {
+			RequestReplyFuture<String, byte[], byte[]> sendAndReceive = kafkaTemplate.sendAndReceive(record);
+			// get consumer record
+			consumerRecord = sendAndReceive.get();
+			success = true;
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.KAFKA_REQUEST_REPLY, success, BrokerMetrics.TAG_TOPIC, csourceQueryTopic);
+		}
 		// return consumer value
 		logger.debug("getFromContextRegistry() :: completed");
 		contextRegistryData = new String((byte[]) consumerRecord.value());
@@ -331,137 +373,38 @@ public class QueryService {
 		qp.setLimit(limit);
 		qp.setOffSet(offset);
 		qp.setCountResult(countResult);
+		if (qp.getCursor() != null) {
+			return getDataWithCursor(qp);
+		}
 		int dataLeft = 0;
 		if (qToken == null) {
-			ExecutorService executorService = Executors.newFixedThreadPool(2);
-
-			Future<QueryResult> futureStorageManager = executorService.submit(new Callable<QueryResult>() {
-				public QueryResult call() throws Exception {
-					logger.trace("Asynchronous Callable storage manager");
-					// TAKE CARE OF PAGINATION HERE
-					if (queryDAO != null) {
-						try {
-							return queryDAO.query(qp);
-						} catch (Exception e) {
-							throw new ResponseException(ErrorType.TenantNotFound);
-						}
-					} else {
-						return getFromStorageManager(DataSerializer.toJson(qp));
-					}
-				}
-			});
+			// context sources are discovered and queried while the storage is queried
+			Future<Fanout> futureContextRegistry = federationEngine
+					.submit(() -> startCsourceQueries(qp, rawQueryString, headers, postQuery));
 
-			Future<QueryResult> futureContextRegistry = executorService.submit(new Callable<QueryResult>() {
-				public QueryResult call() throws Exception {
+			logger.trace("Storage query");
+			QueryResult fromStorage;
+			try {
+				// TAKE CARE OF PAGINATION HERE
+				if (queryDAO != null) {
 					try {
-						QueryResult fromCsources = new QueryResult(null, null, ErrorType.None, -1, true);
-						logger.trace("Asynchronous 1 context registry");
-						QueryResult brokerList;
-						if (cSourceDAO != null) {
-							brokerList = cSourceDAO.queryExternalCsources(qp);
-						} else {
-							brokerList = getFromContextRegistry(DataSerializer.toJson(qp));
-						}
-						Pattern p = Pattern.compile(NGSIConstants.NGSI_LD_ENDPOINT_REGEX);
-						Pattern ptenant = Pattern.compile(NGSIConstants.NGSI_LD_ENDPOINT_TENANT);
-						Matcher m;
-						Matcher mtenant;
-						QueryResult queryResult = new QueryResult(null, null, ErrorType.None, -1, true);
-						Set<Callable<QueryResult>> callablesCollection = new HashSet<Callable<QueryResult>>();
-						if (brokerList.getActualDataString() == null) {
-							return queryResult;
-						}
-						for (String brokerInfo : brokerList.getActualDataString()) {
-							m = p.matcher(brokerInfo);
-							m.find();
-							final String uri_tenant;
-							String uri = m.group(1);
-							mtenant = ptenant.matcher(brokerInfo);
-							if (mtenant != null && mtenant.matches()) {
-								mtenant.find();
-								uri_tenant = mtenant.group(1);
-
-							} else {
-								uri_tenant = null;
-							}
-							logger.debug("url " + uri.toString() + "/ngsi-ld/v1/entities/?" + rawQueryString);
-							Callable<QueryResult> callable = () -> {
-								HttpHeaders callHeaders = new HttpHeaders();
-								for (Entry<String, String> entry : headers.entries()) {
-									String key = entry.getKey();
-									if (key.equals(NGSIConstants.TENANT_HEADER)) {
-										continue;
-									}
-									callHeaders.add(key, entry.getValue());
-								}
-								if (uri_tenant != null) {
-									callHeaders.add(NGSIConstants.TENANT_HEADER, uri_tenant);
-								}
-								HttpEntity entity;
-
-								String resultBody;
-								ResponseEntity<String> response;
-								int count = 0;
-								if (postQuery) {
-									entity = new HttpEntity<String>(rawQueryString, callHeaders);
-									response = restTemplate.exchange(uri + "/ngsi-ld/v1/entityOperations/query",
-											HttpMethod.POST, entity, String.class);
-									resultBody = response.getBody();
-								} else {
-									entity = new HttpEntity<String>(callHeaders);
-									response = restTemplate.exchange(uri + "/ngsi-ld/v1/entities/?" + rawQueryString,
-											HttpMethod.GET, entity, String.class);
-									resultBody = response.getBody();
-								}
-								if (response.getHeaders().containsKey(NGSIConstants.COUNT_HEADER_RESULT)) {
-									count = Integer.parseInt(
-											response.getHeaders().get(NGSIConstants.COUNT_HEADER_RESULT).get(0));
-								}
-								logger.debug("http call result :: ::" + resultBody);
-
-								QueryResult result = new QueryResult(getDataListFromResult(resultBody), null,
-										ErrorType.None, -1, true);
-								result.setCount(count);
-								return result;
-							};
-							callablesCollection.add(callable);
-
-						}
-
-						fromCsources = getDataFromCsources(callablesCollection);
-						logger.debug("csource call response :: ");
-						// fromCsources.forEach(e -> logger.debug(e));
-						return fromCsources;
+						fromStorage = queryDAO.query(qp);
 					} catch (Exception e) {
-						e.printStackTrace();
-						logger.error(
-								"No reply from registry. Looks like you are running without a context source registry.");
-						logger.error(e.getMessage());
-						return null;
+						throw new ResponseException(ErrorType.TenantNotFound);
 					}
+				} else {
+					fromStorage = getFromStorageManager(DataSerializer.toJson(qp));
 				}
-			});
-
-			// Csources response
-
-			executorService.shutdown();
-
-			// storage response
-			logger.trace("storage task status completed :: " + futureStorageManager.isDone());
-			QueryResult fromStorage;
-			try {
-				fromStorage = futureStorageManager.get();
+			} catch (ResponseException e) {
+				futureContextRegistry.cancel(true);
+				throw e;
 			} catch (Exception e) {
+				futureContextRegistry.cancel(true);
 				logger.error("Failed to get data from storage", e);
 				throw new ResponseException(ErrorType.InternalError, "Failed to get data from storage");
 			}
-			QueryResult fromCsources;
-			try {
-				fromCsources = futureContextRegistry.get();
-			} catch (Exception e) {
-				logger.error("Failed to get data from registry", e);
-				throw new ResponseException(ErrorType.InternalError, "Failed to get data from registry");
-			}
+			QueryResult fromCsources = collectCsourceQueries(futureContextRegistry);
+			result.setPartial(fromCsources.isPartial());
 			// logger.trace("response from storage :: ");
 			// fromStorage.forEach(e -> logger.debug(e));
 			List<String> fromStorageDataList = fromStorage.getActualDataString();
@@ -543,6 +486,216 @@ public class QueryService {
 		return result;
 	}
 
+	/**
+	 * Discovers the matching context sources in the registry and starts the
+	 * queries to them.
+	 * 
+	 * @param qp
+	 * @param rawQueryString
+	 * @param headers
+	 * @param postQuery
+	 * @return Fanout of the queries or null if the registry is not reachable
+	 */
+	private Fanout startCsourceQueries(QueryParams qp, String rawQueryString,
+			ArrayListMultimap<String, String> headers, Boolean postQuery) {
+		try {
+			logger.trace("Asynchronous 1 context registry");
+			QueryResult brokerList;
+			if (csourceIndexEnabled) {
+				brokerList = cSourceIndexService.queryExternalCsources(qp);
+			} else if (cSourceDAO != null) {
+				brokerList = cSourceDAO.queryExternalCsources(qp);
+			} else {
+				brokerList = getFromContextRegistry(DataSerializer.toJson(qp));
+			}
+			Pattern p = Pattern.compile(NGSIConstants.NGSI_LD_ENDPOINT_REGEX);
+			Pattern ptenant = Pattern.compile(NGSIConstants.NGSI_LD_ENDPOINT_TENANT);
+			Matcher m;
+			Matcher mtenant;
+			LinkedHashMap<String, Callable<QueryResult>> source2Call = new LinkedHashMap<String, Callable<QueryResult>>();
+			if (brokerList.getActualDataString() == null) {
+				return federationEngine.start(source2Call);
+			}
+			for (String brokerInfo : brokerList.getActualDataString()) {
+				m = p.matcher(brokerInfo);
+				m.find();
+				final String uri_tenant;
+				String uri = m.group(1);
+				mtenant = ptenant.matcher(brokerInfo);
+				if (mtenant != null && mtenant.matches()) {
+					mtenant.find();
+					uri_tenant = mtenant.group(1);
+
+				} else {
+					uri_tenant = null;
+				}
+				logger.debug("url " + uri.toString() + "/ngsi-ld/v1/entities/?" + rawQueryString);
+				Callable<QueryResult> callable = () -> {
+					HttpHeaders callHeaders = new HttpHeaders();
+					for (Entry<String, String> entry : headers.entries()) {
+						String key = entry.getKey();
+						if (key.equals(NGSIConstants.TENANT_HEADER)) {
+							continue;
+						}
+						callHeaders.add(key, entry.getValue());
+					}
+					if (uri_tenant != null) {
+						callHeaders.add(NGSIConstants.TENANT_HEADER, uri_tenant);
+					}
+					HttpEntity entity;
+
+					String resultBody;
+					ResponseEntity<String> response;
+					int count = 0;
+					if (postQuery) {
+						entity = new HttpEntity<String>(rawQueryString, callHeaders);
+						response = restTemplate.exchange(uri + "/ngsi-ld/v1/entityOperations/query",
+								HttpMethod.POST, entity, String.class);
+						resultBody = response.getBody();
+					} else {
+						entity = new HttpEntity<String>(callHeaders);
+						response = restTemplate.exchange(uri + "/ngsi-ld/v1/entities/?" + rawQueryString,
+								HttpMethod.GET, entity, String.class);
+						resultBody = response.getBody();
+					}
+					if (response.getHeaders().containsKey(NGSIConstants.COUNT_HEADER_RESULT)) {
+						count = Integer.parseInt(
+								response.getHeaders().get(NGSIConstants.COUNT_HEADER_RESULT).get(0));
+					}
+					logger.debug("http call result :: ::" + resultBody);
+
+					QueryResult result = new QueryResult(getDataListFromResult(resultBody), null,
+							ErrorType.None, -1, true);
+					result.setCount(count);
+					return result;
+				};
+				// the same endpoint registered for several tenants is queried once per tenant
+				source2Call.put(uri_tenant == null ? uri : uri + "#" + uri_tenant, callable);
+
+			}
+			return federationEngine.start(source2Call);
+		} catch (Exception e) {
+			logger.error("No reply from registry. Looks like you are running without a context source registry.");
+			logger.error(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Waits for the context source queries started by
+	 * {@link #startCsourceQueries(QueryParams, String, ArrayListMultimap, Boolean)}.
+	 * Context sources which fail or are too slow are left out. The lookup of the
+	 * context sources has to finish within the federation timeout as well.
+	 * 
+	 * @param futureFanout
+	 * @return QueryResult of the context sources which answered in time, empty if
+	 *         the registry is not reachable. The result is marked as partial if
+	 *         context sources are missing.
+	 */
+	private QueryResult collectCsourceQueries(Future<Fanout> futureFanout) {
+		Fanout fanout;
+		try {
+			fanout = futureFanout.get(federationTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fanout = null;
+		} catch (ExecutionException e) {
+			logger.error("Failed to get data from registry", e);
+			fanout = null;
+		} catch (TimeoutException e) {
+			logger.warn("Context source lookup did not finish within " + federationTimeout + " ms");
+			futureFanout.cancel(true);
+			fanout = null;
+		}
+		if (fanout == null) {
+			QueryResult result = new QueryResult(new ArrayList<String>(), null, ErrorType.None, -1, true);
+			result.setPartial(true);
+			return result;
+		}
+		QueryResult fromCsources = fanout.collect();
+		logger.debug("csource call response :: ");
+		return fromCsources;
+	}
+
+	/**
+	 * Keyset paginated query. Pages are read from the local storage only, context
+	 * sources are not queried since their results can not be ordered together
+	 * with the local entities.
+	 * 
+	 * @param qp
+	 * @return QueryResult with the next cursor set if there are more entities
+	 * @throws ResponseException
+	 */
+	private QueryResult getDataWithCursor(QueryParams qp) throws ResponseException {
+		QueryResult fromStorage = queryDAO.query(qp);
+		QueryResult result = new QueryResult(null, null, ErrorType.None, -1, true);
+		List<String> data = fromStorage.getActualDataString();
+		result.setDataString(data == null ? new ArrayList<String>() : data);
+		result.setCount(fromStorage.getCount());
+		result.setLimit(qp.getLimit());
+		result.setNextCursor(fromStorage.getNextCursor());
+		return result;
+	}
+
+	/**
+	 * Streaming variant of getData. Local entities are passed to the consumer
+	 * while they are read from the database, the entities of the context sources
+	 * are passed on afterwards. Opening the source runs the local query and
+	 * collects the results of the context sources, so a partial result is known
+	 * before the response headers are sent.
+	 * 
+	 * @param qp
+	 * @param rawQueryString
+	 * @param limit
+	 * @param offset
+	 * @param headers
+	 * @return the source of the entities
+	 */
+	public EntityStreamSource getDataStream(QueryParams qp, String rawQueryString, Integer limit, Integer offset,
+			ArrayListMultimap<String, String> headers) {
+		qp.setLimit(limit);
+		qp.setOffSet(offset);
+		return new EntityStreamSource() {
+			private StreamedQuery fromStorage;
+			private QueryResult fromCsources;
+
+			@Override
+			public void open() throws ResponseException {
+				Future<Fanout> futureContextRegistry = federationEngine
+						.submit(() -> startCsourceQueries(qp, rawQueryString, headers, false));
+				try {
+					fromStorage = queryDAO.openStreamQuery(qp);
+				} catch (RuntimeException | ResponseException e) {
+					futureContextRegistry.cancel(true);
+					throw e;
+				}
+				try {
+					fromCsources = collectCsourceQueries(futureContextRegistry);
+				} catch (RuntimeException e) {
+					fromStorage.close();
+					throw e;
+				}
+			}
+
+			@Override
+			public void stream(Consumer<String> consumer) throws Exception {
+				try {
+					fromStorage.forEach(consumer);
+				} finally {
+					fromStorage.close();
+				}
+				if (fromCsources.getActualDataString() != null) {
+					fromCsources.getActualDataString().forEach(consumer);
+				}
+			}
+
+			@Override
+			public boolean isPartial() {
+				return fromCsources.isPartial();
+			}
+		};
+	}
+
 	protected List<String> getDataListFromResult(String resultBody) throws ResponseException {
 		List<String> entitiesList = new ArrayList<String>();
 		try {
@@ -581,38 +734,8 @@ public class QueryService {
 	 * private String generateToken() { return UUID.randomUUID().toString(); }
 	 */
 
-	/**
-	 * making http call to all discovered csources async.
-	 * 
-	 * @param endpointsList
-	 * @param query
-	 * @return List<Entity>
-	 * @throws InterruptedException
-	 * @throws ExecutionException
-	 * @throws URISyntaxException
-	 * @throws ResponseException
-	 * @throws IOException
-	 */
-	private QueryResult getDataFromCsources(Set<Callable<QueryResult>> callablesCollection)
-			throws ResponseException, Exception {
-		ExecutorService executorService = Executors.newFixedThreadPool(2);
-		List<Future<QueryResult>> futures = executorService.invokeAll(callablesCollection);
-		QueryResult queryResult = new QueryResult(null, null, ErrorType.None, -1, true);
-		// TODO: why sleep?
-		// Thread.sleep(5000);
-		List<String> entities = new ArrayList<String>();
-		int count = 0;
-		for (Future<QueryResult> future : futures) {
-			logger.trace("future.isDone = " + future.isDone());
-			QueryResult tempResult = future.get();
-			entities.addAll(tempResult.getDataString());
-			count += tempResult.getCount();
-		}
-		executorService.shutdown();
-		logger.trace("getDataFromCsources() completed ::");
-		queryResult.setActualDataString(entities);
-		queryResult.setDataString(entities);
-		queryResult.setCount(count);
-		return queryResult;
+	@PreDestroy
+	private void deconstructor() {
+		federationEngine.shutdown();
 	}
-}
\ No newline at end of file
+}
@@ -24,6 +24,7 @@ public class Validator {
 		validParams.add(NGSIConstants.QUERY_PARAMETER_OFFSET);
 		validParams.add(NGSIConstants.QUERY_PARAMETER_LIMIT);
 		validParams.add(NGSIConstants.QUERY_PARAMETER_QTOKEN);
+		validParams.add(NGSIConstants.QUERY_PARAMETER_CURSOR);
 		validParams.add(NGSIConstants.QUERY_PARAMETER_OPTIONS);
 		validParams.add(NGSIConstants.QUERY_PARAMETER_DETAILS);
 		validParams.add(NGSIConstants.COUNT_HEADER_RESULT);
@@ -37,6 +38,9 @@ public class Validator {
 		if(!ignoreType && !parameterMap.containsKey(NGSIConstants.QUERY_PARAMETER_TYPE) && !parameterMap.containsKey(NGSIConstants.QUERY_PARAMETER_ATTRS)) {
 			throw new ResponseException(ErrorType.BadRequestData, "Missing mandatory minimum parameter " + NGSIConstants.QUERY_PARAMETER_TYPE + " or " + NGSIConstants.QUERY_PARAMETER_ATTRS);
 		}
+		if(parameterMap.containsKey(NGSIConstants.QUERY_PARAMETER_CURSOR) && (parameterMap.containsKey(NGSIConstants.QUERY_PARAMETER_OFFSET) || parameterMap.containsKey(NGSIConstants.QUERY_PARAMETER_QTOKEN))) {
+			throw new ResponseException(ErrorType.BadRequestData, NGSIConstants.QUERY_PARAMETER_CURSOR + " can not be combined with " + NGSIConstants.QUERY_PARAMETER_OFFSET + " or " + NGSIConstants.QUERY_PARAMETER_QTOKEN);
+		}
 		for (String key : parameterMap.keySet()) {
 			if(!validParams.contains(key)) {
 				throw new ResponseException(ErrorType.BadRequestData, key + " is not valid parameter");
@@ -0,0 +1,118 @@
+package eu.neclab.ngsildbroker.queryhandler.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.datatypes.GeoqueryRel;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
+
+public class CSourceIndexTest {
+
+	private static final String VEHICLE = "https://uri.etsi.org/ngsi-ld/default-context/Vehicle";
+	private static final String SPEED = "https://uri.etsi.org/ngsi-ld/default-context/speed";
+	private static final String BRAND = "https://uri.etsi.org/ngsi-ld/default-context/brandName";
+
+	private CSourceIndex index;
+	private String byType;
+	private String byIdPattern;
+	private String attrsOnly;
+
+	private static String registration(String entities, String properties, String location) {
+		return "{\"@id\":\"urn:reg\",\"https://uri.etsi.org/ngsi-ld/endpoint\":[{\"@value\":\"http://localhost:1234\"}],"
+				+ "\"https://uri.etsi.org/ngsi-ld/information\":[{\"https://uri.etsi.org/ngsi-ld/entities\":["
+				+ entities + "],\"https://uri.etsi.org/ngsi-ld/properties\":[" + properties + "]}]"
+				+ (location == null ? ""
+						: ",\"https://uri.etsi.org/ngsi-ld/location\":[{\"@value\":\"" + location + "\"}]")
+				+ "}";
+	}
+
+	private static QueryParams typeQuery(String type, String id, String idPattern) {
+		Map<String, String> entity = new HashMap<String, String>();
+		entity.put(NGSIConstants.JSON_LD_TYPE, type);
+		if (id != null) {
+			entity.put(NGSIConstants.JSON_LD_ID, id);
+		}
+		if (idPattern != null) {
+			entity.put(NGSIConstants.NGSI_LD_ID_PATTERN, idPattern);
+		}
+		QueryParams qp = new QueryParams();
+		qp.setEntities(Arrays.asList(entity));
+		return qp;
+	}
+
+	@Before
+	public void setUp() {
+		index = new CSourceIndex();
+		byType = registration("{\"@type\":[\"" + VEHICLE + "\"]}", "{\"@id\":\"" + SPEED + "\"}",
+				"{\\\"type\\\":\\\"Polygon\\\",\\\"coordinates\\\":[[[8,49],[9,49],[9,50],[8,50],[8,49]]]}");
+		byIdPattern = registration(
+				"{\"@type\":[\"" + VEHICLE + "\"],\"https://uri.etsi.org/ngsi-ld/idPattern\":[{\"@value\":\"urn:car:.*\"}]}",
+				"", null);
+		attrsOnly = registration("", "{\"@id\":\"" + BRAND + "\"}", null);
+		LinkedHashMap<String, String> id2Data = new LinkedHashMap<String, String>();
+		id2Data.put("urn:reg1", byType);
+		id2Data.put("urn:reg2", byIdPattern);
+		id2Data.put("urn:reg3", attrsOnly);
+		index.load(null, id2Data, index.beginLoad(null));
+	}
+
+	@Test
+	public void entityMatchTest() {
+		assertEquals(Arrays.asList(byType, byIdPattern, attrsOnly), index.query(typeQuery(VEHICLE, null, null)));
+		assertEquals(Arrays.asList(byType, attrsOnly), index.query(typeQuery(VEHICLE, "urn:bike:1", null)));
+		assertEquals(Arrays.asList(byType, byIdPattern, attrsOnly),
+				index.query(typeQuery(VEHICLE, "urn:car:1", null)));
+		assertEquals(Arrays.asList(attrsOnly), index.query(typeQuery("urn:OtherType", null, null)));
+		QueryParams attrs = typeQuery(VEHICLE, null, null).withAttrs(BRAND);
+		assertEquals(Arrays.asList(byIdPattern, attrsOnly), index.query(attrs));
+		assertEquals(Arrays.asList(byType), index.query(new QueryParams().withAttrs(SPEED)));
+	}
+
+	@Test
+	public void geoMatchTest() {
+		GeoqueryRel near = new GeoqueryRel();
+		near.setGeorelOp(NGSIConstants.GEO_REL_NEAR);
+		near.setDistanceType(NGSIConstants.GEO_REL_MAX_DISTANCE);
+		near.setDistanceValue("2000");
+		QueryParams qp = typeQuery(VEHICLE, null, null).withGeorel(near).withGeometry("Point");
+		assertEquals(Arrays.asList(byType), index.query(qp.withCoordinates("[9.01,49.5]")));
+		assertTrue(index.query(qp.withCoordinates("[9.1,49.5]")).isEmpty());
+	}
+
+	@Test
+	public void changeTest() {
+		long stamp = index.beginLoad(null);
+		index.remove(null, "urn:reg1");
+		// stale read of the database which still contains urn:reg1
+		LinkedHashMap<String, String> id2Data = new LinkedHashMap<String, String>();
+		id2Data.put("urn:reg1", byType);
+		index.load(null, id2Data, stamp);
+		assertTrue(index.query(typeQuery(VEHICLE, null, null)).isEmpty());
+		index.put(null, "urn:reg1", byType);
+		assertEquals(Arrays.asList(byType), index.query(typeQuery(VEHICLE, null, null)));
+		assertTrue(index.query(typeQuery(VEHICLE, null, null).withAttrs(BRAND)).isEmpty());
+	}
+
+	@Test
+	public void deleteTest() {
+		index.update(null, "urn:reg4", new JsonParser().parse(byType));
+		assertEquals(Arrays.asList(byType, byType), index.query(new QueryParams().withAttrs(SPEED)));
+		// a delete is published with "CSource": null
+		index.update(null, "urn:reg4", JsonNull.INSTANCE);
+		assertEquals(Arrays.asList(byType), index.query(new QueryParams().withAttrs(SPEED)));
+		index.update(null, "urn:reg1", null);
+		assertTrue(index.query(new QueryParams().withAttrs(SPEED)).isEmpty());
+	}
+}
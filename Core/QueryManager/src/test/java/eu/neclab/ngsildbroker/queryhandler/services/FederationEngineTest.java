@@ -0,0 +1,86 @@
+package eu.neclab.ngsildbroker.queryhandler.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import eu.neclab.ngsildbroker.commons.datatypes.QueryResult;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.queryhandler.services.FederationEngine.Fanout;
+
+public class FederationEngineTest {
+
+	private FederationEngine engine;
+
+	@After
+	public void tearDown() {
+		engine.shutdown();
+	}
+
+	private static Callable<QueryResult> answer(String... entities) {
+		return () -> {
+			QueryResult result = new QueryResult(new ArrayList<String>(Arrays.asList(entities)), null,
+					ErrorType.None, -1, true);
+			result.setCount(entities.length);
+			return result;
+		};
+	}
+
+	@Test
+	public void partialResultTest() throws Exception {
+		engine = new FederationEngine(4, 10, 200, 5, 30000);
+		CountDownLatch block = new CountDownLatch(1);
+		LinkedHashMap<String, Callable<QueryResult>> source2Call = new LinkedHashMap<String, Callable<QueryResult>>();
+		source2Call.put("http://fast1", answer("a", "b"));
+		source2Call.put("http://slow", () -> {
+			block.await();
+			return answer("c").call();
+		});
+		source2Call.put("http://failing", () -> {
+			throw new IllegalStateException("failed");
+		});
+		source2Call.put("http://fast2", answer("d"));
+
+		Fanout fanout = engine.start(source2Call);
+		QueryResult result = fanout.collect();
+		block.countDown();
+		assertEquals(Arrays.asList("a", "b", "d"), result.getDataString());
+		assertEquals(3, result.getCount().intValue());
+		assertEquals(Arrays.asList("http://slow", "http://failing"), fanout.getFailed());
+		assertTrue(result.isPartial());
+
+		source2Call.remove("http://slow");
+		source2Call.remove("http://failing");
+		assertFalse(engine.query(source2Call).isPartial());
+	}
+
+	@Test
+	public void circuitBreakerTest() throws Exception {
+		engine = new FederationEngine(2, 10, 1000, 2, 60000);
+		AtomicInteger calls = new AtomicInteger();
+		LinkedHashMap<String, Callable<QueryResult>> source2Call = new LinkedHashMap<String, Callable<QueryResult>>();
+		source2Call.put("http://failing", () -> {
+			calls.incrementAndGet();
+			throw new IllegalStateException("failed");
+		});
+		engine.query(source2Call);
+		engine.query(source2Call);
+		assertEquals("OPEN", engine.getCircuitStates().get("http://failing"));
+		Fanout fanout = engine.start(source2Call);
+		QueryResult result = fanout.collect();
+		assertTrue(result.getDataString().isEmpty());
+		assertTrue(result.isPartial());
+		assertEquals(Arrays.asList("http://failing"), fanout.getSkipped());
+		assertEquals(2, calls.get());
+	}
+}
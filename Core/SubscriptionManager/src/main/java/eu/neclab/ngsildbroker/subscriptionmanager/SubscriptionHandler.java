@@ -16,11 +16,12 @@ import eu.neclab.ngsildbroker.commons.securityConfig.SecurityConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.swaggerConfig.SwaggerConfigDetails;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
 import eu.neclab.ngsildbroker.subscriptionmanager.config.SubscriptionManagerProducerChannel;
 
 @SpringBootApplication
 @EnableBinding({ SubscriptionManagerProducerChannel.class, AtContextProducerChannel.class })
-@Import({KafkaConfig.class, SwaggerConfigDetails.class})
+@Import({KafkaConfig.class, SwaggerConfigDetails.class, HttpClientConfig.class})
 public class SubscriptionHandler {
 
 	@Value("${atcontext.url}")
@@ -1,35 +1,71 @@
 package eu.neclab.ngsildbroker.subscriptionmanager.service;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.net.URISyntaxException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.kafka.requestreply.ReplyingKafkaTemplate;
 import org.springframework.kafka.requestreply.RequestReplyFuture;
 import org.springframework.kafka.support.KafkaHeaders;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
 import eu.neclab.ngsildbroker.commons.datatypes.Entity;
 import eu.neclab.ngsildbroker.commons.datatypes.Notification;
 import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
 import eu.neclab.ngsildbroker.commons.datatypes.Subscription;
 import eu.neclab.ngsildbroker.commons.datatypes.SubscriptionRequest;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
 import eu.neclab.ngsildbroker.commons.interfaces.NotificationHandler;
 import eu.neclab.ngsildbroker.commons.ngsiqueries.ParamsResolver;
 import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
+import eu.neclab.ngsildbroker.commons.serialization.QueryResultCodec;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
 import eu.neclab.ngsildbroker.commons.tools.EntityTools;
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler;
+import io.micrometer.core.instrument.Timer;
 
+/**
+ * Evaluates the interval subscriptions in windows. The notifications of a
+ * subscription are due at the multiples of its interval, so all subscriptions
+ * due at the same time are evaluated together. The first window of a new
+ * subscription is at least one interval after its first notification. Within a window the queries of
+ * the subscriptions which only differ in the projected attributes are merged,
+ * every merged query is sent to the storage manager once and its result is
+ * parsed once per projection and shared by the subscriptions.
+ */
 public class IntervalNotificationHandler {
 
-	private HashMap<String, TimerTask> id2TimerTask = new HashMap<String, TimerTask>();
-	private Timer executor = new Timer(true);
+	private final static Logger logger = LogManager.getLogger(IntervalNotificationHandler.class);
+
+	private static final String ALL_ATTRS = "";
+
+	// the current registration of a subscription, windows only keep the
+	// registrations which were current when they were scheduled
+	private ConcurrentHashMap<String, IntervalSubscription> id2Subscription = new ConcurrentHashMap<String, IntervalSubscription>();
+	private ConcurrentHashMap<Long, List<IntervalSubscription>> due2Window = new ConcurrentHashMap<Long, List<IntervalSubscription>>();
+	private TimingWheelScheduler scheduler = TimingWheelScheduler.getInstance();
 
 	String requestTopic;
 	String queryResultTopic;
@@ -49,79 +85,290 @@ public class IntervalNotificationHandler {
 	}
 
 	public void addSub(SubscriptionRequest subscriptionRequest) {
-		MyTimer timer = new MyTimer(subscriptionRequest);
-		id2TimerTask.put(subscriptionRequest.getSubscription().getId().toString(), timer);
-		executor.schedule(timer, 0, subscriptionRequest.getSubscription().getTimeInterval() * 1000);
+		IntervalSubscription intervalSubscription = new IntervalSubscription(subscriptionRequest);
+		id2Subscription.put(intervalSubscription.id, intervalSubscription);
+		// the first notification is sent right away, the following ones with
+		// the other subscriptions due at the same time
+		scheduler.schedule(() -> evaluate(Collections.singletonList(intervalSubscription)), 0, TimeUnit.MILLISECONDS);
+		addToWindow(intervalSubscription,
+				firstWindow(System.currentTimeMillis(), intervalSubscription.interval));
+	}
+
+	public void removeSub(String subId) {
+		id2Subscription.remove(subId);
+	}
+
+	/**
+	 * Method used for finding the first window of a subscription, the first
+	 * multiple of the interval which is at least one interval after the
+	 * creation.
+	 *
+	 * @param created  time of the first notification in ms
+	 * @param interval in ms
+	 * @return due time of the window in ms
+	 */
+	static long firstWindow(long created, long interval) {
+		long due = (created / interval) * interval;
+		return due < created ? due + 2 * interval : due + interval;
+	}
+
+	private void addToWindow(IntervalSubscription intervalSubscription, long due) {
+		due2Window.compute(due, (key, window) -> {
+			if (window == null) {
+				window = new ArrayList<IntervalSubscription>();
+				scheduler.schedule(() -> runWindow(key), key - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			}
+			window.add(intervalSubscription);
+			return window;
+		});
 	}
 
-	public List<String> getFromStorageManager(String storageManagerQuery) throws Exception {
+	private void runWindow(long due) {
+		List<IntervalSubscription> window = due2Window.remove(due);
+		if (window == null) {
+			return;
+		}
+		List<IntervalSubscription> current = new ArrayList<IntervalSubscription>(window.size());
+		for (IntervalSubscription intervalSubscription : window) {
+			if (id2Subscription.get(intervalSubscription.id) == intervalSubscription) {
+				current.add(intervalSubscription);
+				addToWindow(intervalSubscription, due + intervalSubscription.interval);
+			}
+		}
+		evaluate(current);
+	}
+
+	/**
+	 * Method used for evaluating the subscriptions of a window and sending their
+	 * notifications.
+	 *
+	 * @param subscriptions
+	 */
+	void evaluate(List<IntervalSubscription> subscriptions) {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		Map<String, MergedQuery> mergedQueries = new LinkedHashMap<String, MergedQuery>();
+		for (IntervalSubscription intervalSubscription : subscriptions) {
+			for (SubscriptionQuery query : intervalSubscription.queries) {
+				mergedQueries.computeIfAbsent(query.baseQuery, MergedQuery::new).add(query.attrs);
+			}
+		}
+		// the queries are sent together and the worker only waits for the
+		// slowest reply, it is shared with the expiry and throttling tasks
+		Map<MergedQuery, CompletableFuture<List<String>>> replies = new LinkedHashMap<MergedQuery, CompletableFuture<List<String>>>();
+		for (MergedQuery mergedQuery : mergedQueries.values()) {
+			try {
+				replies.put(mergedQuery, requestFromStorageManager(mergedQuery.toQuery()));
+			} catch (Exception e) {
+				logger.error("Failed to query the entities for interval notifications", e);
+			}
+		}
+		for (Entry<MergedQuery, CompletableFuture<List<String>>> reply : replies.entrySet()) {
+			try {
+				reply.getKey().results = reply.getValue().get();
+			} catch (ExecutionException e) {
+				logger.error("Failed to query the entities for interval notifications", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		logger.debug("Evaluated " + subscriptions.size() + " interval subscriptions with " + mergedQueries.size()
+				+ " queries");
+		for (IntervalSubscription intervalSubscription : subscriptions) {
+			ArrayList<Entity> entities = new ArrayList<Entity>();
+			boolean complete = true;
+			for (SubscriptionQuery query : intervalSubscription.queries) {
+				List<Entity> result = mergedQueries.get(query.baseQuery).getEntities(query.attrs);
+				if (result == null) {
+					complete = false;
+					break;
+				}
+				entities.addAll(result);
+			}
+			if (complete) {
+				intervalSubscription.notify(entities);
+			}
+		}
+	}
+
+	/**
+	 * Method used for sending a query to the storage manager without waiting for
+	 * the reply.
+	 *
+	 * @param storageManagerQuery
+	 * @return the entities of the reply
+	 */
+	public CompletableFuture<List<String>> requestFromStorageManager(String storageManagerQuery) {
 		// create producer record
-		// logger.trace("getFromStorageManager() :: started");
 		ProducerRecord<String, byte[]> record = new ProducerRecord<String, byte[]>(requestTopic,
-				storageManagerQuery.getBytes());
+				storageManagerQuery.getBytes(StandardCharsets.UTF_8));
 		// set reply topic in header
 		record.headers().add(new RecordHeader(KafkaHeaders.REPLY_TOPIC, queryResultTopic.getBytes()));
-		RequestReplyFuture<String, byte[], byte[]> sendAndReceive = kafkaTemplate.sendAndReceive(record);
-		// get consumer record
-		ConsumerRecord<String, byte[]> consumerRecord = sendAndReceive.get();
-		// read from byte array
-		ByteArrayInputStream bais = new ByteArrayInputStream(consumerRecord.value());
-		DataInputStream in = new DataInputStream(bais);
-		List<String> entityList = new ArrayList<String>();
-		while (in.available() > 0) {
-			entityList.add(in.readUTF());
-		}
-		// return consumer value
-		// logger.trace("getFromStorageManager() :: completed");
-		return entityList;
+		Timer.Sample sample = BrokerMetrics.start();
+		RequestReplyFuture<String, byte[], byte[]> sendAndReceive;
+		try {
+			sendAndReceive = kafkaTemplate.sendAndReceive(record);
+		} catch (RuntimeException e) {
+			BrokerMetrics.stop(sample, BrokerMetrics.KAFKA_REQUEST_REPLY, false, BrokerMetrics.TAG_TOPIC, requestTopic);
+			throw e;
+		}
+		return sendAndReceive.completable().handle((consumerRecord, e) -> {
+			BrokerMetrics.stop(sample, BrokerMetrics.KAFKA_REQUEST_REPLY, e == null, BrokerMetrics.TAG_TOPIC,
+					requestTopic);
+			if (e != null) {
+				throw new CompletionException(e);
+			}
+			try {
+				return QueryResultCodec.decode(consumerRecord.value());
+			} catch (ResponseException | IOException re) {
+				throw new CompletionException(re);
+			}
+		});
 	}
 
-	public void removeSub(String subId) {
-		if (id2TimerTask.containsKey(subId)) {
-			id2TimerTask.get(subId).cancel();
-			id2TimerTask.remove(subId);
+	/**
+	 * A query of a subscription split into the query without attrs, which is
+	 * what subscriptions can share, and the attributes it projects to.
+	 */
+	private static class SubscriptionQuery {
+		private final String baseQuery;
+		// sorted and comma separated, ALL_ATTRS if not projected
+		private final String attrs;
+
+		private SubscriptionQuery(QueryParams param) {
+			if (param.getAttrs() == null || param.getAttrs().isEmpty()) {
+				this.attrs = ALL_ATTRS;
+			} else {
+				this.attrs = String.join(",", new TreeSet<String>(Arrays.asList(param.getAttrs().split(","))));
+			}
+			param.setAttrs(null);
+			this.baseQuery = DataSerializer.toJson(param);
+		}
+	}
+
+	/**
+	 * A query sent once for all subscriptions of a window with the same base
+	 * query. It selects the union of their attributes and is projected to the
+	 * attributes of each subscription.
+	 */
+	private static class MergedQuery {
+		private final String baseQuery;
+		private final Set<String> projections = new HashSet<String>();
+		private String mergedAttrs;
+		private List<String> results;
+		private final Map<String, List<Entity>> projection2Entities = new HashMap<String, List<Entity>>();
+
+		private MergedQuery(String baseQuery) {
+			this.baseQuery = baseQuery;
+		}
+
+		private void add(String attrs) {
+			projections.add(attrs);
+		}
+
+		private String mergedAttrs() {
+			if (mergedAttrs == null) {
+				if (projections.contains(ALL_ATTRS)) {
+					mergedAttrs = ALL_ATTRS;
+				} else {
+					TreeSet<String> merged = new TreeSet<String>();
+					for (String attrs : projections) {
+						merged.addAll(Arrays.asList(attrs.split(",")));
+					}
+					mergedAttrs = String.join(",", merged);
+				}
+			}
+			return mergedAttrs;
+		}
+
+		private String toQuery() {
+			String attrs = mergedAttrs();
+			if (attrs.equals(ALL_ATTRS)) {
+				return baseQuery;
+			}
+			JsonObject query = new JsonParser().parse(baseQuery).getAsJsonObject();
+			query.addProperty("attrs", attrs);
+			return query.toString();
 		}
 
+		/**
+		 * The storage manager does not only project to attrs, it also filters the
+		 * entities which have none of them. The merged query selects more
+		 * attributes, so the entities matched only by the attributes of other
+		 * subscriptions are dropped here as the query of the subscription would
+		 * not have returned them.
+		 *
+		 * @param attrs the projection of a subscription
+		 * @return the projected entities, null if the query failed
+		 */
+		private List<Entity> getEntities(String attrs) {
+			if (results == null) {
+				return null;
+			}
+			List<Entity> entities = projection2Entities.get(attrs);
+			if (entities == null) {
+				boolean project = !attrs.equals(mergedAttrs());
+				List<String> selected = Arrays.asList(attrs.split(","));
+				Set<String> keep = new HashSet<String>(selected);
+				keep.add(NGSIConstants.JSON_LD_ID);
+				keep.add(NGSIConstants.JSON_LD_TYPE);
+				entities = new ArrayList<Entity>(results.size());
+				for (String result : results) {
+					if (project) {
+						JsonObject entity = new JsonParser().parse(result).getAsJsonObject();
+						if (!hasAny(entity, selected)) {
+							continue;
+						}
+						entity.keySet().retainAll(keep);
+						result = entity.toString();
+					}
+					entities.add(DataSerializer.getEntity(result));
+				}
+				projection2Entities.put(attrs, entities);
+			}
+			return entities;
+		}
+
+		private boolean hasAny(JsonObject entity, List<String> attrs) {
+			for (String attr : attrs) {
+				if (entity.has(attr)) {
+					return true;
+				}
+			}
+			return false;
+		}
 	}
 
-	private class MyTimer extends TimerTask {
+	class IntervalSubscription {
 
-		private SubscriptionRequest subscriptionRequest;
-		private Subscription subscription;
-		private ArrayList<String> paramStrings;
+		private final String id;
+		private final long interval;
+		private final SubscriptionRequest subscriptionRequest;
+		private final Subscription subscription;
+		private final List<SubscriptionQuery> queries = new ArrayList<SubscriptionQuery>();
 
-		public MyTimer(SubscriptionRequest subscriptionRequest) {
+		IntervalSubscription(SubscriptionRequest subscriptionRequest) {
 			this.subscriptionRequest = subscriptionRequest;
 			this.subscription = subscriptionRequest.getSubscription();
-			List<QueryParams> params = resolver.getQueryParamsFromSubscription(subscription);
-			this.paramStrings = new ArrayList<String>();
-			for (QueryParams param : params) {
-				paramStrings.add(DataSerializer.toJson(param));
+			this.id = subscription.getId().toString();
+			this.interval = Math.max(1, subscription.getTimeInterval()) * 1000l;
+			for (QueryParams param : resolver.getQueryParamsFromSubscription(subscription)) {
+				queries.add(new SubscriptionQuery(param));
 			}
 		}
 
-		public void run() {
-
-			ArrayList<Entity> entities = new ArrayList<Entity>();
+		private void notify(List<Entity> entities) {
 			try {
-				for (String param : paramStrings) {
-					for (String entityString : getFromStorageManager(param)) {
-						entities.add(DataSerializer.getEntity(entityString));
-					}
-				}
 				Notification notification = new Notification(EntityTools.getRandomID("notification:"),
 						System.currentTimeMillis(), subscription.getId(), entities, null, null, 0, true);
 				notificationHandler.notify(notification, subscription.getNotification().getEndPoint().getUri(),
-						subscription.getNotification().getEndPoint().getAccept(), subscription.getId().toString(),
-						subscriptionRequest.getContext(), 0, null, this.subscriptionRequest.getTenant());
-			} catch (URISyntaxException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+						subscription.getNotification().getEndPoint().getAccept(), id, subscriptionRequest.getContext(),
+						0, null, subscriptionRequest.getTenant());
 			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				logger.error("Failed to send the interval notification of " + id, e);
 			}
-		};
-
+		}
 	}
 }
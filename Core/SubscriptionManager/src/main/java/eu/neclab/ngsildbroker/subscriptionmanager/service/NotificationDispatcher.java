@@ -0,0 +1,432 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+/**
+ * Runs the notification work of subscriptions on a fixed pool of worker
+ * threads. Pending work is queued per notification endpoint (scheme, host and
+ * port of the callback) and each endpoint queue is bounded. The tasks of one
+ * subscription are executed one after another in the order they were
+ * dispatched, tasks of different subscriptions run in parallel. Subscriptions
+ * are identified by tenant and id. The queue of an endpoint is removed when it
+ * runs empty, its statistics are kept until the endpoint has been idle for the
+ * stats idle timeout.
+ *
+ * What happens when an endpoint queue is full is decided by the
+ * {@link DropPolicy}.
+ */
+public class NotificationDispatcher {
+
+	public enum DropPolicy {
+		/** the new task is dropped */
+		DROP_NEWEST,
+		/**
+		 * the oldest pending task of the same subscription is dropped, if the
+		 * subscription has none pending the new task is dropped
+		 */
+		DROP_OLDEST,
+		/**
+		 * the caller waits up to the offer timeout for free space, afterwards the new
+		 * task is dropped
+		 */
+		BLOCK
+	}
+
+	private final static Logger logger = LogManager.getLogger(NotificationDispatcher.class);
+
+	/** tasks of one subscription executed before its worker is handed back */
+	private static final int DRAIN_BATCH = 16;
+
+	private enum Offer {
+		ACCEPTED, DROPPED,
+		/** the endpoint queue has been removed, the task has to be offered again */
+		REMOVED
+	}
+
+	private final ExecutorService workers;
+	private final int queueCapacity;
+	private final DropPolicy dropPolicy;
+	private final long offerTimeoutNanos;
+	private final long statsIdleTimeoutNanos;
+	private final ConcurrentHashMap<String, EndpointQueue> endpoint2Queue = new ConcurrentHashMap<String, EndpointQueue>();
+	private final ConcurrentHashMap<String, EndpointStats> endpoint2Stats = new ConcurrentHashMap<String, EndpointStats>();
+	private volatile long lastStatsEviction = System.nanoTime();
+	// totals of all endpoints, also of the removed queues
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	public NotificationDispatcher(int workerCount, int queueCapacity, DropPolicy dropPolicy, long offerTimeoutMs) {
+		this(workerCount, queueCapacity, dropPolicy, offerTimeoutMs, TimeUnit.HOURS.toMillis(1));
+	}
+
+	/**
+	 * @param workerCount
+	 * @param queueCapacity      maximum number of pending tasks per endpoint
+	 * @param dropPolicy
+	 * @param offerTimeoutMs     maximum wait for free space with
+	 *                           {@link DropPolicy#BLOCK}
+	 * @param statsIdleTimeoutMs time after which the statistics of an endpoint
+	 *                           without notifications are removed
+	 */
+	public NotificationDispatcher(int workerCount, int queueCapacity, DropPolicy dropPolicy, long offerTimeoutMs,
+			long statsIdleTimeoutMs) {
+		if (workerCount < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("workerCount and queueCapacity have to be at least 1");
+		}
+		this.queueCapacity = queueCapacity;
+		this.dropPolicy = dropPolicy;
+		this.offerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMs);
+		this.statsIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(statsIdleTimeoutMs);
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "notification-worker-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		// the pool queue holds at most one drain per subscription with pending work
+		this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), threadFactory);
+	}
+
+	/**
+	 * Method used for queuing the notification work of a subscription.
+	 *
+	 * @param callback       the notification endpoint
+	 * @param tenant
+	 * @param subscriptionId
+	 * @param task
+	 * @return false if the task has been dropped
+	 */
+	public boolean dispatch(URI callback, String tenant, String subscriptionId, Runnable task) {
+		while (true) {
+			EndpointQueue queue = endpoint2Queue.computeIfAbsent(getEndpointKey(callback), EndpointQueue::new);
+			queue.lock.lock();
+			try {
+				if (!queue.removed) {
+					Offer offer = queue.offer(tenant, subscriptionId, task);
+					if (offer != Offer.REMOVED) {
+						return offer == Offer.ACCEPTED;
+					}
+				}
+			} finally {
+				queue.lock.unlock();
+			}
+			// the queue ran empty and has been removed in the meantime
+		}
+	}
+
+	/**
+	 * Statistics per notification endpoint.
+	 *
+	 * @return Map<String, EndpointStats> endpoint to statistics
+	 */
+	public Map<String, EndpointStats> getStats() {
+		evictIdleStats(true);
+		return new HashMap<String, EndpointStats>(endpoint2Stats);
+	}
+
+	private EndpointStats getStats(String endpoint) {
+		EndpointStats stats = endpoint2Stats.computeIfAbsent(endpoint, key -> new EndpointStats());
+		stats.lastUsed = System.nanoTime();
+		return stats;
+	}
+
+	/**
+	 * removes the statistics of the endpoints without queue which have been idle
+	 * for the stats idle timeout, unless forced at most every quarter timeout
+	 */
+	private void evictIdleStats(boolean force) {
+		long now = System.nanoTime();
+		if (!force && now - lastStatsEviction < statsIdleTimeoutNanos / 4) {
+			return;
+		}
+		lastStatsEviction = now;
+		for (Map.Entry<String, EndpointStats> entry : endpoint2Stats.entrySet()) {
+			if (now - entry.getValue().lastUsed >= statsIdleTimeoutNanos
+					&& !endpoint2Queue.containsKey(entry.getKey())) {
+				endpoint2Stats.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return number of endpoints with pending or running tasks
+	 */
+	int getEndpointQueueCount() {
+		return endpoint2Queue.size();
+	}
+
+	/**
+	 * Method used for checking if more tasks of a subscription are queued, e.g.
+	 * to hold back a notification which can be combined with the next ones.
+	 *
+	 * @param callback
+	 * @param tenant
+	 * @param subscriptionId
+	 * @return true if tasks of the subscription are waiting
+	 */
+	public boolean hasPending(URI callback, String tenant, String subscriptionId) {
+		EndpointQueue queue = endpoint2Queue.get(getEndpointKey(callback));
+		if (queue == null) {
+			return false;
+		}
+		queue.lock.lock();
+		try {
+			SubscriptionQueue subQueue = queue.sub2Queue.get(tenant, subscriptionId);
+			return subQueue != null && !subQueue.tasks.isEmpty();
+		} finally {
+			queue.lock.unlock();
+		}
+	}
+
+	public int getQueueDepth() {
+		int result = 0;
+		for (EndpointQueue queue : endpoint2Queue.values()) {
+			result += queue.size;
+		}
+		return result;
+	}
+
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+	static String getEndpointKey(URI callback) {
+		if (callback == null) {
+			return "";
+		}
+		return callback.getScheme() + "://" + callback.getAuthority();
+	}
+
+	private static class Task {
+		private final Runnable runnable;
+		private final long enqueuedAt = System.nanoTime();
+
+		Task(Runnable runnable) {
+			this.runnable = runnable;
+		}
+	}
+
+	private static class SubscriptionQueue {
+		private final String tenant;
+		private final String subscriptionId;
+		private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+		private boolean scheduled = false;
+
+		SubscriptionQueue(String tenant, String subscriptionId) {
+			this.tenant = tenant;
+			this.subscriptionId = subscriptionId;
+		}
+	}
+
+	private class EndpointQueue {
+		private final String endpoint;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notFull = lock.newCondition();
+		private final Table<String, String, SubscriptionQueue> sub2Queue = HashBasedTable.create();
+		private volatile int size = 0;
+		private boolean removed = false;
+
+		EndpointQueue(String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		private Offer offer(String tenant, String subscriptionId, Runnable runnable) {
+			lock.lock();
+			try {
+				EndpointStats stats = getStats(endpoint);
+				if (size >= queueCapacity && !makeRoom(tenant, subscriptionId)) {
+					stats.dropped.increment();
+					dropped.increment();
+					logger.warn("Notification queue for " + endpoint + " is full, dropping notification for "
+							+ subscriptionId);
+					return Offer.DROPPED;
+				}
+				if (removed) {
+					// emptied and removed while waiting for space, a new queue of the
+					// endpoint may already hold newer tasks of the subscription
+					return Offer.REMOVED;
+				}
+				SubscriptionQueue subQueue = sub2Queue.get(tenant, subscriptionId);
+				if (subQueue == null) {
+					subQueue = new SubscriptionQueue(tenant, subscriptionId);
+					sub2Queue.put(tenant, subscriptionId, subQueue);
+				}
+				subQueue.tasks.add(new Task(runnable));
+				size++;
+				stats.queueDepth.set(size);
+				stats.enqueued.increment();
+				enqueued.increment();
+				if (!subQueue.scheduled) {
+					subQueue.scheduled = true;
+					schedule(subQueue);
+				}
+				return Offer.ACCEPTED;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private boolean makeRoom(String tenant, String subscriptionId) {
+			switch (dropPolicy) {
+			case DROP_OLDEST:
+				SubscriptionQueue subQueue = sub2Queue.get(tenant, subscriptionId);
+				if (subQueue == null || subQueue.tasks.isEmpty()) {
+					return false;
+				}
+				subQueue.tasks.poll();
+				size--;
+				getStats(endpoint).dropped.increment();
+				dropped.increment();
+				return true;
+			case BLOCK:
+				long remaining = offerTimeoutNanos;
+				try {
+					while (size >= queueCapacity && !removed) {
+						if (remaining <= 0) {
+							return false;
+						}
+						remaining = notFull.awaitNanos(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		private void schedule(SubscriptionQueue subQueue) {
+			try {
+				workers.execute(() -> drain(subQueue));
+			} catch (RejectedExecutionException e) {
+				// dispatcher has been shut down
+				size -= subQueue.tasks.size();
+				EndpointStats stats = getStats(endpoint);
+				stats.dropped.add(subQueue.tasks.size());
+				dropped.add(subQueue.tasks.size());
+				stats.queueDepth.set(size);
+				subQueue.tasks.clear();
+				subQueue.scheduled = false;
+				removeSubscriptionQueue(subQueue);
+			}
+		}
+
+		/**
+		 * removes the queue of a subscription without pending tasks and the
+		 * endpoint queue if it was the last one, has to be called with the lock
+		 */
+		private void removeSubscriptionQueue(SubscriptionQueue subQueue) {
+			sub2Queue.remove(subQueue.tenant, subQueue.subscriptionId);
+			if (sub2Queue.isEmpty()) {
+				removed = true;
+				endpoint2Queue.remove(endpoint, this);
+				notFull.signalAll();
+				evictIdleStats(false);
+			}
+		}
+
+		private void drain(SubscriptionQueue subQueue) {
+			for (int i = 0; i < DRAIN_BATCH; i++) {
+				Task task;
+				lock.lock();
+				try {
+					task = subQueue.tasks.poll();
+					if (task == null) {
+						subQueue.scheduled = false;
+						removeSubscriptionQueue(subQueue);
+						return;
+					}
+					size--;
+					getStats(endpoint).queueDepth.set(size);
+					notFull.signal();
+				} finally {
+					lock.unlock();
+				}
+				try {
+					task.runnable.run();
+				} catch (Throwable e) {
+					logger.error("Notification task for " + subQueue.subscriptionId + " failed", e);
+				}
+				EndpointStats stats = getStats(endpoint);
+				stats.completed.increment();
+				stats.totalLatencyNanos.add(System.nanoTime() - task.enqueuedAt);
+			}
+			// give the worker to other subscriptions, this one continues later
+			lock.lock();
+			try {
+				if (subQueue.tasks.isEmpty()) {
+					subQueue.scheduled = false;
+					removeSubscriptionQueue(subQueue);
+				} else {
+					schedule(subQueue);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	public static class EndpointStats {
+		private final AtomicInteger queueDepth = new AtomicInteger();
+		private final LongAdder enqueued = new LongAdder();
+		private final LongAdder dropped = new LongAdder();
+		private final LongAdder completed = new LongAdder();
+		private final LongAdder totalLatencyNanos = new LongAdder();
+		private volatile long lastUsed = System.nanoTime();
+
+		public int getQueueDepth() {
+			return queueDepth.get();
+		}
+
+		public long getEnqueued() {
+			return enqueued.sum();
+		}
+
+		public long getDropped() {
+			return dropped.sum();
+		}
+
+		public long getCompleted() {
+			return completed.sum();
+		}
+
+		/**
+		 * @return average time from dispatch until the task finished
+		 */
+		public double getAverageLatencyMillis() {
+			long count = completed.sum();
+			return count == 0 ? 0 : totalLatencyNanos.sum() / 1000000.0 / count;
+		}
+	}
+}
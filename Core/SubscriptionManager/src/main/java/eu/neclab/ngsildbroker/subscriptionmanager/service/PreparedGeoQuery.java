@@ -0,0 +1,241 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_CONTAINS;
+import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_DISJOINT;
+import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_EQUALS;
+import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_INTERSECTS;
+import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_NEAR;
+import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_OVERLAPS;
+import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_WITHIN;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.spatial4j.SpatialPredicate;
+import org.locationtech.spatial4j.context.jts.JtsSpatialContext;
+import org.locationtech.spatial4j.shape.Rectangle;
+import org.locationtech.spatial4j.shape.Shape;
+import org.locationtech.spatial4j.shape.ShapeFactory.PolygonBuilder;
+import org.locationtech.spatial4j.shape.jts.JtsShapeFactory;
+
+import com.github.filosganga.geogson.model.Point;
+import com.github.filosganga.geogson.model.Polygon;
+import com.github.filosganga.geogson.model.positions.SinglePosition;
+
+import eu.neclab.ngsildbroker.commons.datatypes.GeoProperty;
+import eu.neclab.ngsildbroker.commons.datatypes.GeoPropertyEntry;
+import eu.neclab.ngsildbroker.commons.datatypes.LDGeoQuery;
+import eu.neclab.ngsildbroker.commons.enums.Geometry;
+
+/**
+ * The geoQuery of a subscription with its shapes built once. Besides the
+ * evaluation it provides the bounding box every matching location has to
+ * intersect, if there is one (e.g. not for disjoint).
+ */
+public class PreparedGeoQuery {
+
+	private final static Logger logger = LogManager.getLogger(PreparedGeoQuery.class);
+
+	private static final JtsShapeFactory shapeFactory = JtsSpatialContext.GEO.getShapeFactory();
+
+	private static final Envelope WORLD = new Envelope(-180, 180, -90, 90);
+
+	private final String relation;
+	private final List<Double> coordinates;
+	// null if the geometry is not supported
+	private final Shape queryShape;
+	// the buffered query shape of near, null if near has no distance
+	private final Shape nearShape;
+	private final Envelope bounds;
+
+	public PreparedGeoQuery(LDGeoQuery geoQuery) {
+		this.relation = geoQuery.getGeoRelation().getRelation();
+		this.coordinates = geoQuery.getCoordinates();
+		this.queryShape = buildQueryShape(geoQuery.getGeometry(), coordinates);
+		if (queryShape != null && GEO_REL_NEAR.equals(relation)) {
+			if (geoQuery.getGeoRelation().getMaxDistance() != null) {
+				nearShape = queryShape.getBuffered(geoQuery.getGeoRelation().getMaxDistanceAsDouble(),
+						queryShape.getContext());
+			} else if (geoQuery.getGeoRelation().getMinDistance() != null) {
+				nearShape = queryShape.getBuffered(geoQuery.getGeoRelation().getMinDistanceAsDouble(),
+						queryShape.getContext());
+			} else {
+				nearShape = null;
+			}
+		} else {
+			nearShape = null;
+		}
+		this.bounds = computeBounds(geoQuery);
+	}
+
+	/**
+	 * Method used for preparing the geoQuery of a subscription.
+	 *
+	 * @param geoQuery
+	 * @return the prepared query or null if the shapes can not be built from it
+	 */
+	public static PreparedGeoQuery prepare(LDGeoQuery geoQuery) {
+		try {
+			return new PreparedGeoQuery(geoQuery);
+		} catch (RuntimeException e) {
+			logger.error("Invalid geoQuery " + geoQuery.getGeometry() + " " + geoQuery.getCoordinates(), e);
+			return null;
+		}
+	}
+
+	private static Shape buildQueryShape(Geometry geometry, List<Double> coordinates) {
+		if (geometry == null) {
+			return null;
+		}
+		switch (geometry) {
+		case Point:
+			return shapeFactory.pointXY(coordinates.get(0), coordinates.get(1));
+		case Polygon:
+			PolygonBuilder polygonBuilder = shapeFactory.polygon();
+			for (int i = 0; i < coordinates.size(); i = i + 2) {
+				polygonBuilder.pointXY(coordinates.get(i), coordinates.get(i + 1));
+			}
+			return polygonBuilder.build();
+		default:
+			return null;
+		}
+	}
+
+	private Envelope computeBounds(LDGeoQuery geoQuery) {
+		if (GEO_REL_EQUALS.equals(relation)) {
+			if (coordinates == null || coordinates.size() != 2) {
+				return null;
+			}
+			return new Envelope(coordinates.get(0), coordinates.get(0), coordinates.get(1), coordinates.get(1));
+		}
+		if (queryShape == null) {
+			return null;
+		}
+		if (GEO_REL_CONTAINS.equals(relation) || GEO_REL_INTERSECTS.equals(relation)
+				|| GEO_REL_OVERLAPS.equals(relation) || GEO_REL_WITHIN.equals(relation)) {
+			return toEnvelope(queryShape.getBoundingBox());
+		}
+		if (GEO_REL_NEAR.equals(relation) && geoQuery.getGeoRelation().getMaxDistance() != null) {
+			return toEnvelope(nearShape.getBoundingBox());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the bounding box every matching location intersects, null if any
+	 *         location can match
+	 */
+	public Envelope getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * Method used for evaluating the query against the location of an entity.
+	 * Like before only the first entry of the location is evaluated.
+	 *
+	 * @param location
+	 * @return true if the location matches
+	 */
+	public boolean matches(GeoProperty location) {
+		if (location == null) {
+			return false;
+		}
+		Iterator<GeoPropertyEntry> it = location.getEntries().values().iterator();
+		if (!it.hasNext()) {
+			return false;
+		}
+		com.github.filosganga.geogson.model.Geometry<?> geoValue = it.next().getGeoValue();
+		if (GEO_REL_EQUALS.equals(relation)) {
+			if (geoValue instanceof Point) {
+				return Arrays.asList(((Point) geoValue).lon(), ((Point) geoValue).lat()).equals(coordinates);
+			}
+			return false;
+		}
+		Shape entityShape = toShape(geoValue);
+		if (entityShape == null) {
+			logger.error("Unsupported GeoJson type. Currently Point and Polygon are supported.");
+			return false;
+		}
+		if (queryShape == null) {
+			return false;
+		}
+		if (GEO_REL_CONTAINS.equals(relation)) {
+			return SpatialPredicate.Contains.evaluate(entityShape, queryShape);
+		} else if (GEO_REL_DISJOINT.equals(relation)) {
+			return SpatialPredicate.IsDisjointTo.evaluate(entityShape, queryShape);
+		} else if (GEO_REL_INTERSECTS.equals(relation)) {
+			return SpatialPredicate.Intersects.evaluate(entityShape, queryShape);
+		} else if (GEO_REL_NEAR.equals(relation)) {
+			if (nearShape == null) {
+				return false;
+			}
+			boolean within = SpatialPredicate.IsWithin.evaluate(entityShape, nearShape);
+			return bounds != null ? within : !within;
+		} else if (GEO_REL_OVERLAPS.equals(relation)) {
+			return SpatialPredicate.Overlaps.evaluate(entityShape, queryShape);
+		} else if (GEO_REL_WITHIN.equals(relation)) {
+			return SpatialPredicate.IsWithin.evaluate(entityShape, queryShape);
+		}
+		return false;
+	}
+
+	/**
+	 * @param location
+	 * @return the bounding box of all entries of the location, null if it has no
+	 *         supported entry
+	 */
+	public static Envelope getEnvelope(GeoProperty location) {
+		if (location == null) {
+			return null;
+		}
+		Envelope result = null;
+		try {
+			for (GeoPropertyEntry entry : location.getEntries().values()) {
+				Shape shape = toShape(entry.getGeoValue());
+				if (shape == null) {
+					continue;
+				}
+				Envelope envelope = toEnvelope(shape.getBoundingBox());
+				if (result == null) {
+					result = envelope;
+				} else {
+					result.expandToInclude(envelope);
+				}
+			}
+		} catch (RuntimeException e) {
+			logger.warn("Failed to build the shape of a location", e);
+			return null;
+		}
+		return result;
+	}
+
+	private static Shape toShape(com.github.filosganga.geogson.model.Geometry<?> geoValue) {
+		if (geoValue instanceof Point) {
+			return shapeFactory.pointXY(((Point) geoValue).lon(), ((Point) geoValue).lat());
+		} else if (geoValue instanceof Polygon) {
+			PolygonBuilder polygonBuilder = shapeFactory.polygon();
+			Iterator<SinglePosition> it = ((Polygon) geoValue).positions().children().iterator().next().children()
+					.iterator();
+			while (it.hasNext()) {
+				SinglePosition next = it.next();
+				polygonBuilder.pointXY(next.coordinates().getLon(), next.coordinates().getLat());
+			}
+			return polygonBuilder.build();
+		}
+		return null;
+	}
+
+	/**
+	 * boxes crossing the date line are widened to all longitudes
+	 */
+	private static Envelope toEnvelope(Rectangle box) {
+		if (box.getCrossesDateLine()) {
+			return new Envelope(WORLD.getMinX(), WORLD.getMaxX(), box.getMinY(), box.getMaxY());
+		}
+		return new Envelope(box.getMinX(), box.getMaxX(), box.getMinY(), box.getMaxY());
+	}
+}
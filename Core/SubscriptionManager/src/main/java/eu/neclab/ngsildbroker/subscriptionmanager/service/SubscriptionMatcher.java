@@ -0,0 +1,569 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+import eu.neclab.ngsildbroker.commons.datatypes.EntityInfo;
+import eu.neclab.ngsildbroker.commons.datatypes.GeoProperty;
+import eu.neclab.ngsildbroker.commons.datatypes.Subscription;
+import eu.neclab.ngsildbroker.commons.datatypes.SubscriptionRequest;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Index of the active subscriptions used to find the subscriptions which are
+ * affected by an entity event. Subscriptions are indexed per tenant by exact
+ * entity id and type, by type only, by compiled id pattern and by the watched
+ * attributes. Id patterns are compiled once when a subscription is added.
+ *
+ * The geoQuery of a subscription is prepared once as well. Subscriptions whose
+ * geoQuery restricts the location to a bounding box (e.g. within, near with
+ * maxDistance) are kept in a separate index per tenant together with a
+ * quadtree of their bounding boxes. If the location of an event is known only
+ * the geo subscriptions whose boxes it intersects are checked.
+ *
+ * The index works on a snapshot of the entity selectors and watched attributes
+ * taken in {@link #add(SubscriptionRequest)}. After a subscription was
+ * changed {@link #update(SubscriptionRequest)} replaces the snapshot.
+ */
+public class SubscriptionMatcher {
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<String, TenantIndex> tenant2Index = new HashMap<String, TenantIndex>();
+	private final HashMap<String, TenantIndex> tenant2GeoIndex = new HashMap<String, TenantIndex>();
+	private final IdentityHashMap<SubscriptionRequest, IndexedSubscription> registry = new IdentityHashMap<SubscriptionRequest, IndexedSubscription>();
+
+	/**
+	 * Method used for compiling an id pattern of a subscription.
+	 *
+	 * @param idPattern
+	 * @return the compiled pattern
+	 * @throws ResponseException if the pattern is not a valid regular expression
+	 */
+	public static Pattern compileIdPattern(String idPattern) throws ResponseException {
+		try {
+			return Pattern.compile(idPattern);
+		} catch (PatternSyntaxException e) {
+			throw new ResponseException(ErrorType.BadRequestData, "Invalid idPattern " + idPattern);
+		}
+	}
+
+	/**
+	 * Method used for adding a subscription to the index.
+	 *
+	 * @param subscriptionRequest
+	 * @throws ResponseException if an id pattern of the subscription is invalid
+	 */
+	public void add(SubscriptionRequest subscriptionRequest) throws ResponseException {
+		IndexedSubscription indexed = new IndexedSubscription(subscriptionRequest);
+		lock.writeLock().lock();
+		try {
+			if (registry.containsKey(subscriptionRequest)) {
+				return;
+			}
+			doAdd(indexed);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method used for removing a subscription from the index.
+	 *
+	 * @param subscriptionRequest
+	 * @return true if the subscription was indexed
+	 */
+	public boolean remove(SubscriptionRequest subscriptionRequest) {
+		lock.writeLock().lock();
+		try {
+			return doRemove(subscriptionRequest);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method used for indexing a changed subscription again. The old snapshot is
+	 * replaced in one step, so every event is matched either against the old or
+	 * against the new version of the subscription.
+	 *
+	 * @param subscriptionRequest
+	 * @return true if the subscription was indexed, it is not added otherwise
+	 * @throws ResponseException if an id pattern of the subscription is invalid
+	 */
+	public boolean update(SubscriptionRequest subscriptionRequest) throws ResponseException {
+		IndexedSubscription indexed = new IndexedSubscription(subscriptionRequest);
+		lock.writeLock().lock();
+		try {
+			if (!doRemove(subscriptionRequest)) {
+				return false;
+			}
+			doAdd(indexed);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void doAdd(IndexedSubscription indexed) {
+		HashMap<String, TenantIndex> tenant2Indexes = indexed.geoBounds != null ? tenant2GeoIndex : tenant2Index;
+		TenantIndex index = tenant2Indexes.get(indexed.tenant);
+		if (index == null) {
+			index = new TenantIndex();
+			tenant2Indexes.put(indexed.tenant, index);
+		}
+		for (Bucket bucket : index.getBuckets(indexed, true)) {
+			bucket.add(indexed.subscriptionRequest, indexed.watchedAttributes);
+		}
+		if (indexed.geoBounds != null) {
+			index.geoTree.insert(indexed.geoBounds, indexed);
+		}
+		registry.put(indexed.subscriptionRequest, indexed);
+	}
+
+	private boolean doRemove(SubscriptionRequest subscriptionRequest) {
+		IndexedSubscription indexed = registry.remove(subscriptionRequest);
+		if (indexed == null) {
+			return false;
+		}
+		HashMap<String, TenantIndex> tenant2Indexes = indexed.geoBounds != null ? tenant2GeoIndex : tenant2Index;
+		TenantIndex index = tenant2Indexes.get(indexed.tenant);
+		if (index == null) {
+			return true;
+		}
+		for (Bucket bucket : index.getBuckets(indexed, false)) {
+			bucket.remove(subscriptionRequest, indexed.watchedAttributes);
+		}
+		if (indexed.geoBounds != null) {
+			index.geoTree.remove(indexed.geoBounds, indexed);
+		}
+		index.cleanUp(indexed);
+		if (index.isEmpty()) {
+			tenant2Indexes.remove(indexed.tenant);
+		}
+		return true;
+	}
+
+	/**
+	 * Method used for finding the subscriptions affected by an entity event. A
+	 * subscription with watched attributes is only returned if one of them is
+	 * in the provided attribute names.
+	 *
+	 * @param tenant
+	 * @param id             id of the entity
+	 * @param type           type of the entity, may be null if unknown
+	 * @param attributeNames expanded names of the attributes in the event
+	 * @return the matching subscriptions, every subscription is contained once
+	 */
+	public Set<SubscriptionRequest> match(String tenant, String id, String type, Collection<String> attributeNames) {
+		return match(tenant, id, type, attributeNames, null);
+	}
+
+	/**
+	 * Method used for finding the subscriptions affected by an entity event.
+	 * Subscriptions whose geoQuery can not match the location are left out, the
+	 * geoQuery itself is not evaluated.
+	 *
+	 * @param tenant
+	 * @param id             id of the entity
+	 * @param type           type of the entity, may be null if unknown
+	 * @param attributeNames expanded names of the attributes in the event
+	 * @param location       location of the entity, null if unknown
+	 * @return the matching subscriptions, every subscription is contained once
+	 */
+	public Set<SubscriptionRequest> match(String tenant, String id, String type, Collection<String> attributeNames,
+			GeoProperty location) {
+		Timer.Sample sample = BrokerMetrics.start();
+		try {
+			return doMatch(tenant, id, type, attributeNames, location);
+		} finally {
+			BrokerMetrics.stop(sample, BrokerMetrics.SUBSCRIPTION_MATCH);
+		}
+	}
+
+	private Set<SubscriptionRequest> doMatch(String tenant, String id, String type, Collection<String> attributeNames,
+			GeoProperty location) {
+		Set<SubscriptionRequest> result = Collections.newSetFromMap(new IdentityHashMap<SubscriptionRequest, Boolean>());
+		Envelope envelope = null;
+		lock.readLock().lock();
+		try {
+			TenantIndex index = tenant2Index.get(tenant);
+			if (index != null) {
+				index.collect(id, type, attributeNames, result);
+			}
+			TenantIndex geoIndex = tenant2GeoIndex.get(tenant);
+			if (geoIndex == null) {
+				return result;
+			}
+			if (location != null) {
+				envelope = PreparedGeoQuery.getEnvelope(location);
+			}
+			if (envelope == null) {
+				geoIndex.collect(id, type, attributeNames, result);
+				return result;
+			}
+			for (Object item : geoIndex.geoTree.query(envelope)) {
+				IndexedSubscription indexed = (IndexedSubscription) item;
+				if (indexed.geoBounds.intersects(envelope) && indexed.selects(id, type)
+						&& indexed.watches(attributeNames)) {
+					result.add(indexed.subscriptionRequest);
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method used for evaluating the geoQuery of a subscription with the shapes
+	 * prepared when it was added.
+	 *
+	 * @param subscriptionRequest
+	 * @param location            location of the entity
+	 * @return true if the subscription has no geoQuery or the location matches it
+	 */
+	public boolean matchesGeoQuery(SubscriptionRequest subscriptionRequest, GeoProperty location) {
+		IndexedSubscription indexed;
+		lock.readLock().lock();
+		try {
+			indexed = registry.get(subscriptionRequest);
+		} finally {
+			lock.readLock().unlock();
+		}
+		PreparedGeoQuery geoQuery;
+		if (indexed != null) {
+			if (!indexed.hasGeoQuery) {
+				return true;
+			}
+			geoQuery = indexed.geoQuery;
+		} else {
+			// not indexed, e.g. interval subscriptions
+			if (subscriptionRequest.getSubscription().getLdGeoQuery() == null) {
+				return true;
+			}
+			geoQuery = PreparedGeoQuery.prepare(subscriptionRequest.getSubscription().getLdGeoQuery());
+		}
+		return geoQuery != null && geoQuery.matches(location);
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return registry.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static class IndexedSubscription {
+		private final SubscriptionRequest subscriptionRequest;
+		private final String tenant;
+		private final boolean hasGeoQuery;
+		// null if the geoQuery is invalid
+		private final PreparedGeoQuery geoQuery;
+		// null if any location can match
+		private final Envelope geoBounds;
+		private final List<String> watchedAttributes;
+		private final List<String[]> idSelectors = new ArrayList<String[]>();
+		private final List<String> typeSelectors = new ArrayList<String>();
+		private final List<String[]> patternSelectors = new ArrayList<String[]>();
+		private final HashMap<String, Pattern> patterns = new HashMap<String, Pattern>();
+		private boolean allEntities = false;
+
+		IndexedSubscription(SubscriptionRequest subscriptionRequest) throws ResponseException {
+			Subscription subscription = subscriptionRequest.getSubscription();
+			this.subscriptionRequest = subscriptionRequest;
+			this.tenant = subscriptionRequest.getTenant();
+			this.hasGeoQuery = subscription.getLdGeoQuery() != null;
+			this.geoQuery = hasGeoQuery ? PreparedGeoQuery.prepare(subscription.getLdGeoQuery()) : null;
+			this.geoBounds = geoQuery != null ? geoQuery.getBounds() : null;
+			if (subscription.getAttributeNames() == null) {
+				this.watchedAttributes = Collections.emptyList();
+			} else {
+				this.watchedAttributes = new ArrayList<String>(new LinkedHashSet<String>(subscription.getAttributeNames()));
+			}
+			List<EntityInfo> entities = subscription.getEntities();
+			if (entities == null || entities.isEmpty()) {
+				allEntities = true;
+				return;
+			}
+			for (EntityInfo info : entities) {
+				if (info.getId() != null) {
+					idSelectors.add(new String[] { info.getId().toString(), info.getType() });
+				} else if (info.getIdPattern() != null) {
+					patterns.put(info.getIdPattern(), compileIdPattern(info.getIdPattern()));
+					patternSelectors.add(new String[] { info.getType(), info.getIdPattern() });
+				} else {
+					typeSelectors.add(info.getType());
+				}
+			}
+		}
+
+		/**
+		 * the same selection as the buckets of the subscription
+		 */
+		private boolean selects(String id, String type) {
+			if (allEntities) {
+				return true;
+			}
+			if (type == null) {
+				return false;
+			}
+			if (typeSelectors.contains(type)) {
+				return true;
+			}
+			if (id == null) {
+				return false;
+			}
+			for (String[] idAndType : idSelectors) {
+				if (id.equals(idAndType[0]) && type.equals(idAndType[1])) {
+					return true;
+				}
+			}
+			for (String[] typeAndPattern : patternSelectors) {
+				if (type.equals(typeAndPattern[0]) && patterns.get(typeAndPattern[1]).matcher(id).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean watches(Collection<String> attributeNames) {
+			if (watchedAttributes.isEmpty()) {
+				return true;
+			}
+			if (attributeNames == null) {
+				return false;
+			}
+			for (String attrib : attributeNames) {
+				if (watchedAttributes.contains(attrib)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class TenantIndex {
+		private final Bucket allEntities = new Bucket();
+		private final HashMap<String, Bucket> type2Subs = new HashMap<String, Bucket>();
+		private final Table<String, String, Bucket> idAndType2Subs = HashBasedTable.create();
+		private final HashMap<String, Map<String, PatternBucket>> type2Patterns = new HashMap<String, Map<String, PatternBucket>>();
+		// bounding boxes of the subscriptions, only used in the geo index
+		private final Quadtree geoTree = new Quadtree();
+
+		private void collect(String id, String type, Collection<String> attributeNames,
+				Set<SubscriptionRequest> result) {
+			allEntities.collect(attributeNames, result);
+			if (type == null) {
+				return;
+			}
+			Bucket bucket = type2Subs.get(type);
+			if (bucket != null) {
+				bucket.collect(attributeNames, result);
+			}
+			if (id == null) {
+				return;
+			}
+			bucket = idAndType2Subs.get(id, type);
+			if (bucket != null) {
+				bucket.collect(attributeNames, result);
+			}
+			Map<String, PatternBucket> patterns = type2Patterns.get(type);
+			if (patterns != null) {
+				for (PatternBucket patternBucket : patterns.values()) {
+					if (patternBucket.pattern.matcher(id).matches()) {
+						patternBucket.bucket.collect(attributeNames, result);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Returns every bucket the subscription belongs to once, even if several of
+		 * its entity selectors point to the same bucket.
+		 */
+		private Collection<Bucket> getBuckets(IndexedSubscription indexed, boolean create) {
+			Set<Bucket> result = Collections.newSetFromMap(new IdentityHashMap<Bucket, Boolean>());
+			if (indexed.allEntities) {
+				result.add(allEntities);
+				return result;
+			}
+			for (String type : indexed.typeSelectors) {
+				Bucket bucket = type2Subs.get(type);
+				if (bucket == null && create) {
+					bucket = new Bucket();
+					type2Subs.put(type, bucket);
+				}
+				addIfPresent(result, bucket);
+			}
+			for (String[] idAndType : indexed.idSelectors) {
+				if (idAndType[1] == null) {
+					continue;
+				}
+				Bucket bucket = idAndType2Subs.get(idAndType[0], idAndType[1]);
+				if (bucket == null && create) {
+					bucket = new Bucket();
+					idAndType2Subs.put(idAndType[0], idAndType[1], bucket);
+				}
+				addIfPresent(result, bucket);
+			}
+			for (String[] typeAndPattern : indexed.patternSelectors) {
+				Map<String, PatternBucket> patterns = type2Patterns.get(typeAndPattern[0]);
+				if (patterns == null) {
+					if (!create) {
+						continue;
+					}
+					patterns = new HashMap<String, PatternBucket>();
+					type2Patterns.put(typeAndPattern[0], patterns);
+				}
+				PatternBucket patternBucket = patterns.get(typeAndPattern[1]);
+				if (patternBucket == null && create) {
+					patternBucket = new PatternBucket(indexed.patterns.get(typeAndPattern[1]));
+					patterns.put(typeAndPattern[1], patternBucket);
+				}
+				if (patternBucket != null) {
+					result.add(patternBucket.bucket);
+				}
+			}
+			return result;
+		}
+
+		private void addIfPresent(Set<Bucket> result, Bucket bucket) {
+			if (bucket != null) {
+				result.add(bucket);
+			}
+		}
+
+		private void cleanUp(IndexedSubscription indexed) {
+			for (String type : indexed.typeSelectors) {
+				Bucket bucket = type2Subs.get(type);
+				if (bucket != null && bucket.isEmpty()) {
+					type2Subs.remove(type);
+				}
+			}
+			for (String[] idAndType : indexed.idSelectors) {
+				if (idAndType[1] == null) {
+					continue;
+				}
+				Bucket bucket = idAndType2Subs.get(idAndType[0], idAndType[1]);
+				if (bucket != null && bucket.isEmpty()) {
+					idAndType2Subs.remove(idAndType[0], idAndType[1]);
+				}
+			}
+			for (String[] typeAndPattern : indexed.patternSelectors) {
+				Map<String, PatternBucket> patterns = type2Patterns.get(typeAndPattern[0]);
+				if (patterns == null) {
+					continue;
+				}
+				PatternBucket patternBucket = patterns.get(typeAndPattern[1]);
+				if (patternBucket != null && patternBucket.bucket.isEmpty()) {
+					patterns.remove(typeAndPattern[1]);
+				}
+				if (patterns.isEmpty()) {
+					type2Patterns.remove(typeAndPattern[0]);
+				}
+			}
+		}
+
+		private boolean isEmpty() {
+			return allEntities.isEmpty() && type2Subs.isEmpty() && idAndType2Subs.isEmpty()
+					&& type2Patterns.isEmpty() && geoTree.isEmpty();
+		}
+	}
+
+	private static class PatternBucket {
+		private final Pattern pattern;
+		private final Bucket bucket = new Bucket();
+
+		PatternBucket(Pattern pattern) {
+			this.pattern = pattern;
+		}
+	}
+
+	/**
+	 * Subscriptions without watched attributes fire on every event, all others
+	 * are found via their watched attributes.
+	 */
+	private static class Bucket {
+		private final List<SubscriptionRequest> unwatched = new ArrayList<SubscriptionRequest>();
+		private final HashMap<String, List<SubscriptionRequest>> attrib2Subs = new HashMap<String, List<SubscriptionRequest>>();
+
+		private void add(SubscriptionRequest subscriptionRequest, List<String> watchedAttributes) {
+			if (watchedAttributes.isEmpty()) {
+				unwatched.add(subscriptionRequest);
+				return;
+			}
+			for (String attrib : watchedAttributes) {
+				List<SubscriptionRequest> subs = attrib2Subs.get(attrib);
+				if (subs == null) {
+					subs = new ArrayList<SubscriptionRequest>();
+					attrib2Subs.put(attrib, subs);
+				}
+				subs.add(subscriptionRequest);
+			}
+		}
+
+		private void remove(SubscriptionRequest subscriptionRequest, List<String> watchedAttributes) {
+			if (watchedAttributes.isEmpty()) {
+				removeInstance(unwatched, subscriptionRequest);
+				return;
+			}
+			for (String attrib : watchedAttributes) {
+				List<SubscriptionRequest> subs = attrib2Subs.get(attrib);
+				if (subs == null) {
+					continue;
+				}
+				removeInstance(subs, subscriptionRequest);
+				if (subs.isEmpty()) {
+					attrib2Subs.remove(attrib);
+				}
+			}
+		}
+
+		private void removeInstance(List<SubscriptionRequest> subs, SubscriptionRequest subscriptionRequest) {
+			for (int i = 0; i < subs.size(); i++) {
+				if (subs.get(i) == subscriptionRequest) {
+					subs.remove(i);
+					return;
+				}
+			}
+		}
+
+		private void collect(Collection<String> attributeNames, Set<SubscriptionRequest> result) {
+			result.addAll(unwatched);
+			if (attrib2Subs.isEmpty() || attributeNames == null) {
+				return;
+			}
+			for (String attrib : attributeNames) {
+				List<SubscriptionRequest> subs = attrib2Subs.get(attrib);
+				if (subs != null) {
+					result.addAll(subs);
+				}
+			}
+		}
+
+		private boolean isEmpty() {
+			return unwatched.isEmpty() && attrib2Subs.isEmpty();
+		}
+	}
+}
@@ -1,40 +1,25 @@
 package eu.neclab.ngsildbroker.subscriptionmanager.service;
 
-import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_CONTAINS;
-import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_DISJOINT;
-import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_EQUALS;
-import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_INTERSECTS;
-import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_NEAR;
-import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_OVERLAPS;
-import static eu.neclab.ngsildbroker.commons.constants.NGSIConstants.GEO_REL_WITHIN;
-
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.spatial4j.SpatialPredicate;
-import org.locationtech.spatial4j.context.jts.JtsSpatialContext;
-import org.locationtech.spatial4j.shape.Shape;
-import org.locationtech.spatial4j.shape.ShapeFactory.PolygonBuilder;
-import org.locationtech.spatial4j.shape.jts.JtsShapeFactory;
-import org.mapdb.DBMaker;
-import org.mapdb.HTreeMap;
-import org.mapdb.Serializer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -46,9 +31,6 @@ import org.springframework.messaging.Message;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.filosganga.geogson.model.Point;
-import com.github.filosganga.geogson.model.Polygon;
-import com.github.filosganga.geogson.model.positions.SinglePosition;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
@@ -63,11 +45,9 @@ import eu.neclab.ngsildbroker.commons.datatypes.EndPoint;
 import eu.neclab.ngsildbroker.commons.datatypes.Entity;
 import eu.neclab.ngsildbroker.commons.datatypes.EntityInfo;
 import eu.neclab.ngsildbroker.commons.datatypes.EntityRequest;
-import eu.neclab.ngsildbroker.commons.datatypes.GeoProperty;
-import eu.neclab.ngsildbroker.commons.datatypes.GeoPropertyEntry;
-import eu.neclab.ngsildbroker.commons.datatypes.LDGeoQuery;
 import eu.neclab.ngsildbroker.commons.datatypes.Notification;
 import eu.neclab.ngsildbroker.commons.datatypes.NotificationParam;
+import eu.neclab.ngsildbroker.commons.datatypes.QueryTerm;
 import eu.neclab.ngsildbroker.commons.datatypes.Subscription;
 import eu.neclab.ngsildbroker.commons.datatypes.SubscriptionRequest;
 import eu.neclab.ngsildbroker.commons.enums.ErrorType;
@@ -80,9 +60,14 @@ import eu.neclab.ngsildbroker.commons.ngsiqueries.ParamsResolver;
 import eu.neclab.ngsildbroker.commons.ngsiqueries.QueryParser;
 import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
+import eu.neclab.ngsildbroker.commons.tools.BrokerMetrics;
 import eu.neclab.ngsildbroker.commons.tools.EntityTools;
 import eu.neclab.ngsildbroker.commons.tools.HttpUtils;
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler;
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler.Timeout;
 import eu.neclab.ngsildbroker.subscriptionmanager.config.SubscriptionManagerProducerChannel;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Metrics;
 
 @Service
 public class SubscriptionService implements SubscriptionManager {
@@ -90,12 +75,10 @@ public class SubscriptionService implements SubscriptionManager {
 
 	private final static Logger logger = LogManager.getLogger(SubscriptionService.class);
 
-	private final int CREATE = 0;
-	private final int APPEND = 1;
-	private final int UPDATE = 2;
-	private final int DELETE = 3;
-
-	private final String ALL_TYPES_TYPE = "()";
+	static final int CREATE = 0;
+	static final int APPEND = 1;
+	static final int UPDATE = 2;
+	static final int DELETE = 3;
 
 	@Value("${atcontext.url}")
 	String atContextServerUrl;
@@ -106,7 +89,7 @@ public class SubscriptionService implements SubscriptionManager {
 	NotificationHandlerMQTT notificationHandlerMQTT;
 	IntervalNotificationHandler intervalHandlerMQTT;
 
-	Timer watchDog = new Timer(true);
+	TimingWheelScheduler scheduler = TimingWheelScheduler.getInstance();
 
 	// KafkaOps kafkaOps = new KafkaOps();
 
@@ -148,11 +131,28 @@ public class SubscriptionService implements SubscriptionManager {
 	@Value("${subscription.directdb:true}")
 	boolean directDB;
 
-	JtsShapeFactory shapeFactory = JtsSpatialContext.GEO.getShapeFactory();
+	@Value("${subscription.notification.workers:20}")
+	int notificationWorkers;
+
+	@Value("${subscription.notification.queuecapacity:1000}")
+	int notificationQueueCapacity;
+
+	// max entities combined into one notification, 1 sends every change alone
+	@Value("${subscription.notification.maxbatch:100}")
+	int notificationMaxBatch;
+
+	@Value("${subscription.notification.droppolicy:DROP_OLDEST}")
+	NotificationDispatcher.DropPolicy notificationDropPolicy;
+
+	@Value("${subscription.notification.offertimeout:1000}")
+	long notificationOfferTimeout;
+
+	NotificationDispatcher notificationDispatcher;
+	Table<String, String, List<Entity>> subId2PendingData = HashBasedTable.create();
 
 	Table<String, String, SubscriptionRequest> tenant2subscriptionId2Subscription = HashBasedTable.create();
-	Table<String, String, TimerTask> subId2TimerTask = HashBasedTable.create();
-	Table<String, String, List<SubscriptionRequest>> type2EntitiesSubscriptions = HashBasedTable.create();
+	Table<String, String, Timeout> subId2Expiry = HashBasedTable.create();
+	SubscriptionMatcher subscriptionMatcher = new SubscriptionMatcher();
 	HashMap<SubscriptionRequest, Long> sub2CreationTime = new HashMap<SubscriptionRequest, Long>();
 	Table<String, String, List<Object>> tenantId2subscriptionId2Context = HashBasedTable.create();
 	HashMap<String, SubscriptionRequest> remoteNotifyCallbackId2InternalSub = new HashMap<String, SubscriptionRequest>();
@@ -163,9 +163,11 @@ public class SubscriptionService implements SubscriptionManager {
 
 	private Table<String, String, String> tenant2Ids2Type;
 
-	private HTreeMap<String, String> subscriptionStore;
+	private SubscriptionStore subscriptionStore;
 	@Value("${subscriptions.store:subscriptionstore.db}")
 	private String subscriptionStoreLocation;
+	@Value("${subscriptions.store.flushdelay:100}")
+	private long subscriptionStoreFlushDelay;
 
 	// @Value("${notification.port}")
 	// String REMOTE_NOTIFICATION_PORT;
@@ -183,6 +185,12 @@ public class SubscriptionService implements SubscriptionManager {
 			e.printStackTrace();
 		}
 		httpUtils = HttpUtils.getInstance(contextResolverService);
+		notificationDispatcher = new NotificationDispatcher(notificationWorkers, notificationQueueCapacity,
+				notificationDropPolicy, notificationOfferTimeout);
+		Metrics.gauge(BrokerMetrics.NOTIFICATION_QUEUE_DEPTH, notificationDispatcher,
+				NotificationDispatcher::getQueueDepth);
+		FunctionCounter.builder(BrokerMetrics.NOTIFICATION_DROPPED, notificationDispatcher,
+				NotificationDispatcher::getDropped).register(Metrics.globalRegistry);
 		notificationHandlerREST = new NotificationHandlerREST(this, contextResolverService, objectMapper);
 		intervalHandlerREST = new IntervalNotificationHandler(notificationHandlerREST, kafkaTemplate, queryResultTopic,
 				requestTopic, paramsResolver);
@@ -190,41 +198,49 @@ public class SubscriptionService implements SubscriptionManager {
 		intervalHandlerMQTT = new IntervalNotificationHandler(notificationHandlerMQTT, kafkaTemplate, queryResultTopic,
 				requestTopic, paramsResolver);
 		logger.trace("call loadStoredSubscriptions() ::");
-		this.subscriptionStore = DBMaker.fileDB(this.subscriptionStoreLocation).closeOnJvmShutdown()
-				.checksumHeaderBypass().transactionEnable().make()
-				.hashMap("subscriptions", Serializer.STRING, Serializer.STRING).createOrOpen();
+		this.subscriptionStore = new SubscriptionStore(subscriptionStoreLocation, subscriptionStoreFlushDelay);
 		loadStoredSubscriptions();
 
 	}
 
 	@PreDestroy
 	private void deconstructor() {
+		notificationDispatcher.shutdown();
 		subscriptionStore.close();
 	}
 
+	/**
+	 * Method used for restoring the stored subscriptions on startup. They are
+	 * deserialized in parallel and registered one after another, they are not
+	 * written to the store again.
+	 */
 	private void loadStoredSubscriptions() {
-		// TODO Auto-generated method stub
-		synchronized (this.subscriptionStore) {
-			for (Entry<String, String> entry : subscriptionStore.entrySet()) {
-				try {
-					SubscriptionRequest subscription = DataSerializer.getSubscriptionRequest(entry.getValue());
-					subscribe(subscription);
-				} catch (JsonParseException e) {
-					logger.error("Exception ::", e);
-					e.printStackTrace();
-					continue;
-				} catch (ResponseException e) {
-					logger.error("Exception ::", e);
-					e.printStackTrace();
-					continue;
-				}
+		long start = System.currentTimeMillis();
+		List<SubscriptionRequest> restored = subscriptionStore.getAll().parallelStream().map(stored -> {
+			try {
+				return DataSerializer.getSubscriptionRequest(stored);
+			} catch (JsonParseException e) {
+				logger.error("Failed to read a stored subscription", e);
+				return null;
+			}
+		}).filter(Objects::nonNull).collect(Collectors.toList());
+		for (SubscriptionRequest subscription : restored) {
+			try {
+				subscribe(subscription, false);
+			} catch (ResponseException e) {
+				logger.error("Failed to restore subscription " + subscription.getSubscription().getId(), e);
 			}
-
 		}
+		logger.info("Restored " + restored.size() + " subscriptions in " + (System.currentTimeMillis() - start)
+				+ " ms");
 	}
 
 	@Override
 	public URI subscribe(SubscriptionRequest subscriptionRequest) throws ResponseException {
+		return subscribe(subscriptionRequest, true);
+	}
+
+	private URI subscribe(SubscriptionRequest subscriptionRequest, boolean store) throws ResponseException {
 		logger.debug("Subscribe got called " + subscriptionRequest.getSubscription().toString());
 		Subscription subscription = subscriptionRequest.getSubscription();
 		validateSub(subscription);
@@ -254,59 +270,41 @@ public class SubscriptionService implements SubscriptionManager {
 			this.tenantId2subscriptionId2Context.put(subscriptionRequest.getTenant(), subscription.getId().toString(),
 					subscriptionRequest.getContext());
 			this.sub2CreationTime.put(subscriptionRequest, System.currentTimeMillis());
-			List<EntityInfo> entities = subscription.getEntities();
-			if (entities == null || entities.isEmpty()) {
-				putInTable(this.type2EntitiesSubscriptions, subscriptionRequest.getTenant(), ALL_TYPES_TYPE,
-						subscriptionRequest);
+			this.subscriptionMatcher.add(subscriptionRequest);
+			if (store) {
+				storeSubscription(subscriptionRequest);
 			} else {
-				for (EntityInfo info : subscription.getEntities()) {
-					putInTable(this.type2EntitiesSubscriptions, subscriptionRequest.getTenant(), info.getType(),
-							subscriptionRequest);
-
-				}
-
+				announceSubscription(subscriptionRequest);
 			}
-			storeSubscription(subscriptionRequest);
 
 			if (subscription.getExpires() != null) {
-				TimerTask cancel = new TimerTask() {
-
-					@Override
-					public void run() {
-						try {
-							unsubscribe(subscription.getId(), subscriptionRequest.getHeaders());
-						} catch (ResponseException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					}
-				};
-				subId2TimerTask.put(subscriptionRequest.getTenant(), subscription.getId().toString(), cancel);
-				watchDog.schedule(cancel, subscription.getExpires() - System.currentTimeMillis());
+				scheduleExpiry(subscriptionRequest);
 			}
 		}
 		return subscription.getId();
 	}
 
-	private void putInTable(Table<String, String, List<SubscriptionRequest>> table, String row, String colum,
-			SubscriptionRequest subscriptionRequest) {
-		List<SubscriptionRequest> subs = table.get(row, colum);
-		if (subs == null) {
-			subs = new ArrayList<SubscriptionRequest>();
-			table.put(row, colum, subs);
-		}
-		subs.add(subscriptionRequest);
-	}
-
-	private void removeFromTable(Table<String, String, List<SubscriptionRequest>> table, String row, String colum,
-			SubscriptionRequest subscriptionRequest) {
-		List<SubscriptionRequest> subs = table.get(row, colum);
-		if (subs == null) {
-			return;
+	/**
+	 * Method used for scheduling the removal of a subscription when it expires,
+	 * a previously scheduled expiry is cancelled.
+	 *
+	 * @param subscriptionRequest
+	 */
+	private void scheduleExpiry(SubscriptionRequest subscriptionRequest) {
+		Subscription subscription = subscriptionRequest.getSubscription();
+		Timeout expiry = scheduler.schedule(() -> {
+			try {
+				unsubscribe(subscription.getId(), subscriptionRequest.getHeaders());
+			} catch (ResponseException e) {
+				logger.error("Failed to remove the expired subscription " + subscription.getId(), e);
+			}
+		}, subscription.getExpires() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		Timeout previous;
+		synchronized (subId2Expiry) {
+			previous = subId2Expiry.put(subscriptionRequest.getTenant(), subscription.getId().toString(), expiry);
 		}
-		subs.remove(subscriptionRequest);
-		if (subs.isEmpty()) {
-			table.remove(row, colum);
+		if (previous != null) {
+			previous.cancel();
 		}
 	}
 
@@ -321,28 +319,36 @@ public class SubscriptionService implements SubscriptionManager {
 			throw new ResponseException(ErrorType.BadRequestData,
 					"watchedAttributes  and timeInterval cannot both be set");
 		}
+		validateIdPatterns(subscription.getEntities());
+	}
 
+	private void validateIdPatterns(List<EntityInfo> entities) throws ResponseException {
+		if (entities == null) {
+			return;
+		}
+		for (EntityInfo info : entities) {
+			if (info.getIdPattern() != null) {
+				SubscriptionMatcher.compileIdPattern(info.getIdPattern());
+			}
+		}
 	}
 
-	private void storeSubscription(SubscriptionRequest subscription) throws ResponseException {
-		new Thread() {
-			public void run() {
-				synchronized (subscriptionStore) {
-					subscriptionStore.put(subscription.getSubscription().getId().toString(),
-							DataSerializer.toJson(subscription));
-					try {
-						kafkaOps.pushToKafka(producerChannel.subscriptionWriteChannel(),
-								subscription.getSubscription().getId().toString().getBytes(),
-								DataSerializer.toJson(subscription).getBytes());
-					} catch (ResponseException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
+	private void storeSubscription(SubscriptionRequest subscription) {
+		String json = DataSerializer.toJson(subscription);
+		subscriptionStore.put(subscription.getSubscription().getId().toString(), json);
+		announceSubscription(subscription.getSubscription().getId().toString(), json);
+	}
 
-			};
-		}.start();
+	private void announceSubscription(SubscriptionRequest subscription) {
+		announceSubscription(subscription.getSubscription().getId().toString(), DataSerializer.toJson(subscription));
+	}
 
+	private void announceSubscription(String id, String json) {
+		try {
+			kafkaOps.pushToKafka(producerChannel.subscriptionWriteChannel(), id.getBytes(), json.getBytes());
+		} catch (ResponseException e) {
+			logger.error("Failed to publish subscription " + id, e);
+		}
 	}
 
 	private URI generateUniqueSubId(Subscription subscription) {
@@ -388,30 +394,19 @@ public class SubscriptionService implements SubscriptionManager {
 		}
 		intervalHandlerREST.removeSub(id.toString());
 		intervalHandlerMQTT.removeSub(id.toString());
-		List<EntityInfo> entities = removedSub.getSubscription().getEntities();
-		if (entities == null || entities.isEmpty()) {
-			synchronized (type2EntitiesSubscriptions) {
-				removeFromTable(type2EntitiesSubscriptions, tenant, ALL_TYPES_TYPE, removedSub);
-			}
-		} else {
-			for (EntityInfo info : entities) {
-				synchronized (type2EntitiesSubscriptions) {
-					removeFromTable(type2EntitiesSubscriptions, tenant, info.getType(), removedSub);
-				}
-			}
+		this.subscriptionMatcher.remove(removedSub);
+		Timeout expiry;
+		synchronized (subId2Expiry) {
+			expiry = subId2Expiry.remove(tenant, id.toString());
+		}
+		if (expiry != null) {
+			expiry.cancel();
 		}
-		TimerTask task = subId2TimerTask.get(tenant, id.toString());
-		if (task != null) {
-			task.cancel();
+		synchronized (subId2PendingData) {
+			subId2PendingData.remove(tenant, id.toString());
 		}
 		// TODO remove remote subscription
-		new Thread() {
-			public void run() {
-				synchronized (subscriptionStore) {
-					subscriptionStore.remove(id.toString());
-				}
-			};
-		}.start();
+		subscriptionStore.remove(id.toString());
 
 	}
 
@@ -425,7 +420,11 @@ public class SubscriptionService implements SubscriptionManager {
 			throw new ResponseException(ErrorType.NotFound);
 		}
 		Subscription oldSub = oldSubRequest.getSubscription();
-
+		validateIdPatterns(subscription.getEntities());
+		QueryTerm queryTerm = null;
+		if (subscription.getLdQuery() != null && !subscription.getLdQuery().trim().equals("")) {
+			queryTerm = queryParser.parseQuery(subscription.getLdQuery(), subscriptionRequest.getContext());
+		}
 		if (subscription.getAttributeNames() != null) {
 			oldSub.setAttributeNames(subscription.getAttributeNames());
 		}
@@ -437,11 +436,7 @@ public class SubscriptionService implements SubscriptionManager {
 		}
 		if (subscription.getExpires() != null) {
 			oldSub.setExpires(subscription.getExpires());
-			synchronized (subId2TimerTask) {
-				TimerTask task = subId2TimerTask.get(subscriptionRequest.getTenant(), oldSub.getId().toString());
-				task.cancel();
-				watchDog.schedule(task, subscription.getExpires() - System.currentTimeMillis());
-			}
+			scheduleExpiry(oldSubRequest);
 
 		}
 		if (subscription.getLdGeoQuery() != null) {
@@ -449,6 +444,7 @@ public class SubscriptionService implements SubscriptionManager {
 		}
 		if (subscription.getLdQuery() != null) {
 			oldSub.setLdQuery(subscription.getLdQuery());
+			oldSub.setQueryTerm(queryTerm);
 		}
 		if (subscription.getLdTempQuery() != null) {
 			oldSub.setLdTempQuery(subscription.getLdTempQuery());
@@ -462,6 +458,8 @@ public class SubscriptionService implements SubscriptionManager {
 		if (subscription.getTimeInterval() != 0) {
 			oldSub.setTimeInterval(subscription.getTimeInterval());
 		}
+		// the index holds a snapshot of entities and watched attributes
+		this.subscriptionMatcher.update(oldSubRequest);
 		synchronized (this.tenantId2subscriptionId2Context) {
 			this.tenantId2subscriptionId2Context.put(tenant, oldSub.getId().toString(),
 					subscriptionRequest.getContext());
@@ -511,88 +509,113 @@ public class SubscriptionService implements SubscriptionManager {
 			this.tenant2Ids2Type.put(createRequest.getTenant(), id, create.getType());
 		}
 
-		ArrayList<SubscriptionRequest> subsToCheck = new ArrayList<SubscriptionRequest>();
-
-		List<SubscriptionRequest> subs = this.type2EntitiesSubscriptions.get(createRequest.getTenant(),
-				create.getType());
-		if (subs != null) {
-			for (SubscriptionRequest sub : subs) {
-
-				for (EntityInfo entityInfo : sub.getSubscription().getEntities()) {
-					if (entityInfo.getId() == null && entityInfo.getIdPattern() == null) {
-						subsToCheck.add(sub);
-						break;
-					}
-					if (entityInfo.getId() != null && entityInfo.getId().toString().equals(id)) {
-						subsToCheck.add(sub);
-						break;
-					}
-					if (entityInfo.getIdPattern() != null && id.matches(entityInfo.getIdPattern())) {
-						subsToCheck.add(sub);
-						break;
-					}
-				}
-			}
-		}
-		addAllTypeSubscriptions(createRequest.getHeaders(), subsToCheck);
-
+		Set<SubscriptionRequest> subsToCheck = subscriptionMatcher.match(createRequest.getTenant(), id,
+				create.getType(), getAttribIds(create), create.getLocation());
 		checkSubscriptions(subsToCheck, create, CREATE, messageTime);
 
 	}
 
-	private void addAllTypeSubscriptions(ArrayListMultimap<String, String> entityOpHeaders,
-			List<SubscriptionRequest> subsToCheck) {
-		List<SubscriptionRequest> subs = this.type2EntitiesSubscriptions.get(ALL_TYPES_TYPE,
-				HttpUtils.getInternalTenant(entityOpHeaders));
-		if (subs == null) {
-			return;
+	private List<String> getAttribIds(Entity entity) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (BaseProperty baseProp : entity.getAllBaseProperties()) {
+			result.add(baseProp.getIdString());
 		}
-		subsToCheck.addAll(subs);
+		return result;
 	}
 
-	private void checkSubscriptions(ArrayList<SubscriptionRequest> subsToCheck, Entity entity, int methodType,
+	private void checkSubscriptions(Collection<SubscriptionRequest> subsToCheck, Entity entity, int methodType,
 			long messageTime) {
 
 		for (SubscriptionRequest subscription : subsToCheck) {
-			if (messageTime >= sub2CreationTime.get(subscription)) {
-				new Thread() {
-					public void run() {
-						Entity data = null;
-						try {
-							switch (methodType) {
-							case CREATE:
-								data = generateNotificationEntity(entity, subscription);
-
-								break;
-							case APPEND:
-								data = generateDataFromBaseOp(entity, subscription);
-								break;
-							case UPDATE:
-								data = generateDataFromBaseOp(entity, subscription);
-								break;
-							case DELETE:
-
-								break;
-
-							default:
-								break;
-							}
-
-							if (data != null) {
-								ArrayList<Entity> dataList = new ArrayList<Entity>();
-								dataList.add(data);
-								sendNotification(dataList, subscription);
-							}
-						} catch (ResponseException e) {
-							logger.error("Failed to handle new data for the subscriptions, cause: " + e.getMessage());
-						}
-					}
+			Long creationTime = sub2CreationTime.get(subscription);
+			if (creationTime == null || messageTime < creationTime) {
+				continue;
+			}
+			Subscription sub = subscription.getSubscription();
+			notificationDispatcher.dispatch(sub.getNotification().getEndPoint().getUri(), subscription.getTenant(),
+					sub.getId().toString(), () -> notifyChange(subscription, entity, methodType));
+		}
+
+	}
 
-				}.start();
+	/**
+	 * Method used for notifying a subscription about an entity change, runs in
+	 * the notification dispatcher.
+	 *
+	 * @param subscription
+	 * @param entity
+	 * @param methodType
+	 */
+	void notifyChange(SubscriptionRequest subscription, Entity entity, int methodType) {
+		Entity data = null;
+		try {
+			switch (methodType) {
+			case CREATE:
+				data = generateNotificationEntity(entity, subscription);
+
+				break;
+			case APPEND:
+				data = generateDataFromBaseOp(entity, subscription);
+				break;
+			case UPDATE:
+				data = generateDataFromBaseOp(entity, subscription);
+				break;
+			case DELETE:
+
+				break;
+
+			default:
+				break;
 			}
+		} catch (ResponseException e) {
+			logger.error("Failed to handle new data for the subscriptions, cause: " + e.getMessage());
+		} finally {
+			// also if this change failed, the data held back for it has to be sent
+			queueNotification(subscription, data);
+		}
+	}
 
+	/**
+	 * Method used for sending the data of an entity change. Changes for a
+	 * subscription without throttling are held back while further changes for
+	 * it are queued and sent together with them in one notification, up to the
+	 * max batch size.
+	 *
+	 * @param subscription
+	 * @param data         null if the change does not match
+	 */
+	private void queueNotification(SubscriptionRequest subscription, Entity data) {
+		Subscription sub = subscription.getSubscription();
+		String tenant = subscription.getTenant();
+		String subId = sub.getId().toString();
+		URI callback = sub.getNotification().getEndPoint().getUri();
+		List<Entity> batch;
+		synchronized (subId2PendingData) {
+			batch = subId2PendingData.get(tenant, subId);
+			if (data != null) {
+				if (batch == null) {
+					batch = new ArrayList<Entity>();
+					subId2PendingData.put(tenant, subId, batch);
+				}
+				batch.add(data);
+			}
+			if (batch == null) {
+				return;
+			}
+			boolean coalesce = notificationMaxBatch > 1 && (sub.getThrottling() == null || sub.getThrottling() == 0);
+			if (coalesce && batch.size() < notificationMaxBatch
+					&& notificationDispatcher.hasPending(callback, tenant, subId)) {
+				return;
+			}
+			subId2PendingData.remove(tenant, subId);
 		}
+		Metrics.summary(BrokerMetrics.NOTIFICATION_BATCH_SIZE, BrokerMetrics.TAG_ENDPOINT,
+				NotificationDispatcher.getEndpointKey(callback)).record(batch.size());
+		sendNotification(batch, subscription);
+	}
 
+	public Map<String, NotificationDispatcher.EndpointStats> getNotificationStats() {
+		return notificationDispatcher.getStats();
 	}
 
 	private void sendNotification(List<Entity> dataList, SubscriptionRequest subscription) {
@@ -629,7 +652,7 @@ public class SubscriptionService implements SubscriptionManager {
 	private Entity generateNotificationEntity(Entity entity, SubscriptionRequest subscription)
 			throws ResponseException {
 
-		if (!evaluateGeoQuery(subscription.getSubscription().getLdGeoQuery(), entity.getLocation())) {
+		if (!subscriptionMatcher.matchesGeoQuery(subscription, entity.getLocation())) {
 			return null;
 		}
 		if (subscription.getSubscription().getQueryTerm() != null) {
@@ -693,7 +716,7 @@ public class SubscriptionService implements SubscriptionManager {
 		}
 		// HERE YOU NEED TO REPLACE THE ATTRIBUTE TO THE ONE FROM DELTA
 		Entity entity = DataSerializer.getEntity(entityBody);
-		if (!evaluateGeoQuery(subscription.getSubscription().getLdGeoQuery(), entity.getLocation())) {
+		if (!subscriptionMatcher.matchesGeoQuery(subscription, entity.getLocation())) {
 			return null;
 		}
 		if (subscription.getSubscription().getQueryTerm() != null) {
@@ -722,112 +745,6 @@ public class SubscriptionService implements SubscriptionManager {
 		return attribNames;
 	}
 
-	private boolean evaluateGeoQuery(LDGeoQuery geoQuery, GeoProperty location) {
-		return evaluateGeoQuery(geoQuery, location, -1);
-	}
-
-	private boolean evaluateGeoQuery(LDGeoQuery geoQuery, GeoProperty location, double expandArea) {
-
-		if (geoQuery == null) {
-			return true;
-		}
-
-		String relation = geoQuery.getGeoRelation().getRelation();
-		List<Double> coordinates = geoQuery.getCoordinates();
-
-		if (location == null) {
-			return false;
-		}
-		Iterator<GeoPropertyEntry> it = location.getEntries().values().iterator();
-		while (it.hasNext()) {
-			GeoPropertyEntry next = it.next();
-			if (GEO_REL_EQUALS.equals(relation)) {
-				if (next.getGeoValue() instanceof Point) {
-					List<Double> geoValueAsList = java.util.Arrays.asList(((Point) next.getGeoValue()).lon(),
-							((Point) next.getGeoValue()).lat());
-
-					return geoValueAsList.equals(geoQuery.getCoordinates());
-				} else {
-					// TODO
-
-					return false;
-				}
-			} else {
-
-				Shape entityShape;
-				if (next.getGeoValue() instanceof Point) {
-					entityShape = shapeFactory.pointXY(((Point) next.getGeoValue()).lon(),
-							((Point) next.getGeoValue()).lat());
-				} else if (next.getGeoValue() instanceof Polygon) {
-					PolygonBuilder polygonBuilder = shapeFactory.polygon();
-					Iterator<SinglePosition> it2 = ((Polygon) next.getGeoValue()).positions().children().iterator()
-							.next().children().iterator();
-					while (it2.hasNext()) {
-						SinglePosition next2 = it2.next();
-						polygonBuilder.pointXY(next2.coordinates().getLon(), next2.coordinates().getLat());
-					}
-					entityShape = polygonBuilder.build();
-				} else {
-					logger.error("Unsupported GeoJson type. Currently Point and Polygon are supported.");
-					return false;
-				}
-				Shape queryShape;
-				switch (geoQuery.getGeometry()) {
-				case Point: {
-					queryShape = shapeFactory.pointXY(coordinates.get(0), coordinates.get(1));
-					break;
-				}
-				case Polygon: {
-					PolygonBuilder polygonBuilder = shapeFactory.polygon();
-					for (int i = 0; i < coordinates.size(); i = i + 2) {
-						polygonBuilder.pointXY(coordinates.get(i), coordinates.get(i + 1));
-					}
-
-					queryShape = polygonBuilder.build();
-					break;
-				}
-				default: {
-					return false;
-				}
-				}
-				if (GEO_REL_CONTAINS.equals(relation)) {
-					return SpatialPredicate.Contains.evaluate(entityShape, queryShape);
-				} else if (GEO_REL_DISJOINT.equals(relation)) {
-					return SpatialPredicate.IsDisjointTo.evaluate(entityShape, queryShape);
-				} else if (GEO_REL_INTERSECTS.equals(relation)) {
-					if (expandArea != -1) {
-						queryShape = queryShape.getBuffered(expandArea, queryShape.getContext());
-					}
-					return SpatialPredicate.Intersects.evaluate(entityShape, queryShape);
-				} else if (GEO_REL_NEAR.equals(relation)) {
-					if (geoQuery.getGeoRelation().getMaxDistance() != null) {
-						Shape bufferedShape = queryShape.getBuffered(geoQuery.getGeoRelation().getMaxDistanceAsDouble(),
-								queryShape.getContext());
-						return SpatialPredicate.IsWithin.evaluate(entityShape, bufferedShape);
-					} else if (geoQuery.getGeoRelation().getMinDistance() != null) {
-						Shape bufferedShape = queryShape.getBuffered(geoQuery.getGeoRelation().getMinDistanceAsDouble(),
-								queryShape.getContext());
-						return !SpatialPredicate.IsWithin.evaluate(entityShape, bufferedShape);
-					} else {
-						return false;
-					}
-
-				} else if (GEO_REL_OVERLAPS.equals(relation)) {
-					return SpatialPredicate.Overlaps.evaluate(entityShape, queryShape);
-				} else if (GEO_REL_WITHIN.equals(relation)) {
-					if (expandArea != -1) {
-						queryShape = queryShape.getBuffered(expandArea, queryShape.getContext());
-					}
-					return SpatialPredicate.IsWithin.evaluate(entityShape, queryShape);
-				} else {
-					return false;
-				}
-			}
-
-		}
-		return false;
-	}
-
 	// private Property getPropertyByName(String name, List<Property> properties) {
 	// for (Property property : properties) {
 	// if (property.getName().equals(name)) {
@@ -858,28 +775,9 @@ public class SubscriptionService implements SubscriptionManager {
 			e.printStackTrace();
 		}
 		update.setType(type);
-		ArrayList<SubscriptionRequest> subsToCheck = new ArrayList<SubscriptionRequest>();
-
-		List<SubscriptionRequest> subs = this.type2EntitiesSubscriptions.get(updateRequest.getTenant(), type);
-		if (subs != null) {
-			for (SubscriptionRequest sub : subs) {
-				for (EntityInfo entityInfo : sub.getSubscription().getEntities()) {
-					if (entityInfo.getId() == null && entityInfo.getIdPattern() == null) {
-						subsToCheck.add(sub);
-						break;
-					}
-					if (entityInfo.getId() != null && entityInfo.getId().toString().equals(id)) {
-						subsToCheck.add(sub);
-						break;
-					}
-					if (entityInfo.getIdPattern() != null && id.matches(entityInfo.getIdPattern())) {
-						subsToCheck.add(sub);
-						break;
-					}
-				}
-			}
-		}
-		addAllTypeSubscriptions(updateRequest.getHeaders(), subsToCheck);
+		// a location in the update replaces the stored one
+		Set<SubscriptionRequest> subsToCheck = subscriptionMatcher.match(updateRequest.getTenant(), id, type,
+				getAttribIds(update), update.getLocation());
 		checkSubscriptions(subsToCheck, update, UPDATE, messageTime);
 
 	}
@@ -908,27 +806,8 @@ public class SubscriptionService implements SubscriptionManager {
 		}
 		append.setType(type);
 
-		ArrayList<SubscriptionRequest> subsToCheck = new ArrayList<SubscriptionRequest>();
-		List<SubscriptionRequest> subs = this.type2EntitiesSubscriptions.get(appendRequest.getTenant(), type);
-		if (subs != null) {
-			for (SubscriptionRequest sub : subs) {
-				for (EntityInfo entityInfo : sub.getSubscription().getEntities()) {
-					if (entityInfo.getId() == null && entityInfo.getIdPattern() == null) {
-						subsToCheck.add(sub);
-						break;
-					}
-					if (entityInfo.getId() != null && entityInfo.getId().toString().equals(id)) {
-						subsToCheck.add(sub);
-						break;
-					}
-					if (entityInfo.getIdPattern() != null && id.matches(entityInfo.getIdPattern())) {
-						subsToCheck.add(sub);
-						break;
-					}
-				}
-			}
-		}
-		addAllTypeSubscriptions(appendRequest.getHeaders(), subsToCheck);
+		Set<SubscriptionRequest> subsToCheck = subscriptionMatcher.match(appendRequest.getTenant(), id, type,
+				getAttribIds(append), append.getLocation());
 		checkSubscriptions(subsToCheck, append, APPEND, messageTime);
 
 	}
@@ -0,0 +1,193 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapdb.DB;
+import org.mapdb.DBException;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+/**
+ * Write-behind persistence of the subscriptions in a MapDB file. Changes are
+ * collected per subscription id, so repeated updates of a subscription are
+ * coalesced, and a single writer thread applies them and commits them in one
+ * transaction. The write-ahead log of MapDB replays the committed transactions
+ * after a crash, only the changes of the last flush delay can be lost.
+ */
+public class SubscriptionStore {
+
+	private final static Logger logger = LogManager.getLogger(SubscriptionStore.class);
+
+	private final String location;
+	private final long flushDelay;
+	private final DB db;
+	private final HTreeMap<String, String> subscriptions;
+	// an empty value marks a removed subscription
+	private final ConcurrentHashMap<String, Optional<String>> pending = new ConcurrentHashMap<String, Optional<String>>();
+	private final Object signal = new Object();
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	/**
+	 * @param location   file of the store
+	 * @param flushDelay ms changes are collected before they are written
+	 */
+	public SubscriptionStore(String location, long flushDelay) {
+		this.location = location;
+		this.flushDelay = Math.max(0, flushDelay);
+		DB opened;
+		HTreeMap<String, String> map;
+		try {
+			opened = open(location);
+			map = openMap(opened);
+		} catch (DBException.DataCorruption | DBException.WrongFormat e) {
+			// only a corrupt store is given up, other failures like a store locked
+			// by another instance or missing permissions stop the startup
+			logger.error("The subscription store " + location + " is corrupt, it is moved aside and recreated", e);
+			moveAside(location);
+			opened = open(location);
+			map = openMap(opened);
+		}
+		this.db = opened;
+		this.subscriptions = map;
+		this.writer = new Thread(this::writeBehind, "subscription-store-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	private static DB open(String location) {
+		return DBMaker.fileDB(location).checksumHeaderBypass().transactionEnable().make();
+	}
+
+	private static HTreeMap<String, String> openMap(DB db) {
+		try {
+			return db.hashMap("subscriptions", Serializer.STRING, Serializer.STRING).createOrOpen();
+		} catch (RuntimeException e) {
+			db.close();
+			throw e;
+		}
+	}
+
+	private static void moveAside(String location) {
+		File file = new File(location).getAbsoluteFile();
+		File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName()));
+		if (files == null) {
+			return;
+		}
+		String suffix = ".corrupt-" + System.currentTimeMillis();
+		for (File storeFile : files) {
+			if (!storeFile.renameTo(new File(storeFile.getPath() + suffix))) {
+				logger.error("Failed to move " + storeFile + " aside");
+			}
+		}
+	}
+
+	/**
+	 * @return the stored subscriptions, read once on startup
+	 */
+	public List<String> getAll() {
+		return new ArrayList<String>(subscriptions.values());
+	}
+
+	public void put(String id, String subscription) {
+		pending.put(id, Optional.of(subscription));
+		wakeUp();
+	}
+
+	public void remove(String id) {
+		pending.put(id, Optional.empty());
+		wakeUp();
+	}
+
+	private void wakeUp() {
+		synchronized (signal) {
+			signal.notify();
+		}
+	}
+
+	private void writeBehind() {
+		while (running) {
+			try {
+				synchronized (signal) {
+					while (running && pending.isEmpty()) {
+						signal.wait();
+					}
+				}
+				if (flushDelay > 0 && running) {
+					Thread.sleep(flushDelay);
+				}
+				if (!flush()) {
+					// the store is retried after a pause
+					Thread.sleep(Math.max(flushDelay, 1000));
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Method used for writing all pending changes in one transaction. Changes
+	 * of a failed transaction are queued again unless they have been replaced.
+	 *
+	 * @return false if the transaction failed
+	 */
+	private synchronized boolean flush() {
+		if (pending.isEmpty()) {
+			return true;
+		}
+		Map<String, Optional<String>> batch = new HashMap<String, Optional<String>>();
+		for (String id : pending.keySet()) {
+			Optional<String> change = pending.remove(id);
+			if (change != null) {
+				batch.put(id, change);
+			}
+		}
+		try {
+			for (Map.Entry<String, Optional<String>> entry : batch.entrySet()) {
+				if (entry.getValue().isPresent()) {
+					subscriptions.put(entry.getKey(), entry.getValue().get());
+				} else {
+					subscriptions.remove(entry.getKey());
+				}
+			}
+			db.commit();
+			return true;
+		} catch (RuntimeException e) {
+			logger.error("Failed to write " + batch.size() + " subscriptions to " + location, e);
+			try {
+				db.rollback();
+			} catch (RuntimeException e1) {
+				logger.error("Failed to roll back the subscription store", e1);
+			}
+			for (Map.Entry<String, Optional<String>> entry : batch.entrySet()) {
+				pending.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Method used for writing the pending changes and closing the store.
+	 */
+	public void close() {
+		running = false;
+		wakeUp();
+		try {
+			writer.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		db.close();
+	}
+}
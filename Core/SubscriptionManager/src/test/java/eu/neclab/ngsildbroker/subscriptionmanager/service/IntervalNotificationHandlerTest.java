@@ -0,0 +1,121 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.gson.JsonParser;
+
+import eu.neclab.ngsildbroker.commons.datatypes.BaseProperty;
+import eu.neclab.ngsildbroker.commons.datatypes.EndPoint;
+import eu.neclab.ngsildbroker.commons.datatypes.Entity;
+import eu.neclab.ngsildbroker.commons.datatypes.EntityInfo;
+import eu.neclab.ngsildbroker.commons.datatypes.NotificationParam;
+import eu.neclab.ngsildbroker.commons.datatypes.Subscription;
+import eu.neclab.ngsildbroker.commons.datatypes.SubscriptionRequest;
+import eu.neclab.ngsildbroker.commons.ngsiqueries.ParamsResolver;
+
+public class IntervalNotificationHandlerTest {
+
+	private static final String VEHICLE = "https://uri.etsi.org/ngsi-ld/default-context/Vehicle";
+	private static final String BUS = "https://uri.etsi.org/ngsi-ld/default-context/Bus";
+	private static final String SPEED = "https://uri.etsi.org/ngsi-ld/default-context/speed";
+	private static final String BRAND = "https://uri.etsi.org/ngsi-ld/default-context/brandName";
+
+	private static String property(String name, String value) {
+		return "\"" + name + "\":[{\"@type\":[\"https://uri.etsi.org/ngsi-ld/Property\"],"
+				+ "\"https://uri.etsi.org/ngsi-ld/hasValue\":[{\"@value\":\"" + value + "\"}]}]";
+	}
+
+	private static SubscriptionRequest sub(String id, String type, String... attrs) throws Exception {
+		Subscription subscription = new Subscription();
+		subscription.setId(new URI(id));
+		subscription.setEntities(new ArrayList<EntityInfo>(Arrays.asList(new EntityInfo(null, null, type))));
+		subscription.setTimeInterval(10);
+		NotificationParam notification = new NotificationParam();
+		if (attrs.length > 0) {
+			notification.setAttributeNames(Arrays.asList(attrs));
+		}
+		EndPoint endPoint = new EndPoint();
+		endPoint.setUri(new URI("http://localhost/" + id));
+		notification.setEndPoint(endPoint);
+		subscription.setNotification(notification);
+		return new SubscriptionRequest(subscription, null, ArrayListMultimap.create());
+	}
+
+	private static List<String> attributes(List<Entity> entities) {
+		List<String> result = new ArrayList<String>();
+		for (Entity entity : entities) {
+			for (BaseProperty property : entity.getProperties()) {
+				result.add(property.getIdString());
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	@Test
+	public void mergedQueriesTest() throws Exception {
+		List<String> queries = new ArrayList<String>();
+		Map<String, List<Entity>> notified = new HashMap<String, List<Entity>>();
+		String vehicle = "{\"@id\":\"urn:vehicle:1\",\"@type\":[\"" + VEHICLE + "\"]," + property(SPEED, "80") + ","
+				+ property(BRAND, "Mercedes") + "}";
+		// only matched by the brand subscriptions
+		String branded = "{\"@id\":\"urn:vehicle:2\",\"@type\":[\"" + VEHICLE + "\"],"
+				+ property(BRAND, "Volvo") + "}";
+		String bus = "{\"@id\":\"urn:bus:1\",\"@type\":[\"" + BUS + "\"]," + property(SPEED, "50") + "}";
+		IntervalNotificationHandler handler = new IntervalNotificationHandler(
+				(notification, callback, accept, subId, context, throttling, settings, tenant) -> notified.put(subId,
+						notification.getData()),
+				null, null, null, new ParamsResolver()) {
+			@Override
+			public CompletableFuture<List<String>> requestFromStorageManager(String storageManagerQuery) {
+				queries.add(storageManagerQuery);
+				String type = new JsonParser().parse(storageManagerQuery).getAsJsonObject().getAsJsonArray("entities")
+						.get(0).getAsJsonObject().get("@type").getAsString();
+				return CompletableFuture
+						.completedFuture(type.equals(VEHICLE) ? Arrays.asList(vehicle, branded) : Arrays.asList(bus));
+			}
+		};
+		handler.evaluate(Arrays.asList(handler.new IntervalSubscription(sub("urn:sub:speed", VEHICLE, SPEED)),
+				handler.new IntervalSubscription(sub("urn:sub:brand", VEHICLE, BRAND)),
+				handler.new IntervalSubscription(sub("urn:sub:both", VEHICLE, SPEED, BRAND)),
+				handler.new IntervalSubscription(sub("urn:sub:bus", BUS))));
+
+		// one query per entity type, the vehicle one with both attributes
+		assertEquals(2, queries.size());
+		assertEquals(BRAND + "," + SPEED, new JsonParser().parse(queries.get(0)).getAsJsonObject().get("attrs")
+				.getAsString());
+		assertEquals(1, notified.get("urn:sub:speed").size());
+		assertEquals(Arrays.asList(SPEED), attributes(notified.get("urn:sub:speed")));
+		assertEquals(Arrays.asList(BRAND, BRAND), attributes(notified.get("urn:sub:brand")));
+		assertEquals(Arrays.asList(BRAND, BRAND, SPEED), attributes(notified.get("urn:sub:both")));
+		assertEquals(Arrays.asList(SPEED), attributes(notified.get("urn:sub:bus")));
+	}
+
+	@Test
+	public void firstWindowTest() {
+		// created just before a window boundary, the next notification is not
+		// sent a few ms after the first one
+		assertEquals(30000, IntervalNotificationHandler.firstWindow(19999, 10000));
+		assertEquals(30000, IntervalNotificationHandler.firstWindow(20000, 10000));
+		assertEquals(40000, IntervalNotificationHandler.firstWindow(20001, 10000));
+		for (long created = 0; created < 30000; created += 7) {
+			long due = IntervalNotificationHandler.firstWindow(created, 10000);
+			assertEquals(0, due % 10000);
+			assertTrue(due >= created + 10000);
+			assertTrue(due < created + 20000);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import eu.neclab.ngsildbroker.commons.datatypes.EndPoint;
+import eu.neclab.ngsildbroker.commons.datatypes.Entity;
+import eu.neclab.ngsildbroker.commons.datatypes.EntityInfo;
+import eu.neclab.ngsildbroker.commons.datatypes.Notification;
+import eu.neclab.ngsildbroker.commons.datatypes.NotificationParam;
+import eu.neclab.ngsildbroker.commons.datatypes.Subscription;
+import eu.neclab.ngsildbroker.commons.datatypes.SubscriptionRequest;
+import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
+import eu.neclab.ngsildbroker.subscriptionmanager.service.NotificationDispatcher.DropPolicy;
+
+public class NotificationBatchTest {
+
+	private static final String VEHICLE = "https://uri.etsi.org/ngsi-ld/default-context/Vehicle";
+	private static final String SPEED = "https://uri.etsi.org/ngsi-ld/default-context/speed";
+	private static final URI CALLBACK = URI.create("http://localhost:8080/notify");
+
+	private final SubscriptionService service = new SubscriptionService(null);
+	private final List<Notification> sent = Collections.synchronizedList(new ArrayList<Notification>());
+
+	@After
+	public void tearDown() {
+		service.notificationDispatcher.shutdown();
+	}
+
+	private SubscriptionRequest subscription() throws Exception {
+		Subscription subscription = new Subscription();
+		subscription.setId(new URI("urn:sub:1"));
+		subscription.setEntities(new ArrayList<EntityInfo>(Arrays.asList(new EntityInfo(null, null, VEHICLE))));
+		subscription.setThrottling(0);
+		NotificationParam notification = new NotificationParam();
+		EndPoint endPoint = new EndPoint();
+		endPoint.setUri(CALLBACK);
+		notification.setEndPoint(endPoint);
+		subscription.setNotification(notification);
+		return new SubscriptionRequest(subscription, null, ArrayListMultimap.create());
+	}
+
+	@Test
+	public void failingChangeTest() throws Exception {
+		service.notificationMaxBatch = 100;
+		service.notificationDispatcher = new NotificationDispatcher(1, 10, DropPolicy.BLOCK, 1000);
+		service.notificationHandlerREST = new NotificationHandlerREST(service, null, null) {
+			@Override
+			public void notify(Notification notification, URI callback, String acceptHeader, String subId,
+					List<Object> context, int throttling, Map<String, String> clientSettings, String tenantId) {
+				sent.add(notification);
+			}
+		};
+		SubscriptionRequest subscription = subscription();
+		Entity vehicle = DataSerializer.getEntity("{\"@id\":\"urn:vehicle:1\",\"@type\":[\"" + VEHICLE + "\"],\""
+				+ SPEED + "\":[{\"@type\":[\"https://uri.etsi.org/ngsi-ld/Property\"],"
+				+ "\"https://uri.etsi.org/ngsi-ld/hasValue\":[{\"@value\":\"80\"}]}]}");
+
+		CountDownLatch block = new CountDownLatch(1);
+		NotificationDispatcher dispatcher = service.notificationDispatcher;
+		String tenant = subscription.getTenant();
+		dispatcher.dispatch(CALLBACK, tenant, "urn:sub:1", () -> {
+			try {
+				block.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		// held back for the next change, which then fails
+		dispatcher.dispatch(CALLBACK, tenant, "urn:sub:1",
+				() -> service.notifyChange(subscription, vehicle, SubscriptionService.CREATE));
+		dispatcher.dispatch(CALLBACK, tenant, "urn:sub:1",
+				() -> service.notifyChange(subscription, null, SubscriptionService.CREATE));
+		block.countDown();
+
+		for (int i = 0; i < 500 && sent.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, sent.size());
+		assertEquals(1, sent.get(0).getData().size());
+		assertEquals("urn:vehicle:1", sent.get(0).getData().get(0).getId().toString());
+		assertTrue(service.subId2PendingData.isEmpty());
+	}
+}
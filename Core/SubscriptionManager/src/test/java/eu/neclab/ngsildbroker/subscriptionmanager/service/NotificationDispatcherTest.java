@@ -0,0 +1,185 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import eu.neclab.ngsildbroker.subscriptionmanager.service.NotificationDispatcher.DropPolicy;
+
+public class NotificationDispatcherTest {
+
+	private static final URI CALLBACK = URI.create("http://localhost:8080/notify");
+	private static final String TENANT = "tenant";
+
+	private NotificationDispatcher dispatcher;
+
+	@After
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void orderPerSubscriptionTest() throws Exception {
+		dispatcher = new NotificationDispatcher(4, 1000, DropPolicy.BLOCK, 1000);
+		List<Integer> sub1 = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> sub2 = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(200);
+		for (int i = 0; i < 100; i++) {
+			int value = i;
+			assertTrue(dispatcher.dispatch(CALLBACK, TENANT, "sub1", () -> {
+				sub1.add(value);
+				done.countDown();
+			}));
+			assertTrue(dispatcher.dispatch(CALLBACK, TENANT, "sub2", () -> {
+				sub2.add(value);
+				done.countDown();
+			}));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, sub1.get(i).intValue());
+			assertEquals(i, sub2.get(i).intValue());
+		}
+		assertEquals(200, dispatcher.getEnqueued());
+	}
+
+	@Test
+	public void dropPolicyTest() throws Exception {
+		dispatcher = new NotificationDispatcher(1, 2, DropPolicy.DROP_NEWEST, 0);
+		CountDownLatch block = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		dispatcher.dispatch(CALLBACK, TENANT, "sub1", () -> {
+			started.countDown();
+			try {
+				block.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertTrue(dispatcher.dispatch(CALLBACK, TENANT, "sub1", () -> {
+		}));
+		assertTrue(dispatcher.dispatch(CALLBACK, TENANT, "sub2", () -> {
+		}));
+		assertFalse(dispatcher.dispatch(CALLBACK, TENANT, "sub3", () -> {
+		}));
+		// other endpoints have their own queue
+		assertTrue(dispatcher.dispatch(URI.create("http://otherhost:9090/notify"), TENANT, "sub3", () -> {
+		}));
+		assertEquals(1, dispatcher.getStats().get("http://localhost:8080").getDropped());
+		assertEquals(2, dispatcher.getStats().get("http://localhost:8080").getQueueDepth());
+		block.countDown();
+	}
+
+	@Test
+	public void hasPendingTest() throws Exception {
+		dispatcher = new NotificationDispatcher(1, 10, DropPolicy.BLOCK, 1000);
+		CountDownLatch block = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2);
+		List<Boolean> pending = Collections.synchronizedList(new ArrayList<Boolean>());
+		dispatcher.dispatch(CALLBACK, TENANT, "sub1", () -> {
+			try {
+				block.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			pending.add(dispatcher.hasPending(CALLBACK, TENANT, "sub1"));
+			done.countDown();
+		});
+		dispatcher.dispatch(CALLBACK, TENANT, "sub1", () -> {
+			pending.add(dispatcher.hasPending(CALLBACK, TENANT, "sub1"));
+			done.countDown();
+		});
+		assertFalse(dispatcher.hasPending(CALLBACK, TENANT, "sub2"));
+		block.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		// the first task can hold its data back for the second one
+		assertEquals(Arrays.asList(true, false), pending);
+	}
+
+	@Test
+	public void tenantsTest() throws Exception {
+		dispatcher = new NotificationDispatcher(2, 10, DropPolicy.BLOCK, 1000);
+		CountDownLatch block = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2);
+		dispatcher.dispatch(CALLBACK, TENANT, "sub1", () -> {
+			try {
+				block.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			done.countDown();
+		});
+		dispatcher.dispatch(CALLBACK, TENANT, "sub1", done::countDown);
+		// the same id in another tenant is another subscription
+		assertFalse(dispatcher.hasPending(CALLBACK, "other", "sub1"));
+		CountDownLatch other = new CountDownLatch(1);
+		dispatcher.dispatch(CALLBACK, "other", "sub1", other::countDown);
+		assertTrue(other.await(10, TimeUnit.SECONDS));
+		assertTrue(dispatcher.hasPending(CALLBACK, TENANT, "sub1"));
+		block.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		// the queue of the endpoint is removed when it runs empty
+		for (int i = 0; i < 500 && dispatcher.getEndpointQueueCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, dispatcher.getEndpointQueueCount());
+		assertEquals(3, dispatcher.getEnqueued());
+		CountDownLatch again = new CountDownLatch(1);
+		assertTrue(dispatcher.dispatch(CALLBACK, TENANT, "sub1", again::countDown));
+		assertTrue(again.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void statsTest() throws Exception {
+		dispatcher = new NotificationDispatcher(1, 10, DropPolicy.BLOCK, 1000, 200);
+		for (int round = 1; round <= 2; round++) {
+			CountDownLatch done = new CountDownLatch(1);
+			dispatcher.dispatch(CALLBACK, TENANT, "sub1", done::countDown);
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 500 && dispatcher.getEndpointQueueCount() > 0; i++) {
+				Thread.sleep(10);
+			}
+			// the statistics outlive the queue of the endpoint
+			NotificationDispatcher.EndpointStats stats = dispatcher.getStats().get("http://localhost:8080");
+			assertEquals(round, stats.getEnqueued());
+			assertEquals(round, stats.getCompleted());
+		}
+		// and are removed once the endpoint is idle
+		Thread.sleep(250);
+		assertTrue(dispatcher.getStats().isEmpty());
+	}
+
+	@Test
+	public void blockedOrderTest() throws Exception {
+		// the producer waits for space all the time, while the queue of the
+		// endpoint runs empty and is removed in between
+		dispatcher = new NotificationDispatcher(4, 1, DropPolicy.BLOCK, 10000);
+		List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		int count = 2000;
+		CountDownLatch done = new CountDownLatch(count);
+		for (int i = 0; i < count; i++) {
+			int value = i;
+			assertTrue(dispatcher.dispatch(CALLBACK, TENANT, "sub1", () -> {
+				order.add(value);
+				done.countDown();
+			}));
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, order.get(i).intValue());
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.filosganga.geogson.model.Point;
+import com.google.common.collect.ArrayListMultimap;
+
+import eu.neclab.ngsildbroker.commons.constants.NGSIConstants;
+import eu.neclab.ngsildbroker.commons.datatypes.EntityInfo;
+import eu.neclab.ngsildbroker.commons.datatypes.GeoProperty;
+import eu.neclab.ngsildbroker.commons.datatypes.GeoPropertyEntry;
+import eu.neclab.ngsildbroker.commons.datatypes.GeoRelation;
+import eu.neclab.ngsildbroker.commons.datatypes.LDGeoQuery;
+import eu.neclab.ngsildbroker.commons.datatypes.Subscription;
+import eu.neclab.ngsildbroker.commons.datatypes.SubscriptionRequest;
+import eu.neclab.ngsildbroker.commons.enums.Geometry;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
+
+public class SubscriptionMatcherTest {
+
+	private static final String TYPE = "https://uri.etsi.org/ngsi-ld/default-context/Vehicle";
+	private static final String SPEED = "https://uri.etsi.org/ngsi-ld/default-context/speed";
+	private static final String BRAND = "https://uri.etsi.org/ngsi-ld/default-context/brandName";
+
+	private SubscriptionMatcher matcher;
+
+	@Before
+	public void setUp() {
+		matcher = new SubscriptionMatcher();
+	}
+
+	private SubscriptionRequest sub(String tenant, List<String> watched, EntityInfo... entities) {
+		Subscription subscription = new Subscription();
+		subscription.setEntities(new ArrayList<EntityInfo>(Arrays.asList(entities)));
+		subscription.setAttributeNames(watched);
+		ArrayListMultimap<String, String> headers = ArrayListMultimap.create();
+		if (tenant != null) {
+			headers.put(NGSIConstants.TENANT_HEADER, tenant);
+		}
+		return new SubscriptionRequest(subscription, null, headers);
+	}
+
+	@Test
+	public void matchBySelectorTest() throws Exception {
+		SubscriptionRequest byId = sub(null, null, new EntityInfo(new URI("urn:car:1"), null, TYPE));
+		SubscriptionRequest byType = sub(null, null, new EntityInfo(null, null, TYPE));
+		SubscriptionRequest byPattern = sub(null, null, new EntityInfo(null, "urn:car:[0-9]+", TYPE));
+		SubscriptionRequest all = sub(null, null);
+		matcher.add(byId);
+		matcher.add(byType);
+		matcher.add(byPattern);
+		matcher.add(all);
+		String tenant = byId.getTenant();
+
+		Set<SubscriptionRequest> result = matcher.match(tenant, "urn:car:1", TYPE, Collections.emptyList());
+		assertEquals(4, result.size());
+
+		result = matcher.match(tenant, "urn:car:x", TYPE, Collections.emptyList());
+		assertEquals(2, result.size());
+		assertTrue(result.contains(byType));
+		assertTrue(result.contains(all));
+
+		result = matcher.match(tenant, "urn:car:1", "OtherType", Collections.emptyList());
+		assertEquals(1, result.size());
+		assertTrue(result.contains(all));
+
+		assertTrue(matcher.match("otherTenant", "urn:car:1", TYPE, Collections.emptyList()).isEmpty());
+	}
+
+	@Test
+	public void watchedAttributesTest() throws Exception {
+		SubscriptionRequest watching = sub(null, Arrays.asList(SPEED, BRAND), new EntityInfo(null, null, TYPE),
+				new EntityInfo(null, "urn:car:.*", TYPE));
+		matcher.add(watching);
+		String tenant = watching.getTenant();
+
+		assertTrue(matcher.match(tenant, "urn:car:1", TYPE, Arrays.asList("other")).isEmpty());
+		Set<SubscriptionRequest> result = matcher.match(tenant, "urn:car:1", TYPE, Arrays.asList(SPEED, BRAND));
+		assertEquals(1, result.size());
+		assertTrue(result.contains(watching));
+	}
+
+	@Test
+	public void removeTest() throws Exception {
+		SubscriptionRequest request = sub("tenant1", Arrays.asList(SPEED), new EntityInfo(null, "urn:car:.*", TYPE));
+		matcher.add(request);
+		assertEquals(1, matcher.match("tenant1", "urn:car:1", TYPE, Arrays.asList(SPEED)).size());
+		// changes after adding do not affect removal
+		request.getSubscription().setAttributeNames(null);
+		request.getSubscription().setEntities(null);
+		assertTrue(matcher.remove(request));
+		assertFalse(matcher.remove(request));
+		assertEquals(0, matcher.size());
+		assertTrue(matcher.match("tenant1", "urn:car:1", TYPE, Arrays.asList(SPEED)).isEmpty());
+	}
+
+	@Test
+	public void updateTest() throws Exception {
+		SubscriptionRequest request = sub("tenant1", Arrays.asList(SPEED), new EntityInfo(null, "urn:car:.*", TYPE));
+		request.getSubscription().setLdGeoQuery(geoQuery(NGSIConstants.GEO_REL_WITHIN, Geometry.Polygon, 8.0, 49.0,
+				9.0, 49.0, 9.0, 50.0, 8.0, 50.0, 8.0, 49.0));
+		matcher.add(request);
+		request.getSubscription().setAttributeNames(Arrays.asList(BRAND));
+		request.getSubscription().setLdGeoQuery(null);
+		// the old version is matched until the subscription is updated
+		assertEquals(1, matcher.match("tenant1", "urn:car:1", TYPE, Arrays.asList(SPEED)).size());
+		assertTrue(matcher.update(request));
+		assertTrue(matcher.match("tenant1", "urn:car:1", TYPE, Arrays.asList(SPEED)).isEmpty());
+		assertEquals(1, matcher.match("tenant1", "urn:car:1", TYPE, Arrays.asList(BRAND), location(0, 0)).size());
+		assertEquals(1, matcher.size());
+		assertTrue(matcher.remove(request));
+		assertFalse(matcher.update(request));
+		assertEquals(0, matcher.size());
+	}
+
+	private static LDGeoQuery geoQuery(String relation, Geometry geometry, Double... coordinates) {
+		LDGeoQuery geoQuery = new LDGeoQuery();
+		GeoRelation geoRelation = new GeoRelation();
+		geoRelation.setRelation(relation);
+		geoQuery.setGeoRelation(geoRelation);
+		geoQuery.setGeometry(geometry);
+		geoQuery.setCoordinates(Arrays.asList(coordinates));
+		return geoQuery;
+	}
+
+	private static GeoProperty location(double lon, double lat) {
+		GeoProperty location = new GeoProperty();
+		HashMap<String, GeoPropertyEntry> entries = new HashMap<String, GeoPropertyEntry>();
+		entries.put(null, new GeoPropertyEntry(null, null, Point.from(lon, lat)));
+		location.setEntries(entries);
+		return location;
+	}
+
+	@Test
+	public void geoMatchTest() throws Exception {
+		SubscriptionRequest within = sub(null, null, new EntityInfo(null, null, TYPE));
+		within.getSubscription().setLdGeoQuery(geoQuery(NGSIConstants.GEO_REL_WITHIN, Geometry.Polygon, 8.0, 49.0,
+				9.0, 49.0, 9.0, 50.0, 8.0, 50.0, 8.0, 49.0));
+		SubscriptionRequest disjoint = sub(null, null, new EntityInfo(null, null, TYPE));
+		disjoint.getSubscription().setLdGeoQuery(geoQuery(NGSIConstants.GEO_REL_DISJOINT, Geometry.Polygon, 8.0,
+				49.0, 9.0, 49.0, 9.0, 50.0, 8.0, 50.0, 8.0, 49.0));
+		SubscriptionRequest otherType = sub(null, null, new EntityInfo(null, null, "OtherType"));
+		otherType.getSubscription().setLdGeoQuery(geoQuery(NGSIConstants.GEO_REL_INTERSECTS, Geometry.Polygon, 8.0,
+				49.0, 9.0, 49.0, 9.0, 50.0, 8.0, 50.0, 8.0, 49.0));
+		matcher.add(within);
+		matcher.add(disjoint);
+		matcher.add(otherType);
+		String tenant = within.getTenant();
+
+		GeoProperty inside = location(8.5, 49.5);
+		GeoProperty outside = location(20.0, 10.0);
+		Set<SubscriptionRequest> result = matcher.match(tenant, "urn:car:1", TYPE, Collections.emptyList(), inside);
+		assertEquals(2, result.size());
+		assertTrue(result.contains(within));
+		result = matcher.match(tenant, "urn:car:1", TYPE, Collections.emptyList(), outside);
+		assertEquals(1, result.size());
+		assertTrue(result.contains(disjoint));
+		// without a location the geo subscriptions are selected like the others
+		assertEquals(2, matcher.match(tenant, "urn:car:1", TYPE, Collections.emptyList()).size());
+
+		assertTrue(matcher.matchesGeoQuery(within, inside));
+		assertFalse(matcher.matchesGeoQuery(within, outside));
+		assertTrue(matcher.matchesGeoQuery(disjoint, outside));
+
+		assertTrue(matcher.remove(within));
+		assertTrue(matcher.match(tenant, "urn:car:1", TYPE, Collections.emptyList(), inside).contains(disjoint));
+		assertEquals(1, matcher.match(tenant, "urn:car:1", TYPE, Collections.emptyList(), inside).size());
+	}
+
+	@Test(expected = ResponseException.class)
+	public void invalidPatternTest() throws Exception {
+		matcher.add(sub(null, null, new EntityInfo(null, "urn:car:[", TYPE)));
+	}
+}
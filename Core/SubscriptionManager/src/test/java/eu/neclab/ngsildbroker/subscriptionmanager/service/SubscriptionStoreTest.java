@@ -0,0 +1,82 @@
+package eu.neclab.ngsildbroker.subscriptionmanager.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SubscriptionStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writeBehindTest() throws Exception {
+		String location = new File(folder.getRoot(), "subscriptionstore.db").getPath();
+		SubscriptionStore store = new SubscriptionStore(location, 10);
+		store.put("urn:sub:1", "{\"v\":1}");
+		store.put("urn:sub:1", "{\"v\":2}");
+		store.put("urn:sub:2", "{\"v\":1}");
+		store.put("urn:sub:3", "{\"v\":1}");
+		store.remove("urn:sub:3");
+		for (int i = 0; i < 200 && store.getAll().size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("{\"v\":2}", "{\"v\":1}")),
+				new HashSet<String>(store.getAll()));
+		store.remove("urn:sub:2");
+		store.close();
+
+		store = new SubscriptionStore(location, 10);
+		assertEquals(Arrays.asList("{\"v\":2}"), store.getAll());
+		store.close();
+	}
+
+	private String[] storeFiles() {
+		String[] files = folder.getRoot().list();
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void lockedStoreTest() throws Exception {
+		String location = new File(folder.getRoot(), "subscriptionstore.db").getPath();
+		SubscriptionStore store = new SubscriptionStore(location, 0);
+		store.put("urn:sub:1", "{\"v\":1}");
+		String[] files = storeFiles();
+		try {
+			new SubscriptionStore(location, 0);
+			fail("the store is locked by the first instance");
+		} catch (RuntimeException e) {
+			// the files of the first instance are neither moved nor replaced
+			assertArrayEquals(files, storeFiles());
+		}
+		store.close();
+		store = new SubscriptionStore(location, 0);
+		assertEquals(Arrays.asList("{\"v\":1}"), store.getAll());
+		store.close();
+	}
+
+	@Test
+	public void corruptStoreTest() throws Exception {
+		File file = new File(folder.getRoot(), "subscriptionstore.db");
+		// large enough to hold a header, which is not the one of a store
+		byte[] garbage = new byte[1 << 20];
+		Arrays.fill(garbage, (byte) 'x');
+		Files.write(file.toPath(), garbage);
+		SubscriptionStore store = new SubscriptionStore(file.getPath(), 0);
+		assertTrue(store.getAll().isEmpty());
+		store.close();
+		String[] files = storeFiles();
+		assertTrue(Arrays.toString(files), Arrays.stream(files).anyMatch(name -> name.contains(".corrupt-")));
+	}
+}
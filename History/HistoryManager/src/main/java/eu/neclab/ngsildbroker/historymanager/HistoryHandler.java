@@ -17,6 +17,7 @@ import eu.neclab.ngsildbroker.commons.storage.StorageWriterDAO;
 import eu.neclab.ngsildbroker.commons.stream.service.CommonKafkaConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.swaggerConfig.SwaggerConfigDetails;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
 import eu.neclab.ngsildbroker.historymanager.config.HistoryJdbcConfig;
 import eu.neclab.ngsildbroker.historymanager.config.ProducerChannel;
 
@@ -24,7 +25,7 @@ import eu.neclab.ngsildbroker.historymanager.config.ProducerChannel;
 
 @SpringBootApplication
 @EnableBinding({ AtContextProducerChannel.class,ProducerChannel.class })
-@Import({CommonKafkaConfig.class, SwaggerConfigDetails.class})
+@Import({CommonKafkaConfig.class, SwaggerConfigDetails.class, HttpClientConfig.class})
 public class HistoryHandler {
 	public static void main(String[] args) {
 		SpringApplication.run(HistoryHandler.class, args);
@@ -0,0 +1,108 @@
+package eu.neclab.ngsildbroker.historymanager.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.KafkaListenerContainerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.listener.SeekToCurrentBatchErrorHandler;
+
+@Configuration
+public class HistoryKafkaConfig {
+
+	public static final String BATCH_LISTENER_CONTAINER_FACTORY = "historyBatchListenerContainerFactory";
+
+	@Autowired
+	@Qualifier("consumerConfigs")
+	Map<String, Object> consumerConfigs;
+
+	@Value("${history.batch.maxrecords:500}")
+	int batchMaxRecords;
+
+	@Value("${history.batch.maxattempts:10}")
+	int batchMaxAttempts;
+
+	@Value("${history.batch.retrybackoff:1000}")
+	long batchRetryBackOff;
+
+	/**
+	 * Listener container factory handing the entity events to the history
+	 * manager in batches of up to history.batch.maxrecords records, so they can
+	 * be stored with one transaction per batch. A batch which could not be
+	 * stored is delivered again.
+	 */
+	@Bean(BATCH_LISTENER_CONTAINER_FACTORY)
+	public KafkaListenerContainerFactory<ConcurrentMessageListenerContainer<String, byte[]>> historyBatchListenerContainerFactory() {
+		Map<String, Object> props = new HashMap<String, Object>(consumerConfigs);
+		props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, batchMaxRecords);
+		ConcurrentKafkaListenerContainerFactory<String, byte[]> factory = new ConcurrentKafkaListenerContainerFactory<>();
+		factory.setConsumerFactory(new DefaultKafkaConsumerFactory<String, byte[]>(props));
+		factory.setBatchListener(true);
+		factory.setBatchErrorHandler(new RetryingBatchErrorHandler(batchMaxAttempts, batchRetryBackOff));
+		return factory;
+	}
+
+	/**
+	 * Seeks back to the start of a failed batch, so that its offsets are not
+	 * committed and it is delivered again after the back off. A batch which
+	 * still fails after maxAttempts deliveries is logged and skipped, so it
+	 * does not block its partitions forever.
+	 */
+	static class RetryingBatchErrorHandler extends SeekToCurrentBatchErrorHandler {
+
+		private final static Logger logger = LogManager.getLogger(RetryingBatchErrorHandler.class);
+
+		private final int maxAttempts;
+		private final long backOff;
+		// the batch last failed on the consumer thread and how often it failed
+		private final ThreadLocal<Map<TopicPartition, Long>> failedBatch = new ThreadLocal<Map<TopicPartition, Long>>();
+		private final ThreadLocal<Integer> failures = new ThreadLocal<Integer>();
+
+		RetryingBatchErrorHandler(int maxAttempts, long backOff) {
+			this.maxAttempts = maxAttempts;
+			this.backOff = backOff;
+		}
+
+		@Override
+		public void handle(Exception thrownException, ConsumerRecords<?, ?> data, Consumer<?, ?> consumer,
+				MessageListenerContainer container) {
+			Map<TopicPartition, Long> batch = new HashMap<TopicPartition, Long>();
+			for (TopicPartition partition : data.partitions()) {
+				batch.put(partition, data.records(partition).get(0).offset());
+			}
+			int attempts = batch.equals(failedBatch.get()) ? failures.get() + 1 : 1;
+			if (attempts >= maxAttempts) {
+				failedBatch.remove();
+				failures.remove();
+				logger.error("Skipping " + data.count() + " records starting at " + batch + " after " + attempts
+						+ " failed attempts", thrownException);
+				return;
+			}
+			failedBatch.set(batch);
+			failures.set(attempts);
+			logger.warn("Failed to process " + data.count() + " records starting at " + batch + ", attempt "
+					+ attempts + " of " + maxAttempts, thrownException);
+			try {
+				Thread.sleep(backOff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			super.handle(thrownException, data, consumer, container);
+		}
+	}
+
+}
@@ -8,10 +8,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.PostConstruct;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.handler.annotation.Header;
@@ -36,6 +39,7 @@ import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
 import eu.neclab.ngsildbroker.commons.storage.StorageWriterDAO;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.tools.HttpUtils;
+import eu.neclab.ngsildbroker.historymanager.config.HistoryKafkaConfig;
 import eu.neclab.ngsildbroker.historymanager.config.ProducerChannel;
 import eu.neclab.ngsildbroker.historymanager.repository.HistoryDAO;
 
@@ -62,11 +66,26 @@ public class HistoryService {
 
 	private boolean directDB = true;
 
+	@Value("${history.migratetenants:true}")
+	boolean migrateTenants;
+
 	public HistoryService(ProducerChannel producerChannels) {
 		this.producerChannels = producerChannels;
 
 	}
 
+	@PostConstruct
+	private void setup() {
+		if (migrateTenants) {
+			// tenant databases have to get the current temporal schema before they
+			// are written by the batch ingestion
+			List<String> failed = writerDAO.migrateTenants();
+			if (!failed.isEmpty()) {
+				logger.error("Failed to migrate tenants " + failed);
+			}
+		}
+	}
+
 	public URI createTemporalEntityFromEntity(ArrayListMultimap<String, String> headers, String payload)
 			throws ResponseException, Exception {
 		return createTemporalEntity(headers, payload, true);
@@ -206,55 +225,84 @@ public class HistoryService {
 	/*
 	
 	 */
-	@KafkaListener(topics = "${entity.create.topic}", groupId = "historyManagerCreate")
-	public void handleEntityCreate(@Payload byte[] message, @Header(KafkaHeaders.RECEIVED_MESSAGE_KEY) String key)
-			throws Exception {
-		logger.trace("Listener handleEntityCreate...");
-		String payload = new String(message);
-		logger.debug("Received message: " + payload);
-		CreateHistoryEntityRequest request = new CreateHistoryEntityRequest(
-				DataSerializer.getEntityRequest(new String(message)));
-		if (directDB) {
-			pushToDB(request);
-		} else {
-			pushToKafka(request);
+	@KafkaListener(topics = "${entity.create.topic}", groupId = "historyManagerCreate", containerFactory = HistoryKafkaConfig.BATCH_LISTENER_CONTAINER_FACTORY)
+	public void handleEntityCreate(@Payload List<byte[]> messages) throws Exception {
+		logger.trace("Listener handleEntityCreate, batch size " + messages.size());
+		ArrayList<HistoryEntityRequest> requests = new ArrayList<HistoryEntityRequest>(messages.size());
+		for (byte[] message : messages) {
+			String payload = new String(message);
+			logger.debug("Received message: " + payload);
+			try {
+				requests.add(new CreateHistoryEntityRequest(DataSerializer.getEntityRequest(payload)));
+			} catch (Exception e) {
+				logger.error("Failed to read entity create message", e);
+			}
 		}
+		pushBatch(requests);
 	}
 
-	@KafkaListener(topics = "${entity.append.topic}", groupId = "historyManagerAppend")
-	public void handleEntityAppend(@Payload byte[] message, @Header(KafkaHeaders.RECEIVED_MESSAGE_KEY) String key)
-			throws Exception {
-		AppendHistoryEntityRequest request = new AppendHistoryEntityRequest(
-				DataSerializer.getEntityRequest(new String(message)));
-		if (directDB) {
-			pushToDB(request);
-		} else {
-			pushToKafka(request);
+	@KafkaListener(topics = "${entity.append.topic}", groupId = "historyManagerAppend", containerFactory = HistoryKafkaConfig.BATCH_LISTENER_CONTAINER_FACTORY)
+	public void handleEntityAppend(@Payload List<byte[]> messages) throws Exception {
+		ArrayList<HistoryEntityRequest> requests = new ArrayList<HistoryEntityRequest>(messages.size());
+		for (byte[] message : messages) {
+			try {
+				requests.add(new AppendHistoryEntityRequest(DataSerializer.getEntityRequest(new String(message))));
+			} catch (Exception e) {
+				logger.error("Failed to read entity append message", e);
+			}
 		}
+		pushBatch(requests);
+	}
 
+	@KafkaListener(topics = "${entity.update.topic}", groupId = "historyManagerUpdate", containerFactory = HistoryKafkaConfig.BATCH_LISTENER_CONTAINER_FACTORY)
+	public void handleEntityUpdate(@Payload List<byte[]> messages) throws Exception {
+		ArrayList<HistoryEntityRequest> requests = new ArrayList<HistoryEntityRequest>(messages.size());
+		for (byte[] message : messages) {
+			try {
+				requests.add(new UpdateHistoryEntityRequest(DataSerializer.getEntityRequest(new String(message))));
+			} catch (Exception e) {
+				logger.error("Failed to read entity update message", e);
+			}
+		}
+		pushBatch(requests);
 	}
 
-	@KafkaListener(topics = "${entity.update.topic}", groupId = "historyManagerUpdate")
-	public void handleEntityUpdate(@Payload byte[] message, @Header(KafkaHeaders.RECEIVED_MESSAGE_KEY) String key)
-			throws Exception {
-		UpdateHistoryEntityRequest request = new UpdateHistoryEntityRequest(
-				DataSerializer.getEntityRequest(new String(message)));
+	/**
+	 * Stores the requests of one kafka batch. With directDB all of them are
+	 * written in one transaction per tenant. If they cannot be stored the
+	 * exception makes the container deliver the batch again instead of
+	 * committing its offsets.
+	 */
+	private void pushBatch(List<HistoryEntityRequest> requests) throws ResponseException {
+		if (requests.isEmpty()) {
+			return;
+		}
 		if (directDB) {
-			pushToDB(request);
+			if (!writerDAO.storeTemporalEntities(requests)) {
+				throw new ResponseException(ErrorType.InternalError,
+						"Failed to store " + requests.size() + " temporal entity requests");
+			}
 		} else {
-			pushToKafka(request);
+			for (HistoryEntityRequest request : requests) {
+				pushToKafka(request);
+			}
 		}
-
 	}
 
-	@KafkaListener(topics = "${entity.delete.topic}", groupId = "historyManagerDelete")
-	public void handleEntityDelete(@Payload byte[] message, @Header(KafkaHeaders.RECEIVED_MESSAGE_KEY) String key)
-			throws Exception {
-		logger.trace("Listener handleEntityDelete...");
-
-		logger.debug("Received key: " + key);
-		String payload = new String(message);
-		logger.debug("Received message: " + payload);
+	/**
+	 * The temporal evolution of an entity is kept when the entity is deleted, so
+	 * nothing is stored for the delete events. They are consumed in batches like
+	 * the other entity events.
+	 */
+	@KafkaListener(topics = "${entity.delete.topic}", groupId = "historyManagerDelete", containerFactory = HistoryKafkaConfig.BATCH_LISTENER_CONTAINER_FACTORY)
+	public void handleEntityDelete(@Payload List<byte[]> messages,
+			@Header(KafkaHeaders.RECEIVED_MESSAGE_KEY) List<String> keys) throws Exception {
+		logger.trace("Listener handleEntityDelete, batch size " + messages.size());
+		if (logger.isDebugEnabled()) {
+			for (int i = 0; i < messages.size(); i++) {
+				logger.debug("Received key: " + keys.get(i) + " message: " + new String(messages.get(i)));
+			}
+		}
 	}
 
 }
@@ -0,0 +1,61 @@
+package eu.neclab.ngsildbroker.historymanager.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import org.springframework.kafka.KafkaException;
+
+import eu.neclab.ngsildbroker.historymanager.config.HistoryKafkaConfig.RetryingBatchErrorHandler;
+
+public class RetryingBatchErrorHandlerTest {
+
+	private static final TopicPartition PARTITION = new TopicPartition("ENTITY_CREATE", 0);
+
+	private static ConsumerRecords<String, byte[]> batch(long offset) {
+		Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> records = new HashMap<TopicPartition, List<ConsumerRecord<String, byte[]>>>();
+		records.put(PARTITION, Arrays.asList(new ConsumerRecord<String, byte[]>("ENTITY_CREATE", 0, offset, "a", null),
+				new ConsumerRecord<String, byte[]>("ENTITY_CREATE", 0, offset + 1, "b", null)));
+		return new ConsumerRecords<String, byte[]>(records);
+	}
+
+	@Test
+	public void retryTest() {
+		MockConsumer<String, byte[]> consumer = new MockConsumer<String, byte[]>(OffsetResetStrategy.EARLIEST);
+		consumer.assign(Collections.singletonList(PARTITION));
+		RetryingBatchErrorHandler handler = new RetryingBatchErrorHandler(3, 0);
+		Exception error = new IllegalStateException("store failed");
+		for (int i = 0; i < 2; i++) {
+			consumer.seek(PARTITION, 12);
+			try {
+				handler.handle(error, batch(10), consumer, null);
+				fail("the batch has to be delivered again");
+			} catch (KafkaException e) {
+				assertEquals(10, consumer.position(PARTITION));
+			}
+		}
+		// skipped after the last attempt
+		consumer.seek(PARTITION, 12);
+		handler.handle(error, batch(10), consumer, null);
+		assertEquals(12, consumer.position(PARTITION));
+
+		// a failure of another batch starts counting again
+		try {
+			handler.handle(error, batch(12), consumer, null);
+			fail("the batch has to be delivered again");
+		} catch (KafkaException e) {
+			assertEquals(12, consumer.position(PARTITION));
+		}
+	}
+}
@@ -20,6 +20,8 @@ import eu.neclab.ngsildbroker.commons.securityConfig.SecurityConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.CommonKafkaConfig;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.swaggerConfig.SwaggerConfigDetails;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
+import eu.neclab.ngsildbroker.commons.tools.PooledHttpClient;
 
 import eu.neclab.ngsildbroker.registryhandler.config.CSourceProducerChannel;
 import eu.neclab.ngsildbroker.registryhandler.config.RegistryJdbcConfig;
@@ -30,7 +32,7 @@ import eu.neclab.ngsildbroker.registryhandler.config.RegistryJdbcConfig;
 //@Component(immediate=true)
 @SpringBootApplication
 @EnableBinding({ CSourceProducerChannel.class, AtContextProducerChannel.class })
-@Import({CommonKafkaConfig.class, SwaggerConfigDetails.class})
+@Import({CommonKafkaConfig.class, SwaggerConfigDetails.class, HttpClientConfig.class})
 public class RegistryHandler {
 	
 	public static void main(String[] args) {
@@ -53,16 +55,13 @@ public class RegistryHandler {
 	}
 
 	@Bean("rmrestTemplate")
-	RestTemplate restTemplate() {
-		return new RestTemplate(clientHttpRequestFactory());
+	RestTemplate restTemplate(PooledHttpClient pooledHttpClient) {
+		return new RestTemplate(clientHttpRequestFactory(pooledHttpClient));
 	}
 
-	//rest template timeout configs
-	private ClientHttpRequestFactory clientHttpRequestFactory() {
-		HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
-		factory.setReadTimeout(10000);
-		factory.setConnectTimeout(10000);
-		return factory;
+	//rest template shares the connection pool and timeout configs of the pooled client
+	private ClientHttpRequestFactory clientHttpRequestFactory(PooledHttpClient pooledHttpClient) {
+		return new HttpComponentsClientHttpRequestFactory(pooledHttpClient.getClient());
 	}
 
 	@Bean("rmgetCsourceRegistration")
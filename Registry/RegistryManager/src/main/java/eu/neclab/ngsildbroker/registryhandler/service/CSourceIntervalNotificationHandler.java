@@ -1,9 +1,8 @@
 package eu.neclab.ngsildbroker.registryhandler.service;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ArrayListMultimap;
 
@@ -11,13 +10,15 @@ import eu.neclab.ngsildbroker.commons.datatypes.CSourceNotification;
 import eu.neclab.ngsildbroker.commons.datatypes.Subscription;
 import eu.neclab.ngsildbroker.commons.interfaces.CSourceNotificationHandler;
 import eu.neclab.ngsildbroker.commons.tools.EntityTools;
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler;
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler.Timeout;
 
 public class CSourceIntervalNotificationHandler {
 
 	private ArrayListMultimap<String, CSourceNotification> id2Data = ArrayListMultimap.create();
 	
-	private HashMap<String, TimerTask> id2TimerTask = new HashMap<String, TimerTask>();
-	private Timer executor = new Timer(true);
+	private ConcurrentHashMap<String, Timeout> id2Timeout = new ConcurrentHashMap<String, Timeout>();
+	private TimingWheelScheduler scheduler = TimingWheelScheduler.getInstance();
 	
 
 	private CSourceNotificationHandler notificationHandler;
@@ -29,32 +30,30 @@ public class CSourceIntervalNotificationHandler {
 
 	public void addSub(Subscription sub, long interval) {
 		
-		TimerTask temp = new TimerTask() {
-
-			@Override
-			public void run() {
-				List<CSourceNotification> data;
-				synchronized (id2Data) {
-					data = id2Data.removeAll(sub.getId().toString());
-				}
-				if (data != null) {
-					List<CSourceNotification> notifications = EntityTools.squashCSourceNotifications(data);
-					for(CSourceNotification notification: notifications) {
-						notificationHandler.notify(notification, sub);
-					}
+		Timeout timeout = scheduler.scheduleWithFixedDelay(() -> {
+			List<CSourceNotification> data;
+			synchronized (id2Data) {
+				data = id2Data.removeAll(sub.getId().toString());
+			}
+			if (data != null) {
+				List<CSourceNotification> notifications = EntityTools.squashCSourceNotifications(data);
+				for(CSourceNotification notification: notifications) {
+					notificationHandler.notify(notification, sub);
 				}
-
 			}
-
-		};
-		id2TimerTask.put(sub.getId().toString(), temp);
-		executor.schedule(temp, 0, interval);
+		}, 0, interval, TimeUnit.MILLISECONDS);
+		Timeout previous = id2Timeout.put(sub.getId().toString(), timeout);
+		if (previous != null) {
+			previous.cancel();
+		}
 	}
 
 	
 	public void removeSub(String subId) {
-		id2TimerTask.get(subId).cancel();
-		id2TimerTask.remove(subId);
+		Timeout timeout = id2Timeout.remove(subId);
+		if (timeout != null) {
+			timeout.cancel();
+		}
 		id2Data.removeAll(subId);
 	}
 
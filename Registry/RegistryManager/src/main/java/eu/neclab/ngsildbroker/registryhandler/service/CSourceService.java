@@ -9,9 +9,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -52,6 +51,8 @@ import eu.neclab.ngsildbroker.commons.ngsiqueries.QueryParser;
 import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaOps;
 import eu.neclab.ngsildbroker.commons.tools.HttpUtils;
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler;
+import eu.neclab.ngsildbroker.commons.tools.TimingWheelScheduler.Timeout;
 import eu.neclab.ngsildbroker.registryhandler.config.CSourceProducerChannel;
 import eu.neclab.ngsildbroker.registryhandler.config.StartupConfig;
 import eu.neclab.ngsildbroker.registryhandler.controller.RegistryController;
@@ -99,8 +100,8 @@ public class CSourceService {
 	private final CSourceProducerChannel producerChannels;
 	private ArrayListMultimap<String, String> csourceIds = ArrayListMultimap.create();
 
-	HashMap<String, TimerTask> regId2TimerTask = new HashMap<String, TimerTask>();
-	Timer watchDog = new Timer(true);
+	ConcurrentHashMap<String, Timeout> regId2Expiry = new ConcurrentHashMap<String, Timeout>();
+	TimingWheelScheduler scheduler = TimingWheelScheduler.getInstance();
 	private ArrayBlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<Runnable>(50000, true);
 
 	ThreadPoolExecutor executor = new ThreadPoolExecutor(20, 50, 600000, TimeUnit.MILLISECONDS, workQueue);
@@ -214,9 +215,9 @@ public class CSourceService {
 				newCSourceRegistration);
 
 		synchronized (this) {
-			TimerTask task = regId2TimerTask.get(registrationId.toString());
-			if (task != null) {
-				task.cancel();
+			Timeout expiry = regId2Expiry.remove(registrationId.toString());
+			if (expiry != null) {
+				expiry.cancel();
 			}
 			this.csourceTimerTask(headers, newCSourceRegistration);
 		}
@@ -303,20 +304,19 @@ public class CSourceService {
 
 	public void csourceTimerTask(ArrayListMultimap<String, String> headers, CSourceRegistration csourceReg) {
 		if (csourceReg.getExpires() != null) {
-			TimerTask cancel = new TimerTask() {
-				@Override
-				public void run() {
-					try {
-						synchronized (this) {
-							deleteCSourceRegistration(headers, csourceReg.getId().toString());
-						}
-					} catch (Exception e) {
-						logger.error("Timer Task -> Exception while expiring residtration :: ", e);
+			Timeout expiry = scheduler.schedule(() -> {
+				try {
+					synchronized (this) {
+						deleteCSourceRegistration(headers, csourceReg.getId().toString());
 					}
+				} catch (Exception e) {
+					logger.error("Timer Task -> Exception while expiring residtration :: ", e);
 				}
-			};
-			regId2TimerTask.put(csourceReg.getId().toString(), cancel);
-			watchDog.schedule(cancel, csourceReg.getExpires() - System.currentTimeMillis());
+			}, csourceReg.getExpires() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			Timeout previous = regId2Expiry.put(csourceReg.getId().toString(), expiry);
+			if (previous != null) {
+				previous.cancel();
+			}
 		}
 	}
 
@@ -333,6 +333,10 @@ public class CSourceService {
 				throw new ResponseException(ErrorType.NotFound);
 			}
 		}
+		Timeout expiry = regId2Expiry.remove(registrationId);
+		if (expiry != null) {
+			expiry.cancel();
+		}
 
 		/*
 		 * String csourceBody = null; if (directDB) { csourceBody =
@@ -2,10 +2,8 @@ package eu.neclab.ngsildbroker.gateway.config;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cloud.client.ServiceInstance;
-import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
 import org.springframework.stereotype.Component;
 
 import com.netflix.zuul.ZuulFilter;
@@ -29,38 +27,16 @@ public class PreFilter extends ZuulFilter {
 	@Value("${query-manager.http-method}")
 	private String HTTP_METHOD;
 
-	@Value("${entity-manager.target-service}")
-	private String EM_TARGET_SERVICE;
-	@Value("${entity-manager.http-method}")
-	private String EM_HTTP_METHOD;
-
-	static boolean switchQMEM = true;
-
-	@Autowired
-	private LoadBalancerClient loadBalancer;
-
 	/**
-	 * route GET requests to query-manager microservice
+	 * route GET requests to query-manager microservice. Only the service is
+	 * replaced, the instance is chosen by ribbon like for every other route
+	 * (least outstanding requests with BestAvailableRule).
 	 */
 	@Override
 	public Object run() throws ZuulException {
 		RequestContext context = RequestContext.getCurrentContext();
-		ServiceInstance serviceInstance;
-		
-		if (switchQMEM) {
-			serviceInstance = loadBalancer.choose(this.TARGET_SERVICE);
-		} else {
-			serviceInstance = loadBalancer.choose(this.EM_TARGET_SERVICE);
-		}
-		try {
-			if (serviceInstance != null) {
-				context.setRouteHost(serviceInstance.getUri().toURL());
-			} else {
-				throw new IllegalStateException("Target service instance not found!");
-			}
-		} catch (Exception e) {
-			throw new IllegalArgumentException("Couldn't get service URL!", e);
-		}
+		context.set(FilterConstants.SERVICE_ID_KEY, TARGET_SERVICE);
+		context.setRouteHost(null);
 		return null;
 	}
 
@@ -71,30 +47,28 @@ public class PreFilter extends ZuulFilter {
 	public boolean shouldFilter() {
 		RequestContext context = RequestContext.getCurrentContext();
 		HttpServletRequest request = context.getRequest();
-		String method = request.getMethod();
 		String requestURI = request.getRequestURI();
-		if (!requestURI.startsWith(REQUEST_PATH)) {
+		if (!requestURI.startsWith(REQUEST_PATH) || !HTTP_METHOD.equalsIgnoreCase(request.getMethod())) {
 			return false;
 		}
-		if (HTTP_METHOD.equalsIgnoreCase(method)) {
-			switchQMEM = true;
-			return true;
+		Object routeClass = request.getAttribute(RouteAdmissionFilter.ROUTE_CLASS_ATTRIBUTE);
+		if (routeClass == null) {
+			routeClass = RouteClass.classify(request.getMethod(), requestURI);
 		}
-		/*
-		 * if (EM_HTTP_METHOD.equalsIgnoreCase(method)) { switchQMEM = false; return
-		 * true; }
-		 */
-		return false;
+		return routeClass == RouteClass.READ;
 	}
 
+	/**
+	 * runs after the route of the request has been resolved
+	 */
 	@Override
 	public int filterOrder() {
-		return 0;
+		return FilterConstants.PRE_DECORATION_FILTER_ORDER + 1;
 	}
 
 	@Override
 	public String filterType() {
-		return "route";
+		return FilterConstants.PRE_TYPE;
 	}
 
 }
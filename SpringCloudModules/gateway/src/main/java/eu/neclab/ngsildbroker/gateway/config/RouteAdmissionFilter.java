@@ -0,0 +1,115 @@
+package eu.neclab.ngsildbroker.gateway.config;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Admits the requests of each route class up to its own number of concurrent
+ * requests, further requests are rejected with 503 right away instead of
+ * waiting for a Tomcat thread or a backend. The latency of the admitted
+ * requests is reported per route class and status.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class RouteAdmissionFilter extends OncePerRequestFilter {
+
+	public static final String ROUTE_CLASS_ATTRIBUTE = RouteAdmissionFilter.class.getName() + ".routeClass";
+
+	private static final String SHED_BODY = "{\"type\":\"https://uri.etsi.org/ngsi-ld/errors/InternalError\",\"title\":\"Too many requests.\",\"detail\":\"The broker is saturated, retry later.\"}";
+
+	@Value("${gateway.routing.maxconcurrent.read:1000}")
+	int maxRead;
+	@Value("${gateway.routing.maxconcurrent.write:500}")
+	int maxWrite;
+	@Value("${gateway.routing.maxconcurrent.batch:100}")
+	int maxBatch;
+	@Value("${gateway.routing.maxconcurrent.temporal:200}")
+	int maxTemporal;
+	@Value("${gateway.routing.maxconcurrent.subscription:100}")
+	int maxSubscription;
+	@Value("${gateway.routing.maxconcurrent.other:100}")
+	int maxOther;
+	@Value("${gateway.routing.retryafter:1}")
+	int retryAfter;
+
+	@Autowired(required = false)
+	MeterRegistry meterRegistry;
+
+	private final EnumMap<RouteClass, Semaphore> permits = new EnumMap<RouteClass, Semaphore>(RouteClass.class);
+	private final EnumMap<RouteClass, Counter> shed = new EnumMap<RouteClass, Counter>(RouteClass.class);
+
+	@PostConstruct
+	private void setup() {
+		addClass(RouteClass.READ, maxRead);
+		addClass(RouteClass.WRITE, maxWrite);
+		addClass(RouteClass.BATCH, maxBatch);
+		addClass(RouteClass.TEMPORAL, maxTemporal);
+		addClass(RouteClass.SUBSCRIPTION, maxSubscription);
+		addClass(RouteClass.OTHER, maxOther);
+	}
+
+	private void addClass(RouteClass routeClass, int max) {
+		Semaphore semaphore = new Semaphore(Math.max(1, max));
+		permits.put(routeClass, semaphore);
+		if (meterRegistry != null) {
+			String tag = routeClass.name().toLowerCase();
+			shed.put(routeClass, Counter.builder("gateway.requests.shed").tag("class", tag)
+					.description("Requests rejected because their route class was saturated").register(meterRegistry));
+			Gauge.builder("gateway.requests.active", semaphore, s -> Math.max(1, max) - s.availablePermits())
+					.tag("class", tag).register(meterRegistry);
+		}
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		RouteClass routeClass = RouteClass.classify(request.getMethod(), request.getRequestURI());
+		Semaphore semaphore = permits.get(routeClass);
+		if (!semaphore.tryAcquire()) {
+			Counter counter = shed.get(routeClass);
+			if (counter != null) {
+				counter.increment();
+			}
+			response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+			response.setHeader("Retry-After", Integer.toString(retryAfter));
+			response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+			response.getWriter().write(SHED_BODY);
+			return;
+		}
+		request.setAttribute(ROUTE_CLASS_ATTRIBUTE, routeClass);
+		long start = System.nanoTime();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			semaphore.release();
+			if (meterRegistry != null) {
+				Timer.builder("gateway.requests").tag("class", routeClass.name().toLowerCase())
+						.tag("status", Integer.toString(response.getStatus())).register(meterRegistry)
+						.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+package eu.neclab.ngsildbroker.gateway.config;
+
+/**
+ * Classes of NGSI-LD requests which are admitted and measured separately, so
+ * that e.g. a burst of batch writes does not take the threads of the reads.
+ */
+public enum RouteClass {
+
+	READ, WRITE, BATCH, TEMPORAL, SUBSCRIPTION, OTHER;
+
+	private static final String BASE_PATH = "/ngsi-ld/v1/";
+
+	/**
+	 * Method used for classifying a request by its method and path.
+	 *
+	 * @param method
+	 * @param requestURI
+	 * @return the class of the request
+	 */
+	public static RouteClass classify(String method, String requestURI) {
+		if (requestURI == null || !requestURI.startsWith(BASE_PATH)) {
+			return OTHER;
+		}
+		String path = requestURI.substring(BASE_PATH.length());
+		if (path.startsWith("temporal/")) {
+			return TEMPORAL;
+		}
+		if (isResource(path, "subscriptions") || isResource(path, "csourceSubscriptions")) {
+			return SUBSCRIPTION;
+		}
+		if (isResource(path, "entityOperations/query")) {
+			return READ;
+		}
+		if (isResource(path, "entityOperations")) {
+			return BATCH;
+		}
+		if (isResource(path, "entities") || isResource(path, "types") || isResource(path, "attributes")
+				|| isResource(path, "csourceRegistrations")) {
+			if ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)) {
+				return READ;
+			}
+			return WRITE;
+		}
+		return OTHER;
+	}
+
+	private static boolean isResource(String path, String resource) {
+		return path.startsWith(resource)
+				&& (path.length() == resource.length() || path.charAt(resource.length()) == '/');
+	}
+}
@@ -0,0 +1,24 @@
+package eu.neclab.ngsildbroker.gateway.config;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RouteClassTest {
+
+	@Test
+	public void classifyTest() {
+		assertEquals(RouteClass.READ, RouteClass.classify("GET", "/ngsi-ld/v1/entities"));
+		assertEquals(RouteClass.READ, RouteClass.classify("GET", "/ngsi-ld/v1/entities/urn:a"));
+		assertEquals(RouteClass.READ, RouteClass.classify("GET", "/ngsi-ld/v1/types"));
+		assertEquals(RouteClass.READ, RouteClass.classify("POST", "/ngsi-ld/v1/entityOperations/query"));
+		assertEquals(RouteClass.WRITE, RouteClass.classify("POST", "/ngsi-ld/v1/entities/"));
+		assertEquals(RouteClass.WRITE, RouteClass.classify("PATCH", "/ngsi-ld/v1/entities/urn:a/attrs"));
+		assertEquals(RouteClass.BATCH, RouteClass.classify("POST", "/ngsi-ld/v1/entityOperations/upsert"));
+		assertEquals(RouteClass.TEMPORAL, RouteClass.classify("GET", "/ngsi-ld/v1/temporal/entities"));
+		assertEquals(RouteClass.SUBSCRIPTION, RouteClass.classify("POST", "/ngsi-ld/v1/subscriptions/"));
+		assertEquals(RouteClass.SUBSCRIPTION, RouteClass.classify("GET", "/ngsi-ld/v1/csourceSubscriptions"));
+		assertEquals(RouteClass.OTHER, RouteClass.classify("GET", "/ngsi-ld/v1/entitiesx"));
+		assertEquals(RouteClass.OTHER, RouteClass.classify("GET", "/scorpio/v1/info/stats"));
+	}
+}
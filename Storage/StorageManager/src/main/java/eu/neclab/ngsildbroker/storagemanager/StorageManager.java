@@ -8,12 +8,13 @@ import org.springframework.context.annotation.Import;
 
 import eu.neclab.ngsildbroker.commons.storage.StorageWriterDAO;
 import eu.neclab.ngsildbroker.commons.stream.service.KafkaConfig;
+import eu.neclab.ngsildbroker.commons.tools.HttpClientConfig;
 import eu.neclab.ngsildbroker.storagemanager.config.JdbcConfig;
 import eu.neclab.ngsildbroker.storagemanager.services.StorageReaderService;
 import eu.neclab.ngsildbroker.storagemanager.services.StorageWriterService;
 
 @SpringBootApplication
-@Import(KafkaConfig.class)
+@Import({KafkaConfig.class, HttpClientConfig.class})
 public class StorageManager {
 
 	@Autowired
@@ -7,16 +7,20 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Repository;
 
+import eu.neclab.ngsildbroker.commons.constants.DBConstants;
 import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
 import eu.neclab.ngsildbroker.commons.storage.StorageReaderDAO;
 
 @Repository
 @ConditionalOnProperty(value="reader.enabled", havingValue = "true", matchIfMissing = false)
 public class EntityStorageReaderDAO extends StorageReaderDAO {
-	
+
+	// the counts are read from the type catalog maintained by the entity table
+	// triggers, entities without type are not counted
 	public Long getLocalEntitiesCount(String tenantId) throws ResponseException {
 		List<Map<String, Object>> list = getJDBCTemplate(tenantId).queryForList(
-				"SELECT count(id) FROM entity;");
+				"SELECT coalesce(sum(entitycount), 0)::bigint AS count FROM "
+						+ DBConstants.DBTABLE_ENTITY_TYPE_CATALOG + ";");
 		if(list == null ||list.isEmpty()) {
 			return null;
 		}
@@ -25,7 +29,7 @@ public class EntityStorageReaderDAO extends StorageReaderDAO {
 	}
 	public Long getLocalTypesCount(String tenantId) throws ResponseException {
 		List<Map<String, Object>> list = getJDBCTemplate(tenantId).queryForList(
-				"SELECT count(distinct(type)) FROM entity;");
+				"SELECT count(type) FROM " + DBConstants.DBTABLE_ENTITY_TYPE_CATALOG + ";");
 		if(list == null ||list.isEmpty()) {
 			return null;
 		}
@@ -1,8 +1,6 @@
 package eu.neclab.ngsildbroker.storagemanager.services;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
@@ -14,9 +12,11 @@ import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.stereotype.Service;
 
-import com.google.common.base.Splitter;
 import eu.neclab.ngsildbroker.commons.datatypes.QueryParams;
+import eu.neclab.ngsildbroker.commons.enums.ErrorType;
+import eu.neclab.ngsildbroker.commons.exceptions.ResponseException;
 import eu.neclab.ngsildbroker.commons.serialization.DataSerializer;
+import eu.neclab.ngsildbroker.commons.serialization.QueryResultCodec;
 import eu.neclab.ngsildbroker.storagemanager.repository.EntityStorageReaderDAO;
 
 @Service
@@ -24,7 +24,6 @@ import eu.neclab.ngsildbroker.storagemanager.repository.EntityStorageReaderDAO;
 public class StorageReaderService {
 
 	private final static Logger logger = LogManager.getLogger(StorageWriterService.class);
-	private final static int MAX_UTF_SIZE = 65535;
 
 	// public static final Gson GSON = DataSerializer.GSON;
 
@@ -55,31 +54,22 @@ public class StorageReaderService {
 
 		logger.trace("Listener queryHandler, Thread ID: " + Thread.currentThread().getId());
 		logger.trace("handleQuery() :: started");
-		String payload = new String(message);
+		String payload = new String(message, StandardCharsets.UTF_8);
 		logger.debug("Received message: " + payload);
-		List<String> entityList = new ArrayList<String>();
+		List<String> entityList;
 		try {
 			QueryParams qp = DataSerializer.getQueryParams(payload);
 			entityList = storageReaderDao.query(qp).getActualDataString();
+		} catch (ResponseException e) {
+			logger.error("Query failed: " + payload, e);
+			return QueryResultCodec.encodeError(e.getError(), e.getMessage());
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("Query failed: " + payload, e);
+			return QueryResultCodec.encodeError(ErrorType.InternalError, e.getMessage());
 		}
 		logger.trace("Pushing result to Kafka...");
-		logger.debug(storageReaderDao.getListAsJsonArray(entityList));
-		// write to byte array
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream(baos);
-		for (String element : entityList) {
-			if (element.length() > MAX_UTF_SIZE) {
-				for(String subelement: Splitter.fixedLength(MAX_UTF_SIZE).split(element)) {
-					out.writeUTF(subelement);
-				}
-			} else {
-				out.writeUTF(element);
-			}
-		}
 		logger.trace("handleQuery() :: completed");
-		return baos.toByteArray();
+		return QueryResultCodec.encode(entityList);
 	}
 
 }
@@ -0,0 +1,77 @@
+BEGIN;
+
+-- the static flag of an attribute instance is true if it is the only instance of its attribute.
+-- it used to be maintained by the row trigger with an extra select and update for every inserted row.
+-- now the row trigger only extracts the jsonb fields and the flag is recomputed once per statement
+-- for all attributes touched by the statement.
+
+ALTER TABLE temporalentityattrinstance ALTER COLUMN static SET DEFAULT TRUE;
+
+CREATE OR REPLACE FUNCTION temporalentityattrinstance_extract_jsonb_fields() RETURNS trigger AS $_$
+    BEGIN
+        IF TG_OP = 'INSERT' OR NEW.data <> OLD.data THEN -- do not reprocess if it is just an update on other column (e.g. static)
+            NEW.attributetype = NEW.data#>>'{@type,0}';
+
+            NEW.instanceid = NEW.data#>>'{https://uri.etsi.org/ngsi-ld/instanceId,0,@id}';
+            
+            NEW.createdat = (NEW.data#>>'{https://uri.etsi.org/ngsi-ld/createdAt,0,@value}')::TIMESTAMP;
+            NEW.modifiedat = (NEW.data#>>'{https://uri.etsi.org/ngsi-ld/modifiedAt,0,@value}')::TIMESTAMP;
+            NEW.observedat = (NEW.data#>>'{https://uri.etsi.org/ngsi-ld/observedAt,0,@value}')::TIMESTAMP;
+
+            IF NEW.attributeid IN ('https://uri.etsi.org/ngsi-ld/createdAt', 'https://uri.etsi.org/ngsi-ld/modifiedAt', 'https://uri.etsi.org/ngsi-ld/observedAt') THEN
+                NEW.value = NEW.data#>'{@value}';
+            ELSE 
+                IF (NEW.data?'https://uri.etsi.org/ngsi-ld/hasValue') THEN
+                    NEW.value = NEW.data#>'{https://uri.etsi.org/ngsi-ld/hasValue,0,@value}';  -- TODO: confirm if #> or #>>
+                ELSIF (NEW.data?'https://uri.etsi.org/ngsi-ld/hasObject') THEN
+                    NEW.value = NEW.data#>'{https://uri.etsi.org/ngsi-ld/hasObject,0,@id}';
+                ELSE
+                    NEW.value = NULL;
+                END IF;
+            END IF;
+
+            IF NEW.attributetype = 'https://uri.etsi.org/ngsi-ld/GeoProperty' THEN
+                NEW.geovalue = ST_SetSRID(ST_GeomFromGeoJSON( NEW.data#>>'{https://uri.etsi.org/ngsi-ld/hasValue,0,@value}' ), 4326);
+            ELSE 
+                NEW.geovalue = NULL;
+            END IF;
+        END IF;
+
+        RETURN NEW;
+    END;
+$_$ LANGUAGE plpgsql;
+
+-- recomputes the static flag of all attributes with rows in the transition table "changed"
+CREATE OR REPLACE FUNCTION temporalentityattrinstance_update_static_set() RETURNS trigger AS $_$
+    BEGIN
+        UPDATE temporalentityattrinstance t SET static = (s.instances = 1)
+            FROM (SELECT i.temporalentity_id, i.attributeid, count(1) AS instances
+                    FROM temporalentityattrinstance i
+                    JOIN (SELECT DISTINCT temporalentity_id, attributeid FROM changed) c
+                        ON i.temporalentity_id = c.temporalentity_id AND i.attributeid = c.attributeid
+                    GROUP BY i.temporalentity_id, i.attributeid) s
+            WHERE t.temporalentity_id = s.temporalentity_id AND t.attributeid = s.attributeid
+                AND t.static <> (s.instances = 1);
+        RETURN NULL;
+    END;
+$_$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS temporalentityattrinstance_update_static ON temporalentityattrinstance;
+DROP FUNCTION IF EXISTS temporalentityattrinstance_update_static();
+
+CREATE TRIGGER temporalentityattrinstance_static_insert AFTER INSERT ON temporalentityattrinstance
+    REFERENCING NEW TABLE AS changed
+    FOR EACH STATEMENT EXECUTE PROCEDURE temporalentityattrinstance_update_static_set();
+
+CREATE TRIGGER temporalentityattrinstance_static_delete AFTER DELETE ON temporalentityattrinstance
+    REFERENCING OLD TABLE AS changed
+    FOR EACH STATEMENT EXECUTE PROCEDURE temporalentityattrinstance_update_static_set();
+
+-- converts existing data, the flag is recomputed for all attributes once
+UPDATE temporalentityattrinstance t SET static = (s.instances = 1)
+    FROM (SELECT temporalentity_id, attributeid, count(1) AS instances
+            FROM temporalentityattrinstance GROUP BY temporalentity_id, attributeid) s
+    WHERE t.temporalentity_id = s.temporalentity_id AND t.attributeid = s.attributeid
+        AND t.static <> (s.instances = 1);
+
+COMMIT;